@@ -0,0 +1,138 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * Follow-up GETs in each {@link ExecutionMode} against an agent that answers after a
+ * delay, like one across a WAN. The GETs are started from one thread, as by a GET
+ * stage with one worker, so BLOCKING is the old serialized behavior. One operation
+ * is one GET whose response has been saved.
+ *
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Threads(1)
+public class GetModeBenchmark {
+
+	private static final String AGENT_ADDRESS = "127.0.0.1/16102";
+	private static final int GETS = 200;
+
+	@Param({ "BLOCKING", "VIRTUAL", "ASYNC" })
+	public ExecutionMode mode;
+
+	@Param({ "10" })
+	public long delayMillis;
+
+	private File dir;
+	private Snmp agent;
+	private ScheduledExecutorService responder;
+	private SnmpNms nms;
+	private TrapEvent trap;
+	private volatile CountDownLatch saved;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		dir = File.createTempFile("getmodebench", "");
+		dir.delete();
+		dir.mkdirs();
+		System.setProperty("nms.journal.dir", dir.getPath());
+		// every GET has to go to the agent, not to the response cache
+		System.setProperty("nms.cache.ttl", "0");
+
+		responder = Executors.newScheduledThreadPool(2);
+		agent = new Snmp(new DefaultUdpTransportMapping(new UdpAddress(AGENT_ADDRESS)));
+		agent.addCommandResponder(new CommandResponder() {
+			public void processPdu(final CommandResponderEvent event) {
+				event.setProcessed(true);
+				responder.schedule(new Runnable() {
+					public void run() {
+						respond(event);
+					}
+				}, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		});
+		agent.listen();
+
+		nms = new SnmpNms() {
+			@Override
+			public void readAndSaveGetResult(PDU respPDU, TrapEvent trap) {
+				super.readAndSaveGetResult(respPDU, trap);
+				saved.countDown();
+			}
+		};
+		nms.setExecutionMode(mode);
+		trap = new TrapEvent(System.currentTimeMillis(), "agent1", AGENT_ADDRESS, "666", "Elevator jammed!");
+	}
+
+	private static void respond(CommandResponderEvent event) {
+		PDU response = new PDU();
+		response.setType(PDU.RESPONSE);
+		response.setRequestID(event.getPDU().getRequestID());
+		response.add(new VariableBinding(SnmpNms.SYS_DESCR, new OctetString("agent1 says Hello.")));
+		try {
+			event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(),
+					event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(), response,
+					event.getMaxSizeResponsePDU(), event.getStateReference(), new StatusInformation());
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		nms.close();
+		agent.close();
+		responder.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(GETS)
+	public void followUpGets() throws Exception {
+		saved = new CountDownLatch(GETS);
+		for (int i = 0; i < GETS; i++) {
+			nms.makeGetToAgent(trap);
+		}
+		if (!saved.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Only " + (GETS - saved.getCount()) + " GET responses saved in 60 s");
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.PDU;
+
+import com.itu.snmp.agent.SnmpAgent;
+
+/**
+ * The whole cycle on loopback: a trap is sent to the NMS, the NMS makes the GET
+ * to an in-process SnmpAgent and one operation ends when the response is saved.
+ * 
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Threads(1)
+public class LoopbackBenchmark {
+
+	private static final String NMS_ADDRESS = "127.0.0.1/1620";
+
+	private File dir;
+	private SnmpAgent agent;
+	private SnmpNms nms;
+	private volatile CountDownLatch saved;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		dir = File.createTempFile("loopbackbench", "");
+		dir.delete();
+		dir.mkdirs();
+		System.setProperty("nms.journal.dir", dir.getPath());
+		System.setProperty("nms.store.dir", new File(dir, "alarmstore").getPath());
+		// the same trap is sent again and again, every one of them has to get its GET
+		System.setProperty("nms.dedup.window", "0");
+		// every GET has to go to the agent, not to the response cache
+		System.setProperty("nms.cache.ttl", "0");
+
+		agent = new SnmpAgent("127.0.0.1/16101", "agent1");
+		nms = new SnmpNms(NMS_ADDRESS) {
+			@Override
+			public void readAndSaveGetResult(PDU respPDU, TrapEvent trap) {
+				super.readAndSaveGetResult(respPDU, trap);
+				saved.countDown();
+			}
+		};
+
+		agent.setTrapSendingAddress(NMS_ADDRESS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		nms.close();
+		agent.stop();
+		new File("simplest.boot").delete();
+	}
+
+	@Benchmark
+	public void trapGetResponse() throws Exception {
+		saved = new CountDownLatch(1);
+		agent.sendTraps(1, SnmpAgent.DEFAULT_ALARM_CODE, SnmpAgent.DEFAULT_ALARM_TEXT);
+		if (!saved.await(5, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("No GET response saved in 5 s");
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Reading and saving traps and GET responses in the NMS, without the network.
+ * The alarm files and the alarm store are written to a temporary directory.
+ * 
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class NmsBenchmark {
+
+	private File dir;
+	private SnmpNms nms;
+	private PDU trap;
+	private PDU response;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		dir = File.createTempFile("nmsbench", "");
+		dir.delete();
+		dir.mkdirs();
+		System.setProperty("nms.journal.dir", dir.getPath());
+		System.setProperty("nms.store.dir", new File(dir, "alarmstore").getPath());
+		nms = new SnmpNms();
+		trap = TrapDecodeAllocation.createTrap();
+		response = new PDU();
+		response.setType(PDU.RESPONSE);
+		response.add(new VariableBinding(SnmpNms.SYS_DESCR, new OctetString("agent1 says Hello.")));
+	}
+
+	@TearDown
+	public void tearDown() {
+		nms.close();
+		delete(dir);
+	}
+
+	@Benchmark
+	public TrapEvent decodeTrap() {
+		return nms.decodeTrap(trap);
+	}
+
+	@Benchmark
+	public TrapEvent readAndSaveTrap() {
+		return nms.readAndSaveTrap(trap);
+	}
+
+	@Benchmark
+	public void readAndSaveGetResult() {
+		nms.readAndSaveGetResult(response, "agent1");
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
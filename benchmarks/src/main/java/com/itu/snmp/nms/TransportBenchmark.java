@@ -0,0 +1,161 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * Trap ingest through each trap transport: pre-encoded SNMPv2c traps are sent in
+ * bursts from a plain DatagramChannel and one operation is one trap decoded and
+ * handed to a command responder. Run with -prof gc to compare the allocation per trap.
+ * Traps lost on loopback are printed at the end of each trial; for a soak run give
+ * more and longer iterations, i.e. -i 30 -r 10s.
+ *
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Threads(1)
+public class TransportBenchmark {
+
+	private static final String ADDRESS = "127.0.0.1/16103";
+	private static final int BURST = 256;
+
+	public enum Transport {
+		DEFAULT, MULTI, NIO
+	}
+
+	@Param({ "DEFAULT", "MULTI", "NIO" })
+	public Transport transport;
+
+	private UdpTransportMapping mapping;
+	private Snmp receiver;
+	private DatagramChannel sender;
+	private InetSocketAddress target;
+	private ByteBuffer message;
+	private final AtomicLong received = new AtomicLong();
+	private long sent;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		UdpAddress address = new UdpAddress(ADDRESS);
+		switch (transport) {
+		case DEFAULT:
+			DefaultUdpTransportMapping defaultMapping = new DefaultUdpTransportMapping(address);
+			defaultMapping.setReceiveBufferSize(SnmpNms.DEFAULT_RECEIVE_BUFFER);
+			mapping = defaultMapping;
+			break;
+		case MULTI:
+			mapping = new MultiSocketUdpTransportMapping(address, 1, SnmpNms.DEFAULT_RECEIVE_BUFFER);
+			break;
+		default:
+			mapping = new NioUdpTransportMapping(address, NioUdpTransportMapping.DEFAULT_BATCH_SIZE,
+					SnmpNms.DEFAULT_RECEIVE_BUFFER);
+		}
+		// decoded on the transport's own thread in every case
+		MessageDispatcherImpl dispatcher = new MessageDispatcherImpl();
+		dispatcher.addMessageProcessingModel(new MPv2c());
+		receiver = new Snmp(dispatcher, mapping);
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				if (e.getPDU() != null) {
+					received.incrementAndGet();
+				}
+			}
+		});
+		mapping.listen();
+
+		sender = DatagramChannel.open();
+		target = new InetSocketAddress(address.getInetAddress(), address.getPort());
+		message = ByteBuffer.wrap(encode(createTrap()));
+	}
+
+	private static PDU createTrap() {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new org.snmp4j.smi.TimeTicks(4711)));
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, SnmpNms.TRAP_OID));
+		trap.add(new VariableBinding(SnmpNms.ALARM_CODE, new OctetString("666")));
+		trap.add(new VariableBinding(SnmpNms.AGENT_ID, new OctetString("agent1")));
+		trap.add(new VariableBinding(SnmpNms.ALARM_TEXT, new OctetString("Elevator jammed!")));
+		trap.add(new VariableBinding(SnmpNms.AGENT_ADDRESS, new OctetString("127.0.0.1/16101")));
+		return trap;
+	}
+
+	private static byte[] encode(PDU trap) throws IOException {
+		Integer32 version = new Integer32(SnmpConstants.version2c);
+		OctetString community = new OctetString("public");
+		int length = version.getBERLength() + community.getBERLength() + trap.getBERLength();
+		byte[] encoded = new byte[1 + BER.getBERLengthOfLength(length) + length];
+		BEROutputStream out = new BEROutputStream(ByteBuffer.wrap(encoded));
+		BER.encodeHeader(out, BER.SEQUENCE, length);
+		version.encodeBER(out);
+		community.encodeBER(out);
+		trap.encodeBER(out);
+		return encoded;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		System.out.println(transport + ": " + received.get() + " of " + sent + " traps received, "
+				+ UdpKernelStats.drops(target.getPort()) + " dropped by the kernel");
+		sender.close();
+		receiver.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void ingestBurst() throws Exception {
+		long expected = received.get() + BURST;
+		for (int i = 0; i < BURST; i++) {
+			message.rewind();
+			sender.send(message, target);
+		}
+		sent += BURST;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (received.get() < expected && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+
+import com.itu.snmp.agent.SnmpAgent;
+import com.itu.snmp.agent.TrapTemplate;
+
+/**
+ * Creating a trap in the agent and the BER encoding and decoding of it, also from
+ * the agent's pre-encoded {@link TrapTemplate}. The two alarm benchmarks go from a
+ * whole received message to a TrapEvent, with the full SNMP4J decoding and with the
+ * {@link LazyTrapDecoder}.
+ * 
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TrapCodecBenchmark {
+
+	private SnmpAgent agent;
+	private PDU trap;
+	private byte[] encoded;
+	private byte[] message;
+	private SnmpNms nms;
+	private TrapTemplate template;
+	private ByteBuffer templateBuffer;
+	private byte[] alarmCode;
+	private byte[] alarmText;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		agent = new SnmpAgent("127.0.0.1/16100", "agent1");
+		trap = agent.createTrap();
+		encoded = encode(trap);
+		message = encodeMessage(trap);
+		template = new TrapTemplate("public", agent.getAgentId(), agent.getAddress());
+		templateBuffer = ByteBuffer.allocate(65535);
+		alarmCode = SnmpAgent.DEFAULT_ALARM_CODE.getBytes();
+		alarmText = SnmpAgent.DEFAULT_ALARM_TEXT.getBytes();
+		nms = new SnmpNms();
+	}
+
+	@TearDown
+	public void tearDown() {
+		agent.stop();
+		new File("simplest.boot").delete();
+	}
+
+	@Benchmark
+	public PDU createTrap() {
+		return agent.createTrap();
+	}
+
+	@Benchmark
+	public byte[] encodeTrap() throws IOException {
+		return encode(trap);
+	}
+
+	@Benchmark
+	public byte[] createAndEncodeTrapMessage() throws IOException {
+		return encodeMessage(agent.createTrap());
+	}
+
+	@Benchmark
+	public int encodeTrapTemplate() {
+		templateBuffer.clear();
+		return template.encode(templateBuffer, 1, agent.getSysUpTime(), alarmCode, alarmText);
+	}
+
+	@Benchmark
+	public PDU decodeTrap() throws IOException {
+		PDU decoded = new PDU();
+		decoded.decodeBER(new BERInputStream(ByteBuffer.wrap(encoded)));
+		return decoded;
+	}
+
+	@Benchmark
+	public TrapEvent fullDecodeAlarm() throws IOException {
+		BERInputStream in = new BERInputStream(ByteBuffer.wrap(message));
+		BER.decodeHeader(in, new BER.MutableByte());
+		new Integer32().decodeBER(in);
+		new OctetString().decodeBER(in);
+		PDU decoded = new PDU();
+		decoded.decodeBER(in);
+		return nms.decodeTrap(decoded);
+	}
+
+	@Benchmark
+	public TrapEvent lazyDecodeAlarm() {
+		return nms.decodeTrap(LazyTrapDecoder.scan(ByteBuffer.wrap(message)));
+	}
+
+	private static byte[] encodeMessage(PDU pdu) throws IOException {
+		Integer32 version = new Integer32(SnmpConstants.version2c);
+		OctetString community = new OctetString("public");
+		int length = version.getBERLength() + community.getBERLength() + pdu.getBERLength();
+		byte[] encoded = new byte[1 + BER.getBERLengthOfLength(length) + length];
+		BEROutputStream out = new BEROutputStream(ByteBuffer.wrap(encoded));
+		BER.encodeHeader(out, BER.SEQUENCE, length);
+		version.encodeBER(out);
+		community.encodeBER(out);
+		pdu.encodeBER(out);
+		return encoded;
+	}
+
+	private static byte[] encode(PDU pdu) throws IOException {
+		BEROutputStream out = new BEROutputStream(ByteBuffer.allocate(pdu.getBERLength()));
+		pdu.encodeBER(out);
+		return out.getBuffer().array();
+	}
+}
@@ -0,0 +1,72 @@
+package com.itu.snmp.nms;
+
+import java.lang.management.ManagementFactory;
+
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Measures how many bytes the NMS allocates to decode one trap and to format its
+ * GUI and file lines. Uses the per-thread allocation counter of HotSpot.
+ * 
+ * Run with the NMS classes and the SNMP4J and log4j jars in the class path:
+ * java com.itu.snmp.nms.TrapDecodeAllocation [traps]
+ *
+ * @author Petri Tilli
+ *
+ */
+public class TrapDecodeAllocation {
+
+	public static void main(String[] args) {
+		int traps = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		SnmpNms nms = new SnmpNms();
+		PDU trap = createTrap();
+
+		// warm up, so that the JIT has done its escape analysis
+		long sink = run(nms, trap, traps);
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		sink += run(nms, trap, traps);
+		long nanos = System.nanoTime() - start;
+		long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.println("traps:          " + traps);
+		System.out.println("bytes per trap: " + bytes / traps);
+		System.out.println("ns per trap:    " + nanos / traps);
+		System.out.println("(" + sink + ")");
+	}
+
+	private static long run(SnmpNms nms, PDU trap, int traps) {
+		long sink = 0;
+		for (int i = 0; i < traps; i++) {
+			TrapEvent event = nms.decodeTrap(trap);
+			sink += SnmpNms.formatTrap(event).length();
+			sink += event.getDate().length();
+		}
+		return sink;
+	}
+
+	/**
+	 * @return A trap like the ones SnmpAgent sends
+	 */
+	static PDU createTrap() {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.2.3.4.5")));
+		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(5000)));
+		trap.add(new VariableBinding(SnmpConstants.sysDescr, new OctetString("System Description")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.1"), new OctetString("666")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.2"), new OctetString("agent1")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.3"), new OctetString("Elevator jammed!")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.4"), new OctetString("127.0.0.1/1610")));
+		return trap;
+	}
+}
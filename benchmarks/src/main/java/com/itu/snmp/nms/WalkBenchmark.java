@@ -0,0 +1,85 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snmp4j.smi.OID;
+
+import com.itu.snmp.agent.InterfaceTable;
+import com.itu.snmp.agent.SnmpAgent;
+
+/**
+ * A {@link BulkPoller} walk of the whole ifTable of an {@link SnmpAgent} with thousands
+ * of interfaces, whose counters grow while it is walked. One operation is one walk; the
+ * number of varbinds is rows * 15.
+ *
+ * @author Petri Tilli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Threads(1)
+public class WalkBenchmark {
+
+	private static final String AGENT_ADDRESS = "127.0.0.1/16104";
+
+	@Param({ "1000", "10000" })
+	public int interfaces;
+
+	@Param({ "10", "50" })
+	public int maxRepetitions;
+
+	private SnmpAgent agent;
+	private SnmpSession session;
+	private BulkPoller poller;
+	private final BlockingQueue<PollResult> results = new ArrayBlockingQueue<PollResult>(1);
+
+	@Setup
+	public void setUp() throws Exception {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		agent = new SnmpAgent(AGENT_ADDRESS, "agent1", true, interfaces);
+		session = new SnmpSession(1);
+		poller = new BulkPoller(session, 60000, 100, new OID[0], new OID[] { InterfaceTable.IF_ENTRY },
+				maxRepetitions, 64, new NmsMetrics(), new PollListener() {
+					public void pollCompleted(PollResult result) {
+						results.add(result);
+					}
+				});
+	}
+
+	@TearDown
+	public void tearDown() {
+		session.close();
+		agent.stop();
+	}
+
+	@Benchmark
+	public int walk() throws Exception {
+		poller.poll(AGENT_ADDRESS);
+		PollResult result = results.poll(60, TimeUnit.SECONDS);
+		if (result == null || !result.isComplete()) {
+			throw new IllegalStateException("Walk did not complete: " + result);
+		}
+		return result.getBindings().size();
+	}
+}
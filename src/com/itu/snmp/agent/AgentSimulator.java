@@ -0,0 +1,644 @@
+package com.itu.snmp.agent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import com.itu.snmp.nms.LatencyHistogram;
+
+/**
+ * A headless load generator hosting thousands of virtual agents in one JVM.
+ *
+ * Each virtual agent is a non-blocking DatagramChannel on its own port, basePort + i,
+ * with its own agent ID and engine ID. One selector thread answers the SNMPv2c GETs
+ * of every agent: sysDescr with "<agentId> says Hello." like {@link SnmpAgent},
+ * sysUpTime, sysName and snmpEngineID, and noSuchObject for anything else. The traps
+ * are the same as {@link SnmpAgent}'s, encoded from a {@link TrapTemplate} of each
+ * agent and sent from the agent's own port, at a rate and in a {@link Pattern} of
+ * choice, each from a random agent.
+ *
+ * The NMS follows each trap up with a GET of sysDescr to the agent, so the time from
+ * a trap to the next such GET at the same agent is the response latency of the NMS.
+ * A trap with no GET within the timeout is counted as lost. For the counts to add
+ * up the NMS should not answer the GETs from its cache or drop repeated alarms, i.e.
+ * run it with nms.cache.ttl=0 and nms.dedup.window=0, or give --unique to make the
+ * text of every alarm different.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class AgentSimulator {
+
+	private static final Logger logger = Logger.getLogger(AgentSimulator.class);
+
+	/** How the traps are spread over the run, the mean rate is the same in each. */
+	public enum Pattern {
+		/** The same rate all the time. */
+		STEADY,
+		/** The traps of each second are sent in its first BURST_MILLIS. */
+		BURSTY,
+		/** The rate, except for the middle third of the run at stormFactor times the rate. */
+		STORM;
+
+		/**
+		 * @param elapsedMillis Time since the start of the run
+		 * @param rate Traps per second
+		 * @param durationMillis Length of the run
+		 * @param stormFactor How many times the rate a storm is
+		 * @return How many traps should have been sent by now
+		 */
+		public long due(long elapsedMillis, double rate, long durationMillis, double stormFactor) {
+			switch (this) {
+			case BURSTY:
+				long seconds = elapsedMillis / 1000;
+				double burst = Math.min(1.0, (elapsedMillis % 1000) / (double) BURST_MILLIS);
+				return (long) ((seconds + burst) * rate);
+			case STORM:
+				long stormStart = durationMillis / 3;
+				long stormEnd = 2 * durationMillis / 3;
+				long inStorm = Math.max(0, Math.min(elapsedMillis, stormEnd) - stormStart);
+				return (long) ((elapsedMillis - inStorm + inStorm * stormFactor) * rate / 1000);
+			default:
+				return (long) (elapsedMillis * rate / 1000);
+			}
+		}
+	}
+
+	public static final int DEFAULT_AGENTS = 1000;
+	public static final int DEFAULT_BASE_PORT = 20000;
+	public static final double DEFAULT_STORM_FACTOR = 10;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+	static final long BURST_MILLIS = 100;
+	// send times waiting for a GET per agent, beyond this the oldest is counted lost
+	private static final int MAX_PENDING = 256;
+	private static final byte[] ALARM_CODE = SnmpAgent.DEFAULT_ALARM_CODE.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ALARM_TEXT = SnmpAgent.DEFAULT_ALARM_TEXT.getBytes(StandardCharsets.US_ASCII);
+
+	private final String host;
+	private final int basePort;
+	private final InetSocketAddress nmsAddress;
+	private final OctetString community = new OctetString("public");
+	private final long timeoutNanos;
+	private final long startNanos = System.nanoTime();
+	private VirtualAgent[] agents;
+	private Selector selector;
+	private Thread responder;
+	private volatile boolean running;
+	private boolean uniqueAlarms;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong sendFailures = new AtomicLong();
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	// only used by the sending thread
+	private final ByteBuffer trapBuffer = ByteBuffer.allocate(65535);
+
+	/**
+	 * Constructor, the agents are started by {@link #start(int)}.
+	 * @param host The address the agents listen, e.g. 127.0.0.1
+	 * @param basePort Port of the first agent, the others follow it
+	 * @param nmsAddress Where the traps are sent, e.g. 127.0.0.1/1620
+	 * @param timeoutMillis How long a trap may wait for its GET before it is counted lost
+	 */
+	public AgentSimulator(String host, int basePort, String nmsAddress, long timeoutMillis) {
+		this.host = host;
+		this.basePort = basePort;
+		UdpAddress nms = new UdpAddress(nmsAddress);
+		this.nmsAddress = new InetSocketAddress(nms.getInetAddress(), nms.getPort());
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Binds the agents and starts answering GETs.
+	 * @param count How many agents
+	 * @throws IOException if a port could not be bound, the agents bound so far are closed
+	 */
+	public synchronized void start(int count) throws IOException {
+		if (running) {
+			throw new IOException("Already started");
+		}
+		selector = Selector.open();
+		agents = new VirtualAgent[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				agents[i] = new VirtualAgent(i, host, basePort + i);
+				agents[i].channel.register(selector, SelectionKey.OP_READ, agents[i]);
+			}
+		}
+		catch (IOException e) {
+			closeAgents();
+			selector.close();
+			throw e;
+		}
+		running = true;
+		responder = new Thread(new Runnable() {
+			public void run() {
+				respond();
+			}
+		}, "simulator-responder");
+		responder.setDaemon(true);
+		responder.start();
+		logger.info(count + " agents listening " + host + "/" + basePort + ".." + (basePort + count - 1)
+				+ ", sending traps to " + nmsAddress);
+	}
+
+	/**
+	 * Sends traps from random agents for a while, logging the progress every second,
+	 * then waits the timeout for the last GETs.
+	 * @param pattern How the traps are spread over the run
+	 * @param rate Mean traps per second
+	 * @param durationMillis Length of the run
+	 * @param stormFactor How many times the rate a storm is, only used by STORM
+	 * @return The final report, also logged
+	 */
+	public String run(Pattern pattern, double rate, long durationMillis, double stormFactor) {
+		Random random = new Random();
+		long start = System.nanoTime();
+		long count = 0;
+		long nextReport = 1000;
+		long lastSent = 0;
+		long lastAnswered = 0;
+		long elapsed;
+		while ((elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)) < durationMillis) {
+			long due = pattern.due(elapsed, rate, durationMillis, stormFactor);
+			for (; count < due; count++) {
+				sendTrap(agents[random.nextInt(agents.length)]);
+			}
+			if (elapsed >= nextReport) {
+				long sentNow = sent.get();
+				long answeredNow = answered.get();
+				logger.info(String.format("%ds: %d traps/s, %d GETs/s, latency p50 %.1f ms p99 %.1f ms, %d lost",
+						nextReport / 1000, sentNow - lastSent, answeredNow - lastAnswered,
+						latency.getPercentileMicros(0.5) / 1000.0, latency.getPercentileMicros(0.99) / 1000.0,
+						lost.get()));
+				lastSent = sentNow;
+				lastAnswered = answeredNow;
+				nextReport += 1000;
+			}
+			LockSupport.parkNanos(200000);
+		}
+		for (long due = pattern.due(durationMillis, rate, durationMillis, stormFactor); count < due; count++) {
+			sendTrap(agents[random.nextInt(agents.length)]);
+		}
+		drain();
+		String report = report(durationMillis);
+		logger.info(report);
+		return report;
+	}
+
+	/**
+	 * Waits until every trap has its GET or has timed out, and counts the rest lost.
+	 */
+	private void drain() {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (System.nanoTime() < deadline && getPending() > 0) {
+			LockSupport.parkNanos(10000000);
+		}
+		for (VirtualAgent agent : agents) {
+			lost.addAndGet(agent.clearPending());
+		}
+	}
+
+	/**
+	 * @param durationMillis Length of the run
+	 * @return A summary of the counts and the latency
+	 */
+	public String report(long durationMillis) {
+		long sentNow = sent.get();
+		long lostNow = lost.get();
+		return String.format("%d agents sent %d traps in %.1f s (%.0f/s), %d send failures; %d answered with a GET,"
+				+ " %d lost (%.2f %%); latency mean %.1f ms p50 %.1f ms p99 %.1f ms p99.9 %.1f ms max %.1f ms",
+				agents.length, sentNow, durationMillis / 1000.0, sentNow * 1000.0 / Math.max(1, durationMillis),
+				sendFailures.get(), answered.get(), lostNow, sentNow == 0 ? 0 : lostNow * 100.0 / sentNow,
+				latency.getMeanMicros() / 1000.0, latency.getPercentileMicros(0.5) / 1000.0,
+				latency.getPercentileMicros(0.99) / 1000.0, latency.getPercentileMicros(0.999) / 1000.0,
+				latency.getMaxMicros() / 1000.0);
+	}
+
+	/**
+	 * Sends one trap from an agent.
+	 * @param agent The sending agent
+	 */
+	void sendTrap(VirtualAgent agent) {
+		long number = sent.get();
+		byte[] text = uniqueAlarms ? ("Elevator jammed! #" + number).getBytes(StandardCharsets.US_ASCII) : ALARM_TEXT;
+		trapBuffer.clear();
+		agent.template.encode(trapBuffer, (int) number, upTime().getValue(), ALARM_CODE, text);
+		trapBuffer.flip();
+		try {
+			agent.addPending(System.nanoTime(), lost);
+			if (agent.channel.send(trapBuffer, nmsAddress) == 0) {
+				agent.removeNewest();
+				sendFailures.incrementAndGet();
+				return;
+			}
+			sent.incrementAndGet();
+		}
+		catch (IOException e) {
+			agent.removeNewest();
+			sendFailures.incrementAndGet();
+			logger.error("Could not send trap from " + agent.agentId + ": " + e.toString());
+		}
+	}
+
+	private void respond() {
+		ByteBuffer buffer = ByteBuffer.allocate(65535);
+		while (running) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					VirtualAgent agent = (VirtualAgent) key.attachment();
+					SocketAddress sender;
+					buffer.clear();
+					while ((sender = agent.channel.receive(buffer)) != null) {
+						buffer.flip();
+						answer(agent, sender, buffer);
+						buffer.clear();
+					}
+				}
+			}
+			catch (ClosedSelectorException e) {
+				break;
+			}
+			catch (IOException e) {
+				if (running) {
+					logger.error("Receive failed: " + e.toString());
+				}
+			}
+		}
+	}
+
+	private void answer(VirtualAgent agent, SocketAddress sender, ByteBuffer message) {
+		long now = System.nanoTime();
+		PDU request = new PDU();
+		try {
+			BERInputStream in = new BERInputStream(message);
+			BER.decodeHeader(in, new BER.MutableByte());
+			Integer32 version = new Integer32();
+			version.decodeBER(in);
+			OctetString requestCommunity = new OctetString();
+			requestCommunity.decodeBER(in);
+			if (version.getValue() != SnmpConstants.version2c || !community.equals(requestCommunity)) {
+				return;
+			}
+			request.decodeBER(in);
+		}
+		catch (IOException e) {
+			logger.debug("Not an SNMPv2c message from " + sender + ": " + e.toString());
+			return;
+		}
+		requests.incrementAndGet();
+		PDU response = new PDU();
+		response.setType(PDU.RESPONSE);
+		response.setRequestID(request.getRequestID());
+		boolean followUp = false;
+		for (VariableBinding binding : request.getVariableBindings()) {
+			OID oid = binding.getOid();
+			Variable value;
+			if (request.getType() != PDU.GET) {
+				value = Null.endOfMibView;
+			}
+			else if (SnmpConstants.sysDescr.equals(oid)) {
+				value = agent.description;
+				followUp = true;
+			}
+			else if (SnmpConstants.sysUpTime.equals(oid)) {
+				value = upTime();
+			}
+			else if (SnmpConstants.sysName.equals(oid)) {
+				value = agent.agentId;
+			}
+			else if (SnmpConstants.snmpEngineID.equals(oid)) {
+				value = agent.engineId;
+			}
+			else {
+				value = Null.noSuchObject;
+			}
+			response.add(new VariableBinding(oid, value));
+		}
+		if (followUp) {
+			long sentAt = agent.takePending(now, timeoutNanos, lost);
+			if (sentAt >= 0) {
+				latency.record(now - sentAt, TimeUnit.NANOSECONDS);
+				answered.incrementAndGet();
+			}
+		}
+		try {
+			agent.channel.send(ByteBuffer.wrap(encode(response)), sender);
+		}
+		catch (IOException e) {
+			logger.error("Could not answer " + sender + " from " + agent.agentId + ": " + e.toString());
+		}
+	}
+
+	private byte[] encode(PDU pdu) throws IOException {
+		Integer32 version = new Integer32(SnmpConstants.version2c);
+		int length = version.getBERLength() + community.getBERLength() + pdu.getBERLength();
+		byte[] encoded = new byte[1 + BER.getBERLengthOfLength(length) + length];
+		BEROutputStream out = new BEROutputStream(ByteBuffer.wrap(encoded));
+		BER.encodeHeader(out, BER.SEQUENCE, length);
+		version.encodeBER(out);
+		community.encodeBER(out);
+		pdu.encodeBER(out);
+		return encoded;
+	}
+
+	private TimeTicks upTime() {
+		return new TimeTicks(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) / 10);
+	}
+
+	/**
+	 * Stops answering and closes the agents.
+	 */
+	public void stop() {
+		Thread stopped;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			selector.wakeup();
+			stopped = responder;
+		}
+		try {
+			stopped.join(1000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			closeAgents();
+			try {
+				selector.close();
+			}
+			catch (IOException e) {
+				logger.warn("Could not close the selector: " + e.toString());
+			}
+		}
+	}
+
+	private void closeAgents() {
+		for (VirtualAgent agent : agents) {
+			if (agent != null) {
+				try {
+					agent.channel.close();
+				}
+				catch (IOException e) {
+					logger.warn("Could not close " + agent.agentId + ": " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param uniqueAlarms If true, the text of every alarm is different, so the NMS
+	 * does not drop any as a repeat
+	 */
+	public void setUniqueAlarms(boolean uniqueAlarms) {
+		this.uniqueAlarms = uniqueAlarms;
+	}
+
+	/**
+	 * @return How many traps have been sent
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return How many traps could not be sent, e.g. the send buffer was full
+	 */
+	public long getSendFailures() {
+		return sendFailures.get();
+	}
+
+	/**
+	 * @return How many traps have been followed up with a GET within the timeout
+	 */
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	/**
+	 * @return How many traps have not been followed up with a GET within the timeout
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * @return How many requests the agents have answered, follow-ups or not
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return How many traps are still waiting for a GET
+	 */
+	public long getPending() {
+		long pending = 0;
+		for (VirtualAgent agent : agents) {
+			pending += agent.getPending();
+		}
+		return pending;
+	}
+
+	/**
+	 * @return Times from a trap to its GET
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @param index 0 to the agent count - 1
+	 * @return The address of an agent, e.g. 127.0.0.1/20000
+	 */
+	public String getAgentAddress(int index) {
+		return agents[index].address.toString();
+	}
+
+	/**
+	 * One simulated agent: its socket, identity and the send times of its traps
+	 * not yet followed up.
+	 */
+	static final class VirtualAgent {
+		final DatagramChannel channel;
+		final OctetString agentId;
+		final OctetString address;
+		final OctetString description;
+		final OctetString engineId;
+		final TrapTemplate template;
+		// a ring of send times in nanoseconds, oldest first
+		private final long[] pending = new long[MAX_PENDING];
+		private int head;
+		private int size;
+
+		VirtualAgent(int index, String host, int port) throws IOException {
+			this.agentId = new OctetString("sim" + index);
+			this.address = new OctetString(host + "/" + port);
+			this.description = new OctetString(agentId + " says Hello.");
+			this.engineId = new OctetString(MPv3.createLocalEngineID(agentId));
+			this.template = new TrapTemplate("public", agentId.toString(), address.toString());
+			this.channel = DatagramChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.bind(new InetSocketAddress(host, port));
+			}
+			catch (IOException e) {
+				channel.close();
+				throw new IOException("Could not bind " + address + ": " + e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Adds a send time. When the ring is full the oldest is dropped and counted lost.
+		 */
+		synchronized void addPending(long nanos, AtomicLong lost) {
+			if (size == pending.length) {
+				head = (head + 1) % pending.length;
+				size--;
+				lost.incrementAndGet();
+			}
+			pending[(head + size) % pending.length] = nanos;
+			size++;
+		}
+
+		synchronized void removeNewest() {
+			if (size > 0) {
+				size--;
+			}
+		}
+
+		/**
+		 * Takes the oldest send time still in time, the older ones are counted lost.
+		 * @return The send time, or -1 if there is none
+		 */
+		synchronized long takePending(long now, long timeoutNanos, AtomicLong lost) {
+			while (size > 0) {
+				long sentAt = pending[head];
+				head = (head + 1) % pending.length;
+				size--;
+				if (now - sentAt <= timeoutNanos) {
+					return sentAt;
+				}
+				lost.incrementAndGet();
+			}
+			return -1;
+		}
+
+		synchronized int clearPending() {
+			int cleared = size;
+			size = 0;
+			return cleared;
+		}
+
+		synchronized int getPending() {
+			return size;
+		}
+	}
+
+	/**
+	 * Starts the simulator. The arguments are --key=value, all optional:
+	 * --agents=1000 --host=127.0.0.1 --basePort=20000 --nms=127.0.0.1/1620 --rate=1000
+	 * --pattern=steady|bursty|storm --duration=60 (seconds) --stormFactor=10
+	 * --timeout=5000 (milliseconds) --unique
+	 * @param args
+	 * @throws IOException if the agents could not be bound
+	 */
+	public static void main(String[] args) throws IOException {
+		BasicConfigurator.configure();
+		int count = DEFAULT_AGENTS;
+		String host = "127.0.0.1";
+		int basePort = DEFAULT_BASE_PORT;
+		String nms = SnmpAgent.DEFAULT_TRAP_ADDRESS;
+		double rate = 1000;
+		Pattern pattern = Pattern.STEADY;
+		long durationMillis = 60000;
+		double stormFactor = DEFAULT_STORM_FACTOR;
+		long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+		boolean unique = false;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String key = equals < 0 ? arg : arg.substring(0, equals);
+			String value = equals < 0 ? "" : arg.substring(equals + 1);
+			if ("--agents".equals(key)) {
+				count = Integer.parseInt(value);
+			}
+			else if ("--host".equals(key)) {
+				host = value;
+			}
+			else if ("--basePort".equals(key)) {
+				basePort = Integer.parseInt(value);
+			}
+			else if ("--nms".equals(key)) {
+				nms = value;
+			}
+			else if ("--rate".equals(key)) {
+				rate = Double.parseDouble(value);
+			}
+			else if ("--pattern".equals(key)) {
+				pattern = Pattern.valueOf(value.toUpperCase());
+			}
+			else if ("--duration".equals(key)) {
+				durationMillis = (long) (Double.parseDouble(value) * 1000);
+			}
+			else if ("--stormFactor".equals(key)) {
+				stormFactor = Double.parseDouble(value);
+			}
+			else if ("--timeout".equals(key)) {
+				timeoutMillis = Long.parseLong(value);
+			}
+			else if ("--unique".equals(key)) {
+				unique = true;
+			}
+			else {
+				logger.error("Unknown argument " + arg);
+				System.exit(2);
+			}
+		}
+		AgentSimulator simulator = new AgentSimulator(host, basePort, nms, timeoutMillis);
+		simulator.setUniqueAlarms(unique);
+		simulator.start(count);
+		try {
+			simulator.run(pattern, rate, durationMillis, stormFactor);
+		}
+		finally {
+			simulator.stop();
+		}
+	}
+}
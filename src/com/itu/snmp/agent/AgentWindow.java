@@ -10,8 +10,8 @@ import java.util.Date;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+
+import com.itu.snmp.gui.EventLogView;
 
 /**
  * The GUI Pete's Secret Agent. User can send a trap with the GUI and GUI displays a log
@@ -22,7 +22,7 @@ import javax.swing.JTextArea;
 public class AgentWindow extends JFrame {
 
 	private static final long serialVersionUID = 1L;
-	private JTextArea messages;
+	private EventLogView messages;
 	
 	/**
 	 * Constructor, creates the components
@@ -45,12 +45,9 @@ public class AgentWindow extends JFrame {
 		queryButton.setPreferredSize(new Dimension(500,60));
 		this.getContentPane().add(queryButton, BorderLayout.PAGE_START);
 
-		messages = new JTextArea();
-        messages.setLineWrap(true);
-        messages.setWrapStyleWord(true);
-		JScrollPane sp = new JScrollPane(messages); 
-        sp.setPreferredSize(new Dimension(500, 200));
-        this.getContentPane().add(sp, BorderLayout.CENTER);
+		messages = new EventLogView();
+        messages.setPreferredSize(new Dimension(500, 200));
+        this.getContentPane().add(messages, BorderLayout.CENTER);
  
         this.setTitle("Pete's Secret Agent");
         //Display the window.
@@ -59,11 +56,11 @@ public class AgentWindow extends JFrame {
 	}
 
 	/**
-	 * Adds a message to JTextArea.
+	 * Adds a message to the log. Can be called from any thread.
 	 * @param message The message to be added.
 	 */
 	public void addMessage(String message) {
-		messages.insert(message + "\n", messages.getText().length());
+		messages.addMessage(message);
 	}
 
 }
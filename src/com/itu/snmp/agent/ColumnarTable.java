@@ -0,0 +1,336 @@
+package com.itu.snmp.agent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.snmp4j.PDU;
+import org.snmp4j.agent.DefaultMOScope;
+import org.snmp4j.agent.MOScope;
+import org.snmp4j.agent.ManagedObject;
+import org.snmp4j.agent.request.SubRequest;
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * A read-only conceptual table, such as the ifTable, of a fixed number of rows indexed
+ * 1 to rows. Each column is one array over the rows: numbers in an AtomicLongArray and
+ * strings as their bytes, so a table of many thousands of rows is a few arrays and its
+ * values can be updated from any thread at any rate without a lock.
+ *
+ * The instances are entry.column.row, in the lexicographic order of columns and then
+ * rows, so the instance after any OID of a GETNEXT or of each repetition of a GETBULK
+ * is computed from the OID: a binary search of the column and the next row, with no
+ * sorted index of the instances to search or keep up to date.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class ColumnarTable implements ManagedObject {
+
+	private final OID entry;
+	private final MOScope scope;
+	private final int rows;
+	private final int[] columns;
+	private final int[] syntax;
+	// entry.column of each column, the prefix of its instances
+	private final int[][] prefixes;
+	// one of the two per column, the other is null
+	private final AtomicLongArray[] numbers;
+	private final AtomicReferenceArray<byte[]>[] texts;
+
+	/**
+	 * Constructor, all values are 0 or empty strings.
+	 * @param entry OID of the table's entry, i.e. .1.3.6.1.2.1.2.2.1 for the ifTable
+	 * @param rows Number of rows
+	 * @param columns Sub-IDs of the columns in ascending order
+	 * @param syntax SMI syntax of each column: {@link SMIConstants#SYNTAX_INTEGER},
+	 * SYNTAX_COUNTER32, SYNTAX_GAUGE32, SYNTAX_COUNTER64, SYNTAX_TIMETICKS or SYNTAX_OCTET_STRING
+	 */
+	@SuppressWarnings("unchecked")
+	public ColumnarTable(OID entry, int rows, int[] columns, int[] syntax) {
+		if (rows < 0 || columns.length == 0 || columns.length != syntax.length) {
+			throw new IllegalArgumentException("Need rows >= 0 and a syntax for each column: " + rows + ", "
+					+ Arrays.toString(columns) + ", " + Arrays.toString(syntax));
+		}
+		this.entry = new OID(entry);
+		this.scope = new DefaultMOScope(this.entry, true, this.entry.nextPeer(), false);
+		this.rows = rows;
+		this.columns = columns.clone();
+		this.syntax = syntax.clone();
+		this.prefixes = new int[columns.length][];
+		this.numbers = new AtomicLongArray[columns.length];
+		this.texts = (AtomicReferenceArray<byte[]>[]) new AtomicReferenceArray<?>[columns.length];
+		for (int k = 0; k < columns.length; k++) {
+			if (columns[k] < 1 || (k > 0 && columns[k] <= columns[k - 1])) {
+				throw new IllegalArgumentException("Columns must be positive and ascending: " + Arrays.toString(columns));
+			}
+			prefixes[k] = new OID(this.entry.getValue(), new int[] { columns[k] }).getValue();
+			switch (syntax[k]) {
+			case SMIConstants.SYNTAX_INTEGER:
+			case SMIConstants.SYNTAX_COUNTER32:
+			case SMIConstants.SYNTAX_GAUGE32:
+			case SMIConstants.SYNTAX_COUNTER64:
+			case SMIConstants.SYNTAX_TIMETICKS:
+				numbers[k] = new AtomicLongArray(rows);
+				break;
+			case SMIConstants.SYNTAX_OCTET_STRING:
+				texts[k] = new AtomicReferenceArray<byte[]>(rows);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported syntax " + syntax[k] + " of column " + columns[k]);
+			}
+		}
+	}
+
+	/**
+	 * Sets a number.
+	 * @param column Sub-ID of a number column
+	 * @param row Index of the row, 1 to rows
+	 * @param value The new value, kept as a long and wrapped to the column's syntax when read
+	 */
+	public void set(int column, int row, long value) {
+		numberColumn(column).set(index(row), value);
+	}
+
+	/**
+	 * Adds to a number, i.e. traffic to a counter.
+	 * @param column Sub-ID of a number column
+	 * @param row Index of the row, 1 to rows
+	 * @param delta How much to add
+	 * @return The new value
+	 */
+	public long add(int column, int row, long delta) {
+		return numberColumn(column).addAndGet(index(row), delta);
+	}
+
+	/**
+	 * @param column Sub-ID of a number column
+	 * @param row Index of the row, 1 to rows
+	 * @return The value as it was set, not wrapped to the column's syntax
+	 */
+	public long get(int column, int row) {
+		return numberColumn(column).get(index(row));
+	}
+
+	/**
+	 * Sets a string.
+	 * @param column Sub-ID of a string column
+	 * @param row Index of the row, 1 to rows
+	 * @param value The new value
+	 */
+	public void setText(int column, int row, String value) {
+		int k = column(column);
+		if (texts[k] == null) {
+			throw new IllegalArgumentException("Not a string column: " + column);
+		}
+		texts[k].set(index(row), value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param column Sub-ID of a column
+	 * @param row Index of the row, 1 to rows
+	 * @return The value as it is served
+	 */
+	public Variable getVariable(int column, int row) {
+		return variable(column(column), index(row) + 1);
+	}
+
+	public OID getEntry() {
+		return new OID(entry);
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public MOScope getScope() {
+		return scope;
+	}
+
+	/**
+	 * @return The first instance within the range, null if none
+	 */
+	public OID find(MOScope range) {
+		long next = next(range.getLowerBound(), range.isLowerIncluded());
+		if (next < 0) {
+			return null;
+		}
+		OID oid = instance((int) (next >>> 32), (int) next);
+		return range.covers(oid) ? oid : null;
+	}
+
+	/**
+	 * Answers a GET, noSuchInstance if the OID is not an instance of the table.
+	 */
+	// ManagedObject takes a raw SubRequest, so its overrides cannot name the type arguments
+	@SuppressWarnings("rawtypes")
+	public void get(SubRequest request) {
+		VariableBinding binding = request.getVariableBinding();
+		OID oid = binding.getOid();
+		int k = -1;
+		long row = -1;
+		if (oid.size() == entry.size() + 2 && oid.startsWith(entry)) {
+			k = Arrays.binarySearch(columns, oid.get(entry.size()));
+			row = oid.getUnsigned(entry.size() + 1);
+		}
+		if (k < 0 || row < 1 || row > rows) {
+			binding.setVariable(Null.noSuchInstance);
+		}
+		else {
+			binding.setVariable(variable(k, (int) row));
+		}
+		request.completed();
+	}
+
+	/**
+	 * Answers a GETNEXT or a repetition of a GETBULK with the instance after the OID.
+	 * @return false if the table has no instance after it in the request's scope
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean next(SubRequest request) {
+		MOScope range = request.getScope();
+		long next = next(range.getLowerBound(), range.isLowerIncluded());
+		if (next < 0) {
+			return false;
+		}
+		int k = (int) (next >>> 32);
+		int row = (int) next;
+		OID oid = instance(k, row);
+		if (!range.covers(oid)) {
+			return false;
+		}
+		VariableBinding binding = request.getVariableBinding();
+		binding.setOid(oid);
+		binding.setVariable(variable(k, row));
+		request.completed();
+		return true;
+	}
+
+	/**
+	 * The table is read-only over SNMP.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void prepare(SubRequest request) {
+		request.getStatus().setErrorStatus(PDU.notWritable);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void commit(SubRequest request) {
+		request.getStatus().setErrorStatus(PDU.commitFailed);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void undo(SubRequest request) {
+		request.getStatus().setErrorStatus(PDU.undoFailed);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void cleanup(SubRequest request) {
+		request.getStatus().setPhaseComplete(true);
+	}
+
+	/**
+	 * The first instance after an OID, or at it if included.
+	 * @return The column's position in the high and the row in the low 32 bits, -1 if none
+	 */
+	private long next(OID lower, boolean included) {
+		if (rows == 0) {
+			return -1;
+		}
+		if (lower == null || !lower.startsWith(entry)) {
+			// everything in the table is after the entry and before its next peer
+			return lower == null || lower.compareTo(entry) < 0 ? position(0, 1) : -1;
+		}
+		int size = entry.size();
+		if (lower.size() == size) {
+			return position(0, 1);
+		}
+		long column = lower.getUnsigned(size);
+		int k = Arrays.binarySearch(columns, (int) Math.min(column, Integer.MAX_VALUE));
+		if (k < 0) {
+			// before the column after it
+			k = -k - 1;
+			return k < columns.length ? position(k, 1) : -1;
+		}
+		if (lower.size() == size + 1) {
+			return position(k, 1);
+		}
+		long row = lower.getUnsigned(size + 1);
+		if (!included || lower.size() > size + 2 || row < 1) {
+			// entry.column.row and anything under it is before entry.column.(row + 1)
+			row++;
+		}
+		row = Math.max(row, 1);
+		if (row <= rows) {
+			return position(k, row);
+		}
+		return k + 1 < columns.length ? position(k + 1, 1) : -1;
+	}
+
+	private OID instance(int k, int row) {
+		return new OID(prefixes[k], new int[] { row });
+	}
+
+	private static long position(int k, long row) {
+		return ((long) k << 32) | row;
+	}
+
+	private Variable variable(int k, int row) {
+		if (texts[k] != null) {
+			byte[] text = texts[k].get(row - 1);
+			return text == null ? new OctetString() : new OctetString(text);
+		}
+		long value = numbers[k].get(row - 1);
+		switch (syntax[k]) {
+		case SMIConstants.SYNTAX_INTEGER:
+			return new Integer32((int) value);
+		case SMIConstants.SYNTAX_COUNTER32:
+			return new Counter32(value & 0xffffffffL);
+		case SMIConstants.SYNTAX_GAUGE32:
+			return new Gauge32(Math.max(0, Math.min(value, 0xffffffffL)));
+		case SMIConstants.SYNTAX_TIMETICKS:
+			return new TimeTicks(value & 0xffffffffL);
+		default:
+			return new Counter64(value);
+		}
+	}
+
+	private int column(int column) {
+		int k = Arrays.binarySearch(columns, column);
+		if (k < 0) {
+			throw new IllegalArgumentException("No column " + column + " in " + entry);
+		}
+		return k;
+	}
+
+	private AtomicLongArray numberColumn(int column) {
+		AtomicLongArray values = numbers[column(column)];
+		if (values == null) {
+			throw new IllegalArgumentException("Not a number column: " + column);
+		}
+		return values;
+	}
+
+	private int index(int row) {
+		if (row < 1 || row > rows) {
+			throw new IndexOutOfBoundsException("No row " + row + ", " + rows + " rows");
+		}
+		return row - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarTable[" + entry + ", " + columns.length + " columns, " + rows + " rows]";
+	}
+}
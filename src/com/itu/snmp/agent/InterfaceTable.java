@@ -0,0 +1,103 @@
+package com.itu.snmp.agent;
+
+import java.util.Random;
+
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.SMIConstants;
+
+/**
+ * The ifTable of IF-MIB, .1.3.6.1.2.1.2.2, with generated gigabit Ethernet interfaces
+ * eth0, eth1... that are up, and their octet, packet, discard and error counters. The
+ * counters are the Counter32s of the ifTable, so a busy interface wraps them in
+ * minutes as real ones do.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class InterfaceTable extends ColumnarTable {
+
+	public static final OID IF_NUMBER = new OID(".1.3.6.1.2.1.2.1.0");
+	public static final OID IF_ENTRY = new OID(".1.3.6.1.2.1.2.2.1");
+	public static final int IF_INDEX = 1;
+	public static final int IF_DESCR = 2;
+	public static final int IF_TYPE = 3;
+	public static final int IF_MTU = 4;
+	public static final int IF_SPEED = 5;
+	public static final int IF_ADMIN_STATUS = 7;
+	public static final int IF_OPER_STATUS = 8;
+	public static final int IF_IN_OCTETS = 10;
+	public static final int IF_IN_UCAST_PKTS = 11;
+	public static final int IF_IN_DISCARDS = 13;
+	public static final int IF_IN_ERRORS = 14;
+	public static final int IF_OUT_OCTETS = 16;
+	public static final int IF_OUT_UCAST_PKTS = 17;
+	public static final int IF_OUT_DISCARDS = 19;
+	public static final int IF_OUT_ERRORS = 20;
+
+	private static final int[] COLUMNS = { IF_INDEX, IF_DESCR, IF_TYPE, IF_MTU, IF_SPEED, IF_ADMIN_STATUS,
+			IF_OPER_STATUS, IF_IN_OCTETS, IF_IN_UCAST_PKTS, IF_IN_DISCARDS, IF_IN_ERRORS, IF_OUT_OCTETS,
+			IF_OUT_UCAST_PKTS, IF_OUT_DISCARDS, IF_OUT_ERRORS };
+	private static final int[] SYNTAX = { SMIConstants.SYNTAX_INTEGER, SMIConstants.SYNTAX_OCTET_STRING,
+			SMIConstants.SYNTAX_INTEGER, SMIConstants.SYNTAX_INTEGER, SMIConstants.SYNTAX_GAUGE32,
+			SMIConstants.SYNTAX_INTEGER, SMIConstants.SYNTAX_INTEGER, SMIConstants.SYNTAX_COUNTER32,
+			SMIConstants.SYNTAX_COUNTER32, SMIConstants.SYNTAX_COUNTER32, SMIConstants.SYNTAX_COUNTER32,
+			SMIConstants.SYNTAX_COUNTER32, SMIConstants.SYNTAX_COUNTER32, SMIConstants.SYNTAX_COUNTER32,
+			SMIConstants.SYNTAX_COUNTER32 };
+	/** ethernetCsmacd */
+	private static final int ETHERNET = 6;
+	private static final int UP = 1;
+	private static final long SPEED = 1000000000L;
+	private static final int MTU = 1500;
+	/** Average size of the generated packets, bytes. */
+	private static final int PACKET = 500;
+
+	private final Random random = new Random();
+
+	/**
+	 * Constructor
+	 * @param interfaces Number of interfaces, the rows of the table
+	 */
+	public InterfaceTable(int interfaces) {
+		super(IF_ENTRY, interfaces, COLUMNS, SYNTAX);
+		for (int row = 1; row <= interfaces; row++) {
+			set(IF_INDEX, row, row);
+			setText(IF_DESCR, row, "eth" + (row - 1));
+			set(IF_TYPE, row, ETHERNET);
+			set(IF_MTU, row, MTU);
+			set(IF_SPEED, row, SPEED);
+			set(IF_ADMIN_STATUS, row, UP);
+			set(IF_OPER_STATUS, row, UP);
+		}
+	}
+
+	/**
+	 * Counts traffic of an interface.
+	 * @param row Index of the interface, 1 to rows
+	 * @param inOctets Octets received
+	 * @param outOctets Octets sent
+	 */
+	public void addTraffic(int row, long inOctets, long outOctets) {
+		add(IF_IN_OCTETS, row, inOctets);
+		add(IF_IN_UCAST_PKTS, row, (inOctets + PACKET - 1) / PACKET);
+		add(IF_OUT_OCTETS, row, outOctets);
+		add(IF_OUT_UCAST_PKTS, row, (outOctets + PACKET - 1) / PACKET);
+	}
+
+	/**
+	 * Generates traffic of every interface: a random load of up to 10% of its speed in
+	 * each direction, and now and then a discard or an error.
+	 * @param millis How long a time the traffic is for
+	 */
+	public void generateTraffic(long millis) {
+		long most = SPEED / 8 / 10 * millis / 1000;
+		for (int row = 1, rows = getRows(); row <= rows; row++) {
+			addTraffic(row, (long) (random.nextDouble() * most), (long) (random.nextDouble() * most));
+			if (random.nextInt(100) == 0) {
+				add(random.nextBoolean() ? IF_IN_DISCARDS : IF_IN_ERRORS, row, 1);
+			}
+			if (random.nextInt(100) == 0) {
+				add(random.nextBoolean() ? IF_OUT_DISCARDS : IF_OUT_ERRORS, row, 1);
+			}
+		}
+	}
+}
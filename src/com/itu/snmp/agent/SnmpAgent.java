@@ -2,14 +2,19 @@ package com.itu.snmp.agent;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
-import org.snmp4j.CommunityTarget;
 import org.snmp4j.PDU;
-import org.snmp4j.Snmp;
 import org.snmp4j.TransportMapping;
 import org.snmp4j.agent.AgentConfigManager;
 import org.snmp4j.agent.BaseAgent;
@@ -31,7 +36,6 @@ import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.security.SecurityLevel;
 import org.snmp4j.security.SecurityModel;
 import org.snmp4j.security.USM;
-import org.snmp4j.smi.Address;
 import org.snmp4j.smi.Integer32;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
@@ -44,6 +48,9 @@ import org.snmp4j.transport.DefaultUdpTransportMapping;
 /**
  * A very simple SNMP Agent implementation utilizing SNMP4J, which will send 
  * a trap to the NMS and respond to System Description GET with a hard-coded value.
+ * It also serves an ifTable of generated interfaces, 16 unless the system property
+ * agent.interfaces says otherwise, whose counters grow every agent.trafficMillis
+ * (1000, 0 for never), for the NMS to walk.
  * 
  * @author Petri Tilli
  *
@@ -51,23 +58,64 @@ import org.snmp4j.transport.DefaultUdpTransportMapping;
 public class SnmpAgent extends BaseAgent {
 
 	private static final Logger logger = Logger.getLogger(SnmpAgent.class);
+	/** Where the traps are sent unless the system property agent.trapAddress says otherwise. */
+	public static final String DEFAULT_TRAP_ADDRESS = "127.0.0.1/1620";
+	public static final String DEFAULT_ALARM_CODE = "666";
+	public static final String DEFAULT_ALARM_TEXT = "Elevator jammed!";
+	public static final int DEFAULT_INTERFACES = 16;
+	public static final long DEFAULT_TRAFFIC_MILLIS = 1000;
+	private final long startNanos = System.nanoTime();
 	private String address;
 	private String agentId;
-	private String trapSendingAddress;
+	private volatile String trapSendingAddress;
+	private volatile InetSocketAddress trapTarget;
+	private TrapTemplate trapTemplate;
+	// guards the trap channel and the request IDs too
+	private final ByteBuffer trapBuffer = ByteBuffer.allocate(65535);
+	private DatagramChannel trapChannel;
+	private int trapRequestId = 1;
 	private AgentWindow gui;
+	private final InterfaceTable interfaces;
+	private Timer traffic;
 
 	/**
-	 * Constructor 
+	 * Constructor, starts the GUI unless there is no display or the system
+	 * property agent.headless is true.
 	 * @param address
 	 * @param agentId
 	 * @throws IOException
 	 */
 	public SnmpAgent(String address, String agentId) throws IOException {
+		this(address, agentId, isHeadless());
+	}
+
+	/**
+	 * Constructor 
+	 * @param address
+	 * @param agentId
+	 * @param headless If true, no GUI is started and no AWT or Swing classes are loaded
+	 * @throws IOException
+	 */
+	public SnmpAgent(String address, String agentId, boolean headless) throws IOException {
+		this(address, agentId, headless, Integer.getInteger("agent.interfaces", DEFAULT_INTERFACES));
+	}
+
+	/**
+	 * Constructor 
+	 * @param address
+	 * @param agentId
+	 * @param headless If true, no GUI is started and no AWT or Swing classes are loaded
+	 * @param interfaces Number of rows in the ifTable
+	 * @throws IOException
+	 */
+	public SnmpAgent(String address, String agentId, boolean headless, int interfaces) throws IOException {
 
         super(new File("simplest.boot"), null, new CommandProcessor(new OctetString("simplest")));
         this.address = address;
         this.agentId = agentId;
-        this.trapSendingAddress = "127.0.0.1/1620";
+        setTrapSendingAddress(System.getProperty("agent.trapAddress", DEFAULT_TRAP_ADDRESS));
+        this.trapTemplate = new TrapTemplate("public", agentId, address);
+        this.interfaces = new InterfaceTable(interfaces);
 
         //Some SNMP4J stuff:
         init();
@@ -89,12 +137,20 @@ public class SnmpAgent extends BaseAgent {
 		//Registering the ManagedObject:
 		this.registerManagedObject(scalar1);
 
-		//start the UI:
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-            	showGUI();
-            }
-        });
+		//The interfaces:
+		this.registerManagedObject(new MOScalar<Integer32>(InterfaceTable.IF_NUMBER,
+				MOAccessImpl.ACCESS_READ_ONLY, new Integer32(interfaces)));
+		this.registerManagedObject(this.interfaces);
+		startTraffic(Long.getLong("agent.trafficMillis", DEFAULT_TRAFFIC_MILLIS));
+
+		if (!headless) {
+			//start the UI:
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+	            public void run() {
+	            	showGUI();
+	            }
+	        });
+		}
 
 		logger.info("Agent started: " + getServer().getRegistry().toString());
     }
@@ -123,21 +179,9 @@ public class SnmpAgent extends BaseAgent {
 	 * Sends a trap with OID 1.2.3.4.5 Contains alarm code, alarm text, agent ID and agent's address
 	 */
 	public void sendTrap() {
-		// Create PDU           
-		PDU trap = createTrap();
-		
-		// Specify receiver
-		Address targetaddress = new UdpAddress(trapSendingAddress);
-		CommunityTarget target = new CommunityTarget();
-		target.setCommunity(new OctetString("public"));
-		target.setVersion(SnmpConstants.version2c);
-		target.setAddress(targetaddress);
-		
 		try {
-			// Send
 			logger.info("Sending...");
-			Snmp snmp = new Snmp(new DefaultUdpTransportMapping());
-			snmp.send(trap, target, null, null);
+			sendTraps(1, DEFAULT_ALARM_CODE, DEFAULT_ALARM_TEXT);
 			String date = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS").format(new Date());
 			if (gui != null) {
 				gui.addMessage(date + " a trap sent to " + this.trapSendingAddress);
@@ -147,32 +191,113 @@ public class SnmpAgent extends BaseAgent {
 			logger.error("Could not send trap. " + e.toString());
 		}
 	}
+
+	/**
+	 * Sends traps as fast as the socket takes them. Each is the template of the agent
+	 * with a new request ID and the current sysUpTime, written into the same buffer and
+	 * sent on the agent's trap channel, so a batch creates no objects per trap.
+	 * @param count How many traps
+	 * @param alarmCode Alarm code of every trap
+	 * @param alarmText Alarm text of every trap
+	 * @return How many traps were sent
+	 * @throws IOException if sending failed, the traps before it were sent
+	 */
+	public int sendTraps(int count, String alarmCode, String alarmText) throws IOException {
+		byte[] code = alarmCode.getBytes(StandardCharsets.UTF_8);
+		byte[] text = alarmText.getBytes(StandardCharsets.UTF_8);
+		synchronized (trapBuffer) {
+			DatagramChannel channel = getTrapChannel();
+			InetSocketAddress target = trapTarget;
+			for (int i = 0; i < count; i++) {
+				trapBuffer.clear();
+				trapTemplate.encode(trapBuffer, trapRequestId++, getSysUpTime(), code, text);
+				trapBuffer.flip();
+				channel.send(trapBuffer, target);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The channel all traps are sent from, opened on first use
+	 */
+	private DatagramChannel getTrapChannel() throws IOException {
+		if (trapChannel == null) {
+			trapChannel = DatagramChannel.open();
+			trapChannel.bind(null);
+		}
+		return trapChannel;
+	}
 	
 	/**
-	 * Creates the trap and its payload.
+	 * Creates the trap and its payload. The traps sent by the agent are encoded from
+	 * its {@link TrapTemplate} instead, which gives the same message.
 	 * @return Complete trap ready to send
 	 */
 	public PDU createTrap() {
 		PDU trap = new PDU();
 		trap.setType(PDU.TRAP);
 		
-		OID oid = new OID("1.2.3.4.5");
-		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, oid));
-		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(5000))); // put your uptime here
-		trap.add(new VariableBinding(SnmpConstants.sysDescr, new OctetString("System Description"))); 
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, TrapTemplate.TRAP_OID));
+		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(getSysUpTime())));
+		trap.add(new VariableBinding(SnmpConstants.sysDescr, new OctetString(TrapTemplate.SYSTEM_DESCRIPTION))); 
 		
-		Variable alarmCode = new OctetString("666");
+		Variable alarmCode = new OctetString(DEFAULT_ALARM_CODE);
 		Variable agentId = new OctetString(this.agentId);
-		Variable alarmText = new OctetString("Elevator jammed!");
+		Variable alarmText = new OctetString(DEFAULT_ALARM_TEXT);
 		Variable agentAddress = new OctetString(this.address);
-		trap.add(new VariableBinding(new OID("1.2.3.4.5.1"), alarmCode));          
-		trap.add(new VariableBinding(new OID("1.2.3.4.5.2"), agentId));          
-		trap.add(new VariableBinding(new OID("1.2.3.4.5.3"), alarmText));          
-		trap.add(new VariableBinding(new OID("1.2.3.4.5.4"), agentAddress));
+		trap.add(new VariableBinding(TrapTemplate.ALARM_CODE, alarmCode));          
+		trap.add(new VariableBinding(TrapTemplate.AGENT_ID, agentId));          
+		trap.add(new VariableBinding(TrapTemplate.ALARM_TEXT, alarmText));          
+		trap.add(new VariableBinding(TrapTemplate.AGENT_ADDRESS, agentAddress));
 		
 		return trap;
 	}
 
+	/**
+	 * @return Time since the agent was started, in hundredths of a second
+	 */
+	public long getSysUpTime() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) / 10;
+	}
+
+	/**
+	 * Stops the agent and closes its trap channel.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		if (traffic != null) {
+			traffic.cancel();
+		}
+		synchronized (trapBuffer) {
+			if (trapChannel != null) {
+				try {
+					trapChannel.close();
+				}
+				catch (IOException e) {
+					logger.warn("Could not close the trap channel: " + e.toString());
+				}
+				trapChannel = null;
+			}
+		}
+	}
+
+	/**
+	 * Grows the counters of the interfaces by a random load every interval.
+	 */
+	private void startTraffic(final long millis) {
+		if (millis <= 0 || interfaces.getRows() == 0) {
+			return;
+		}
+		traffic = new Timer("traffic-" + agentId, true);
+		traffic.scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				interfaces.generateTraffic(millis);
+			}
+		}, millis, millis);
+	}
+
 	@Override
 	protected void registerManagedObjects() {}
 
@@ -236,7 +361,9 @@ public class SnmpAgent extends BaseAgent {
 	}
 
 	/**
-	 * @param args 1st: port, 2nd: agentId
+	 * @param args 1st: port, 2nd: agentId, then --headless to run without the GUI and
+	 * --trapAddress=host/port to send the traps elsewhere than 127.0.0.1/1620 and
+	 * --interfaces=n for the number of rows in the ifTable
 	 */
 	public static void main(String[] args) throws IOException {
 
@@ -245,8 +372,58 @@ public class SnmpAgent extends BaseAgent {
 		
 		String port = args[0];
 		String agentId = args[1];
+		boolean headless = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				headless = true;
+			}
+			else if (args[i].startsWith("--trapAddress=")) {
+				System.setProperty("agent.trapAddress", args[i].substring("--trapAddress=".length()));
+			}
+			else if (args[i].startsWith("--interfaces=")) {
+				System.setProperty("agent.interfaces", args[i].substring("--interfaces=".length()));
+			}
+			else {
+				logger.error("Unknown argument: " + args[i]);
+				System.exit(2);
+			}
+		}
 
-		new SnmpAgent("127.0.0.1/" + port, agentId);
+		if (headless) {
+			new SnmpAgent("127.0.0.1/" + port, agentId, true);
+		}
+		else {
+			new SnmpAgent("127.0.0.1/" + port, agentId);
+		}
+	}
+
+	/**
+	 * @param address Where the traps are sent from now on, i.e. 127.0.0.1/1620
+	 */
+	public void setTrapSendingAddress(String address) {
+		UdpAddress udpAddress = new UdpAddress(address);
+		this.trapTarget = new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort());
+		this.trapSendingAddress = address;
+	}
+
+	public String getTrapSendingAddress() {
+		return trapSendingAddress;
+	}
+
+	/**
+	 * Decides from the system property agent.headless if it is set, then from java.awt.headless;
+	 * AWT is loaded to look for a display only if neither is set.
+	 * @return true if the GUI should not be shown
+	 */
+	private static boolean isHeadless() {
+		String headless = System.getProperty("agent.headless");
+		if (headless == null) {
+			headless = System.getProperty("java.awt.headless");
+		}
+		if (headless != null) {
+			return Boolean.parseBoolean(headless.trim());
+		}
+		return java.awt.GraphicsEnvironment.isHeadless();
 	}
 
 	/**
@@ -264,4 +441,11 @@ public class SnmpAgent extends BaseAgent {
 		return agentId;
 	}
 
+	/**
+	 * @return The ifTable, its counters can be updated at any time
+	 */
+	public InterfaceTable getInterfaces() {
+		return interfaces;
+	}
+
 }
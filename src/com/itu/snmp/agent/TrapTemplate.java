@@ -0,0 +1,181 @@
+package com.itu.snmp.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.asn1.BERSerializable;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * The SNMPv2c trap of an agent, pre-encoded. The varbinds that never change, i.e.
+ * snmpTrapOID, sysDescr, agent ID and agent address, and the OIDs of the others are
+ * encoded once; for each trap only the request ID, sysUpTime, alarm code and alarm
+ * text are written around them. The message is the same as encoding the PDU of
+ * {@link SnmpAgent#createTrap()}, without creating a PDU, OIDs or variables.
+ *
+ * A template is immutable and can be used by many threads, each with its own buffer.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class TrapTemplate {
+
+	public static final OID TRAP_OID = new OID("1.2.3.4.5");
+	public static final OID ALARM_CODE = new OID("1.2.3.4.5.1");
+	public static final OID AGENT_ID = new OID("1.2.3.4.5.2");
+	public static final OID ALARM_TEXT = new OID("1.2.3.4.5.3");
+	public static final OID AGENT_ADDRESS = new OID("1.2.3.4.5.4");
+	public static final String SYSTEM_DESCRIPTION = "System Description";
+
+	private static final int SNMPV2_TRAP = 0xa7;
+
+	private final byte[] versionAndCommunity;
+	private final byte[] trapOidBinding;
+	private final byte[] upTimeOid;
+	private final byte[] sysDescrBinding;
+	private final byte[] alarmCodeOid;
+	private final byte[] agentIdBinding;
+	private final byte[] alarmTextOid;
+	private final byte[] agentAddressBinding;
+
+	/**
+	 * Constructor
+	 * @param community Community of the message, e.g. public
+	 * @param agentId ID of the sending agent
+	 * @param agentAddress Address of the sending agent, for the NMS to make its GET to
+	 */
+	public TrapTemplate(String community, String agentId, String agentAddress) {
+		Integer32 version = new Integer32(SnmpConstants.version2c);
+		OctetString communityString = new OctetString(community);
+		byte[] versionBytes = encode(version);
+		byte[] communityBytes = encode(communityString);
+		versionAndCommunity = new byte[versionBytes.length + communityBytes.length];
+		System.arraycopy(versionBytes, 0, versionAndCommunity, 0, versionBytes.length);
+		System.arraycopy(communityBytes, 0, versionAndCommunity, versionBytes.length, communityBytes.length);
+		trapOidBinding = encode(new VariableBinding(SnmpConstants.snmpTrapOID, TRAP_OID));
+		upTimeOid = encode(SnmpConstants.sysUpTime);
+		sysDescrBinding = encode(new VariableBinding(SnmpConstants.sysDescr, new OctetString(SYSTEM_DESCRIPTION)));
+		alarmCodeOid = encode(ALARM_CODE);
+		agentIdBinding = encode(new VariableBinding(AGENT_ID, new OctetString(agentId)));
+		alarmTextOid = encode(ALARM_TEXT);
+		agentAddressBinding = encode(new VariableBinding(AGENT_ADDRESS, new OctetString(agentAddress)));
+	}
+
+	/**
+	 * Writes a trap message into a buffer, at its position.
+	 * @param out The buffer, 65535 bytes is always enough
+	 * @param requestId Request ID of the PDU
+	 * @param upTime sysUpTime in hundredths of a second, wrapping at 2^32 like TimeTicks
+	 * @param alarmCode Alarm code as bytes, e.g. ASCII
+	 * @param alarmText Alarm text as bytes
+	 * @return The length of the message
+	 * @throws java.nio.BufferOverflowException if the message does not fit
+	 */
+	public int encode(ByteBuffer out, int requestId, long upTime, byte[] alarmCode, byte[] alarmText) {
+		int start = out.position();
+		upTime &= 0xffffffffL;
+		int upTimeLength = unsignedLength(upTime);
+		int upTimeBinding = tlv(upTimeOid.length + tlv(upTimeLength));
+		int alarmCodeBinding = tlv(alarmCodeOid.length + tlv(alarmCode.length));
+		int alarmTextBinding = tlv(alarmTextOid.length + tlv(alarmText.length));
+		int bindings = trapOidBinding.length + upTimeBinding + sysDescrBinding.length + alarmCodeBinding
+				+ agentIdBinding.length + alarmTextBinding + agentAddressBinding.length;
+		int requestIdLength = integerLength(requestId);
+		// request ID, error status 0, error index 0 and the varbinds
+		int pdu = tlv(requestIdLength) + 3 + 3 + tlv(bindings);
+		header(out, BER.SEQUENCE, versionAndCommunity.length + tlv(pdu));
+		out.put(versionAndCommunity);
+		header(out, SNMPV2_TRAP, pdu);
+		header(out, BER.INTEGER, requestIdLength);
+		for (int shift = (requestIdLength - 1) * 8; shift >= 0; shift -= 8) {
+			out.put((byte) (requestId >> shift));
+		}
+		out.put(BER.INTEGER).put((byte) 1).put((byte) 0);
+		out.put(BER.INTEGER).put((byte) 1).put((byte) 0);
+		header(out, BER.SEQUENCE, bindings);
+		out.put(trapOidBinding);
+		header(out, BER.SEQUENCE, upTimeOid.length + tlv(upTimeLength));
+		out.put(upTimeOid);
+		header(out, BER.TIMETICKS, upTimeLength);
+		for (int shift = (upTimeLength - 1) * 8; shift >= 0; shift -= 8) {
+			out.put((byte) (upTime >> shift));
+		}
+		out.put(sysDescrBinding);
+		octetStringBinding(out, alarmCodeOid, alarmCode);
+		out.put(agentIdBinding);
+		octetStringBinding(out, alarmTextOid, alarmText);
+		out.put(agentAddressBinding);
+		return out.position() - start;
+	}
+
+	private static void octetStringBinding(ByteBuffer out, byte[] oid, byte[] value) {
+		header(out, BER.SEQUENCE, oid.length + tlv(value.length));
+		out.put(oid);
+		header(out, BER.OCTETSTRING, value.length);
+		out.put(value);
+	}
+
+	private static void header(ByteBuffer out, int tag, int length) {
+		out.put((byte) tag);
+		if (length < 0x80) {
+			out.put((byte) length);
+			return;
+		}
+		int lengthBytes = BER.getBERLengthOfLength(length) - 1;
+		out.put((byte) (0x80 | lengthBytes));
+		for (int shift = (lengthBytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.put((byte) (length >> shift));
+		}
+	}
+
+	/**
+	 * @return Length of a tag, length and content of this many bytes
+	 */
+	private static int tlv(int contentLength) {
+		return 1 + BER.getBERLengthOfLength(contentLength) + contentLength;
+	}
+
+	/**
+	 * @return Bytes of a signed integer in two's complement, without the redundant leading ones
+	 */
+	private static int integerLength(int value) {
+		int length = 4;
+		while (length > 1) {
+			int top = value >> ((length - 1) * 8 - 1);
+			if (top != 0 && top != -1) {
+				break;
+			}
+			length--;
+		}
+		return length;
+	}
+
+	/**
+	 * @return Bytes of an unsigned 32 bit integer, with a leading zero if the high bit is set
+	 */
+	private static int unsignedLength(long value) {
+		value &= 0xffffffffL;
+		int length = 1;
+		while (length < 5 && (value >> (length * 8 - 1)) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static byte[] encode(BERSerializable value) {
+		ByteBuffer buffer = ByteBuffer.allocate(value.getBERLength());
+		try {
+			value.encodeBER(new BEROutputStream(buffer));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not encode " + value, e);
+		}
+		return buffer.array();
+	}
+}
@@ -0,0 +1,73 @@
+package com.itu.snmp.gui;
+
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * A list model that keeps only the last rows added to it. The rows are kept in a
+ * circular array, so adding a row and dropping the oldest one does not copy the
+ * others. Like every Swing model it must only be used from the event dispatch thread.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class BoundedListModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[] rows;
+	private int first;
+	private int size;
+
+	/**
+	 * Constructor
+	 * @param maxRows How many rows are kept
+	 */
+	public BoundedListModel(int maxRows) {
+		rows = new String[Math.max(1, maxRows)];
+	}
+
+	/**
+	 * Adds rows to the end, dropping the oldest rows if there are too many.
+	 * Listeners get at most one removal and one addition event.
+	 * @param added The rows to add
+	 */
+	public void addAll(List<String> added) {
+		if (added.isEmpty()) {
+			return;
+		}
+		int count = Math.min(added.size(), rows.length);
+		int skipped = added.size() - count;
+		int removed = Math.max(0, size + count - rows.length);
+		if (removed > 0) {
+			for (int i = 0; i < removed; i++) {
+				rows[(first + i) % rows.length] = null;
+			}
+			first = (first + removed) % rows.length;
+			size -= removed;
+			fireIntervalRemoved(this, 0, removed - 1);
+		}
+		int start = size;
+		for (int i = 0; i < count; i++) {
+			rows[(first + size) % rows.length] = added.get(skipped + i);
+			size++;
+		}
+		fireIntervalAdded(this, start, size - 1);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getElementAt(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(index + " not in " + size + " rows");
+		}
+		return rows[(first + index) % rows.length];
+	}
+
+	public int getMaxRows() {
+		return rows.length;
+	}
+}
@@ -0,0 +1,100 @@
+package com.itu.snmp.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+/**
+ * A scrolling log of messages for the GUI windows.
+ *
+ * {@link #addMessage} can be called from any thread and never waits: the message
+ * goes to a {@link MessageRingBuffer}. A Swing timer moves the new messages to
+ * the list in one batch a few times a second. The list keeps only the last rows
+ * and, being a JList, only renders the rows that are visible.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class EventLogView extends JScrollPane {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_ROWS = 5000;
+	public static final int DEFAULT_FRAMES_PER_SECOND = 10;
+
+	private final MessageRingBuffer buffer;
+	private final BoundedListModel model;
+	private final JList<String> list;
+	private final Timer timer;
+	private final List<String> batch = new ArrayList<String>();
+
+	/**
+	 * Constructor with the default number of rows and frame rate. Must be called in the
+	 * event dispatch thread.
+	 */
+	public EventLogView() {
+		this(DEFAULT_ROWS, DEFAULT_FRAMES_PER_SECOND);
+	}
+
+	/**
+	 * Constructor, must be called in the event dispatch thread.
+	 * @param maxRows How many of the latest messages are kept
+	 * @param framesPerSecond How often new messages are shown
+	 */
+	public EventLogView(int maxRows, int framesPerSecond) {
+		buffer = new MessageRingBuffer(maxRows);
+		model = new BoundedListModel(maxRows);
+		list = new JList<String>(model);
+		// a fixed row height lets the list skip measuring every row
+		list.setPrototypeCellValue("00.00.0000 00:00:00.000 TRAP from agent agent1(127.0.0.1/1610) 666:Elevator jammed!");
+		setViewportView(list);
+		timer = new Timer(1000 / Math.max(1, framesPerSecond), new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flush();
+			}
+		});
+		timer.start();
+	}
+
+	/**
+	 * Adds a message to the log. Can be called from any thread.
+	 * @param message The message to be added.
+	 */
+	public void addMessage(String message) {
+		buffer.add(message);
+	}
+
+	/**
+	 * Stops the flush timer.
+	 */
+	public void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * Moves the new messages to the list, in the event dispatch thread.
+	 */
+	void flush() {
+		batch.clear();
+		if (buffer.drainTo(batch, buffer.getCapacity()) == 0) {
+			return;
+		}
+		JScrollBar bar = getVerticalScrollBar();
+		boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+		model.addAll(batch);
+		batch.clear();
+		if (atBottom) {
+			list.ensureIndexIsVisible(model.getSize() - 1);
+		}
+	}
+
+	public BoundedListModel getModel() {
+		return model;
+	}
+}
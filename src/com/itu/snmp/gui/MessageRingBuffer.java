@@ -0,0 +1,100 @@
+package com.itu.snmp.gui;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size ring buffer of log messages, written by any number of threads
+ * and read by one, without locks.
+ *
+ * Writers never wait: each claims the next sequence number and stores its message
+ * in the slot of that number. If the reader falls behind by more than the capacity,
+ * the oldest messages are overwritten and counted as lost.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class MessageRingBuffer {
+
+	private static final class Entry {
+		final long sequence;
+		final String message;
+
+		Entry(long sequence, String message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	// only touched by the reader
+	private long read;
+
+	/**
+	 * Constructor
+	 * @param capacity Number of messages kept, rounded up to a power of two
+	 */
+	public MessageRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<Entry>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds a message. Can be called from any thread.
+	 * @param message The message
+	 */
+	public void add(String message) {
+		long sequence = next.getAndIncrement();
+		slots.lazySet((int) sequence & mask, new Entry(sequence, message));
+	}
+
+	/**
+	 * Moves the messages added since the last drain to a list, oldest first.
+	 * Only one thread may drain. Messages still being written by another thread
+	 * are left for the next drain.
+	 * @param to The list to add the messages to
+	 * @param max Maximum number of messages to move
+	 * @return Number of messages moved
+	 */
+	public int drainTo(List<String> to, int max) {
+		long end = next.get();
+		if (end - read > slots.length()) {
+			lost.addAndGet(end - read - slots.length());
+			read = end - slots.length();
+		}
+		int moved = 0;
+		while (read < end && moved < max) {
+			Entry entry = slots.get((int) read & mask);
+			if (entry == null || entry.sequence < read) {
+				// claimed but not written yet
+				break;
+			}
+			if (entry.sequence > read) {
+				// overwritten by a writer that has lapped the reader
+				lost.incrementAndGet();
+			}
+			else {
+				to.add(entry.message);
+				moved++;
+			}
+			read++;
+		}
+		return moved;
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * @return Number of messages overwritten before they were drained
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+}
@@ -0,0 +1,266 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the session knows of how each agent answers: its round-trip time, which sets
+ * the timeout of the requests to it, and a circuit breaker that stops the requests to
+ * an agent that does not answer.
+ *
+ * The timeout follows RFC 6298, as in TCP: a smoothed round-trip time and its variance
+ * are updated from each response, and the timeout is the smoothed time plus four times
+ * the variance, between minTimeout and maxTimeout. Before the first response the
+ * timeout is maxTimeout, and after each request with no response it doubles up to
+ * maxTimeout. The shortest timeout is a second by default, as in RFC 6298, so that a
+ * busy agent or NMS does not cause retries that make it busier. Like Karn's algorithm,
+ * a response that arrives after a retry was sent is not used for the estimate, as it
+ * may answer either send; the timeout is doubled instead.
+ *
+ * After breakerFailures requests in a row without a response the breaker opens and the
+ * agent is not asked for breakerMillis. The first request after that sends one cheap
+ * probe instead; when the probe is answered the breaker closes, otherwise it stays open
+ * twice as long, up to five minutes.
+ *
+ * The state is kept in the columns of the {@link AgentRegistry}, by the agent's ID.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class AgentHealth {
+
+	public static final long DEFAULT_MIN_TIMEOUT = 1000;
+	public static final int DEFAULT_BREAKER_FAILURES = 5;
+	public static final long DEFAULT_BREAKER_MILLIS = 5000;
+	public static final long MAX_BREAKER_MILLIS = 300000;
+
+	/**
+	 * What to do with a request to an agent.
+	 */
+	public enum Decision {
+		/** Send it. */
+		SEND,
+		/** Fail it, the breaker is open. */
+		REJECT,
+		/** Fail it and send a probe, the breaker has been open long enough. */
+		PROBE
+	}
+
+	private static final int OPEN = 1;
+	private static final int PROBING = 2;
+
+	private final AgentRegistry registry;
+	// the state of agent id is guarded by locks[id & 63]
+	private final Object[] locks = new Object[64];
+	// agents whose breaker is open, changed with the breaker under its lock
+	private final AtomicInteger openCount = new AtomicInteger();
+	private volatile long minTimeout;
+	private volatile long maxTimeout;
+	private volatile int breakerFailures;
+	private volatile long breakerMillis;
+
+	/**
+	 * Constructor
+	 * @param registry Where the agents and their state are
+	 * @param minTimeout Shortest timeout, milliseconds
+	 * @param maxTimeout Longest timeout and the timeout of an agent not yet heard from
+	 * @param breakerFailures Requests in a row without a response that open the breaker,
+	 * 0 for no breaker
+	 * @param breakerMillis How long the breaker first stays open
+	 */
+	public AgentHealth(AgentRegistry registry, long minTimeout, long maxTimeout, int breakerFailures,
+			long breakerMillis) {
+		this.registry = registry;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		setTimeouts(minTimeout, maxTimeout);
+		setBreaker(breakerFailures, breakerMillis);
+	}
+
+	/**
+	 * Changes the bounds of the timeouts, also of the agents already known.
+	 * @param minTimeout Shortest timeout, milliseconds
+	 * @param maxTimeout Longest timeout and the timeout of an agent not yet heard from
+	 */
+	public void setTimeouts(long minTimeout, long maxTimeout) {
+		if (minTimeout < 1 || maxTimeout < 1) {
+			throw new IllegalArgumentException("Timeouts must be positive: " + minTimeout + ", " + maxTimeout);
+		}
+		this.minTimeout = Math.min(minTimeout, maxTimeout);
+		this.maxTimeout = maxTimeout;
+	}
+
+	/**
+	 * Changes the breaker, also of the agents already known.
+	 * @param breakerFailures Requests in a row without a response that open the breaker,
+	 * 0 for no breaker
+	 * @param breakerMillis How long the breaker first stays open
+	 */
+	public void setBreaker(int breakerFailures, long breakerMillis) {
+		this.breakerFailures = breakerFailures;
+		this.breakerMillis = breakerMillis;
+	}
+
+	/**
+	 * Tells whether a request may be sent to an agent. When the answer is PROBE, the
+	 * caller must send a probe and report its result with {@link #probed(int, boolean, long)}.
+	 * @param id ID of the agent in the registry
+	 * @param now Current time, milliseconds since 1970
+	 * @return The decision
+	 */
+	public Decision admit(int id, long now) {
+		AgentRegistry.Page page = registry.page(id);
+		int i = AgentRegistry.index(id);
+		synchronized (locks[id & 63]) {
+			if ((page.breaker[i] & OPEN) == 0) {
+				return Decision.SEND;
+			}
+			if ((page.breaker[i] & PROBING) != 0 || now < page.openUntil[i]) {
+				return Decision.REJECT;
+			}
+			page.breaker[i] |= PROBING;
+			return Decision.PROBE;
+		}
+	}
+
+	/**
+	 * @param id ID of the agent in the registry
+	 * @return Milliseconds to wait for the first send of a request to the agent
+	 */
+	public long getTimeout(int id) {
+		AgentRegistry.Page page = registry.page(id);
+		int i = AgentRegistry.index(id);
+		synchronized (locks[id & 63]) {
+			return clamp(page.timeout[i] == 0 ? maxTimeout : page.timeout[i]);
+		}
+	}
+
+	/**
+	 * Records a request that got a response.
+	 * @param id ID of the agent in the registry
+	 * @param rttNanos Time from the first send to the response
+	 * @param firstTimeout Timeout of the first send, milliseconds; a slower response may
+	 * answer a retry and is not used for the estimate
+	 */
+	public void success(int id, long rttNanos, long firstTimeout) {
+		AgentRegistry.Page page = registry.page(id);
+		int i = AgentRegistry.index(id);
+		long rtt = Math.min(TimeUnit.NANOSECONDS.toMicros(rttNanos), Integer.MAX_VALUE);
+		synchronized (locks[id & 63]) {
+			page.failures[i] = 0;
+			if ((page.breaker[i] & OPEN) != 0) {
+				openCount.decrementAndGet();
+			}
+			page.breaker[i] = 0;
+			page.openMillis[i] = 0;
+			if (rtt >= TimeUnit.MILLISECONDS.toMicros(firstTimeout)) {
+				// answered after a retry: keep the longer timeout until a clean sample
+				page.timeout[i] = (int) clamp(Math.max(page.timeout[i], 2 * firstTimeout));
+				return;
+			}
+			long srtt = page.srtt[i];
+			long rttvar = page.rttvar[i];
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2;
+			}
+			else {
+				rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+				srtt = (7 * srtt + rtt) / 8;
+			}
+			page.srtt[i] = (int) srtt;
+			page.rttvar[i] = (int) rttvar;
+			page.timeout[i] = (int) clamp(TimeUnit.MICROSECONDS.toMillis(srtt + 4 * rttvar + 999));
+		}
+	}
+
+	/**
+	 * Records a request that got no response, even after its retries.
+	 * @param id ID of the agent in the registry
+	 * @param now Current time, milliseconds since 1970
+	 * @return true if this opened the breaker
+	 */
+	public boolean failure(int id, long now) {
+		AgentRegistry.Page page = registry.page(id);
+		int i = AgentRegistry.index(id);
+		synchronized (locks[id & 63]) {
+			page.timeout[i] = (int) clamp(page.timeout[i] == 0 ? maxTimeout : 2L * page.timeout[i]);
+			page.failures[i]++;
+			if ((page.breaker[i] & OPEN) != 0 || breakerFailures <= 0 || page.failures[i] < breakerFailures) {
+				return false;
+			}
+			page.breaker[i] = OPEN;
+			openCount.incrementAndGet();
+			page.openMillis[i] = (int) breakerMillis;
+			page.openUntil[i] = now + breakerMillis;
+			return true;
+		}
+	}
+
+	/**
+	 * Records the result of a probe asked for by {@link #admit(int, long)}.
+	 * @param id ID of the agent in the registry
+	 * @param answered true if the agent answered the probe
+	 * @param now Current time, milliseconds since 1970
+	 */
+	public void probed(int id, boolean answered, long now) {
+		AgentRegistry.Page page = registry.page(id);
+		int i = AgentRegistry.index(id);
+		synchronized (locks[id & 63]) {
+			if (answered) {
+				if ((page.breaker[i] & OPEN) != 0) {
+					openCount.decrementAndGet();
+				}
+				page.breaker[i] = 0;
+				page.failures[i] = 0;
+				page.openMillis[i] = 0;
+			}
+			else {
+				if ((page.breaker[i] & OPEN) == 0) {
+					openCount.incrementAndGet();
+				}
+				page.breaker[i] = OPEN;
+				page.openMillis[i] = (int) Math.min(Math.max(2L * page.openMillis[i], breakerMillis), MAX_BREAKER_MILLIS);
+				page.openUntil[i] = now + page.openMillis[i];
+			}
+		}
+	}
+
+	/**
+	 * @param id ID of the agent in the registry
+	 * @return true if the agent's breaker is open
+	 */
+	public boolean isOpen(int id) {
+		AgentRegistry.Page page = registry.page(id);
+		synchronized (locks[id & 63]) {
+			return (page.breaker[AgentRegistry.index(id)] & OPEN) != 0;
+		}
+	}
+
+	/**
+	 * @return How many agents have an open breaker
+	 */
+	public int getOpenCount() {
+		return openCount.get();
+	}
+
+	/**
+	 * @param id ID of the agent in the registry
+	 * @return Smoothed round-trip time in microseconds, -1 if there is no estimate yet
+	 */
+	public long getSmoothedRtt(int id) {
+		AgentRegistry.Page page = registry.page(id);
+		synchronized (locks[id & 63]) {
+			return page.srtt[AgentRegistry.index(id)];
+		}
+	}
+
+	public AgentRegistry getRegistry() {
+		return registry;
+	}
+
+	private long clamp(long timeout) {
+		return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+	}
+}
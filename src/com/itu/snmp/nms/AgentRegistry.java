@@ -0,0 +1,458 @@
+package com.itu.snmp.nms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.snmp4j.CommunityTarget;
+
+/**
+ * The agents the NMS has heard from, each interned once by its address to a dense int
+ * ID, 0, 1, 2... in the order they were first seen. The state of the agents is kept in
+ * columns of primitive arrays indexed by the ID, not in an object per agent, so a
+ * million agents cost a few arrays and no garbage:
+ *
+ * <ul>
+ * <li>the address and the last agent ID, as chars in shared blocks of 64K chars</li>
+ * <li>when a trap was last seen and the counts of traps, GET responses and timeouts</li>
+ * <li>the last GET response, as an index into a table of the distinct responses, or
+ * its own value once the table is full</li>
+ * <li>the round-trip time and breaker of {@link AgentHealth}</li>
+ * <li>the CommunityTarget of the session and its GET latency histogram and timeout
+ * counter from {@link NmsMetrics}, only for the agents it has asked</li>
+ * </ul>
+ *
+ * The columns are in pages of 4096 agents, allocated as the agents are added and never
+ * moved, so the state of an agent can be read and updated without a lock once its ID is
+ * known. Finding the ID of an address is an open addressing hash table over the IDs,
+ * guarded by the registry's lock.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class AgentRegistry {
+
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	/** Most distinct responses shared by the agents, i.e. the sysDescrs of their kinds. */
+	static final int MAX_SHARED_RESPONSES = 4096;
+
+	/**
+	 * The columns of PAGE_SIZE agents.
+	 */
+	static final class Page {
+		final int[] hash = new int[PAGE_SIZE];
+		final int[] address = new int[PAGE_SIZE];
+		final int[] addressLength = new int[PAGE_SIZE];
+		final int[] agentId = new int[PAGE_SIZE];
+		final int[] agentIdLength = new int[PAGE_SIZE];
+		final AtomicLongArray lastSeen = new AtomicLongArray(PAGE_SIZE);
+		final AtomicLongArray traps = new AtomicLongArray(PAGE_SIZE);
+		final AtomicLongArray responses = new AtomicLongArray(PAGE_SIZE);
+		final AtomicLongArray timeouts = new AtomicLongArray(PAGE_SIZE);
+		// index of the last response + 1, 0 for none or one of its own
+		final int[] response = new int[PAGE_SIZE];
+		final String[] ownResponse = new String[PAGE_SIZE];
+		final CommunityTarget[] target = new CommunityTarget[PAGE_SIZE];
+		final LatencyHistogram[] latency = new LatencyHistogram[PAGE_SIZE];
+		final AtomicLong[] timeoutCounter = new AtomicLong[PAGE_SIZE];
+		// AgentHealth: microseconds, srtt negative until the first sample
+		final int[] srtt = new int[PAGE_SIZE];
+		final int[] rttvar = new int[PAGE_SIZE];
+		final int[] timeout = new int[PAGE_SIZE];
+		final int[] failures = new int[PAGE_SIZE];
+		final byte[] breaker = new byte[PAGE_SIZE];
+		final long[] openUntil = new long[PAGE_SIZE];
+		final int[] openMillis = new int[PAGE_SIZE];
+
+		Page() {
+			Arrays.fill(srtt, -1);
+		}
+	}
+
+	// guarded by this
+	private char[][] chunks = new char[0][];
+	private int charCount;
+	private int[] table = new int[1024];
+	private volatile Page[] pages = new Page[0];
+	private volatile int size;
+	// guarded by responseIndex
+	private final Map<String, Integer> responseIndex = new HashMap<String, Integer>();
+	private final List<String> responseValues = new ArrayList<String>();
+
+	/**
+	 * Returns the ID of an agent, adding the agent if it is new.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @return The ID
+	 */
+	public synchronized int intern(String agentAddress) {
+		int hash = hash(agentAddress);
+		int slot = slot(agentAddress, hash);
+		if (table[slot] != 0) {
+			return table[slot] - 1;
+		}
+		int id = size;
+		if ((id & PAGE_MASK) == 0) {
+			Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+			grown[pages.length] = new Page();
+			pages = grown;
+		}
+		Page page = pages[id >>> PAGE_BITS];
+		int index = id & PAGE_MASK;
+		page.hash[index] = hash;
+		page.address[index] = store(agentAddress);
+		page.addressLength[index] = agentAddress.length();
+		page.agentId[index] = -1;
+		table[slot] = id + 1;
+		size = id + 1;
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return id;
+	}
+
+	/**
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @return The ID of the agent, or -1 if it is not in the registry
+	 */
+	public synchronized int find(String agentAddress) {
+		int slot = slot(agentAddress, hash(agentAddress));
+		return table[slot] - 1;
+	}
+
+	/**
+	 * Records a trap of an agent, adding the agent if it is new.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param agentId ID the agent sent in the trap
+	 * @param timestamp When the trap was received, milliseconds since 1970
+	 * @return The ID of the agent in the registry
+	 */
+	public int seen(String agentAddress, String agentId, long timestamp) {
+		int id;
+		synchronized (this) {
+			id = intern(agentAddress);
+			Page page = pages[id >>> PAGE_BITS];
+			int index = id & PAGE_MASK;
+			if (!matches(page.agentId[index], page.agentIdLength[index], agentId)) {
+				// the old chars stay unused, agents rarely change their IDs
+				page.agentId[index] = store(agentId);
+				page.agentIdLength[index] = agentId.length();
+			}
+		}
+		Page page = page(id);
+		page.lastSeen.set(id & PAGE_MASK, timestamp);
+		page.traps.incrementAndGet(id & PAGE_MASK);
+		return id;
+	}
+
+	/**
+	 * Records the response to a GET to an agent. The first MAX_SHARED_RESPONSES distinct
+	 * responses are kept once and agents of the same kind share theirs. After that a new
+	 * response, i.e. a sysUpTime that differs every time, is kept by the agent alone and
+	 * freed when its next response replaces it.
+	 * @param id ID of the agent
+	 * @param response The value got, i.e. sysDescr
+	 */
+	public void responded(int id, String response) {
+		int index = -1;
+		synchronized (responseIndex) {
+			Integer existing = responseIndex.get(response);
+			if (existing == null && responseValues.size() < MAX_SHARED_RESPONSES) {
+				existing = Integer.valueOf(responseValues.size());
+				responseValues.add(response);
+				responseIndex.put(response, existing);
+			}
+			if (existing != null) {
+				index = existing.intValue();
+			}
+		}
+		Page page = page(id);
+		int i = id & PAGE_MASK;
+		synchronized (page.ownResponse) {
+			page.ownResponse[i] = index < 0 ? response : null;
+			page.response[i] = index + 1;
+		}
+		page.responses.incrementAndGet(i);
+	}
+
+	/**
+	 * Counts a GET to an agent that got no response.
+	 * @param id ID of the agent
+	 */
+	public void timedOut(int id) {
+		page(id).timeouts.incrementAndGet(id & PAGE_MASK);
+	}
+
+	/**
+	 * @return Number of agents, the IDs are 0 to size - 1
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return Its address
+	 */
+	public synchronized String getAddress(int id) {
+		Page page = page(id);
+		return load(page.address[id & PAGE_MASK], page.addressLength[id & PAGE_MASK]);
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The agent ID of its last trap, null if none was seen
+	 */
+	public synchronized String getAgentId(int id) {
+		Page page = page(id);
+		int start = page.agentId[id & PAGE_MASK];
+		return start < 0 ? null : load(start, page.agentIdLength[id & PAGE_MASK]);
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return When its last trap was received, milliseconds since 1970, 0 if never
+	 */
+	public long getLastSeen(int id) {
+		return page(id).lastSeen.get(id & PAGE_MASK);
+	}
+
+	public long getTraps(int id) {
+		return page(id).traps.get(id & PAGE_MASK);
+	}
+
+	public long getResponses(int id) {
+		return page(id).responses.get(id & PAGE_MASK);
+	}
+
+	public long getTimeouts(int id) {
+		return page(id).timeouts.get(id & PAGE_MASK);
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The value of its last GET response, null if none
+	 */
+	public String getLastResponse(int id) {
+		Page page = page(id);
+		int index;
+		synchronized (page.ownResponse) {
+			index = page.response[id & PAGE_MASK];
+			if (index == 0) {
+				return page.ownResponse[id & PAGE_MASK];
+			}
+		}
+		synchronized (responseIndex) {
+			return responseValues.get(index - 1);
+		}
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The target the session made for it, null if none
+	 */
+	public CommunityTarget getTarget(int id) {
+		return page(id).target[id & PAGE_MASK];
+	}
+
+	/**
+	 * Sets the target of an agent, unless it already has one.
+	 * @param id ID of an agent
+	 * @param target The new target
+	 * @return The target of the agent
+	 */
+	public CommunityTarget putTarget(int id, CommunityTarget target) {
+		Page page = page(id);
+		synchronized (page.target) {
+			CommunityTarget existing = page.target[id & PAGE_MASK];
+			if (existing != null) {
+				return existing;
+			}
+			page.target[id & PAGE_MASK] = target;
+			return target;
+		}
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The histogram of its GET latencies the session resolved, null if none
+	 */
+	public LatencyHistogram getLatency(int id) {
+		return page(id).latency[id & PAGE_MASK];
+	}
+
+	/**
+	 * Sets the GET latency histogram of an agent, unless it already has one.
+	 * @param id ID of an agent
+	 * @param latency The histogram
+	 * @return The histogram of the agent
+	 */
+	public LatencyHistogram putLatency(int id, LatencyHistogram latency) {
+		Page page = page(id);
+		synchronized (page.latency) {
+			LatencyHistogram existing = page.latency[id & PAGE_MASK];
+			if (existing != null) {
+				return existing;
+			}
+			page.latency[id & PAGE_MASK] = latency;
+			return latency;
+		}
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The counter of its GET timeouts the session resolved, null if none
+	 */
+	public AtomicLong getTimeoutCounter(int id) {
+		return page(id).timeoutCounter[id & PAGE_MASK];
+	}
+
+	/**
+	 * Sets the GET timeout counter of an agent, unless it already has one.
+	 * @param id ID of an agent
+	 * @param counter The counter
+	 * @return The counter of the agent
+	 */
+	public AtomicLong putTimeoutCounter(int id, AtomicLong counter) {
+		Page page = page(id);
+		synchronized (page.timeoutCounter) {
+			AtomicLong existing = page.timeoutCounter[id & PAGE_MASK];
+			if (existing != null) {
+				return existing;
+			}
+			page.timeoutCounter[id & PAGE_MASK] = counter;
+			return counter;
+		}
+	}
+
+	/**
+	 * Forgets the targets, latency histograms and timeout counters of all agents, the
+	 * next session resolves its own.
+	 */
+	public void clearTargets() {
+		for (Page page : pages) {
+			synchronized (page.target) {
+				Arrays.fill(page.target, null);
+			}
+			synchronized (page.latency) {
+				Arrays.fill(page.latency, null);
+			}
+			synchronized (page.timeoutCounter) {
+				Arrays.fill(page.timeoutCounter, null);
+			}
+		}
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return The page of its columns, for {@link AgentHealth}
+	 */
+	Page page(int id) {
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("No agent " + id + ", " + size + " agents");
+		}
+		return pages[id >>> PAGE_BITS];
+	}
+
+	/**
+	 * @param id ID of an agent
+	 * @return Its index in its page
+	 */
+	static int index(int id) {
+		return id & PAGE_MASK;
+	}
+
+	/**
+	 * Finds the slot of an address: the slot holding its ID, or the empty slot where it
+	 * would go.
+	 */
+	private int slot(String agentAddress, int hash) {
+		int mask = table.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0) {
+				return slot;
+			}
+			Page page = pages[(entry - 1) >>> PAGE_BITS];
+			int index = (entry - 1) & PAGE_MASK;
+			if (page.hash[index] == hash
+					&& matches(page.address[index], page.addressLength[index], agentAddress)) {
+				return slot;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] grown = new int[capacity];
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = pages[id >>> PAGE_BITS].hash[id & PAGE_MASK] & mask;
+			while (grown[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			grown[slot] = id + 1;
+		}
+		table = grown;
+	}
+
+	/**
+	 * Copies a string to the chars, never across two chunks.
+	 * @return Where it starts
+	 */
+	private int store(String value) {
+		int length = value.length();
+		if (length > CHUNK_SIZE) {
+			throw new IllegalArgumentException("Longer than " + CHUNK_SIZE + " chars: " + value.substring(0, 32) + "...");
+		}
+		int offset = charCount & (CHUNK_SIZE - 1);
+		if (charCount == chunks.length * CHUNK_SIZE || offset + length > CHUNK_SIZE) {
+			chunks = Arrays.copyOf(chunks, chunks.length + 1);
+			chunks[chunks.length - 1] = new char[CHUNK_SIZE];
+			charCount = (chunks.length - 1) * CHUNK_SIZE;
+			offset = 0;
+		}
+		int start = charCount;
+		value.getChars(0, length, chunks[start >>> CHUNK_BITS], offset);
+		charCount += length;
+		return start;
+	}
+
+	private String load(int start, int length) {
+		return new String(chunks[start >>> CHUNK_BITS], start & (CHUNK_SIZE - 1), length);
+	}
+
+	private boolean matches(int start, int length, String value) {
+		if (start < 0 || length != value.length()) {
+			return false;
+		}
+		char[] chunk = chunks[start >>> CHUNK_BITS];
+		int offset = start & (CHUNK_SIZE - 1);
+		for (int i = 0; i < length; i++) {
+			if (chunk[offset + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The String hash, which the String caches, spread with the MurmurHash3 finalizer
+	 * for the power of two table.
+	 */
+	private static int hash(String value) {
+		int hash = value.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
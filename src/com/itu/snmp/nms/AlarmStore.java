@@ -0,0 +1,478 @@
+package com.itu.snmp.nms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A binary store of the received alarms, which can be queried by agent, by alarm
+ * code and by time without reading through all of them.
+ *
+ * Each alarm is a fixed size record of the receive time and five ints: the agent ID,
+ * alarm code, alarm text and agent address, each stored once in a {@link StringDictionary},
+ * and the repeats a summary of the deduplicator stands for. A segment of version 1,
+ * without the repeats, is rewritten in this layout when it is opened.
+ * The records are written to memory mapped segment files of a fixed number of records.
+ *
+ * The indexes are kept in memory and rebuilt from the segments on open: a posting list
+ * of record numbers for every agent and every alarm code, and the smallest and largest
+ * time of every block of 1024 records. A query first finds the blocks its time range
+ * can be in and then only looks at the postings inside them.
+ *
+ * The dictionary is written without an fsync, so after a crash of the machine a
+ * segment may have records and a count whose strings did not reach the disk, or a
+ * count ahead of its records. On open the records are read up to the first one with a
+ * string missing from the dictionary or with only zeros, never written, and the count
+ * is set back to that.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class AlarmStore {
+
+	private static final Logger logger = Logger.getLogger(AlarmStore.class);
+
+	private static final int MAGIC = 0x414C524D; // "ALRM"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final int COUNT_OFFSET = 8;
+	static final int RECORD_SIZE = 28;
+	private static final int VERSION_1_RECORD_SIZE = 24;
+	private static final int REPEATS_OFFSET = 24;
+	private static final int BLOCK_SHIFT = 10;
+
+	private final File dir;
+	private final int recordsPerSegment;
+	private final StringDictionary dictionary;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private int size;
+	private IntList[] byAgent = new IntList[16];
+	private IntList[] byCode = new IntList[16];
+	private long[] blockMin = new long[16];
+	private long[] blockMax = new long[16];
+	// largest time in this or any earlier block, never decreases
+	private long[] blockMaxSoFar = new long[16];
+
+	/**
+	 * Constructor, opens the store in a directory and rebuilds the indexes from it.
+	 * @param dir The directory of the segment and dictionary files, created if missing
+	 * @param recordsPerSegment How many records go to one segment file
+	 * @throws IOException if the store could not be opened
+	 */
+	public AlarmStore(File dir, int recordsPerSegment) throws IOException {
+		if (recordsPerSegment < 1) {
+			throw new IllegalArgumentException("recordsPerSegment must be at least 1: " + recordsPerSegment);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Not able to create " + dir);
+		}
+		this.dir = dir;
+		this.recordsPerSegment = recordsPerSegment;
+		this.dictionary = new StringDictionary(new File(dir, "strings.dict"));
+		load();
+		logger.info("Alarm store " + dir + " opened with " + size + " alarms.");
+	}
+
+	/**
+	 * Opens the store configured with the system properties nms.store.dir and
+	 * nms.store.segmentRecords.
+	 * @return The opened store
+	 * @throws IOException if the store could not be opened
+	 */
+	public static AlarmStore fromSystemProperties() throws IOException {
+		return new AlarmStore(new File(System.getProperty("nms.store.dir", "alarmstore")),
+				Integer.getInteger("nms.store.segmentRecords", 1 << 20));
+	}
+
+	/**
+	 * Stores an alarm.
+	 * @param trap The alarm to store
+	 * @return The record number of the alarm
+	 * @throws IOException if a new segment or dictionary string could not be written
+	 */
+	public int append(TrapEvent trap) throws IOException {
+		lock.writeLock().lock();
+		try {
+			int agent = dictionary.intern(trap.getAgentId());
+			int code = dictionary.intern(trap.getAlarmCode());
+			int text = dictionary.intern(trap.getAlarmText());
+			int address = dictionary.intern(trap.getAgentAddress());
+			int record = size;
+			int segment = record / recordsPerSegment;
+			if (segment == segments.size()) {
+				segments.add(map(segment));
+			}
+			MappedByteBuffer buffer = segments.get(segment);
+			int position = HEADER_SIZE + (record % recordsPerSegment) * RECORD_SIZE;
+			buffer.putLong(position, trap.getTimestamp());
+			buffer.putInt(position + 8, agent);
+			buffer.putInt(position + 12, code);
+			buffer.putInt(position + 16, text);
+			buffer.putInt(position + 20, address);
+			buffer.putInt(position + REPEATS_OFFSET, trap.getRepeats());
+			buffer.putInt(COUNT_OFFSET, record % recordsPerSegment + 1);
+			index(record, trap.getTimestamp(), agent, code);
+			size++;
+			return record;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param record A record number returned by {@link #append}
+	 * @return The alarm
+	 */
+	public TrapEvent get(int record) {
+		lock.readLock().lock();
+		try {
+			if (record < 0 || record >= size) {
+				throw new IndexOutOfBoundsException(record + " not in store of " + size);
+			}
+			return read(record);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the alarms received in a time range.
+	 * @param from Start of the range, inclusive, milliseconds since 1970
+	 * @param to End of the range, inclusive, milliseconds since 1970
+	 * @return The alarms in the order they were stored
+	 */
+	public List<TrapEvent> findByTime(long from, long to) {
+		lock.readLock().lock();
+		try {
+			List<TrapEvent> found = new ArrayList<TrapEvent>();
+			int blocks = blockCount();
+			for (int block = firstBlock(from); block < blocks; block++) {
+				if (blockMin[block] > to || blockMax[block] < from) {
+					continue;
+				}
+				int end = Math.min(size, (block + 1) << BLOCK_SHIFT);
+				for (int record = block << BLOCK_SHIFT; record < end; record++) {
+					long time = readTimestamp(record);
+					if (time >= from && time <= to) {
+						found.add(read(record));
+					}
+				}
+			}
+			return found;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the alarms of one agent received in a time range.
+	 * @param agentId ID of the agent
+	 * @param from Start of the range, inclusive, milliseconds since 1970
+	 * @param to End of the range, inclusive, milliseconds since 1970
+	 * @return The alarms in the order they were stored
+	 */
+	public List<TrapEvent> findByAgent(String agentId, long from, long to) {
+		lock.readLock().lock();
+		try {
+			return find(postings(byAgent, agentId), from, to);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the alarms with one alarm code received in a time range.
+	 * @param alarmCode The alarm code
+	 * @param from Start of the range, inclusive, milliseconds since 1970
+	 * @param to End of the range, inclusive, milliseconds since 1970
+	 * @return The alarms in the order they were stored
+	 */
+	public List<TrapEvent> findByCode(String alarmCode, long from, long to) {
+		lock.readLock().lock();
+		try {
+			return find(postings(byCode, alarmCode), from, to);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of alarms in the store
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces the segments and the dictionary to disk.
+	 * @throws IOException if the dictionary could not be closed
+	 */
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			dictionary.close();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private List<TrapEvent> find(IntList postings, long from, long to) {
+		List<TrapEvent> found = new ArrayList<TrapEvent>();
+		if (postings == null) {
+			return found;
+		}
+		// the records of the range can only be between the first and the last block overlapping it
+		int blocks = blockCount();
+		int first = -1;
+		int last = -1;
+		for (int block = firstBlock(from); block < blocks; block++) {
+			if (blockMin[block] <= to && blockMax[block] >= from) {
+				if (first < 0) {
+					first = block;
+				}
+				last = block;
+			}
+		}
+		if (first < 0) {
+			return found;
+		}
+		int end = Math.min(size, (last + 1) << BLOCK_SHIFT);
+		for (int i = postings.lowerBound(first << BLOCK_SHIFT); i < postings.size(); i++) {
+			int record = postings.get(i);
+			if (record >= end) {
+				break;
+			}
+			long time = readTimestamp(record);
+			if (time >= from && time <= to) {
+				found.add(read(record));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return The first block that can contain a time at or after from
+	 */
+	private int firstBlock(long from) {
+		int low = 0;
+		int high = blockCount();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (blockMaxSoFar[mid] < from) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private int blockCount() {
+		return (size + (1 << BLOCK_SHIFT) - 1) >> BLOCK_SHIFT;
+	}
+
+	private IntList postings(IntList[] index, String key) {
+		int id = dictionary.find(key);
+		return id < 0 || id >= index.length ? null : index[id];
+	}
+
+	private long readTimestamp(int record) {
+		MappedByteBuffer buffer = segments.get(record / recordsPerSegment);
+		return buffer.getLong(HEADER_SIZE + (record % recordsPerSegment) * RECORD_SIZE);
+	}
+
+	private TrapEvent read(int record) {
+		MappedByteBuffer buffer = segments.get(record / recordsPerSegment);
+		int position = HEADER_SIZE + (record % recordsPerSegment) * RECORD_SIZE;
+		return new TrapEvent(buffer.getLong(position),
+				dictionary.get(buffer.getInt(position + 8)),
+				dictionary.get(buffer.getInt(position + 20)),
+				dictionary.get(buffer.getInt(position + 12)),
+				dictionary.get(buffer.getInt(position + 16)),
+				buffer.getInt(position + REPEATS_OFFSET));
+	}
+
+	private void index(int record, long time, int agent, int code) {
+		byAgent = add(byAgent, agent, record);
+		byCode = add(byCode, code, record);
+		int block = record >> BLOCK_SHIFT;
+		if (block == blockMin.length) {
+			blockMin = Arrays.copyOf(blockMin, block * 2);
+			blockMax = Arrays.copyOf(blockMax, block * 2);
+			blockMaxSoFar = Arrays.copyOf(blockMaxSoFar, block * 2);
+		}
+		if ((record & ((1 << BLOCK_SHIFT) - 1)) == 0) {
+			blockMin[block] = time;
+			blockMax[block] = time;
+		}
+		else {
+			blockMin[block] = Math.min(blockMin[block], time);
+			blockMax[block] = Math.max(blockMax[block], time);
+		}
+		blockMaxSoFar[block] = block == 0 ? blockMax[0] : Math.max(blockMaxSoFar[block - 1], blockMax[block]);
+	}
+
+	private static IntList[] add(IntList[] index, int key, int record) {
+		if (key >= index.length) {
+			index = Arrays.copyOf(index, Math.max(key + 1, index.length * 2));
+		}
+		if (index[key] == null) {
+			index[key] = new IntList();
+		}
+		index[key].add(record);
+		return index;
+	}
+
+	private void load() throws IOException {
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("segment-") && name.endsWith(".dat");
+			}
+		});
+		Arrays.sort(names);
+		for (int segment = 0; segment < names.length; segment++) {
+			MappedByteBuffer buffer = map(segment);
+			segments.add(buffer);
+			int count = Math.max(0, Math.min(buffer.getInt(COUNT_OFFSET), recordsPerSegment));
+			for (int i = 0; i < count; i++) {
+				int position = HEADER_SIZE + i * RECORD_SIZE;
+				if (!isComplete(buffer, position)) {
+					logger.warn("Alarm store " + names[segment] + " has " + (count - i)
+							+ " incomplete records after a crash, they are dropped.");
+					count = i;
+					buffer.putInt(COUNT_OFFSET, count);
+					buffer.force();
+					break;
+				}
+				index(size, buffer.getLong(position), buffer.getInt(position + 8), buffer.getInt(position + 12));
+				size++;
+			}
+			if (count < recordsPerSegment) {
+				// a segment is only left partly full when the store was closed, the next one is empty
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the record was written and all its strings are in the dictionary
+	 */
+	private boolean isComplete(MappedByteBuffer buffer, int position) {
+		// a time of 0 is possible, but not with the same string in all four fields
+		boolean written = buffer.getLong(position) != 0;
+		int strings = dictionary.size();
+		for (int offset = 8; offset < REPEATS_OFFSET; offset += 4) {
+			int id = buffer.getInt(position + offset);
+			if (id < 0 || id >= strings) {
+				return false;
+			}
+			written |= id != 0;
+		}
+		return written;
+	}
+
+	private MappedByteBuffer map(int segment) throws IOException {
+		File file = new File(dir, String.format("segment-%05d.dat", segment));
+		boolean created = !file.exists();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (!created && raf.length() == HEADER_SIZE + (long) recordsPerSegment * VERSION_1_RECORD_SIZE) {
+				raf.seek(4);
+				if (raf.readInt() == 1) {
+					raf.close();
+					upgrade(file);
+					raf = new RandomAccessFile(file, "rw");
+				}
+			}
+			long length = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+			if (!created && raf.length() != length) {
+				throw new IOException(file + " has length " + raf.length() + ", expected " + length);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			if (created) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(COUNT_OFFSET, 0);
+			}
+			else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException(file + " is not an alarm store segment.");
+			}
+			return buffer;
+		}
+		finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Rewrites a segment of version 1 in the current layout, each record with 0 repeats.
+	 * The new segment replaces the old one only when it is complete.
+	 */
+	private void upgrade(File file) throws IOException {
+		File upgraded = new File(dir, file.getName() + ".tmp");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(upgraded)));
+			try {
+				out.writeInt(in.readInt());
+				in.readInt();
+				out.writeInt(VERSION);
+				for (int offset = 8; offset < HEADER_SIZE; offset += 4) {
+					out.writeInt(in.readInt());
+				}
+				byte[] record = new byte[VERSION_1_RECORD_SIZE];
+				for (int i = 0; i < recordsPerSegment; i++) {
+					in.readFully(record);
+					out.write(record);
+					out.writeInt(0);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+		Files.move(upgraded.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Alarm store " + file.getName() + " upgraded to version " + VERSION + ".");
+	}
+}
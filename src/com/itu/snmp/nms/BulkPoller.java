@@ -0,0 +1,368 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Polls a set of OIDs from a set of agents at a fixed interval.
+ *
+ * Scalars are asked with GETs packing up to maxVarbinds OIDs each. Tables are walked
+ * with GETBULK, all columns of a walk in the same request; max-repetitions is chosen
+ * so that a response carries about maxVarbinds values, and a column drops out of the
+ * walk when it leaves its subtree. The agents are spread evenly over the interval on
+ * a {@link TimingWheel}, so a large number of agents does not mean a burst of
+ * requests at the start of every interval. All requests are sent asynchronously on
+ * the shared {@link SnmpSession}. An agent whose previous poll is still running is
+ * skipped for that round.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class BulkPoller {
+
+	private static final Logger logger = Logger.getLogger(BulkPoller.class);
+
+	public static final long DEFAULT_INTERVAL = 60000;
+	public static final long DEFAULT_TICK = 100;
+	public static final int DEFAULT_MAX_REPETITIONS = 25;
+	public static final int DEFAULT_MAX_VARBINDS = 32;
+
+	private final SnmpSession session;
+	private final OID[] scalars;
+	private final OID[] tables;
+	private final int maxRepetitions;
+	private final int maxVarbinds;
+	private final PollListener listener;
+	private final TimingWheel<String> wheel;
+	private final Set<String> polling = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicLong started;
+	private final AtomicLong completed;
+	private final AtomicLong failed;
+	private final AtomicLong skipped;
+	private final AtomicLong values;
+	private final LatencyHistogram pollLatency;
+
+	/**
+	 * Constructor, the polling does not start before {@link #start()}.
+	 * @param session The session the requests are sent on
+	 * @param intervalMillis How often each agent is polled
+	 * @param tickMillis Resolution of the spreading, the interval is divided into slots of this length
+	 * @param scalars OIDs of scalars, i.e. .1.3.6.1.2.1.1.3.0, asked with GET
+	 * @param tables OIDs of tables or any subtrees, i.e. .1.3.6.1.2.1.2.2, walked with GETBULK
+	 * @param maxRepetitions Upper limit for the max-repetitions of a GETBULK
+	 * @param maxVarbinds How many values to ask in one request
+	 * @param metrics Where the poll counts and latencies are recorded
+	 * @param listener Receives the results
+	 */
+	public BulkPoller(SnmpSession session, long intervalMillis, long tickMillis, OID[] scalars, OID[] tables,
+			int maxRepetitions, int maxVarbinds, NmsMetrics metrics, PollListener listener) {
+		if (maxRepetitions < 1 || maxVarbinds < 1) {
+			throw new IllegalArgumentException("maxRepetitions and maxVarbinds must be positive: "
+					+ maxRepetitions + ", " + maxVarbinds);
+		}
+		this.session = session;
+		this.scalars = scalars.clone();
+		this.tables = tables.clone();
+		this.maxRepetitions = maxRepetitions;
+		this.maxVarbinds = maxVarbinds;
+		this.listener = listener;
+		this.started = metrics.counter("polls_started");
+		this.completed = metrics.counter("polls_completed");
+		this.failed = metrics.counter("polls_failed");
+		this.skipped = metrics.counter("polls_skipped");
+		this.values = metrics.counter("poll_values");
+		this.pollLatency = metrics.histogram("poll_latency");
+		int slots = (int) Math.max(1, Math.min(Integer.MAX_VALUE, intervalMillis / Math.max(1, tickMillis)));
+		this.wheel = new TimingWheel<String>("poller", intervalMillis, slots, new StageHandler<String>() {
+			public void handle(String agentAddress) {
+				poll(agentAddress);
+			}
+		});
+		metrics.gauge("poll_agents", new NmsMetrics.Gauge() {
+			public long value() {
+				return wheel.size();
+			}
+		});
+		metrics.gauge("polls_running", new NmsMetrics.Gauge() {
+			public long value() {
+				return polling.size();
+			}
+		});
+	}
+
+	/**
+	 * Creates a poller configured with the system properties nms.poll.interval (milliseconds),
+	 * nms.poll.tick (milliseconds), nms.poll.oids and nms.poll.tables (comma separated OIDs),
+	 * nms.poll.maxRepetitions and nms.poll.maxVarbinds, and adds the agents listed in
+	 * nms.poll.agents (comma separated addresses). By default sysUpTime and sysName are polled.
+	 * @param session The session the requests are sent on
+	 * @param metrics Where the poll counts and latencies are recorded
+	 * @param listener Receives the results
+	 * @return The poller, not yet started
+	 */
+	public static BulkPoller fromSystemProperties(SnmpSession session, NmsMetrics metrics, PollListener listener) {
+		BulkPoller poller = new BulkPoller(session,
+				Long.getLong("nms.poll.interval", DEFAULT_INTERVAL),
+				Long.getLong("nms.poll.tick", DEFAULT_TICK),
+				parseOids(System.getProperty("nms.poll.oids", ".1.3.6.1.2.1.1.3.0,.1.3.6.1.2.1.1.5.0")),
+				parseOids(System.getProperty("nms.poll.tables", "")),
+				Integer.getInteger("nms.poll.maxRepetitions", DEFAULT_MAX_REPETITIONS),
+				Integer.getInteger("nms.poll.maxVarbinds", DEFAULT_MAX_VARBINDS),
+				metrics, listener);
+		for (String agent : System.getProperty("nms.poll.agents", "").split(",")) {
+			if (agent.trim().length() > 0) {
+				poller.addAgent(agent.trim());
+			}
+		}
+		return poller;
+	}
+
+	private static OID[] parseOids(String list) {
+		List<OID> oids = new ArrayList<OID>();
+		for (String oid : list.split(",")) {
+			if (oid.trim().length() > 0) {
+				oids.add(new OID(oid.trim()));
+			}
+		}
+		return oids.toArray(new OID[oids.size()]);
+	}
+
+	/**
+	 * Adds an agent to poll.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @return false if the agent was already polled
+	 */
+	public boolean addAgent(String agentAddress) {
+		return wheel.add(agentAddress);
+	}
+
+	public boolean removeAgent(String agentAddress) {
+		return wheel.remove(agentAddress);
+	}
+
+	public int getAgentCount() {
+		return wheel.size();
+	}
+
+	/**
+	 * Starts polling the agents.
+	 */
+	public void start() {
+		wheel.start();
+		logger.info("Polling " + wheel.size() + " agents in " + wheel.getSlotCount() + " slots.");
+	}
+
+	/**
+	 * Stops polling. Polls already running finish on their own.
+	 */
+	public void stop() {
+		wheel.stop();
+	}
+
+	/**
+	 * Polls an agent now, outside of the interval.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @return false if the previous poll of the agent is still running
+	 */
+	public boolean poll(String agentAddress) {
+		if (!polling.add(agentAddress)) {
+			skipped.incrementAndGet();
+			return false;
+		}
+		started.incrementAndGet();
+		Poll poll = new Poll(agentAddress);
+		for (int from = 0; from < scalars.length; from += maxVarbinds) {
+			OID[] chunk = new OID[Math.min(maxVarbinds, scalars.length - from)];
+			System.arraycopy(scalars, from, chunk, 0, chunk.length);
+			poll.get(chunk);
+		}
+		for (int from = 0; from < tables.length; from += maxVarbinds) {
+			OID[] chunk = new OID[Math.min(maxVarbinds, tables.length - from)];
+			System.arraycopy(tables, from, chunk, 0, chunk.length);
+			poll.walk(chunk);
+		}
+		poll.done();
+		return true;
+	}
+
+	/**
+	 * The state of polling one agent. The poll holds one pending count for itself while
+	 * its requests are sent and one for each GET or walk still running.
+	 */
+	private class Poll {
+
+		private final String agentAddress;
+		private final long timestamp = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+		private final List<VariableBinding> bindings = new ArrayList<VariableBinding>();
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private volatile boolean complete = true;
+
+		Poll(String agentAddress) {
+			this.agentAddress = agentAddress;
+		}
+
+		void get(OID[] oids) {
+			pending.incrementAndGet();
+			PDU pdu = new PDU();
+			pdu.setType(PDU.GET);
+			for (OID oid : oids) {
+				pdu.add(new VariableBinding(oid));
+			}
+			send(pdu, new ResponseListener() {
+				public void onResponse(ResponseEvent event) {
+					PDU response = event.getResponse();
+					if (isValid(response)) {
+						add(response.getVariableBindings(), 0, response.size());
+					}
+					done();
+				}
+			});
+		}
+
+		void walk(OID[] roots) {
+			pending.incrementAndGet();
+			new Walk(roots).next();
+		}
+
+		private void send(PDU pdu, ResponseListener responseListener) {
+			try {
+				session.send(agentAddress, pdu, null, responseListener);
+			}
+			catch (IOException e) {
+				logger.error("Poll of " + agentAddress + " failed: " + e.toString());
+				complete = false;
+				done();
+			}
+		}
+
+		private boolean isValid(PDU response) {
+			if (response == null) {
+				complete = false;
+				return false;
+			}
+			if (response.getErrorStatus() != PDU.noError) {
+				logger.warn("Poll of " + agentAddress + " got " + response.getErrorStatusText());
+				complete = false;
+				return false;
+			}
+			return true;
+		}
+
+		private void add(List<? extends VariableBinding> received, int from, int to) {
+			synchronized (bindings) {
+				for (int i = from; i < to; i++) {
+					VariableBinding binding = received.get(i);
+					if (!binding.isException()) {
+						bindings.add(binding);
+					}
+				}
+			}
+		}
+
+		void done() {
+			if (pending.decrementAndGet() != 0) {
+				return;
+			}
+			polling.remove(agentAddress);
+			long micros = (System.nanoTime() - startNanos) / 1000;
+			pollLatency.recordMicros(micros);
+			(complete ? completed : failed).incrementAndGet();
+			List<VariableBinding> result;
+			synchronized (bindings) {
+				result = new ArrayList<VariableBinding>(bindings);
+			}
+			values.addAndGet(result.size());
+			try {
+				listener.pollCompleted(new PollResult(timestamp, agentAddress, result, micros, complete));
+			}
+			catch (RuntimeException e) {
+				logger.error("Poll listener failed: " + e.toString());
+			}
+		}
+
+		/**
+		 * A GETBULK walk of some subtrees at the same time.
+		 */
+		private class Walk implements ResponseListener {
+
+			private final OID[] roots;
+			private final OID[] current;
+			private final boolean[] finished;
+			private int active;
+
+			Walk(OID[] roots) {
+				this.roots = roots;
+				this.current = roots.clone();
+				this.finished = new boolean[roots.length];
+				this.active = roots.length;
+			}
+
+			void next() {
+				PDU pdu = new PDU();
+				pdu.setType(PDU.GETBULK);
+				pdu.setNonRepeaters(0);
+				pdu.setMaxRepetitions(Math.max(1, Math.min(maxRepetitions, maxVarbinds / active)));
+				for (int i = 0; i < roots.length; i++) {
+					if (!finished[i]) {
+						pdu.add(new VariableBinding(current[i]));
+					}
+				}
+				send(pdu, this);
+			}
+
+			public void onResponse(ResponseEvent event) {
+				PDU response = event.getResponse();
+				if (!isValid(response)) {
+					done();
+					return;
+				}
+				// the response has the asked columns repeated row by row
+				int[] columns = new int[active];
+				for (int i = 0, c = 0; i < roots.length; i++) {
+					if (!finished[i]) {
+						columns[c++] = i;
+					}
+				}
+				List<VariableBinding> received = new ArrayList<VariableBinding>(response.size());
+				List<? extends VariableBinding> all = response.getVariableBindings();
+				for (int i = 0, n = all.size(); i < n; i++) {
+					int column = columns[i % columns.length];
+					if (finished[column]) {
+						continue;
+					}
+					VariableBinding binding = all.get(i);
+					OID oid = binding.getOid();
+					if (binding.isException() || !oid.startsWith(roots[column]) || oid.compareTo(current[column]) <= 0) {
+						finished[column] = true;
+						active--;
+						continue;
+					}
+					current[column] = oid;
+					received.add(binding);
+				}
+				add(received, 0, received.size());
+				if (active > 0 && all.size() > 0) {
+					next();
+				}
+				else {
+					done();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.itu.snmp.nms;
+
+/**
+ * How the NMS runs the GET that follows up each trap.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public enum ExecutionMode {
+
+	/** The GET is sent and the response is handled by a callback, no thread waits for it. */
+	ASYNC,
+
+	/** The GET stage worker sends the GET and waits for the response. */
+	BLOCKING,
+
+	/**
+	 * Each GET is sent from its own virtual thread, which waits for the response.
+	 * Falls back to platform threads before Java 21.
+	 */
+	VIRTUAL;
+
+	/**
+	 * @return The mode given in the system property nms.get.mode, ASYNC by default
+	 */
+	public static ExecutionMode fromSystemProperties() {
+		return valueOf(System.getProperty("nms.get.mode", ASYNC.name()).trim().toUpperCase());
+	}
+}
@@ -0,0 +1,203 @@
+package com.itu.snmp.nms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary format of the exported alarms: a batch of records in one length-prefixed
+ * frame, so a stream of frames can be split without parsing them.
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * int    magic, "NMSX"
+ * byte   version, 2
+ * byte   flags, 1 if the records are deflated
+ * int    record count
+ * int    length of the records uncompressed
+ * bytes  the records
+ * </pre>
+ *
+ * Each record is the timestamp as a long and the agent ID, agent address, alarm code
+ * and alarm text, each as its length in a varint and its UTF-8 bytes, and then the
+ * repeats of the alarm as a varint, 0 for one trap; version 1 had no repeats. All
+ * numbers are big-endian. The records are compressed with the JDK's Deflater at its
+ * fastest level.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class ExportFormat {
+
+	public static final int MAGIC = 0x4e4d5358;
+	public static final byte VERSION = 2;
+	public static final byte DEFLATED = 1;
+	/** Bytes before the records, the length prefix included. */
+	public static final int HEADER = 18;
+	/** Frames are never longer than this, so a reader can reject a broken stream. */
+	public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	private ExportFormat() {
+	}
+
+	/**
+	 * Encodes a batch.
+	 * @param records The alarms
+	 * @param compress If true, the records are deflated, unless that would make them longer
+	 * @return The whole frame, the length prefix included
+	 */
+	public static byte[] encode(List<TrapEvent> records, boolean compress) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * records.size() + 16);
+		for (TrapEvent record : records) {
+			long timestamp = record.getTimestamp();
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (timestamp >>> shift));
+			}
+			writeString(out, record.getAgentId());
+			writeString(out, record.getAgentAddress());
+			writeString(out, record.getAlarmCode());
+			writeString(out, record.getAlarmText());
+			writeVarint(out, record.getRepeats());
+		}
+		byte[] raw = out.toByteArray();
+		byte[] payload = raw;
+		int payloadLength = raw.length;
+		byte flags = 0;
+		if (compress && raw.length > 0) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(raw);
+				deflater.finish();
+				byte[] deflated = new byte[raw.length];
+				int length = deflater.deflate(deflated);
+				if (deflater.finished() && length < raw.length) {
+					payload = deflated;
+					payloadLength = length;
+					flags = DEFLATED;
+				}
+			}
+			finally {
+				deflater.end();
+			}
+		}
+		ByteBuffer frame = ByteBuffer.allocate(HEADER + payloadLength);
+		frame.putInt(HEADER - 4 + payloadLength);
+		frame.putInt(MAGIC);
+		frame.put(VERSION);
+		frame.put(flags);
+		frame.putInt(records.size());
+		frame.putInt(raw.length);
+		frame.put(payload, 0, payloadLength);
+		return frame.array();
+	}
+
+	/**
+	 * Decodes a batch.
+	 * @param frame The whole frame, the length prefix included
+	 * @return The alarms
+	 * @throws IOException if the frame is not valid
+	 */
+	public static List<TrapEvent> decode(byte[] frame) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(frame);
+		if (frame.length < HEADER || in.getInt() != frame.length - 4 || in.getInt() != MAGIC) {
+			throw new IOException("Not an export frame");
+		}
+		byte version = in.get();
+		if (version != VERSION && version != 1) {
+			throw new IOException("Unknown export frame version " + version);
+		}
+		byte flags = in.get();
+		int count = in.getInt();
+		int rawLength = in.getInt();
+		if (count < 0 || rawLength < 0 || rawLength > MAX_FRAME) {
+			throw new IOException("Broken export frame header");
+		}
+		byte[] raw;
+		if ((flags & DEFLATED) != 0) {
+			raw = new byte[rawLength];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(frame, HEADER, frame.length - HEADER);
+				if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+					throw new IOException("Export frame records are not " + rawLength + " bytes");
+				}
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Broken compressed export frame: " + e.getMessage(), e);
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		else {
+			raw = Arrays.copyOfRange(frame, HEADER, frame.length);
+		}
+		ByteBuffer records = ByteBuffer.wrap(raw);
+		List<TrapEvent> decoded = new ArrayList<TrapEvent>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				long timestamp = records.getLong();
+				String agentId = readString(records);
+				String agentAddress = readString(records);
+				String alarmCode = readString(records);
+				String alarmText = readString(records);
+				int repeats = version == 1 ? 0 : readVarint(records);
+				decoded.add(new TrapEvent(timestamp, agentId, agentAddress, alarmCode, alarmText, repeats));
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Broken export record: " + e.toString(), e);
+		}
+		return decoded;
+	}
+
+	/**
+	 * @param frame A frame made by {@link #encode(List, boolean)}
+	 * @return How many records it has
+	 */
+	public static int recordCount(byte[] frame) {
+		return frame.length < HEADER ? 0 : ByteBuffer.wrap(frame).getInt(10);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = readVarint(in);
+		String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			if (shift > 21) {
+				throw new IllegalArgumentException("Varint too long");
+			}
+		}
+	}
+}
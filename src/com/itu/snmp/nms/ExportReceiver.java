@@ -0,0 +1,188 @@
+package com.itu.snmp.nms;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.TcpAddress;
+
+/**
+ * A downstream for the {@link TcpExportSink}: takes the batches of any number of
+ * connections, hands each to the handler and answers with an ACK once the handler has
+ * returned. A batch the handler fails on is not acknowledged, the connection is closed
+ * and the exporter sends the batch again.
+ *
+ * Run on its own it logs the received alarms, for trying the export out:
+ * java -cp ... com.itu.snmp.nms.ExportReceiver 127.0.0.1/1750
+ *
+ * @author Petri Tilli
+ *
+ */
+public class ExportReceiver {
+
+	private static final Logger logger = Logger.getLogger(ExportReceiver.class);
+
+	private final String address;
+	private final StageHandler<List<TrapEvent>> handler;
+	private ServerSocket server;
+	private volatile boolean running;
+
+	/**
+	 * Constructor, starts listening in {@link #start()}.
+	 * @param address Where to listen, i.e. 127.0.0.1/1750
+	 * @param handler Gets the records of each batch, on the thread of its connection
+	 */
+	public ExportReceiver(String address, StageHandler<List<TrapEvent>> handler) {
+		this.address = address;
+		this.handler = handler;
+	}
+
+	/**
+	 * Binds the address and starts accepting connections.
+	 * @throws IOException if the address could not be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		TcpAddress tcp = new TcpAddress(address);
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		try {
+			server.bind(new InetSocketAddress(tcp.getInetAddress(), tcp.getPort()));
+		}
+		catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "export-receiver");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("Receiving exported alarms at " + address + ".");
+	}
+
+	/**
+	 * Stops accepting; the open connections end when their exporters next write.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			server.close();
+		}
+		catch (IOException e) {
+			logger.warn("Error closing the export receiver: " + e.toString());
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			}
+			catch (IOException e) {
+				if (running) {
+					logger.error("Error accepting an export connection: " + e.toString());
+				}
+				continue;
+			}
+			Thread connection = new Thread(new Runnable() {
+				public void run() {
+					receive(socket);
+				}
+			}, "export-receiver-" + socket.getRemoteSocketAddress());
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void receive(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (running) {
+				int length;
+				try {
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				if (length < ExportFormat.HEADER - 4 || length > ExportFormat.MAX_FRAME) {
+					throw new IOException("Not an export frame length: " + length);
+				}
+				byte[] frame = new byte[length + 4];
+				frame[0] = (byte) (length >>> 24);
+				frame[1] = (byte) (length >>> 16);
+				frame[2] = (byte) (length >>> 8);
+				frame[3] = (byte) length;
+				in.readFully(frame, 4, length);
+				try {
+					handler.handle(ExportFormat.decode(frame));
+				}
+				catch (IOException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new IOException("Handler failed: " + e.toString(), e);
+				}
+				out.write(TcpExportSink.ACK);
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			if (running) {
+				logger.warn("Export connection from " + socket.getRemoteSocketAddress() + " closed: " + e.toString());
+			}
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				logger.debug("Error closing an export connection: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Logs the received alarms until killed.
+	 * @param args The address to listen, 127.0.0.1/1750 by default
+	 * @throws IOException if the address could not be bound
+	 */
+	public static void main(String[] args) throws IOException {
+		BasicConfigurator.configure();
+		ExportReceiver receiver = new ExportReceiver(args.length > 0 ? args[0] : "127.0.0.1/1750",
+				new StageHandler<List<TrapEvent>>() {
+					public void handle(List<TrapEvent> batch) {
+						for (TrapEvent trap : batch) {
+							logger.info(trap);
+						}
+					}
+				});
+		receiver.start();
+		synchronized (receiver) {
+			try {
+				receiver.wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
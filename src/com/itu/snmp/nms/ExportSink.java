@@ -0,0 +1,25 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+
+/**
+ * Where the {@link TrapExporter} sends its batches, i.e. a TCP socket or a spool directory.
+ * A sink is used by the exporter thread only.
+ *
+ * @author Petri Tilli
+ *
+ */
+public interface ExportSink {
+
+	/**
+	 * Sends one batch. When this returns, the batch is the downstream's.
+	 * @param frame The batch in {@link ExportFormat}, the length prefix included
+	 * @throws IOException if the batch may not have arrived, it is then sent again later
+	 */
+	void write(byte[] frame) throws IOException;
+
+	/**
+	 * Releases the connection or files of the sink.
+	 */
+	void close();
+}
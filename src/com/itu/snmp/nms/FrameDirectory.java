@@ -0,0 +1,97 @@
+package com.itu.snmp.nms;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * A directory of export batches written by a {@link FrameWriter}, which also keeps
+ * track of the files until they are removed, oldest first. The files left by an earlier
+ * run are found again when the directory is opened.
+ *
+ * @author Petri Tilli
+ *
+ */
+class FrameDirectory {
+
+	private final FrameWriter writer;
+	// guarded by this
+	private final ArrayDeque<File> files = new ArrayDeque<File>();
+	private volatile long bytes;
+
+	/**
+	 * Constructor, creates the directory if needed.
+	 * @param dir The directory
+	 * @throws IOException if the directory could not be created or read
+	 */
+	FrameDirectory(File dir) throws IOException {
+		this.writer = new FrameWriter(dir);
+		for (File file : FrameWriter.list(dir)) {
+			files.add(file);
+			bytes += file.length();
+		}
+	}
+
+	/**
+	 * Adds a batch as the newest file.
+	 * @param frame The batch
+	 * @throws IOException if the file could not be written
+	 */
+	synchronized void append(byte[] frame) throws IOException {
+		files.add(writer.write(frame));
+		bytes += frame.length;
+	}
+
+	/**
+	 * @return The oldest file, null if there are none
+	 */
+	synchronized File oldest() {
+		return files.peekFirst();
+	}
+
+	/**
+	 * Deletes a file returned by {@link #oldest()}.
+	 * @param file The file
+	 */
+	synchronized void remove(File file) {
+		if (files.remove(file)) {
+			bytes -= file.length();
+			file.delete();
+		}
+	}
+
+	/**
+	 * @param file A file of the directory
+	 * @return Its batch
+	 * @throws IOException if the file could not be read
+	 */
+	byte[] read(File file) throws IOException {
+		// a stream rather than a channel, an interrupt does not break the read
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] frame = new byte[(int) file.length()];
+			in.readFully(frame);
+			return frame;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * @return Bytes of the files
+	 */
+	long bytes() {
+		return bytes;
+	}
+
+	File getDirectory() {
+		return writer.getDirectory();
+	}
+}
@@ -0,0 +1,114 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes batches to a directory, one file per batch, named by a sequence number of 20
+ * digits so that the names sort in the order the batches were written. A batch is
+ * written to a .tmp file and renamed to .frame, so a reader of the directory never sees
+ * half a batch. Only the next sequence number is kept, the files are the reader's.
+ *
+ * @author Petri Tilli
+ *
+ */
+class FrameWriter {
+
+	static final String SUFFIX = ".frame";
+
+	private final File dir;
+	// guarded by this
+	private long next;
+
+	/**
+	 * Constructor, creates the directory if needed and goes on from the newest file in it.
+	 * @param dir The directory
+	 * @throws IOException if the directory could not be created or read
+	 */
+	FrameWriter(File dir) throws IOException {
+		this.dir = dir;
+		File[] found = list(dir);
+		if (found.length > 0) {
+			next = sequence(found[found.length - 1]) + 1;
+		}
+	}
+
+	/**
+	 * Writes a batch as the newest file.
+	 * @param frame The batch
+	 * @return The file
+	 * @throws IOException if the file could not be written
+	 */
+	synchronized File write(byte[] frame) throws IOException {
+		String name = String.format("%020d", next);
+		File temporary = new File(dir, name + ".tmp");
+		File file = new File(dir, name + SUFFIX);
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			out.write(frame);
+		}
+		finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		next++;
+		return file;
+	}
+
+	File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Lists the batches of a directory, creating it if needed. The .tmp files of batches
+	 * being written when the last run stopped are deleted.
+	 * @param dir The directory
+	 * @return The files of the batches, oldest first
+	 * @throws IOException if the directory could not be created or read
+	 */
+	static File[] list(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		File[] found = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File parent, String name) {
+				return name.endsWith(SUFFIX) || name.endsWith(".tmp");
+			}
+		});
+		if (found == null) {
+			throw new IOException("Could not list directory " + dir);
+		}
+		List<File> frames = new ArrayList<File>(found.length);
+		for (File file : found) {
+			if (!file.getName().endsWith(SUFFIX)) {
+				file.delete();
+			}
+			else if (sequence(file) >= 0) {
+				frames.add(file);
+			}
+		}
+		File[] sorted = frames.toArray(new File[frames.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return The sequence number of a batch, -1 if the file is not named by one
+	 */
+	private static long sequence(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.itu.snmp.nms;
+
+/**
+ * When the journal forces its writes to disk.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public enum FsyncPolicy {
+
+	/** Never, the operating system decides when the data reaches the disk. */
+	NONE,
+
+	/** When a fixed time has passed since the last fsync. */
+	INTERVAL,
+
+	/** When a fixed number of records has been written since the last fsync. */
+	EVERY_N
+}
@@ -0,0 +1,57 @@
+package com.itu.snmp.nms;
+
+/**
+ * An agent's response to the GET made after its trap.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public final class GetResponseEvent {
+
+	private final long timestamp;
+	private final String agentId;
+	private final String response;
+	private final TrapEvent trap;
+
+	/**
+	 * Constructor
+	 * @param timestamp When the response was received, milliseconds since 1970
+	 * @param agentId ID of the agent who was queried
+	 * @param response The system description the agent returned
+	 * @param trap The trap the GET followed up, null if the GET was not made for a trap
+	 */
+	public GetResponseEvent(long timestamp, String agentId, String response, TrapEvent trap) {
+		this.timestamp = timestamp;
+		this.agentId = agentId;
+		this.response = response;
+		this.trap = trap;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return When the response was received, dd.MM.yyyy HH:mm:ss.SSS
+	 */
+	public String getDate() {
+		return TimestampFormat.format(timestamp);
+	}
+
+	public String getAgentId() {
+		return agentId;
+	}
+
+	public String getResponse() {
+		return response;
+	}
+
+	public TrapEvent getTrap() {
+		return trap;
+	}
+
+	@Override
+	public String toString() {
+		return getDate() + " " + agentId + " " + response;
+	}
+}
@@ -0,0 +1,122 @@
+package com.itu.snmp.nms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring of the cluster nodes. Each node has virtualNodes points on
+ * the ring, and an agent belongs to the node of the first point at or after the hash
+ * of its agent ID. When a node joins or leaves, only the agents between its points
+ * and the points before them change owners, about 1/n of them.
+ *
+ * A ring never changes; a new one is made for each change of the members. The points
+ * are in sorted arrays, so finding an owner is a binary search and creates nothing.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class HashRing {
+
+	private final Set<String> nodes;
+	private final int[] points;
+	private final String[] owners;
+
+	/**
+	 * Constructor
+	 * @param nodes IDs of the nodes
+	 * @param virtualNodes Points of each node on the ring, more spreads the agents more evenly
+	 */
+	public HashRing(Collection<String> nodes, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be at least 1: " + virtualNodes);
+		}
+		TreeSet<String> sorted = new TreeSet<String>(nodes);
+		this.nodes = Collections.unmodifiableSet(sorted);
+		long[] entries = new long[sorted.size() * virtualNodes];
+		String[] byIndex = sorted.toArray(new String[sorted.size()]);
+		int n = 0;
+		for (int node = 0; node < byIndex.length; node++) {
+			for (int i = 0; i < virtualNodes; i++) {
+				byte[] key = (byIndex[node] + "#" + i).getBytes(StandardCharsets.UTF_8);
+				// the point in the high bits for sorting and the node in the low bits
+				entries[n++] = ((long) hash(key, 0, key.length) << 32) | node;
+			}
+		}
+		Arrays.sort(entries);
+		points = new int[entries.length];
+		owners = new String[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			points[i] = (int) (entries[i] >>> 32);
+			owners[i] = byIndex[(int) entries[i]];
+		}
+	}
+
+	/**
+	 * @param agentId ID of an agent
+	 * @return The node owning the agent, null if the ring has no nodes
+	 */
+	public String owner(String agentId) {
+		byte[] bytes = agentId.getBytes(StandardCharsets.UTF_8);
+		return owner(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @param bytes Holds the ID of an agent, i.e. a received trap
+	 * @param offset Start of the ID
+	 * @param length Length of the ID
+	 * @return The node owning the agent, null if the ring has no nodes
+	 */
+	public String owner(byte[] bytes, int offset, int length) {
+		if (points.length == 0) {
+			return null;
+		}
+		int hash = hash(bytes, offset, length);
+		// the first point at or after the hash, the ring runs from the smallest int to the largest
+		int low = 0;
+		int high = points.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (points[middle] < hash) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return owners[low == points.length ? 0 : low];
+	}
+
+	/**
+	 * @return IDs of the nodes, sorted
+	 */
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * 32 bit FNV-1a with the MurmurHash3 finalizer, so that similar IDs like agent1 and
+	 * agent2 land far apart.
+	 */
+	static int hash(byte[] bytes, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return nodes.toString();
+	}
+}
@@ -0,0 +1,69 @@
+package com.itu.snmp.nms;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints without boxing, used for the index posting lists.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class IntList {
+
+	private int[] values;
+	private int size;
+
+	public IntList() {
+		this(8);
+	}
+
+	/**
+	 * @param capacity Initial capacity
+	 */
+	public IntList(int capacity) {
+		values = new int[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Adds a value to the end of the list.
+	 * @param value The value to add
+	 */
+	public void add(int value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	public int get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException(index + " >= " + size);
+		}
+		return values[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the first position whose value is at least the given value.
+	 * The list must be in ascending order.
+	 * @param value The value to look for
+	 * @return Position of the first value &gt;= value, or size() if there is none
+	 */
+	public int lowerBound(int value) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < value) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
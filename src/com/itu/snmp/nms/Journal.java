@@ -0,0 +1,467 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log file, one record per line.
+ *
+ * The file is opened once and kept open. Records appended from any number of threads
+ * are queued and a single writer thread writes everything queued so far with one
+ * write call (a group commit). Depending on the {@link FsyncPolicy} the writes are
+ * also forced to disk. When the current segment grows too big or too old it is
+ * renamed with a timestamp, i.e. alarms.20121001120000000.txt, and a new one is started
+ * under the original name.
+ *
+ * A write that fails, i.e. with a full disk, does not stop the writer: the batch is
+ * kept and written again to the reopened segment, cut back to its last complete
+ * record, after a wait that doubles up to five seconds. Meanwhile the records are
+ * queued until the queue is full, and then append fails at once instead of waiting.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class Journal {
+
+	private static final Logger logger = Logger.getLogger(Journal.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_BATCH = 4096;
+	private static final long RETRY_MILLIS = 100;
+	private static final long MAX_RETRY_MILLIS = 5000;
+
+	private final File file;
+	private final FsyncPolicy fsyncPolicy;
+	private final int fsyncEvery;
+	private final long fsyncIntervalMillis;
+	private final long maxSegmentBytes;
+	private final long maxSegmentMillis;
+
+	private final BlockingQueue<String> queue;
+	private final Object appendLock = new Object();
+	private final Object writtenLock = new Object();
+	private final Thread writer;
+	// running: appends are taken; stopping: set once no append is in progress, the
+	// writer ends when the queue is empty
+	private volatile boolean running = true;
+	private volatile boolean stopping;
+	// the last error of the writer, null while the writes succeed
+	private volatile IOException failure;
+
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private long segmentSize;
+	private long segmentStarted;
+	private long lastFsync;
+	private int unsynced;
+
+	// guarded by appendLock
+	private long appended;
+	// guarded by writtenLock
+	private long written;
+
+	private volatile long commits;
+	private volatile long fsyncs;
+	private volatile long segments = 1;
+	private volatile long failures;
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+
+	/**
+	 * Constructor, opens the file and starts the writer thread.
+	 * @param file The file to append to
+	 * @param capacity How many records may wait for the writer before append blocks
+	 * @param fsyncPolicy When to force the writes to disk
+	 * @param fsyncEvery Records between fsyncs with {@link FsyncPolicy#EVERY_N}
+	 * @param fsyncIntervalMillis Time between fsyncs with {@link FsyncPolicy#INTERVAL}
+	 * @param maxSegmentBytes Roll the file when it grows over this, 0 for never
+	 * @param maxSegmentMillis Roll the file when it gets older than this, 0 for never
+	 * @throws IOException if the file could not be opened
+	 */
+	public Journal(File file, int capacity, FsyncPolicy fsyncPolicy, int fsyncEvery,
+			long fsyncIntervalMillis, long maxSegmentBytes, long maxSegmentMillis) throws IOException {
+		this.file = file;
+		this.queue = new ArrayBlockingQueue<String>(capacity);
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncEvery = Math.max(1, fsyncEvery);
+		this.fsyncIntervalMillis = Math.max(1, fsyncIntervalMillis);
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentMillis = maxSegmentMillis;
+		openSegment();
+		lastFsync = System.currentTimeMillis();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "journal-" + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Creates a journal configured with the system properties nms.journal.dir,
+	 * nms.journal.capacity, nms.journal.fsync, nms.journal.fsyncEvery,
+	 * nms.journal.fsyncIntervalMillis, nms.journal.segmentBytes and nms.journal.segmentMillis.
+	 * @param fileName Name of the file, i.e. alarms.txt
+	 * @return The opened journal
+	 * @throws IOException if the file could not be opened
+	 */
+	public static Journal fromSystemProperties(String fileName) throws IOException {
+		String fsync = System.getProperty("nms.journal.fsync", FsyncPolicy.INTERVAL.name());
+		return new Journal(new File(System.getProperty("nms.journal.dir", "."), fileName),
+				Integer.getInteger("nms.journal.capacity", 10000),
+				FsyncPolicy.valueOf(fsync.trim().toUpperCase()),
+				Integer.getInteger("nms.journal.fsyncEvery", 1000),
+				Long.getLong("nms.journal.fsyncIntervalMillis", 1000L),
+				Long.getLong("nms.journal.segmentBytes", 64L * 1024 * 1024),
+				Long.getLong("nms.journal.segmentMillis", 0L));
+	}
+
+	/**
+	 * Queues a record for writing. Returns as soon as the record is queued, unless
+	 * the queue is full, in which case it waits for the writer. While the writes are
+	 * failing it does not wait.
+	 * @param record The record, a newline is added after it
+	 * @throws IOException if the journal is closed, or failing and its queue is full
+	 */
+	public void append(String record) throws IOException {
+		synchronized (appendLock) {
+			try {
+				while (true) {
+					if (!running) {
+						throw new IOException("Journal " + file + " is closed.");
+					}
+					IOException failed = failure;
+					if (failed != null) {
+						if (!queue.offer(record)) {
+							throw new IOException("Journal " + file + " is not writable: " + failed.getMessage(), failed);
+						}
+						break;
+					}
+					// not put: a close or a failure while waiting ends the wait
+					if (queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+						break;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while appending to " + file);
+			}
+			appended++;
+		}
+	}
+
+	/**
+	 * Waits until every record appended before this call has been written to the file.
+	 * @throws IOException if the journal was closed before that or its writes are failing
+	 */
+	public void flush() throws IOException {
+		long target;
+		synchronized (appendLock) {
+			target = appended;
+		}
+		synchronized (writtenLock) {
+			while (written < target) {
+				if (!writer.isAlive()) {
+					throw new IOException("Journal " + file + " is closed.");
+				}
+				IOException failed = failure;
+				if (failed != null) {
+					throw new IOException("Journal " + file + " is not writable: " + failed.getMessage(), failed);
+				}
+				try {
+					writtenLock.wait(100);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while flushing " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes what is queued, forces it to disk and closes the file. If the writes are
+	 * failing, what is queued is dropped.
+	 */
+	public void close() {
+		running = false;
+		synchronized (appendLock) {
+			stopping = true;
+		}
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		List<String> batch = new ArrayList<String>();
+		long retryMillis = RETRY_MILLIS;
+		try {
+			while (!stopping || !queue.isEmpty() || !batch.isEmpty()) {
+				try {
+					if (batch.isEmpty()) {
+						String first = queue.poll(pollMillis(), TimeUnit.MILLISECONDS);
+						if (first != null) {
+							batch.add(first);
+							queue.drainTo(batch, MAX_BATCH - 1);
+						}
+					}
+					if (!batch.isEmpty()) {
+						commit(batch);
+					}
+					maybeFsync(System.currentTimeMillis());
+					maybeRoll(System.currentTimeMillis());
+					if (failure != null) {
+						logger.info("Journal " + file + " is writable again.");
+						failure = null;
+						retryMillis = RETRY_MILLIS;
+					}
+				}
+				catch (IOException e) {
+					failures++;
+					if (failure == null) {
+						logger.error("Not able to write " + file + ", retrying: " + e.toString());
+					}
+					failure = e;
+					if (stopping) {
+						logger.error("Journal " + file + " closed while failing, dropped "
+								+ (batch.size() + queue.size()) + " records.");
+						break;
+					}
+					waitForRetry(retryMillis);
+					retryMillis = Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+					reopen();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			logger.warn("Journal " + file + " writer interrupted.");
+		}
+		finally {
+			running = false;
+			try {
+				if (channel.isOpen()) {
+					if (unsynced > 0 && fsyncPolicy != FsyncPolicy.NONE) {
+						channel.force(false);
+					}
+					channel.close();
+				}
+			}
+			catch (IOException e) {
+				logger.error("Not able to close " + file + ": " + e.toString());
+			}
+			synchronized (writtenLock) {
+				writtenLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits before a retry, less if the journal is closed meanwhile.
+	 */
+	private void waitForRetry(long millis) throws InterruptedException {
+		long until = System.currentTimeMillis() + millis;
+		for (long now = System.currentTimeMillis(); now < until && !stopping; now = System.currentTimeMillis()) {
+			Thread.sleep(Math.min(until - now, 100));
+		}
+	}
+
+	/**
+	 * Opens the segment again after a failure and cuts off what a failed write left
+	 * after the last complete record.
+	 */
+	private void reopen() {
+		long complete = segmentSize;
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			logger.debug("Not able to close " + file + ": " + e.toString());
+		}
+		try {
+			openSegment();
+			if (segmentSize > complete) {
+				channel.truncate(complete);
+				segmentSize = complete;
+			}
+		}
+		catch (IOException e) {
+			logger.debug("Not able to reopen " + file + ": " + e.toString());
+		}
+	}
+
+	private long pollMillis() {
+		if (fsyncPolicy == FsyncPolicy.INTERVAL && unsynced > 0) {
+			return Math.max(1, lastFsync + fsyncIntervalMillis - System.currentTimeMillis());
+		}
+		return 100;
+	}
+
+	/**
+	 * Writes a batch and clears it once it is written.
+	 */
+	private void commit(List<String> batch) throws IOException {
+		buffer.clear();
+		for (String record : batch) {
+			byte[] bytes = (record + "\n").getBytes(UTF8);
+			if (buffer.remaining() < bytes.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes.length));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			buffer.put(bytes);
+		}
+		buffer.flip();
+		long started = System.nanoTime();
+		// segmentSize stays at the last complete record until the whole batch is written
+		long size = segmentSize;
+		while (buffer.hasRemaining()) {
+			size += write(channel, buffer);
+		}
+		segmentSize = size;
+		writeLatency.recordSince(started);
+		unsynced += batch.size();
+		commits++;
+		synchronized (writtenLock) {
+			written += batch.size();
+			writtenLock.notifyAll();
+		}
+		batch.clear();
+		if (fsyncPolicy == FsyncPolicy.EVERY_N && unsynced >= fsyncEvery) {
+			fsync(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Writes to the segment, the tests override this to fail.
+	 */
+	int write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		return channel.write(buffer);
+	}
+
+	private void maybeFsync(long now) throws IOException {
+		if (fsyncPolicy == FsyncPolicy.INTERVAL && unsynced > 0 && now - lastFsync >= fsyncIntervalMillis) {
+			fsync(now);
+		}
+	}
+
+	private void fsync(long now) throws IOException {
+		long started = System.nanoTime();
+		channel.force(false);
+		fsyncLatency.recordSince(started);
+		unsynced = 0;
+		lastFsync = now;
+		fsyncs++;
+	}
+
+	private void maybeRoll(long now) throws IOException {
+		boolean tooBig = maxSegmentBytes > 0 && segmentSize >= maxSegmentBytes;
+		boolean tooOld = maxSegmentMillis > 0 && segmentSize > 0 && now - segmentStarted >= maxSegmentMillis;
+		if (!tooBig && !tooOld) {
+			return;
+		}
+		if (fsyncPolicy != FsyncPolicy.NONE) {
+			fsync(now);
+		}
+		channel.close();
+		File rolled = rolledName(now);
+		if (!file.renameTo(rolled)) {
+			logger.error("Not able to rename " + file + " to " + rolled);
+		}
+		openSegment();
+		segments++;
+		logger.info("Journal rolled to " + rolled);
+	}
+
+	private File rolledName(long now) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot < 0 ? name : name.substring(0, dot);
+		String suffix = dot < 0 ? "" : name.substring(dot);
+		String stamp = new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date(now));
+		File rolled = new File(file.getParentFile(), base + "." + stamp + suffix);
+		for (int i = 1; rolled.exists(); i++) {
+			rolled = new File(file.getParentFile(), base + "." + stamp + "-" + i + suffix);
+		}
+		return rolled;
+	}
+
+	private void openSegment() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segmentSize = channel.size();
+		segmentStarted = System.currentTimeMillis();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getCommits() {
+		return commits;
+	}
+
+	public long getFsyncs() {
+		return fsyncs;
+	}
+
+	public long getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @return How many writes, fsyncs or rolls have failed
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return true while the writes are failing
+	 */
+	public boolean isFailing() {
+		return failure != null;
+	}
+
+	/**
+	 * @return Time taken by the write call of each group commit
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * @return Time taken by each fsync
+	 */
+	public LatencyHistogram getFsyncLatency() {
+		return fsyncLatency;
+	}
+
+	public long getWritten() {
+		synchronized (writtenLock) {
+			return written;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds with a fixed relative precision,
+ * in the style of HdrHistogram. Every power of two range is split into 16
+ * buckets, so a recorded value is off by at most 1/16 of itself. Recording
+ * is lock free and does not allocate.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_MAGNITUDE = 42; // about 50 days in microseconds
+
+	private final AtomicLongArray buckets = new AtomicLongArray((MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * @param duration The latency
+	 * @param unit Unit of the latency
+	 */
+	public void record(long duration, TimeUnit unit) {
+		recordMicros(unit.toMicros(duration));
+	}
+
+	/**
+	 * Records the time since a System.nanoTime() value.
+	 * @param startNanos The System.nanoTime() value when the measured thing started
+	 */
+	public void recordSince(long startNanos) {
+		recordMicros((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Records a latency.
+	 * @param micros The latency in microseconds, negative values are counted as 0
+	 */
+	public void recordMicros(long micros) {
+		long value = Math.max(0, micros);
+		buckets.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param quantile The quantile, between 0 and 1, i.e. 0.99
+	 * @return The latency in microseconds below which the given share of the recorded
+	 * latencies are, 0 if nothing has been recorded
+	 */
+	public long getPercentileMicros(double quantile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = Math.min(MAX_MAGNITUDE, 63 - Long.numberOfLeadingZeros(value));
+		int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+		if (magnitude == MAX_MAGNITUDE && value >>> MAX_MAGNITUDE > 1) {
+			sub = SUB_BUCKETS - 1;
+		}
+		return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The largest value that goes to a bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		long low = (1L << magnitude) + (sub << (magnitude - SUB_BITS));
+		return low + (1L << (magnitude - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,204 @@
+package com.itu.snmp.nms;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * A fast path for the traps of the agents: scans an SNMPv2c trap message in its BER
+ * encoding and only notes where the values of the alarm fields under
+ * {@link SnmpNms#TRAP_OID} are. The other varbinds, like sysUpTime and snmpTrapOID,
+ * are skipped as byte ranges, and no PDU, OID or OctetString objects are created.
+ *
+ * Anything else, i.e. SNMPv1 traps, informs, responses, a trap without all four alarm
+ * fields or a malformed message, is left for the message dispatcher.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class LazyTrapDecoder {
+
+	private static final int INTEGER = 0x02;
+	private static final int OCTET_STRING = 0x04;
+	private static final int OBJECT_IDENTIFIER = 0x06;
+	private static final int SEQUENCE = 0x30;
+	private static final int SNMPV2_TRAP = 0xa7;
+	private static final int VERSION_2C = 1;
+
+	/** The BER content of TRAP_OID, the alarm field OIDs are it and one byte more. */
+	private static final byte[] PREFIX = encode(SnmpNms.TRAP_OID);
+
+	private LazyTrapDecoder() {
+	}
+
+	/**
+	 * Scans a message. The position and limit of the buffer are not changed, so the
+	 * same buffer can be handed to the message dispatcher when this returns null.
+	 * @param message A received SNMP message
+	 * @return The trap, with a copy of the message if the buffer has no array of its
+	 * own, or null if the message is not an SNMPv2c trap with all four alarm fields
+	 */
+	public static RawTrap scan(ByteBuffer message) {
+		byte[] bytes;
+		int start;
+		int end;
+		if (message.hasArray()) {
+			bytes = message.array();
+			start = message.arrayOffset() + message.position();
+			end = message.arrayOffset() + message.limit();
+		}
+		else {
+			bytes = new byte[message.remaining()];
+			message.duplicate().get(bytes);
+			start = 0;
+			end = bytes.length;
+		}
+		int[] slices = scan(bytes, start, end);
+		if (slices == null) {
+			return null;
+		}
+		if (start != 0 || end != bytes.length) {
+			// keep only this message, and the slices relative to it
+			byte[] copy = new byte[end - start];
+			System.arraycopy(bytes, start, copy, 0, copy.length);
+			for (int i = 0; i < slices.length; i += 2) {
+				slices[i] -= start;
+			}
+			bytes = copy;
+		}
+		return new RawTrap(bytes, slices);
+	}
+
+	/**
+	 * @return offset and length of each alarm field, or null
+	 */
+	static int[] scan(byte[] bytes, int position, int end) {
+		// cursor[0] is the position, moved by header()
+		int[] cursor = { position };
+		int messageEnd = header(bytes, cursor, end, SEQUENCE);
+		if (messageEnd < 0) {
+			return null;
+		}
+		int versionEnd = header(bytes, cursor, messageEnd, INTEGER);
+		if (versionEnd != cursor[0] + 1 || bytes[cursor[0]] != VERSION_2C) {
+			return null;
+		}
+		cursor[0] = versionEnd;
+		int communityEnd = header(bytes, cursor, messageEnd, OCTET_STRING);
+		if (communityEnd < 0) {
+			return null;
+		}
+		cursor[0] = communityEnd;
+		int pduEnd = header(bytes, cursor, messageEnd, SNMPV2_TRAP);
+		if (pduEnd < 0) {
+			return null;
+		}
+		// request ID, error status and error index
+		for (int i = 0; i < 3; i++) {
+			int integerEnd = header(bytes, cursor, pduEnd, INTEGER);
+			if (integerEnd < 0) {
+				return null;
+			}
+			cursor[0] = integerEnd;
+		}
+		int bindingsEnd = header(bytes, cursor, pduEnd, SEQUENCE);
+		if (bindingsEnd < 0) {
+			return null;
+		}
+		int[] slices = new int[RawTrap.FIELDS * 2];
+		int found = 0;
+		while (cursor[0] < bindingsEnd) {
+			int bindingEnd = header(bytes, cursor, bindingsEnd, SEQUENCE);
+			if (bindingEnd < 0) {
+				return null;
+			}
+			int oidEnd = header(bytes, cursor, bindingEnd, OBJECT_IDENTIFIER);
+			if (oidEnd < 0) {
+				return null;
+			}
+			int field = field(bytes, cursor[0], oidEnd);
+			cursor[0] = oidEnd;
+			if (field > 0) {
+				int valueEnd = header(bytes, cursor, bindingEnd, OCTET_STRING);
+				if (valueEnd < 0) {
+					return null;
+				}
+				int slot = (field - 1) * 2;
+				if (slices[slot + 1] == 0 && slices[slot] == 0) {
+					found++;
+				}
+				slices[slot] = cursor[0];
+				slices[slot + 1] = valueEnd - cursor[0];
+			}
+			cursor[0] = bindingEnd;
+		}
+		return found == RawTrap.FIELDS ? slices : null;
+	}
+
+	/**
+	 * Reads the tag and length at the cursor and moves the cursor to the content.
+	 * @return End of the content, or -1 if the tag is not the expected one or the
+	 * content does not fit before the limit
+	 */
+	private static int header(byte[] bytes, int[] cursor, int limit, int tag) {
+		int position = cursor[0];
+		if (position + 2 > limit || (bytes[position] & 0xff) != tag) {
+			return -1;
+		}
+		int length = bytes[position + 1] & 0xff;
+		position += 2;
+		if (length > 0x7f) {
+			int lengthBytes = length & 0x7f;
+			if (lengthBytes == 0 || lengthBytes > 3 || position + lengthBytes > limit) {
+				return -1;
+			}
+			length = 0;
+			for (int i = 0; i < lengthBytes; i++) {
+				length = (length << 8) | (bytes[position++] & 0xff);
+			}
+		}
+		if (length > limit - position) {
+			return -1;
+		}
+		cursor[0] = position;
+		return position + length;
+	}
+
+	/**
+	 * @return The alarm field of an OID, 1 to 4, or 0 if it is not one
+	 */
+	private static int field(byte[] bytes, int position, int end) {
+		if (end - position != PREFIX.length + 1) {
+			return 0;
+		}
+		for (int i = 0; i < PREFIX.length; i++) {
+			if (bytes[position + i] != PREFIX[i]) {
+				return 0;
+			}
+		}
+		int last = bytes[end - 1];
+		return last >= 1 && last <= RawTrap.FIELDS ? last : 0;
+	}
+
+	/**
+	 * @return The BER content octets of an OID
+	 */
+	private static byte[] encode(OID oid) {
+		int[] subs = oid.getValue();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(subs[0] * 40 + subs[1]);
+		for (int i = 2; i < subs.length; i++) {
+			long sub = subs[i] & 0xffffffffL;
+			int shift = 28;
+			while (shift > 0 && (sub >> shift) == 0) {
+				shift -= 7;
+			}
+			for (; shift > 0; shift -= 7) {
+				out.write((int) ((sub >> shift) & 0x7f) | 0x80);
+			}
+			out.write((int) (sub & 0x7f));
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,28 @@
+package com.itu.snmp.nms;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the NMS events to the log. In headless mode it takes the place of
+ * the GUI log.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class LogListener implements NmsListener {
+
+	private static final Logger logger = Logger.getLogger(LogListener.class);
+
+	public void trapReceived(TrapEvent trap) {
+		if (logger.isInfoEnabled()) {
+			logger.info("TRAP from agent " + trap.getAgentId() + "(" + trap.getAgentAddress() + ") " + trap.getMessage()
+					+ (trap.getRepeats() > 0 ? " repeated " + trap.getRepeats() + " times" : ""));
+		}
+	}
+
+	public void getResponseReceived(GetResponseEvent response) {
+		if (logger.isInfoEnabled()) {
+			logger.info("GET response from agent " + response.getAgentId() + " " + response.getResponse());
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server giving out the {@link NmsMetrics} as text at /metrics.
+ * It listens on the loopback address only.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class MetricsServer {
+
+	private static final Logger logger = Logger.getLogger(MetricsServer.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_PORT = 9163;
+
+	private final HttpServer server;
+
+	/**
+	 * Constructor, starts the server.
+	 * @param metrics The metrics to give out
+	 * @param port The port to listen, 0 for any free port
+	 * @throws IOException if the port could not be bound
+	 */
+	public MetricsServer(final NmsMetrics metrics, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = metrics.toText().getBytes(UTF8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				}
+				finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		logger.info("Metrics at http://127.0.0.1:" + getPort() + "/metrics");
+	}
+
+	/**
+	 * Starts a server on the port given in the system property nms.metrics.port,
+	 * 9163 by default. A negative port turns the server off.
+	 * @param metrics The metrics to give out
+	 * @return The started server, or null if it is turned off or the port is taken
+	 */
+	public static MetricsServer fromSystemProperties(NmsMetrics metrics) {
+		int port = Integer.getInteger("nms.metrics.port", DEFAULT_PORT);
+		if (port < 0) {
+			return null;
+		}
+		try {
+			return new MetricsServer(metrics, port);
+		}
+		catch (IOException e) {
+			logger.warn("Not able to start the metrics server on port " + port + ": " + e.toString());
+			return null;
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,230 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * A UDP transport listening with several sockets bound to the same address with
+ * SO_REUSEPORT. The kernel spreads the datagrams over the sockets by the sender's
+ * address and port, and each socket has its own receive buffer and its own thread,
+ * so a storm from many agents is taken in by several cores. Without SO_REUSEPORT
+ * only one socket is opened.
+ *
+ * The receive threads hand each datagram to the message dispatcher themselves, so
+ * with a dispatcher without a thread pool the BER decoding is done on them too.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class MultiSocketUdpTransportMapping extends UdpTransportMapping {
+
+	private static final Logger logger = Logger.getLogger(MultiSocketUdpTransportMapping.class);
+
+	private final int socketCount;
+	private final int receiveBufferSize;
+	private DatagramChannel[] channels;
+	private Thread[] threads;
+	private AtomicLong[] received;
+	private volatile boolean listening;
+
+	/**
+	 * Constructor, the sockets are opened by {@link #listen()}.
+	 * @param address The address to listen
+	 * @param socketCount How many sockets to bind to the address
+	 * @param receiveBufferSize SO_RCVBUF of each socket, 0 for the system default
+	 */
+	public MultiSocketUdpTransportMapping(UdpAddress address, int socketCount, int receiveBufferSize) {
+		super(address);
+		if (socketCount < 1) {
+			throw new IllegalArgumentException("socketCount must be at least 1: " + socketCount);
+		}
+		this.socketCount = socketCount;
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Opens the sockets and starts their receive threads.
+	 * @throws IOException if a socket could not be bound
+	 */
+	@Override
+	public synchronized void listen() throws IOException {
+		if (listening) {
+			throw new IOException("Already listening to " + udpAddress);
+		}
+		InetSocketAddress bindAddress = new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort());
+		int count = socketCount;
+		if (count > 1 && !isReusePortSupported()) {
+			logger.warn("No SO_REUSEPORT, listening " + udpAddress + " with one socket.");
+			count = 1;
+		}
+		channels = new DatagramChannel[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels[i] = channel;
+				if (count > 1) {
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+				}
+				if (receiveBufferSize > 0) {
+					channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(receiveBufferSize));
+				}
+				channel.bind(bindAddress);
+			}
+		}
+		catch (IOException e) {
+			closeChannels();
+			throw e;
+		}
+		if (udpAddress.getPort() == 0) {
+			udpAddress = new UdpAddress(udpAddress.getInetAddress(),
+					((InetSocketAddress) channels[0].getLocalAddress()).getPort());
+		}
+		listening = true;
+		received = new AtomicLong[count];
+		threads = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			received[i] = new AtomicLong();
+			final int socket = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					receive(socket);
+				}
+			}, "trap-receive-" + i);
+			// not daemons: like a listening server, these keep a headless NMS running
+			threads[i].start();
+		}
+		logger.info("Listening " + udpAddress + " with " + count + " sockets, receive buffer "
+				+ channels[0].getOption(StandardSocketOptions.SO_RCVBUF) + " bytes each.");
+	}
+
+	/**
+	 * @return true if the platform's UDP sockets have SO_REUSEPORT
+	 * @throws IOException if a socket could not be opened to find out
+	 */
+	boolean isReusePortSupported() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private void receive(int socket) {
+		DatagramChannel channel = channels[socket];
+		// one buffer per thread, each datagram is copied out of it in its exact size
+		ByteBuffer buffer = ByteBuffer.allocate(getMaxInboundMessageSize());
+		while (listening) {
+			try {
+				buffer.clear();
+				InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+				buffer.flip();
+				byte[] message = new byte[buffer.remaining()];
+				buffer.get(message);
+				received[socket].incrementAndGet();
+				UdpAddress from = new UdpAddress(sender.getAddress(), sender.getPort());
+				fireProcessMessage(from, ByteBuffer.wrap(message), new TransportStateReference(this, from, null,
+						SecurityLevel.undefined, SecurityLevel.undefined, false, channel));
+			}
+			catch (ClosedChannelException e) {
+				break;
+			}
+			catch (IOException e) {
+				if (listening) {
+					logger.error("Receive failed on " + udpAddress + ": " + e.toString());
+				}
+			}
+			catch (RuntimeException e) {
+				logger.error("Not able to handle a datagram on " + udpAddress + ": " + e.toString());
+			}
+		}
+	}
+
+	@Override
+	public void sendMessage(UdpAddress address, byte[] message, TransportStateReference tmStateReference)
+			throws IOException {
+		DatagramChannel channel = null;
+		if (tmStateReference != null && tmStateReference.getSessionID() instanceof DatagramChannel) {
+			// answer from the socket the request came to
+			channel = (DatagramChannel) tmStateReference.getSessionID();
+		}
+		else if (channels != null) {
+			channel = channels[0];
+		}
+		if (channel == null) {
+			throw new IOException("Not listening to " + udpAddress);
+		}
+		channel.send(ByteBuffer.wrap(message), new InetSocketAddress(address.getInetAddress(), address.getPort()));
+	}
+
+	/**
+	 * Closes the sockets and waits for the receive threads to stop.
+	 */
+	@Override
+	public void close() throws IOException {
+		Thread[] stopped;
+		synchronized (this) {
+			if (!listening) {
+				return;
+			}
+			listening = false;
+			closeChannels();
+			stopped = threads;
+		}
+		for (Thread thread : stopped) {
+			try {
+				thread.join(1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void closeChannels() {
+		for (DatagramChannel channel : channels) {
+			if (channel == null) {
+				continue;
+			}
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				logger.error("Error closing socket: " + e.toString());
+			}
+		}
+	}
+
+	@Override
+	public boolean isListening() {
+		return listening;
+	}
+
+	/**
+	 * @return How many sockets are listening, fewer than asked without SO_REUSEPORT
+	 */
+	public synchronized int getSocketCount() {
+		return channels == null ? 0 : channels.length;
+	}
+
+	/**
+	 * @param socket Index of the socket
+	 * @return How many datagrams the socket has received
+	 */
+	public long getReceived(int socket) {
+		return received[socket].get();
+	}
+}
@@ -5,18 +5,18 @@ import java.awt.Dimension;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+
+import com.itu.snmp.gui.EventLogView;
 
 /**
  * The GUI of Pete's Network Management Server. Displays the SNMP GET and TRAP messages.
  * @author Petri Tilli
  *
  */
-public class NMSWindow extends JFrame {
+public class NMSWindow extends JFrame implements NmsListener {
 	
 	private static final long serialVersionUID = 1L;
-	private JTextArea messages;
+	private EventLogView messages;
 	
 	/**
 	 * Constructor, creates the components
@@ -40,12 +40,9 @@ public class NMSWindow extends JFrame {
 		queryButton.setPreferredSize(new Dimension(600,60));
 		this.getContentPane().add(queryButton, BorderLayout.PAGE_START);
 */
-		messages = new JTextArea();
-        messages.setLineWrap(true);
-        messages.setWrapStyleWord(true);
-		JScrollPane sp = new JScrollPane(messages); 
-        sp.setPreferredSize(new Dimension(600, 200));
-        this.getContentPane().add(sp, BorderLayout.CENTER);
+		messages = new EventLogView();
+        messages.setPreferredSize(new Dimension(600, 200));
+        this.getContentPane().add(messages, BorderLayout.CENTER);
  
         this.setTitle("Pete's Super NMS");
         //Display the window.
@@ -54,11 +51,19 @@ public class NMSWindow extends JFrame {
 	}
 	
 	/**
-	 * Adding a message to the JTextArea.
+	 * Adding a message to the log. Can be called from any thread.
 	 * @param message The message to be added.
 	 */
 	public void addMessage(String message) {
-		messages.insert(message + "\n", messages.getText().length());
+		messages.addMessage(message);
+	}
+
+	public void trapReceived(TrapEvent trap) {
+		addMessage(SnmpNms.formatTrap(trap));
+	}
+
+	public void getResponseReceived(GetResponseEvent response) {
+		addMessage(SnmpNms.formatGetResponse(response));
 	}
 	
 }
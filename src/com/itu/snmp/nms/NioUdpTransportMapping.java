@@ -0,0 +1,240 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * A UDP transport on a non-blocking DatagramChannel and a selector loop, for taking
+ * in trap storms with as little garbage as possible.
+ *
+ * Each time the channel is readable, up to batchSize datagrams are received into a
+ * fixed pool of direct buffers, emptying the socket's receive buffer quickly, and then
+ * handed to the message dispatcher one by one. The buffers are reused for the next
+ * batch as soon as the dispatcher returns, so the dispatcher has to decode on the
+ * calling thread, i.e. a MessageDispatcherImpl and not a MultiThreadedMessageDispatcher.
+ * The address and transport state of each sender are reused too.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class NioUdpTransportMapping extends UdpTransportMapping {
+
+	private static final Logger logger = Logger.getLogger(NioUdpTransportMapping.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+	private static final int MAX_SENDERS = 10000;
+
+	private final int batchSize;
+	private final int receiveBufferSize;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	// only used by the selector thread
+	private final Map<SocketAddress, TransportStateReference> senders = new HashMap<SocketAddress, TransportStateReference>();
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean listening;
+
+	/**
+	 * Constructor, the channel is opened by {@link #listen()}.
+	 * @param address The address to listen
+	 * @param batchSize How many datagrams are received at most before they are dispatched,
+	 * also the number of buffers in the pool
+	 * @param receiveBufferSize SO_RCVBUF of the socket, 0 for the system default
+	 */
+	public NioUdpTransportMapping(UdpAddress address, int batchSize, int receiveBufferSize) {
+		super(address);
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Opens the channel and starts the selector thread.
+	 * @throws IOException if the channel could not be bound
+	 */
+	@Override
+	public synchronized void listen() throws IOException {
+		if (listening) {
+			throw new IOException("Already listening to " + udpAddress);
+		}
+		channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (receiveBufferSize > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(receiveBufferSize));
+			}
+			channel.bind(new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort()));
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (udpAddress.getPort() == 0) {
+			udpAddress = new UdpAddress(udpAddress.getInetAddress(),
+					((InetSocketAddress) channel.getLocalAddress()).getPort());
+		}
+		final ByteBuffer[] pool = new ByteBuffer[batchSize];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = ByteBuffer.allocateDirect(getMaxInboundMessageSize());
+		}
+		listening = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				receive(pool);
+			}
+		}, "trap-nio");
+		// not a daemon: like a listening server, it keeps a headless NMS running
+		thread.start();
+		logger.info("Listening " + udpAddress + " with a selector, batches of " + batchSize + ", receive buffer "
+				+ channel.getOption(StandardSocketOptions.SO_RCVBUF) + " bytes.");
+	}
+
+	private void receive(ByteBuffer[] pool) {
+		SocketAddress[] from = new SocketAddress[pool.length];
+		boolean full = false;
+		while (listening) {
+			try {
+				if (!full) {
+					selector.select();
+					selector.selectedKeys().clear();
+				}
+				int count = 0;
+				while (count < pool.length) {
+					ByteBuffer buffer = pool[count];
+					buffer.clear();
+					SocketAddress sender = channel.receive(buffer);
+					if (sender == null) {
+						break;
+					}
+					buffer.flip();
+					from[count++] = sender;
+				}
+				// a full batch means there may be more waiting, receive again without select
+				full = count == pool.length;
+				if (count == 0) {
+					continue;
+				}
+				received.addAndGet(count);
+				batches.incrementAndGet();
+				for (int i = 0; i < count; i++) {
+					dispatch(from[i], pool[i]);
+					from[i] = null;
+				}
+			}
+			catch (ClosedChannelException e) {
+				break;
+			}
+			catch (ClosedSelectorException e) {
+				break;
+			}
+			catch (IOException e) {
+				if (listening) {
+					logger.error("Receive failed on " + udpAddress + ": " + e.toString());
+				}
+			}
+		}
+	}
+
+	private void dispatch(SocketAddress sender, ByteBuffer message) {
+		TransportStateReference state = senders.get(sender);
+		if (state == null) {
+			if (senders.size() >= MAX_SENDERS) {
+				senders.clear();
+			}
+			InetSocketAddress inet = (InetSocketAddress) sender;
+			state = new TransportStateReference(this, new UdpAddress(inet.getAddress(), inet.getPort()), null,
+					SecurityLevel.undefined, SecurityLevel.undefined, false, null);
+			senders.put(sender, state);
+		}
+		try {
+			fireProcessMessage(state.getAddress(), message, state);
+		}
+		catch (RuntimeException e) {
+			logger.error("Not able to handle a datagram from " + state.getAddress() + ": " + e.toString());
+		}
+	}
+
+	@Override
+	public void sendMessage(UdpAddress address, byte[] message, TransportStateReference tmStateReference)
+			throws IOException {
+		DatagramChannel current = channel;
+		if (current == null) {
+			throw new IOException("Not listening to " + udpAddress);
+		}
+		int sent = current.send(ByteBuffer.wrap(message), new InetSocketAddress(address.getInetAddress(), address.getPort()));
+		if (sent == 0) {
+			throw new IOException("Send buffer full, message to " + address + " not sent");
+		}
+	}
+
+	/**
+	 * Closes the channel and waits for the selector thread to stop.
+	 */
+	@Override
+	public void close() throws IOException {
+		Thread stopped;
+		synchronized (this) {
+			if (!listening) {
+				return;
+			}
+			listening = false;
+			selector.wakeup();
+			stopped = thread;
+		}
+		try {
+			stopped.join(1000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			selector.close();
+			channel.close();
+		}
+	}
+
+	@Override
+	public boolean isListening() {
+		return listening;
+	}
+
+	/**
+	 * @return How many datagrams have been received
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * @return How many batches have been dispatched, received / batches is the mean batch size
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+}
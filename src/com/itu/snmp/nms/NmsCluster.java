@@ -0,0 +1,546 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.UdpAddress;
+
+/**
+ * Cluster mode: several NMS nodes split the agents between them by consistent hashing
+ * of the agent ID, see {@link HashRing}. Each node makes the GETs and writes the
+ * journals of its own agents only. A trap received by another node is forwarded to
+ * the owner as it is, before decoding. The handler set with
+ * {@link #setRebalanceHandler} hears of each new ring, i.e. to split the polled agents
+ * by the same ring.
+ *
+ * The nodes talk over UDP on their cluster address. Every heartbeatMillis each node
+ * sends a heartbeat to the seeds and to every node it knows. The heartbeat also lists
+ * the members the sender sees, so a node only needs one seed to find the rest. A node
+ * not heard from in failureMillis is out of the ring until it is heard again, and a
+ * node that stops tells the others it is leaving. The ring is made again whenever the
+ * members change, moving about 1/n of the agents.
+ *
+ * The messages start with a type byte: H heartbeat and L leave, each followed by
+ * lines of "nodeId address" in UTF-8, the sender's own first; T a forwarded trap,
+ * followed by the SNMP message.
+ *
+ * A forwarded trap is always handled by the node it is sent to, even if that node
+ * sees the ring differently for a moment, so traps never go round in circles.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class NmsCluster {
+
+	private static final Logger logger = Logger.getLogger(NmsCluster.class);
+
+	public static final long DEFAULT_HEARTBEAT = 1000;
+	public static final long DEFAULT_FAILURE = 5000;
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private static final byte HEARTBEAT = 'H';
+	private static final byte LEAVE = 'L';
+	private static final byte TRAP = 'T';
+	private static final int MAX_MESSAGE = 65535;
+
+	private final String nodeId;
+	private final String address;
+	private final List<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
+	private final long heartbeatMillis;
+	private final long failureNanos;
+	private final int virtualNodes;
+	private final StageHandler<ByteBuffer> trapHandler;
+	// guarded by itself
+	private final Map<String, Member> members = new HashMap<String, Member>();
+	private volatile HashRing ring;
+	private volatile StageHandler<HashRing> rebalanceHandler;
+	private final AtomicLong forwarded;
+	private final AtomicLong forwardedIn;
+	private final AtomicLong forwardFailures;
+	private final AtomicLong rebalances;
+	private DatagramChannel channel;
+	private InetSocketAddress localAddress;
+	private ScheduledExecutorService heartbeats;
+	private Thread receiver;
+	private volatile boolean running;
+
+	/**
+	 * Another node of the cluster.
+	 */
+	private static class Member {
+		final String id;
+		InetSocketAddress address;
+		String addressText;
+		// System.nanoTime of its last heartbeat, 0 if only heard of from others
+		long lastSeen;
+		// System.nanoTime of its last heartbeat or of another node listing it as alive
+		long lastHeard;
+
+		Member(String id, String addressText, long now) {
+			this.id = id;
+			this.lastHeard = now;
+			setAddress(addressText);
+		}
+
+		void setAddress(String text) {
+			UdpAddress udp = new UdpAddress(text);
+			this.address = new InetSocketAddress(udp.getInetAddress(), udp.getPort());
+			this.addressText = text;
+		}
+	}
+
+	/**
+	 * Constructor, the node joins the cluster in {@link #start()}.
+	 * @param nodeId Unique ID of this node, i.e. nms1
+	 * @param address Cluster address of this node, i.e. 127.0.0.1/1720
+	 * @param seeds Cluster addresses of nodes to join through, may include this node's own
+	 * @param heartbeatMillis How often the heartbeats are sent
+	 * @param failureMillis How long a node may stay silent before it is out of the ring
+	 * @param virtualNodes Points of each node on the ring
+	 * @param metrics Where the forwarded traps and the members are counted
+	 * @param trapHandler Gets the traps forwarded to this node, on the receiving thread;
+	 * the buffer is reused after the call
+	 */
+	public NmsCluster(String nodeId, String address, List<String> seeds, long heartbeatMillis, long failureMillis,
+			int virtualNodes, NmsMetrics metrics, StageHandler<ByteBuffer> trapHandler) {
+		if (nodeId.length() == 0 || nodeId.contains(" ") || nodeId.contains("\n")) {
+			throw new IllegalArgumentException("Not a node ID: '" + nodeId + "'");
+		}
+		this.nodeId = nodeId;
+		this.address = address;
+		for (String seed : seeds) {
+			UdpAddress udp = new UdpAddress(seed);
+			this.seeds.add(new InetSocketAddress(udp.getInetAddress(), udp.getPort()));
+		}
+		this.heartbeatMillis = heartbeatMillis;
+		this.failureNanos = TimeUnit.MILLISECONDS.toNanos(failureMillis);
+		this.virtualNodes = virtualNodes;
+		this.trapHandler = trapHandler;
+		this.ring = new HashRing(Collections.singleton(nodeId), virtualNodes);
+		this.forwarded = metrics.counter("cluster_traps_forwarded");
+		this.forwardedIn = metrics.counter("cluster_traps_received");
+		this.forwardFailures = metrics.counter("cluster_forward_failures");
+		this.rebalances = metrics.counter("cluster_rebalances");
+		metrics.gauge("cluster_members", new NmsMetrics.Gauge() {
+			public long value() {
+				return ring.getNodes().size();
+			}
+		});
+	}
+
+	/**
+	 * Creates a cluster node configured with the system properties nms.cluster.node,
+	 * nms.cluster.address, nms.cluster.seeds (comma separated), nms.cluster.heartbeatMillis,
+	 * nms.cluster.failureMillis and nms.cluster.virtualNodes.
+	 * @param metrics Where the forwarded traps and the members are counted
+	 * @param trapHandler Gets the traps forwarded to this node
+	 * @return The node, not yet started, or null if nms.cluster.node is not set
+	 */
+	public static NmsCluster fromSystemProperties(NmsMetrics metrics, StageHandler<ByteBuffer> trapHandler) {
+		String node = System.getProperty("nms.cluster.node", "").trim();
+		if (node.length() == 0) {
+			return null;
+		}
+		List<String> seeds = new ArrayList<String>();
+		for (String seed : System.getProperty("nms.cluster.seeds", "").split(",")) {
+			if (seed.trim().length() > 0) {
+				seeds.add(seed.trim());
+			}
+		}
+		return new NmsCluster(node, System.getProperty("nms.cluster.address", "127.0.0.1/1720"), seeds,
+				Long.getLong("nms.cluster.heartbeatMillis", DEFAULT_HEARTBEAT),
+				Long.getLong("nms.cluster.failureMillis", DEFAULT_FAILURE),
+				Integer.getInteger("nms.cluster.virtualNodes", DEFAULT_VIRTUAL_NODES), metrics, trapHandler);
+	}
+
+	/**
+	 * Binds the cluster address and starts the heartbeats and the receiving thread.
+	 * @throws IOException if the address could not be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		UdpAddress udp = new UdpAddress(address);
+		channel = DatagramChannel.open();
+		try {
+			channel.bind(new InetSocketAddress(udp.getInetAddress(), udp.getPort()));
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		localAddress = (InetSocketAddress) channel.getLocalAddress();
+		running = true;
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "cluster");
+		receiver.setDaemon(true);
+		receiver.start();
+		heartbeats = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "cluster-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		heartbeats.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+		logger.info("Node " + nodeId + " in the cluster at " + address + ", seeds " + seeds + ".");
+	}
+
+	/**
+	 * Tells the other nodes this one is leaving and stops.
+	 */
+	public void stop() {
+		stop(true);
+	}
+
+	/**
+	 * @param leave If false, the node just goes silent, as if it had crashed
+	 */
+	void stop(boolean leave) {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			heartbeats.shutdownNow();
+		}
+		if (leave) {
+			send(LEAVE, membership(false), targets());
+		}
+		try {
+			channel.close();
+			receiver.join(1000);
+		}
+		catch (IOException e) {
+			logger.warn("Could not close the cluster channel: " + e.toString());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Node " + nodeId + " left the cluster.");
+	}
+
+	/**
+	 * Sends the heartbeats and takes the silent nodes out of the ring.
+	 */
+	private void tick() {
+		try {
+			send(HEARTBEAT, membership(true), targets());
+			forgetSilent();
+			rebalance();
+		}
+		catch (RuntimeException e) {
+			logger.error("Cluster heartbeat failed: " + e.toString());
+		}
+	}
+
+	/**
+	 * @param all If true, the live members follow this node
+	 * @return Lines of "nodeId address"
+	 */
+	private byte[] membership(boolean all) {
+		StringBuilder text = new StringBuilder(nodeId).append(' ').append(address).append('\n');
+		if (all) {
+			long now = System.nanoTime();
+			synchronized (members) {
+				for (Member member : members.values()) {
+					if (isAlive(member, now)) {
+						text.append(member.id).append(' ').append(member.addressText).append('\n');
+					}
+				}
+			}
+		}
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return The seeds and every known node, without this one
+	 */
+	private List<InetSocketAddress> targets() {
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress seed : seeds) {
+			if (!seed.equals(localAddress)) {
+				targets.add(seed);
+			}
+		}
+		synchronized (members) {
+			for (Member member : members.values()) {
+				if (!targets.contains(member.address)) {
+					targets.add(member.address);
+				}
+			}
+		}
+		return targets;
+	}
+
+	private void send(byte type, byte[] content, List<InetSocketAddress> targets) {
+		ByteBuffer message = ByteBuffer.allocate(1 + content.length);
+		message.put(type).put(content);
+		for (InetSocketAddress target : targets) {
+			message.rewind();
+			try {
+				channel.send(message, target);
+			}
+			catch (IOException e) {
+				logger.debug("Could not send to " + target + ": " + e.toString());
+			}
+		}
+	}
+
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE + 1);
+		while (running) {
+			try {
+				buffer.clear();
+				SocketAddress sender = channel.receive(buffer);
+				buffer.flip();
+				if (buffer.remaining() == 0) {
+					continue;
+				}
+				byte type = buffer.get();
+				if (type == TRAP) {
+					forwardedIn.incrementAndGet();
+					handleTrap(buffer.slice());
+				}
+				else if (type == HEARTBEAT || type == LEAVE) {
+					String text = StandardCharsets.UTF_8.decode(buffer).toString();
+					membershipReceived(type == LEAVE, text.split("\n"));
+				}
+				else {
+					logger.debug("Unknown cluster message from " + sender);
+				}
+			}
+			catch (ClosedChannelException e) {
+				break;
+			}
+			catch (IOException e) {
+				if (running) {
+					logger.error("Cluster receive failed: " + e.toString());
+				}
+			}
+			catch (RuntimeException e) {
+				logger.error("Not able to handle a cluster message: " + e.toString());
+			}
+		}
+	}
+
+	private void handleTrap(ByteBuffer message) {
+		try {
+			trapHandler.handle(message);
+		}
+		catch (Exception e) {
+			logger.error("Not able to handle a forwarded trap: " + e.toString());
+		}
+	}
+
+	/**
+	 * @param leave If true, the sender is leaving
+	 * @param lines The sender first, then the members it sees
+	 */
+	private void membershipReceived(boolean leave, String[] lines) {
+		long now = System.nanoTime();
+		synchronized (members) {
+			for (int i = 0; i < lines.length; i++) {
+				String[] fields = lines[i].trim().split(" ");
+				if (fields.length != 2 || fields[0].equals(nodeId)) {
+					continue;
+				}
+				if (i == 0 && leave) {
+					members.remove(fields[0]);
+					break;
+				}
+				Member member = members.get(fields[0]);
+				if (member == null) {
+					member = new Member(fields[0], fields[1], now);
+					members.put(member.id, member);
+					logger.info("Node " + member.id + " at " + member.addressText + " found.");
+				}
+				else if (i == 0 && !member.addressText.equals(fields[1])) {
+					member.setAddress(fields[1]);
+				}
+				if (i == 0) {
+					member.lastSeen = now;
+				}
+				member.lastHeard = now;
+			}
+		}
+		rebalance();
+	}
+
+	/**
+	 * Forgets the nodes nobody has heard of in ten failure times, so a node gone for
+	 * good is not sent heartbeats forever. A seed is still sent them.
+	 */
+	private void forgetSilent() {
+		long now = System.nanoTime();
+		synchronized (members) {
+			Iterator<Member> all = members.values().iterator();
+			while (all.hasNext()) {
+				Member member = all.next();
+				if (now - member.lastHeard > failureNanos * 10) {
+					all.remove();
+					logger.info("Node " + member.id + " forgotten.");
+				}
+			}
+		}
+	}
+
+	private boolean isAlive(Member member, long now) {
+		return member.lastSeen != 0 && now - member.lastSeen <= failureNanos;
+	}
+
+	/**
+	 * Makes a new ring if the live members have changed and tells the rebalance handler,
+	 * outside the lock of the node.
+	 */
+	private void rebalance() {
+		HashRing changed = updateRing();
+		StageHandler<HashRing> handler = rebalanceHandler;
+		if (changed != null && handler != null) {
+			try {
+				handler.handle(changed);
+			}
+			catch (Exception e) {
+				logger.error("Not able to rebalance to the new ring: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return The new ring, null if the live members have not changed
+	 */
+	private synchronized HashRing updateRing() {
+		Set<String> alive = new TreeSet<String>();
+		alive.add(nodeId);
+		long now = System.nanoTime();
+		synchronized (members) {
+			for (Member member : members.values()) {
+				if (isAlive(member, now)) {
+					alive.add(member.id);
+				}
+			}
+		}
+		if (alive.equals(ring.getNodes())) {
+			return null;
+		}
+		ring = new HashRing(alive, virtualNodes);
+		rebalances.incrementAndGet();
+		logger.info("Cluster members now " + alive + ".");
+		return ring;
+	}
+
+	/**
+	 * Forwards a trap to the node owning its agent, unless it is this node.
+	 * @param trap The trap, its agent ID is hashed
+	 * @param message The whole received message, its position is not changed
+	 * @return true if the trap was forwarded, false if it is to be handled here
+	 */
+	public boolean route(RawTrap trap, ByteBuffer message) {
+		String owner = ring.owner(trap.getMessage(), trap.getOffset(RawTrap.AGENT_ID),
+				trap.getLength(RawTrap.AGENT_ID));
+		if (owner == null || owner.equals(nodeId)) {
+			return false;
+		}
+		return forward(owner, message);
+	}
+
+	/**
+	 * Sends a trap to another node.
+	 * @param node ID of the node
+	 * @param message The SNMP message, its position is not changed
+	 * @return false if the node is not known or sending failed
+	 */
+	public boolean forward(String node, ByteBuffer message) {
+		InetSocketAddress target;
+		synchronized (members) {
+			Member member = members.get(node);
+			target = member == null ? null : member.address;
+		}
+		if (target == null || !running) {
+			forwardFailures.incrementAndGet();
+			return false;
+		}
+		ByteBuffer forward = ByteBuffer.allocate(1 + message.remaining());
+		forward.put(TRAP).put(message.duplicate());
+		forward.flip();
+		try {
+			channel.send(forward, target);
+			forwarded.incrementAndGet();
+			return true;
+		}
+		catch (IOException e) {
+			forwardFailures.incrementAndGet();
+			logger.warn("Could not forward a trap to " + node + ": " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * @param agentId ID of an agent
+	 * @return true if this node owns the agent
+	 */
+	public boolean isLocal(String agentId) {
+		return nodeId.equals(ring.owner(agentId));
+	}
+
+	/**
+	 * Sets what is told of each new ring, on the thread that made it: the heartbeat thread
+	 * or the receiving thread.
+	 * @param handler Gets the new ring, null for none
+	 */
+	public void setRebalanceHandler(StageHandler<HashRing> handler) {
+		this.rebalanceHandler = handler;
+	}
+
+	/**
+	 * @return The ring of the live members as this node sees it
+	 */
+	public HashRing getRing() {
+		return ring;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return How many traps this node has forwarded
+	 */
+	public long getForwarded() {
+		return forwarded.get();
+	}
+
+	/**
+	 * @return How many traps other nodes have forwarded to this one
+	 */
+	public long getForwardedIn() {
+		return forwardedIn.get();
+	}
+}
@@ -0,0 +1,525 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The settings of the NMS: every nms.* key with its type, default, allowed values and
+ * whether it can be changed while the NMS runs.
+ *
+ * The values come from, each overriding the one before: a properties file given with
+ * --config or nms.config, environment variables such as NMS_CACHE_TTL for
+ * nms.cache.ttl, -D system properties and --key=value arguments, where the nms. prefix
+ * may be left out. Everything is validated before the NMS starts, unknown nms.* keys
+ * included, and then {@link #apply()} puts the values to the system properties that the
+ * parts of the NMS read when they are created.
+ *
+ * When the file changes, {@link #reload()} reads it again; the settings marked hot are
+ * then changed in the running NMS, see {@link SnmpNms#watchConfig}.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class NmsConfig {
+
+	public enum Type {
+		INT, LONG, BOOLEAN, STRING, ADDRESS, ADDRESSES, OID, OIDS, CHOICE
+	}
+
+	/**
+	 * One setting, its type and the values it allows.
+	 */
+	public static final class Setting {
+		private final String name;
+		private final Type type;
+		private final String defaultValue;
+		private final long min;
+		private final long max;
+		private final String[] choices;
+		private final boolean hot;
+		private final String description;
+
+		Setting(String name, Type type, String defaultValue, long min, long max, String[] choices, boolean hot,
+				String description) {
+			this.name = name;
+			this.type = type;
+			this.defaultValue = defaultValue;
+			this.min = min;
+			this.max = max;
+			this.choices = choices;
+			this.hot = hot;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public String getDefaultValue() {
+			return defaultValue;
+		}
+
+		/**
+		 * @return true if the setting can be changed without restarting the NMS
+		 */
+		public boolean isHot() {
+			return hot;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @return The environment variable of the setting, i.e. NMS_CACHE_TTL
+		 */
+		public String getEnvName() {
+			return name.toUpperCase().replace('.', '_');
+		}
+
+		/**
+		 * @param value A value
+		 * @return Why the value is not valid, or null if it is
+		 */
+		String check(String value) {
+			String trimmed = value.trim();
+			switch (type) {
+			case INT:
+			case LONG:
+				long number;
+				try {
+					number = Long.parseLong(trimmed);
+				}
+				catch (NumberFormatException e) {
+					return name + ": not a number: " + value;
+				}
+				if (number < min || number > max) {
+					return name + ": " + number + " is not within " + min + ".." + max;
+				}
+				return null;
+			case BOOLEAN:
+				return trimmed.equalsIgnoreCase("true") || trimmed.equalsIgnoreCase("false") ? null
+						: name + ": not true or false: " + value;
+			case ADDRESS:
+				return checkAddress(trimmed) ? null : name + ": not an address like 127.0.0.1/162: " + value;
+			case ADDRESSES:
+				for (String address : trimmed.split(",")) {
+					if (address.trim().length() > 0 && !checkAddress(address.trim())) {
+						return name + ": not an address like 127.0.0.1/161: " + address;
+					}
+				}
+				return null;
+			case OID:
+				return checkOid(trimmed) ? null : name + ": not an OID like .1.3.6.1.2.1.1.1.0: " + value;
+			case OIDS:
+				for (String oid : trimmed.split(",")) {
+					if (oid.trim().length() > 0 && !checkOid(oid.trim())) {
+						return name + ": not an OID: " + oid;
+					}
+				}
+				return null;
+			case CHOICE:
+				for (String choice : choices) {
+					if (choice.equalsIgnoreCase(trimmed)) {
+						return null;
+					}
+				}
+				return name + ": " + value + " is not one of " + join(choices);
+			default:
+				return null;
+			}
+		}
+
+		private static boolean checkOid(String oid) {
+			return oid.matches("\\.?\\d+(\\.\\d+)*");
+		}
+
+		private static boolean checkAddress(String address) {
+			int slash = address.lastIndexOf('/');
+			if (slash < 1) {
+				return false;
+			}
+			try {
+				int port = Integer.parseInt(address.substring(slash + 1));
+				return port >= 0 && port <= 65535;
+			}
+			catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	}
+
+	private static final Map<String, Setting> SETTINGS = new LinkedHashMap<String, Setting>();
+
+	static {
+		define("nms.config", Type.STRING, "", false, "Properties file of the settings, reread when it changes");
+		define("nms.config.reloadMillis", Type.LONG, "2000", 100, Long.MAX_VALUE, false,
+				"How often the file is checked for changes");
+		define("nms.trap.address", Type.ADDRESS, "127.0.0.1/1620", false, "Where traps are received");
+		define("nms.headless", Type.BOOLEAN, "false", false, "Log the events instead of showing the GUI");
+		define("nms.log.level", Type.CHOICE, "DEBUG", true, "Level of the root logger",
+				"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "OFF");
+		define("nms.metrics.port", Type.INT, String.valueOf(MetricsServer.DEFAULT_PORT), -1, 65535, false,
+				"Port of the /metrics endpoint, negative for none");
+
+		define("nms.receive.transport", Type.CHOICE, "multi", false, "Trap transport", "multi", "nio");
+		define("nms.receive.sockets", Type.INT, String.valueOf(Runtime.getRuntime().availableProcessors()), 1, 1024,
+				false, "Sockets bound to the trap port");
+		define("nms.receive.bufferBytes", Type.INT, String.valueOf(SnmpNms.DEFAULT_RECEIVE_BUFFER), 0,
+				Integer.MAX_VALUE, false, "SO_RCVBUF of each trap socket");
+		define("nms.receive.batch", Type.INT, String.valueOf(NioUdpTransportMapping.DEFAULT_BATCH_SIZE), 1, 65536,
+				false, "Datagrams per batch of the nio transport");
+		define("nms.decode.lazy", Type.BOOLEAN, "true", false, "Decode only the alarm fields of the traps");
+		defineStage("receive", TrapPipeline.DEFAULT_RECEIVE);
+		defineStage("decode", TrapPipeline.DEFAULT_DECODE);
+		defineStage("persist", TrapPipeline.DEFAULT_PERSIST);
+		defineStage("get", TrapPipeline.DEFAULT_GET);
+		defineStage("notify", TrapPipeline.DEFAULT_NOTIFY);
+
+		define("nms.session.stripes", Type.INT, "1", 1, 1024, false, "Sockets of the GET session");
+		define("nms.session.timeout", Type.LONG, String.valueOf(SnmpSession.TIMEOUT), 1, 3600000, true,
+				"Longest timeout of a GET in milliseconds, and the timeout of a new agent");
+		define("nms.session.minTimeout", Type.LONG, String.valueOf(AgentHealth.DEFAULT_MIN_TIMEOUT), 1, 3600000, true,
+				"Shortest timeout of a GET in milliseconds, the timeout adapts to each agent in between");
+		define("nms.session.breakerFailures", Type.INT, String.valueOf(AgentHealth.DEFAULT_BREAKER_FAILURES), 0,
+				Integer.MAX_VALUE, true, "Timed out GETs in a row that stop the GETs to an agent, 0 for never");
+		define("nms.session.breakerMillis", Type.LONG, String.valueOf(AgentHealth.DEFAULT_BREAKER_MILLIS), 1,
+				AgentHealth.MAX_BREAKER_MILLIS, true, "Milliseconds before a stopped agent is probed");
+		define("nms.session.retries", Type.INT, String.valueOf(SnmpSession.RETRIES), 0, 100, true,
+				"Retries of a GET");
+		define("nms.session.community", Type.STRING, SnmpSession.COMMUNITY, true, "Community of the GETs");
+		define("nms.get.mode", Type.CHOICE, ExecutionMode.ASYNC.name(), true, "How the follow-up GETs are run",
+				names(ExecutionMode.values()));
+		define("nms.get.maxInFlight", Type.INT, "10000", 1, Integer.MAX_VALUE, false,
+				"Follow-up GETs at a time in the VIRTUAL mode");
+		define("nms.get.oid", Type.OID, SnmpNms.SYS_DESCR.toString(), false, "The OID asked after each trap");
+		define("nms.cache.ttl", Type.LONG, String.valueOf(ResponseCache.DEFAULT_TTL), 0, Long.MAX_VALUE, true,
+				"How long a GET response is cached in milliseconds, 0 for no cache");
+		define("nms.cache.maxEntries", Type.INT, String.valueOf(ResponseCache.DEFAULT_MAX_ENTRIES), 1,
+				Integer.MAX_VALUE, false, "Cached GET responses at most");
+		define("nms.dedup.window", Type.LONG, String.valueOf(TrapDeduplicator.DEFAULT_WINDOW), 0, Long.MAX_VALUE,
+				true, "Window for repeats of an alarm in milliseconds, 0 for none");
+		define("nms.dedup.maxKeys", Type.INT, String.valueOf(TrapDeduplicator.DEFAULT_MAX_KEYS), 1,
+				Integer.MAX_VALUE, false, "Open alarm windows at most");
+
+		define("nms.journal.dir", Type.STRING, ".", false, "Directory of the journals");
+		define("nms.journal.alarms.file", Type.STRING, "alarms.txt", false, "Journal of the traps");
+		define("nms.journal.queries.file", Type.STRING, "queries.txt", false, "Journal of the GET responses");
+		define("nms.journal.polls.file", Type.STRING, "polls.txt", false, "Journal of the polls");
+		define("nms.journal.capacity", Type.INT, "10000", 1, Integer.MAX_VALUE, false, "Queued journal records");
+		define("nms.journal.fsync", Type.CHOICE, FsyncPolicy.INTERVAL.name(), false, "When to fsync",
+				names(FsyncPolicy.values()));
+		define("nms.journal.fsyncEvery", Type.INT, "1000", 1, Integer.MAX_VALUE, false, "Records between fsyncs");
+		define("nms.journal.fsyncIntervalMillis", Type.LONG, "1000", 1, Long.MAX_VALUE, false,
+				"Milliseconds between fsyncs");
+		define("nms.journal.segmentBytes", Type.LONG, String.valueOf(64L * 1024 * 1024), 1, Long.MAX_VALUE, false,
+				"Size of a journal segment");
+		define("nms.journal.segmentMillis", Type.LONG, "0", 0, Long.MAX_VALUE, false,
+				"Age of a journal segment, 0 for no limit");
+		define("nms.store.dir", Type.STRING, "alarmstore", false, "Directory of the alarm store");
+		define("nms.store.segmentRecords", Type.INT, String.valueOf(1 << 20), 1, Integer.MAX_VALUE, false,
+				"Records in a segment of the alarm store");
+
+		define("nms.cluster.node", Type.STRING, "", false, "ID of this node in cluster mode, empty for no cluster");
+		define("nms.cluster.address", Type.ADDRESS, "127.0.0.1/1720", false, "Cluster address of this node");
+		define("nms.cluster.seeds", Type.ADDRESSES, "", false, "Cluster addresses of nodes to join through");
+		define("nms.cluster.heartbeatMillis", Type.LONG, String.valueOf(NmsCluster.DEFAULT_HEARTBEAT), 10,
+				Long.MAX_VALUE, false, "Heartbeat interval in milliseconds");
+		define("nms.cluster.failureMillis", Type.LONG, String.valueOf(NmsCluster.DEFAULT_FAILURE), 10,
+				Long.MAX_VALUE, false, "Silence after which a node is out of the ring, in milliseconds");
+		define("nms.cluster.virtualNodes", Type.INT, String.valueOf(NmsCluster.DEFAULT_VIRTUAL_NODES), 1, 10000,
+				false, "Points of each node on the hash ring");
+
+		define("nms.export.sink", Type.CHOICE, "none", false, "Where the traps are exported", "none", "tcp", "spool");
+		define("nms.export.address", Type.ADDRESS, "127.0.0.1/1750", false, "Export receiver of the tcp sink");
+		define("nms.export.dir", Type.STRING, "export", false, "Directory of the spool sink");
+		define("nms.export.timeout", Type.INT, String.valueOf(TcpExportSink.DEFAULT_TIMEOUT), 1, Integer.MAX_VALUE,
+				false, "Milliseconds to connect to and wait for the export receiver");
+		define("nms.export.batchRecords", Type.INT, String.valueOf(TrapExporter.DEFAULT_BATCH_RECORDS), 1,
+				Integer.MAX_VALUE, false, "Most traps in an export batch");
+		define("nms.export.batchMillis", Type.LONG, String.valueOf(TrapExporter.DEFAULT_BATCH_MILLIS), 1,
+				Long.MAX_VALUE, false, "Milliseconds a trap waits for its export batch to fill");
+		define("nms.export.compress", Type.BOOLEAN, "true", false, "Deflate the export batches");
+		define("nms.export.capacity", Type.INT, String.valueOf(TrapExporter.DEFAULT_CAPACITY), 1, Integer.MAX_VALUE,
+				false, "Traps queued for export");
+		define("nms.export.bufferDir", Type.STRING, "exportbuffer", false,
+				"Directory of the batches waiting for the sink");
+		define("nms.export.bufferBytes", Type.LONG, String.valueOf(TrapExporter.DEFAULT_BUFFER_BYTES), 0,
+				Long.MAX_VALUE, false, "Most bytes of batches waiting for the sink");
+		define("nms.export.retryMillis", Type.LONG, String.valueOf(TrapExporter.DEFAULT_RETRY), 1,
+				TrapExporter.MAX_RETRY, false, "First wait before a failed sink is tried again");
+
+		define("nms.poll.agents", Type.ADDRESSES, "", false, "Agents to poll");
+		define("nms.poll.interval", Type.LONG, String.valueOf(BulkPoller.DEFAULT_INTERVAL), 1, Long.MAX_VALUE,
+				false, "Poll interval in milliseconds");
+		define("nms.poll.tick", Type.LONG, String.valueOf(BulkPoller.DEFAULT_TICK), 1, Long.MAX_VALUE, false,
+				"Poll scheduling tick in milliseconds");
+		define("nms.poll.oids", Type.OIDS, ".1.3.6.1.2.1.1.3.0,.1.3.6.1.2.1.1.5.0", false, "Scalars to poll");
+		define("nms.poll.tables", Type.OIDS, "", false, "Tables to walk");
+		define("nms.poll.maxRepetitions", Type.INT, String.valueOf(BulkPoller.DEFAULT_MAX_REPETITIONS), 1, 10000,
+				false, "max-repetitions of a GETBULK");
+		define("nms.poll.maxVarbinds", Type.INT, String.valueOf(BulkPoller.DEFAULT_MAX_VARBINDS), 1, 10000, false,
+				"Varbinds in a poll request at most");
+	}
+
+	private static void define(String name, Type type, String defaultValue, boolean hot, String description,
+			String... choices) {
+		define(name, type, defaultValue, Long.MIN_VALUE, Long.MAX_VALUE, hot, description, choices);
+	}
+
+	private static void define(String name, Type type, String defaultValue, long min, long max, boolean hot,
+			String description, String... choices) {
+		if (type == Type.INT) {
+			min = Math.max(min, Integer.MIN_VALUE);
+			max = Math.min(max, Integer.MAX_VALUE);
+		}
+		SETTINGS.put(name, new Setting(name, type, defaultValue, min, max, choices, hot, description));
+	}
+
+	private static void defineStage(String stage, StageConfig defaults) {
+		String prefix = "nms." + stage + ".";
+		define(prefix + "workers", Type.INT, String.valueOf(defaults.getWorkers()), 1, 10000, false,
+				"Workers of the " + stage + " stage");
+		define(prefix + "capacity", Type.INT, String.valueOf(defaults.getCapacity()), 1, Integer.MAX_VALUE, false,
+				"Queue capacity of the " + stage + " stage");
+		define(prefix + "policy", Type.CHOICE, defaults.getPolicy().name(), false,
+				"Overflow policy of the " + stage + " stage", names(OverflowPolicy.values()));
+	}
+
+	private static String[] names(Enum<?>[] values) {
+		String[] names = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			names[i] = values[i].name();
+		}
+		return names;
+	}
+
+	private static String join(String[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(", ");
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private final Map<String, String> values;
+	private final File file;
+	private final Map<String, String> env;
+	private final Map<String, String> system;
+	private final Map<String, String> arguments;
+
+	private NmsConfig(File file, Map<String, String> env, Map<String, String> system, Map<String, String> arguments)
+			throws IOException {
+		this.file = file;
+		this.env = env;
+		this.system = system;
+		this.arguments = arguments;
+		Map<String, String> layered = new HashMap<String, String>();
+		if (file != null) {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			}
+			finally {
+				in.close();
+			}
+			for (String name : properties.stringPropertyNames()) {
+				layered.put(qualify(name), properties.getProperty(name));
+			}
+		}
+		for (Setting setting : SETTINGS.values()) {
+			String value = env.get(setting.getEnvName());
+			if (value != null) {
+				layered.put(setting.getName(), value);
+			}
+		}
+		layered.putAll(system);
+		layered.putAll(arguments);
+		List<String> errors = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : layered.entrySet()) {
+			Setting setting = SETTINGS.get(entry.getKey());
+			if (setting == null) {
+				errors.add(entry.getKey() + ": unknown setting");
+				continue;
+			}
+			String error = setting.check(entry.getValue());
+			if (error != null) {
+				errors.add(error);
+			}
+		}
+		if (!errors.isEmpty()) {
+			Collections.sort(errors);
+			StringBuilder message = new StringBuilder("Invalid configuration:");
+			for (String error : errors) {
+				message.append("\n  ").append(error);
+			}
+			throw new IllegalArgumentException(message.toString());
+		}
+		this.values = Collections.unmodifiableMap(layered);
+	}
+
+	/**
+	 * Reads the settings from the file, the environment, the system properties and
+	 * the command line arguments, and validates them.
+	 * @param args The arguments of main: --config=file, --headless or --key=value
+	 * @return The settings
+	 * @throws IllegalArgumentException listing every invalid setting or argument
+	 * @throws IOException if the file could not be read
+	 */
+	public static NmsConfig load(String[] args) throws IOException {
+		return load(args, System.getenv(), System.getProperties());
+	}
+
+	/**
+	 * Reads and validates the settings, see {@link #load(String[])}.
+	 * @param args The command line arguments
+	 * @param env The environment variables
+	 * @param properties The system properties, only the nms.* ones are used
+	 * @return The settings
+	 * @throws IOException if the file could not be read
+	 */
+	public static NmsConfig load(String[] args, Map<String, String> env, Properties properties) throws IOException {
+		Map<String, String> arguments = new HashMap<String, String>();
+		List<String> errors = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--headless")) {
+				arguments.put("nms.headless", "true");
+			}
+			else if (arg.equals("--config") && i + 1 < args.length) {
+				arguments.put("nms.config", args[++i]);
+			}
+			else if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+				int equals = arg.indexOf('=');
+				arguments.put(qualify(arg.substring(2, equals)), arg.substring(equals + 1));
+			}
+			else {
+				errors.add("unknown argument: " + arg);
+			}
+		}
+		if (!errors.isEmpty()) {
+			throw new IllegalArgumentException("Invalid configuration:\n  " + errors.get(0));
+		}
+		Map<String, String> system = new HashMap<String, String>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith("nms.")) {
+				system.put(name, properties.getProperty(name));
+			}
+		}
+		String fileName = arguments.get("nms.config");
+		if (fileName == null) {
+			fileName = system.get("nms.config");
+		}
+		if (fileName == null) {
+			fileName = env.get("NMS_CONFIG");
+		}
+		File file = fileName == null || fileName.length() == 0 ? null : new File(fileName);
+		return new NmsConfig(file, new HashMap<String, String>(env), system, arguments);
+	}
+
+	/**
+	 * Reads the file again, keeping the environment, system properties and arguments
+	 * given at startup.
+	 * @return The new settings
+	 * @throws IllegalArgumentException if the file now has invalid settings
+	 * @throws IOException if the file could not be read
+	 */
+	public NmsConfig reload() throws IOException {
+		return new NmsConfig(file, env, system, arguments);
+	}
+
+	private static String qualify(String name) {
+		String trimmed = name.trim();
+		return trimmed.startsWith("nms.") ? trimmed : "nms." + trimmed;
+	}
+
+	/**
+	 * Puts every given setting to the system properties.
+	 */
+	public void apply() {
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			System.setProperty(entry.getKey(), entry.getValue().trim());
+		}
+	}
+
+	/**
+	 * @param other Newer settings
+	 * @return The names of the settings whose value differs in the other
+	 */
+	public Set<String> changes(NmsConfig other) {
+		Set<String> changed = new TreeSet<String>();
+		for (String name : SETTINGS.keySet()) {
+			if (!get(name).equals(other.get(name))) {
+				changed.add(name);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param name Name of a setting
+	 * @return Its value, or its default if it was not given
+	 */
+	public String get(String name) {
+		Setting setting = SETTINGS.get(name);
+		if (setting == null) {
+			throw new IllegalArgumentException("Unknown setting: " + name);
+		}
+		String value = values.get(name);
+		return value == null ? setting.getDefaultValue() : value.trim();
+	}
+
+	public int getInt(String name) {
+		return Integer.parseInt(get(name));
+	}
+
+	public long getLong(String name) {
+		return Long.parseLong(get(name));
+	}
+
+	public boolean getBoolean(String name) {
+		return Boolean.parseBoolean(get(name));
+	}
+
+	/**
+	 * @return The file of the settings, or null if there is none
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param name Name of a setting
+	 * @return The setting, or null if there is no such setting
+	 */
+	public static Setting getSetting(String name) {
+		return SETTINGS.get(name);
+	}
+
+	/**
+	 * @return Every setting, in the order they are documented
+	 */
+	public static Collection<Setting> getSettings() {
+		return Collections.unmodifiableCollection(SETTINGS.values());
+	}
+}
@@ -0,0 +1,55 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands the events of the NMS to every registered {@link NmsListener}.
+ * Listeners can be added and removed at any time from any thread.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class NmsEventBus {
+
+	private static final Logger logger = Logger.getLogger(NmsEventBus.class);
+
+	private final CopyOnWriteArrayList<NmsListener> listeners = new CopyOnWriteArrayList<NmsListener>();
+
+	public void addListener(NmsListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(NmsListener listener) {
+		listeners.remove(listener);
+	}
+
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Calls every listener with the event. A listener throwing an exception does
+	 * not keep the event from the others.
+	 * @param event A {@link TrapEvent} or a {@link GetResponseEvent}
+	 */
+	public void publish(Object event) {
+		for (NmsListener listener : listeners) {
+			try {
+				if (event instanceof TrapEvent) {
+					listener.trapReceived((TrapEvent) event);
+				}
+				else if (event instanceof GetResponseEvent) {
+					listener.getResponseReceived((GetResponseEvent) event);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown event " + event);
+				}
+			}
+			catch (RuntimeException e) {
+				logger.error("Listener " + listener + " failed: " + e.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.itu.snmp.nms;
+
+/**
+ * Receives the events of the NMS. The GUI is one listener, others can write
+ * the events somewhere, count them or forward them.
+ *
+ * When the trap pipeline is running the listeners are called from the worker of
+ * its notify stage, one event at a time. A listener should return quickly, a
+ * slow one holds up the events of every other listener.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public interface NmsListener {
+
+	/**
+	 * Called when a trap has been received and decoded.
+	 * @param trap The trap
+	 */
+	void trapReceived(TrapEvent trap);
+
+	/**
+	 * Called when an agent has responded to a GET.
+	 * @param response The response
+	 */
+	void getResponseReceived(GetResponseEvent response);
+}
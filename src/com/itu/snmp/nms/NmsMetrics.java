@@ -0,0 +1,333 @@
+package com.itu.snmp.nms;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The counters, gauges and latency histograms of the NMS.
+ *
+ * Metrics are identified by a name with optional labels in the Prometheus style,
+ * i.e. get_latency{agent="127.0.0.1/1610"}. The same metrics can be read as text,
+ * see {@link #toText()} and {@link MetricsServer}, or through JMX, where every counter
+ * and gauge is an attribute and every histogram is a set of attributes ending with
+ * .count, .mean, .p50, .p90, .p99, .p999 and .max, all in microseconds.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class NmsMetrics implements DynamicMBean {
+
+	private static final Logger logger = Logger.getLogger(NmsMetrics.class);
+
+	/** How many agents get their own histograms, the rest share the label agent="other". */
+	public static final int MAX_AGENTS = 1000;
+
+	private static final String PREFIX = "nms_";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] QUANTILE_SUFFIXES = { ".p50", ".p90", ".p99", ".p999" };
+
+	/**
+	 * A value read when the metrics are read, like a queue size.
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+	private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+	private final Map<String, Boolean> agents = new ConcurrentSkipListMap<String, Boolean>();
+	private ObjectName objectName;
+
+	/**
+	 * Returns a counter, creating it on first use.
+	 * @param name Name of the counter
+	 * @return The counter
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			synchronized (counters) {
+				counter = counters.get(name);
+				if (counter == null) {
+					counter = new AtomicLong();
+					counters.put(name, counter);
+				}
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns a histogram, creating it on first use.
+	 * @param name Name of the histogram
+	 * @return The histogram
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			synchronized (histograms) {
+				histogram = histograms.get(name);
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					histograms.put(name, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the histogram of one agent, creating it on first use.
+	 * @param name Name of the histogram without labels, i.e. get_latency
+	 * @param agent The agent, its address or ID
+	 * @return The histogram
+	 */
+	public LatencyHistogram agentHistogram(String name, String agent) {
+		return histogram(name + "{agent=\"" + agentLabel(agent) + "\"}");
+	}
+
+	/**
+	 * Returns the counter of one agent, creating it on first use.
+	 * @param name Name of the counter without labels, i.e. get_timeouts
+	 * @param agent The agent, its address or ID
+	 * @return The counter
+	 */
+	public AtomicLong agentCounter(String name, String agent) {
+		return counter(name + "{agent=\"" + agentLabel(agent) + "\"}");
+	}
+
+	/**
+	 * Adds a histogram owned by someone else, i.e. a {@link Journal}.
+	 * @param name Name of the histogram
+	 * @param histogram The histogram
+	 */
+	public void register(String name, LatencyHistogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	/**
+	 * Adds a gauge.
+	 * @param name Name of the gauge
+	 * @param gauge Gives the value when the metrics are read
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	private String agentLabel(String agent) {
+		if (agents.containsKey(agent)) {
+			return agent;
+		}
+		synchronized (agents) {
+			if (agents.size() >= MAX_AGENTS && !agents.containsKey(agent)) {
+				return "other";
+			}
+			agents.put(agent, Boolean.TRUE);
+		}
+		return agent;
+	}
+
+	/**
+	 * @param name Name of a counter or a gauge
+	 * @return Its current value, or -1 if there is no such metric
+	 */
+	public long getValue(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter != null) {
+			return counter.get();
+		}
+		Gauge gauge = gauges.get(name);
+		if (gauge != null) {
+			return gauge.value();
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name Name of a histogram
+	 * @return The histogram or null if there is no such histogram
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format. Histograms are written
+	 * as summaries in seconds, with the quantiles 0.5, 0.9, 0.99 and 0.999.
+	 * @return The metrics, one per line
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder(4096);
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			text.append(PREFIX).append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			text.append(PREFIX).append(gauge.getKey()).append(' ').append(readGauge(gauge.getValue())).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			String name = entry.getKey();
+			int brace = name.indexOf('{');
+			String base = PREFIX + (brace < 0 ? name : name.substring(0, brace)) + "_seconds";
+			String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+			LatencyHistogram histogram = entry.getValue();
+			for (double quantile : QUANTILES) {
+				text.append(base).append('{');
+				if (labels.length() > 0) {
+					text.append(labels).append(',');
+				}
+				text.append("quantile=\"").append(quantile).append("\"} ");
+				text.append(seconds(histogram.getPercentileMicros(quantile))).append('\n');
+			}
+			String suffix = labels.length() == 0 ? " " : "{" + labels + "} ";
+			text.append(base).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+			text.append(base).append("_sum").append(suffix)
+					.append(seconds(histogram.getMeanMicros() * histogram.getCount())).append('\n');
+			text.append(base).append("_max").append(suffix).append(seconds(histogram.getMaxMicros())).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static String seconds(double micros) {
+		return Double.toString(micros / 1000000d);
+	}
+
+	private static long readGauge(Gauge gauge) {
+		try {
+			return gauge.value();
+		}
+		catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Registers the metrics to the platform MBean server.
+	 * @param name Tells these metrics apart from those of other servers in the same JVM
+	 */
+	public synchronized void registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("com.itu.snmp.nms:type=NmsMetrics,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		}
+		catch (JMException e) {
+			logger.warn("Not able to register metrics to JMX: " + e.toString());
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (JMException e) {
+			logger.warn("Not able to unregister metrics from JMX: " + e.toString());
+		}
+		objectName = null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		AtomicLong counter = counters.get(attribute);
+		if (counter != null) {
+			return Long.valueOf(counter.get());
+		}
+		Gauge gauge = gauges.get(attribute);
+		if (gauge != null) {
+			return Long.valueOf(readGauge(gauge));
+		}
+		int dot = attribute.lastIndexOf('.');
+		LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+		if (histogram != null) {
+			String suffix = attribute.substring(dot);
+			if (suffix.equals(".count")) {
+				return Long.valueOf(histogram.getCount());
+			}
+			if (suffix.equals(".mean")) {
+				return Long.valueOf(Math.round(histogram.getMeanMicros()));
+			}
+			if (suffix.equals(".max")) {
+				return Long.valueOf(histogram.getMaxMicros());
+			}
+			for (int i = 0; i < QUANTILES.length; i++) {
+				if (suffix.equals(QUANTILE_SUFFIXES[i])) {
+					return Long.valueOf(histogram.getPercentileMicros(QUANTILES[i]));
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			}
+			catch (AttributeNotFoundException e) {
+				// left out, as the DynamicMBean contract says
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : counters.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+		}
+		for (String name : gauges.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+		}
+		for (String name : histograms.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name + ".count", "long", "Recorded latencies", true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + ".mean", "long", "Mean latency in microseconds", true, false, false));
+			for (String suffix : QUANTILE_SUFFIXES) {
+				attributes.add(new MBeanAttributeInfo(name + suffix, "long", "Latency percentile in microseconds", true, false, false));
+			}
+			attributes.add(new MBeanAttributeInfo(name + ".max", "long", "Maximum latency in microseconds", true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Counters, gauges and latency histograms of the NMS",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
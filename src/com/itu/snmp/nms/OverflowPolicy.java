@@ -0,0 +1,22 @@
+package com.itu.snmp.nms;
+
+/**
+ * What a pipeline stage does with a new item when its queue is full.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public enum OverflowPolicy {
+
+	/** The producer waits until there is room. This is the backpressure policy. */
+	BLOCK,
+
+	/** The new item is thrown away. */
+	DROP_NEWEST,
+
+	/** The oldest queued item is thrown away to make room for the new one. */
+	DROP_OLDEST,
+
+	/** The producer thread handles the item itself. */
+	CALLER_RUNS
+}
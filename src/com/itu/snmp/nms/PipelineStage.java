@@ -0,0 +1,190 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One stage of the trap pipeline: a bounded queue and its own pool of worker
+ * threads. When the queue is full the stage's {@link OverflowPolicy} decides
+ * whether the producer waits, an item is dropped or the producer does the work.
+ *
+ * @author Petri Tilli
+ *
+ * @param <T> type of the items handled by the stage
+ */
+public class PipelineStage<T> {
+
+	private static final Logger logger = Logger.getLogger(PipelineStage.class);
+	private static final long POLL_MILLIS = 100;
+
+	private final String name;
+	private final StageConfig config;
+	private final StageHandler<T> handler;
+	private final BlockingQueue<T> queue;
+	private final Thread[] workers;
+	private volatile boolean running;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor, the workers are not started before {@link #start()}.
+	 * @param name Name of the stage, used for the worker thread names
+	 * @param config Worker count, capacity and overflow policy
+	 * @param handler The work done for each item
+	 */
+	public PipelineStage(String name, StageConfig config, StageHandler<T> handler) {
+		this.name = name;
+		this.config = config;
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<T>(config.getCapacity());
+		this.workers = new Thread[config.getWorkers()];
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, name + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		logger.info("Stage " + name + " started: " + config);
+	}
+
+	/**
+	 * Puts an item to the stage queue, applying the overflow policy if the queue is full.
+	 * @param item The item to queue
+	 * @return true if the item was queued or handled, false if it was dropped
+	 */
+	public boolean offer(T item) {
+		if (queue.offer(item)) {
+			accepted.incrementAndGet();
+			return true;
+		}
+		switch (config.getPolicy()) {
+		case BLOCK:
+			try {
+				queue.put(item);
+				accepted.incrementAndGet();
+				return true;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+		case DROP_OLDEST:
+			while (!queue.offer(item)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			accepted.incrementAndGet();
+			return true;
+		case CALLER_RUNS:
+			accepted.incrementAndGet();
+			process(item);
+			return true;
+		default:
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the workers after they have handled what is already in the queue.
+	 * @param timeoutMillis How long to wait for the workers to finish
+	 */
+	public void shutdown(long timeoutMillis) {
+		synchronized (this) {
+			running = false;
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Thread worker : workers) {
+			if (worker == null) {
+				continue;
+			}
+			try {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (worker.isAlive()) {
+				worker.interrupt();
+			}
+		}
+		logger.info("Stage " + name + " stopped, " + queue.size() + " items left in queue.");
+	}
+
+	private void work() {
+		while (running || !queue.isEmpty()) {
+			T item;
+			try {
+				item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			if (item != null) {
+				process(item);
+			}
+		}
+	}
+
+	private void process(T item) {
+		try {
+			handler.handle(item);
+			processed.incrementAndGet();
+		}
+		catch (Exception e) {
+			failed.incrementAndGet();
+			logger.error("Stage " + name + " failed: " + e.toString());
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public StageConfig getConfig() {
+		return config;
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,17 @@
+package com.itu.snmp.nms;
+
+/**
+ * Receives the results of the {@link BulkPoller}. Called from a listen thread of
+ * the session, so it should return quickly.
+ *
+ * @author Petri Tilli
+ *
+ */
+public interface PollListener {
+
+	/**
+	 * Called when a poll of an agent has finished, also when it failed.
+	 * @param result The collected values
+	 */
+	void pollCompleted(PollResult result);
+}
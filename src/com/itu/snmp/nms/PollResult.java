@@ -0,0 +1,70 @@
+package com.itu.snmp.nms;
+
+import java.util.List;
+
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * The values collected from one agent in one round of polling.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class PollResult {
+
+	private final long timestamp;
+	private final String agentAddress;
+	private final List<VariableBinding> bindings;
+	private final long durationMicros;
+	private final boolean complete;
+
+	/**
+	 * Constructor
+	 * @param timestamp When the poll was started, milliseconds since 1970
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param bindings The values, scalars first and then the tables column by column
+	 * @param durationMicros How long the poll took
+	 * @param complete false if some request timed out or failed, the bindings then
+	 * have only what was collected before that
+	 */
+	public PollResult(long timestamp, String agentAddress, List<VariableBinding> bindings,
+			long durationMicros, boolean complete) {
+		this.timestamp = timestamp;
+		this.agentAddress = agentAddress;
+		this.bindings = bindings;
+		this.durationMicros = durationMicros;
+		this.complete = complete;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return When the poll was started, dd.MM.yyyy HH:mm:ss.SSS
+	 */
+	public String getDate() {
+		return TimestampFormat.format(timestamp);
+	}
+
+	public String getAgentAddress() {
+		return agentAddress;
+	}
+
+	public List<VariableBinding> getBindings() {
+		return bindings;
+	}
+
+	public long getDurationMicros() {
+		return durationMicros;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return getDate() + " " + agentAddress + " " + bindings.size() + " values" + (complete ? "" : " (incomplete)");
+	}
+}
@@ -0,0 +1,93 @@
+package com.itu.snmp.nms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.snmp4j.smi.OctetString;
+
+/**
+ * A trap still in its BER encoding, with the position of each alarm field found by
+ * {@link LazyTrapDecoder}. The fields are byte slices of the message; nothing else
+ * of the trap is decoded.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class RawTrap {
+
+	/** Field numbers, the last number of the field's OID under {@link SnmpNms#TRAP_OID}. */
+	public static final int ALARM_CODE = 1;
+	public static final int AGENT_ID = 2;
+	public static final int ALARM_TEXT = 3;
+	public static final int AGENT_ADDRESS = 4;
+	static final int FIELDS = 4;
+
+	private final byte[] message;
+	// offset and length of each field, offset -1 if the trap does not have it
+	private final int[] slices;
+
+	RawTrap(byte[] message, int[] slices) {
+		this.message = message;
+		this.slices = slices;
+	}
+
+	/**
+	 * @return The whole BER encoded message, the slices point into it
+	 */
+	public byte[] getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param field One of ALARM_CODE, AGENT_ID, ALARM_TEXT, AGENT_ADDRESS
+	 * @return Offset of the field's value in the message
+	 */
+	public int getOffset(int field) {
+		return slices[(field - 1) * 2];
+	}
+
+	/**
+	 * @param field One of ALARM_CODE, AGENT_ID, ALARM_TEXT, AGENT_ADDRESS
+	 * @return Length of the field's value in bytes
+	 */
+	public int getLength(int field) {
+		return slices[(field - 1) * 2 + 1];
+	}
+
+	/**
+	 * @param field One of ALARM_CODE, AGENT_ID, ALARM_TEXT, AGENT_ADDRESS
+	 * @param value Bytes to compare to
+	 * @return true if the field has exactly these bytes
+	 */
+	public boolean fieldEquals(int field, byte[] value) {
+		int offset = getOffset(field);
+		int length = getLength(field);
+		if (length != value.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (message[offset + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gives the field as text, the same as OctetString.toString would: printable ASCII
+	 * as such and anything else as hex.
+	 * @param field One of ALARM_CODE, AGENT_ID, ALARM_TEXT, AGENT_ADDRESS
+	 * @return The field's value
+	 */
+	public String getString(int field) {
+		int offset = getOffset(field);
+		int length = getLength(field);
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int b = message[i];
+			if ((b < 0x20 || b > 0x7e) && b != '\t' && b != '\n' && b != '\r') {
+				return new OctetString(Arrays.copyOfRange(message, offset, offset + length)).toString();
+			}
+		}
+		return new String(message, offset, length, StandardCharsets.ISO_8859_1);
+	}
+}
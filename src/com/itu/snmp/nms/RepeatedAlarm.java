@@ -0,0 +1,61 @@
+package com.itu.snmp.nms;
+
+/**
+ * The summary of an alarm an agent repeated within one deduplication window.
+ * The first trap of the window went through as usual, the repeats only add to
+ * this count.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public final class RepeatedAlarm {
+
+	private final TrapEvent first;
+	private final int repeats;
+	private final long lastTimestamp;
+
+	/**
+	 * Constructor
+	 * @param first The trap that opened the window
+	 * @param repeats How many times the same alarm came after it in the window
+	 * @param lastTimestamp When the last repeat came, milliseconds since 1970
+	 */
+	public RepeatedAlarm(TrapEvent first, int repeats, long lastTimestamp) {
+		this.first = first;
+		this.repeats = repeats;
+		this.lastTimestamp = lastTimestamp;
+	}
+
+	public TrapEvent getFirst() {
+		return first;
+	}
+
+	public int getRepeats() {
+		return repeats;
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * @return When the last repeat came, dd.MM.yyyy HH:mm:ss.SSS
+	 */
+	public String getLastDate() {
+		return TimestampFormat.format(lastTimestamp);
+	}
+
+	/**
+	 * @return The summary as a trap of the alarm at the time of the last repeat, to be
+	 * persisted, exported and shown as the traps are
+	 */
+	public TrapEvent toTrapEvent() {
+		return new TrapEvent(lastTimestamp, first.getAgentId(), first.getAgentAddress(), first.getAlarmCode(),
+				first.getAlarmText(), repeats);
+	}
+
+	@Override
+	public String toString() {
+		return first + " repeated " + repeats + " times until " + getLastDate();
+	}
+}
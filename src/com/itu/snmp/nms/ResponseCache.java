@@ -0,0 +1,329 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snmp4j.PDU;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Caches the responses to GETs of one OID from one agent, in front of a {@link SnmpSession}.
+ *
+ * A response is kept for a fixed time to live, and at most maxEntries responses are
+ * kept, the least recently used going first. While a GET is on its way, further GETs
+ * of the same OID from the same agent do not send anything, they wait for the same
+ * response (single flight). Timeouts and error responses are not cached. With a time
+ * to live of 0 the cache is off and every GET goes to the session.
+ *
+ * Every caller gets its own copy of the response PDU, with its own handle in the event.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class ResponseCache {
+
+	public static final long DEFAULT_TTL = 300000;
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final SnmpSession session;
+	private volatile long ttlMillis;
+	private final int maxEntries;
+	private final Map<Key, Cached> entries;
+	private final Map<Key, List<Waiter>> flights = new HashMap<Key, List<Waiter>>();
+	private final ResponseListener flightListener = new ResponseListener() {
+		public void onResponse(ResponseEvent event) {
+			complete((Key) event.getUserObject(), event);
+		}
+	};
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong coalesced;
+	private final AtomicLong evictions;
+
+	private static final class Key {
+		final String agentAddress;
+		final OID oid;
+		final int hash;
+
+		Key(String agentAddress, OID oid) {
+			this.agentAddress = agentAddress;
+			this.oid = oid;
+			this.hash = agentAddress.hashCode() * 31 + oid.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && agentAddress.equals(other.agentAddress) && oid.equals(other.oid);
+		}
+	}
+
+	private static final class Cached {
+		final PDU response;
+		final long expires;
+
+		Cached(PDU response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+
+	private static final class Waiter {
+		final Object handle;
+		final ResponseListener listener;
+
+		Waiter(Object handle, ResponseListener listener) {
+			this.handle = handle;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param session The session the GETs are sent on
+	 * @param ttlMillis How long a response is used, 0 or less to turn the cache off
+	 * @param maxEntries How many responses are kept
+	 * @param metrics Where the hits, misses and evictions are counted
+	 */
+	public ResponseCache(SnmpSession session, long ttlMillis, final int maxEntries, NmsMetrics metrics) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries);
+		}
+		this.session = session;
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+		this.hits = metrics.counter("cache_hits");
+		this.misses = metrics.counter("cache_misses");
+		this.coalesced = metrics.counter("cache_coalesced");
+		this.evictions = metrics.counter("cache_evictions");
+		this.entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		metrics.gauge("cache_entries", new NmsMetrics.Gauge() {
+			public long value() {
+				return size();
+			}
+		});
+	}
+
+	/**
+	 * Creates a cache configured with the system properties nms.cache.ttl (milliseconds,
+	 * 300000 by default) and nms.cache.maxEntries (100000 by default).
+	 * @param session The session the GETs are sent on
+	 * @param metrics Where the hits, misses and evictions are counted
+	 * @return The cache
+	 */
+	public static ResponseCache fromSystemProperties(SnmpSession session, NmsMetrics metrics) {
+		return new ResponseCache(session, Long.getLong("nms.cache.ttl", DEFAULT_TTL),
+				Integer.getInteger("nms.cache.maxEntries", DEFAULT_MAX_ENTRIES), metrics);
+	}
+
+	/**
+	 * Gets an OID from an agent, from the cache if it has a fresh response. The listener
+	 * is called once: right away on a hit, otherwise from a listen thread of the session,
+	 * with a null response on timeout.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param oid The OID to get
+	 * @param handle Anything the caller wants back in the response event
+	 * @param listener Receives the response
+	 * @throws IOException if the request could not be sent
+	 */
+	public void get(String agentAddress, OID oid, Object handle, ResponseListener listener) throws IOException {
+		if (ttlMillis <= 0) {
+			session.get(agentAddress, new OID[] { oid }, handle, listener);
+			return;
+		}
+		Key key = new Key(agentAddress, oid);
+		PDU cached = null;
+		boolean send = false;
+		synchronized (this) {
+			Cached entry = entries.get(key);
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				cached = entry.response;
+			}
+			else {
+				if (entry != null) {
+					entries.remove(key);
+				}
+				List<Waiter> waiters = flights.get(key);
+				if (waiters == null) {
+					waiters = new ArrayList<Waiter>(2);
+					flights.put(key, waiters);
+					send = true;
+				}
+				waiters.add(new Waiter(handle, listener));
+			}
+		}
+		if (cached != null) {
+			hits.incrementAndGet();
+			listener.onResponse(new ResponseEvent(this, null, null, (PDU) cached.clone(), handle));
+			return;
+		}
+		if (!send) {
+			coalesced.incrementAndGet();
+			return;
+		}
+		misses.incrementAndGet();
+		try {
+			session.get(agentAddress, new OID[] { oid }, key, flightListener);
+		}
+		catch (IOException e) {
+			List<Waiter> waiters;
+			synchronized (this) {
+				waiters = flights.remove(key);
+			}
+			// the others that joined this flight get a timeout, this caller the exception
+			for (int i = 1; i < waiters.size(); i++) {
+				Waiter waiter = waiters.get(i);
+				waiter.listener.onResponse(new ResponseEvent(this, null, null, null, waiter.handle));
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets an OID from an agent and waits for the response, see {@link #get}.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param oid The OID to get
+	 * @param handle Anything the caller wants back in the response event
+	 * @return The response event, with a null response on timeout
+	 * @throws IOException if the request could not be sent, or the session was closed
+	 * or the wait interrupted before the response
+	 */
+	public ResponseEvent getBlocking(String agentAddress, OID oid, Object handle) throws IOException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final ResponseEvent[] result = new ResponseEvent[1];
+		get(agentAddress, oid, handle, new ResponseListener() {
+			public void onResponse(ResponseEvent event) {
+				result[0] = event;
+				done.countDown();
+			}
+		});
+		try {
+			if (!done.await(session.getMaxWaitMillis(), TimeUnit.MILLISECONDS)) {
+				throw new IOException("No response or timeout from " + agentAddress);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + agentAddress);
+		}
+		return result[0];
+	}
+
+	private void complete(Key key, ResponseEvent event) {
+		PDU response = event.getResponse();
+		List<Waiter> waiters;
+		synchronized (this) {
+			waiters = flights.remove(key);
+			if (isCacheable(response)) {
+				entries.put(key, new Cached(response, System.currentTimeMillis() + ttlMillis));
+			}
+		}
+		if (waiters == null) {
+			return;
+		}
+		for (int i = 0, n = waiters.size(); i < n; i++) {
+			Waiter waiter = waiters.get(i);
+			waiter.listener.onResponse(new ResponseEvent(event.getSource(), event.getPeerAddress(), event.getRequest(),
+					response == null ? null : (PDU) response.clone(), waiter.handle));
+		}
+	}
+
+	private static boolean isCacheable(PDU response) {
+		if (response == null || response.getErrorStatus() != PDU.noError) {
+			return false;
+		}
+		List<? extends VariableBinding> bindings = response.getVariableBindings();
+		for (int i = 0, n = bindings.size(); i < n; i++) {
+			if (bindings.get(i).isException()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets every cached response of an agent, i.e. when it has restarted.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 */
+	public synchronized void invalidate(String agentAddress) {
+		Iterator<Key> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().agentAddress.equals(agentAddress)) {
+				keys.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * Changes the time to live of the responses cached from now on; 0 or less turns the
+	 * cache off and forgets every response.
+	 * @param ttlMillis How long a response is used
+	 */
+	public void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		if (ttlMillis <= 0) {
+			synchronized (this) {
+				entries.clear();
+			}
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
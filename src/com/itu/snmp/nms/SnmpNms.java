@@ -1,29 +1,36 @@
 package com.itu.snmp.nms;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.snmp4j.CommandResponder;
 import org.snmp4j.CommandResponderEvent;
-import org.snmp4j.CommunityTarget;
+import org.snmp4j.MessageDispatcher;
 import org.snmp4j.PDU;
 import org.snmp4j.Snmp;
 import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
 import org.snmp4j.event.ResponseEvent;
-import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.Address;
 import org.snmp4j.smi.OID;
-import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.transport.TransportListener;
+import org.snmp4j.transport.UdpTransportMapping;
 
 /**
  * The main class of the Network Management Server. This server will listen to
@@ -37,11 +44,47 @@ import org.snmp4j.transport.DefaultUdpTransportMapping;
 public class SnmpNms {
 
 	private static final Logger logger = Logger.getLogger(SnmpNms.class);
+
+	/** The trap OID, the alarm fields are the varbinds directly under it. */
+	public static final OID TRAP_OID = new OID("1.2.3.4.5");
+	public static final OID ALARM_CODE = new OID("1.2.3.4.5.1");
+	public static final OID AGENT_ID = new OID("1.2.3.4.5.2");
+	public static final OID ALARM_TEXT = new OID("1.2.3.4.5.3");
+	public static final OID AGENT_ADDRESS = new OID("1.2.3.4.5.4");
+	/** System description, the OID asked from the agent after each trap. */
+	public static final OID SYS_DESCR = new OID(".1.3.6.1.2.1.1.1.0");
+
+	/** SO_RCVBUF of each trap socket, the kernel may cap it, i.e. to net.core.rmem_max. */
+	public static final int DEFAULT_RECEIVE_BUFFER = 4 * 1024 * 1024;
+
 	private String trapAddress = "127.0.0.1/1620";
-	private NMSWindow gui;
-	
-	private String receivedAgentAddress;
-	private String receivedAgentId;
+	private final NmsEventBus events = new NmsEventBus();
+	private final NmsMetrics metrics = new NmsMetrics();
+	private final AtomicLong trapsReceived = metrics.counter("traps_received");
+	private final AtomicLong trapsDropped = metrics.counter("traps_dropped");
+	private final AtomicLong trapsDecoded = metrics.counter("traps_decoded");
+	private final AtomicLong trapsPersisted = metrics.counter("traps_persisted");
+	private final LatencyHistogram persistLatency = metrics.histogram("trap_persist_latency");
+	private final AgentRegistry agents = new AgentRegistry();
+	private MetricsServer metricsServer;
+	private BulkPoller poller;
+	private TrapDeduplicator deduplicator;
+	private volatile ExecutionMode executionMode = ExecutionMode.fromSystemProperties();
+	private final int maxGetsInFlight = Integer.getInteger("nms.get.maxInFlight", 10000);
+	private final Semaphore getsInFlight = new Semaphore(maxGetsInFlight);
+	private ExecutorService getExecutor;
+	private final OID getOid = new OID(System.getProperty("nms.get.oid", SYS_DESCR.toString()));
+	private ScheduledExecutorService configWatcher;
+	private TrapPipeline pipeline;
+	private NmsCluster cluster;
+	private TrapExporter exporter;
+	private volatile SnmpSession session;
+	private volatile ResponseCache cache;
+	private Snmp trapSnmp;
+	private volatile Journal alarms;
+	private volatile Journal queries;
+	private volatile Journal polls;
+	private volatile AlarmStore store;
 	
 	/**
 	 * Default constructor
@@ -51,99 +94,622 @@ public class SnmpNms {
 	}
 	
 	/**
-	 * The constructor which starts the listening of traps and also starts the GUI.
+	 * The constructor which starts the listening of traps and also starts the GUI,
+	 * unless there is no display or the system property nms.headless is true.
 	 * @param address The address in which this server is listening for traps.
 	 * @throws IOException
 	 */
 	public SnmpNms(String address) throws IOException {
+		this(address, isHeadless());
+	}
+
+	/**
+	 * The constructor which starts the listening of traps.
+	 * @param address The address in which this server is listening for traps.
+	 * @param headless If true, the events are written to the log instead of a GUI and
+	 * no AWT or Swing classes are loaded
+	 * @throws IOException
+	 */
+	public SnmpNms(String address, boolean headless) throws IOException {
 		
 		setTrapAddress(address);		
 
-    	BasicConfigurator.configure();
+		boolean started = false;
+		try {
+			start(headless);
+			started = true;
+		}
+		finally {
+			if (!started) {
+				// i.e. the trap port is taken: stop what was started before it
+				close();
+			}
+		}
+	}
 
+	/**
+	 * Starts the session, the pipeline, the exporter, the cluster and the metrics, and
+	 * then listens to the traps.
+	 */
+	private void start(boolean headless) throws IOException {
+		long start = System.nanoTime();
 		logger.info("Starting...");
 		
-		// configure Snmp object
+		session = SnmpSession.fromSystemProperties(metrics, agents);
+		metrics.gauge("agents", new NmsMetrics.Gauge() {
+			public long value() {
+				return agents.size();
+			}
+		});
+		deduplicator = TrapDeduplicator.fromSystemProperties(metrics, new StageHandler<RepeatedAlarm>() {
+			public void handle(RepeatedAlarm alarm) {
+				saveRepeatedAlarm(alarm);
+			}
+		});
+		if (deduplicator != null) {
+			deduplicator.start();
+		}
+		exporter = TrapExporter.fromSystemProperties(metrics);
+		if (exporter != null) {
+			exporter.start();
+		}
+		pipeline = TrapPipeline.fromSystemProperties(this);
+		pipeline.registerMetrics(metrics);
+		pipeline.start();
+		metrics.registerMBean(trapAddress);
+		metricsServer = MetricsServer.fromSystemProperties(metrics);
+		cluster = NmsCluster.fromSystemProperties(metrics, new StageHandler<ByteBuffer>() {
+			public void handle(ByteBuffer message) {
+				receiveForwardedTrap(message);
+			}
+		});
+		if (cluster != null) {
+			cluster.setRebalanceHandler(new StageHandler<HashRing>() {
+				public void handle(HashRing ring) {
+					sharePolling();
+				}
+			});
+			cluster.start();
+		}
+
+		// configure Snmp object, with several sockets each one decodes on its own thread
 		UdpAddress listenAddress = new UdpAddress(trapAddress);
-		DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(listenAddress);
-		Snmp snmp = new Snmp(transport);
+		int bufferBytes = Integer.getInteger("nms.receive.bufferBytes", DEFAULT_RECEIVE_BUFFER);
+		UdpTransportMapping transport;
+		boolean onTransportThreads;
+		if ("nio".equals(System.getProperty("nms.receive.transport"))) {
+			// the pooled buffers are reused once the dispatcher returns, so it decodes inline
+			transport = new NioUdpTransportMapping(listenAddress,
+					Integer.getInteger("nms.receive.batch", NioUdpTransportMapping.DEFAULT_BATCH_SIZE), bufferBytes);
+			onTransportThreads = true;
+		}
+		else {
+			int sockets = Integer.getInteger("nms.receive.sockets", Runtime.getRuntime().availableProcessors());
+			transport = new MultiSocketUdpTransportMapping(listenAddress, sockets, bufferBytes);
+			onTransportThreads = sockets > 1;
+		}
+		Snmp snmp = new Snmp(pipeline.createMessageDispatcher(onTransportThreads), transport);
+		// closed by close() also if the listen fails
+		trapSnmp = snmp;
 
 		logger.info("Listening to traps in " + trapAddress);
 
 		CommandResponder trapListener = new CommandResponder() {
-		  public synchronized void processPdu(CommandResponderEvent e) {
+		  public void processPdu(CommandResponderEvent e) {
 		    PDU trap = e.getPDU();
 		    if (trap != null) {
-		    	readAndSaveTrap(trap);
-				makeGetToAgent(receivedAgentAddress, receivedAgentId);
+		    	trapsReceived.incrementAndGet();
+		    	if (!pipeline.submit(trap)) {
+		    		trapsDropped.incrementAndGet();
+		    		logger.warn("Trap from " + e.getPeerAddress() + " dropped.");
+		    	}
 		    }
 		  }
 		};
 		snmp.addCommandResponder(trapListener);
+		boolean lazy = !"false".equals(System.getProperty("nms.decode.lazy"));
+		if (lazy || cluster != null) {
+			installLazyDecoding(transport, snmp.getMessageDispatcher(), lazy);
+		}
 
 		transport.listen();		
+		registerReceiveMetrics(transport);
+
+		if (System.getProperty("nms.poll.agents") != null) {
+			startPolling();
+		}
 		
-		//start the UI:
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-            	showGUI();
-            }
-        });
+		if (headless) {
+			addListener(new LogListener());
+		}
+		else {
+			//start the UI:
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+	            public void run() {
+	            	showGUI();
+	            }
+	        });
+		}
 
-		logger.info("Started.");
+		logger.info("Started" + (headless ? " headless" : "") + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
 	}
 	
+	/**
+	 * Puts the {@link LazyTrapDecoder} between the transport and the message dispatcher.
+	 * The SNMPv2c traps with the alarm fields go straight to the decode stage, every
+	 * other message to the dispatcher as before. In cluster mode such a trap of an agent
+	 * owned by another node is forwarded to it; the other traps, i.e. SNMPv1, are
+	 * handled by the node receiving them.
+	 * @param transport The trap transport
+	 * @param dispatcher The dispatcher listening to it
+	 * @param lazy If false, the traps kept by this node are decoded by the dispatcher too
+	 */
+	private void installLazyDecoding(UdpTransportMapping transport, final MessageDispatcher dispatcher,
+			final boolean lazy) {
+		transport.removeTransportListener(dispatcher);
+		transport.addTransportListener(new TransportListener() {
+			public void processMessage(TransportMapping sourceTransport, Address incomingAddress,
+					ByteBuffer wholeMessage, TransportStateReference tmStateReference) {
+				RawTrap trap = LazyTrapDecoder.scan(wholeMessage);
+				if (trap != null && cluster != null && cluster.route(trap, wholeMessage)) {
+					return;
+				}
+				if (trap == null || !lazy) {
+					dispatcher.processMessage(sourceTransport, incomingAddress, wholeMessage, tmStateReference);
+					return;
+				}
+				trapsReceived.incrementAndGet();
+				if (!pipeline.submit(trap)) {
+					trapsDropped.incrementAndGet();
+					logger.warn("Trap from " + incomingAddress + " dropped.");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes a trap forwarded by another node of the cluster to the decode stage.
+	 * @param message The SNMP message, an SNMPv2c trap
+	 */
+	void receiveForwardedTrap(ByteBuffer message) {
+		RawTrap trap = LazyTrapDecoder.scan(message);
+		if (trap == null) {
+			logger.warn("Forwarded message is not a trap of an agent.");
+			return;
+		}
+		trapsReceived.incrementAndGet();
+		if (!pipeline.submit(trap)) {
+			trapsDropped.incrementAndGet();
+			logger.warn("Forwarded trap dropped.");
+		}
+	}
+
+	/**
+	 * Adds the datagrams received by each socket and the kernel's drop counters of the
+	 * trap port to the metrics.
+	 * @param transport The listening trap transport
+	 */
+	private void registerReceiveMetrics(UdpTransportMapping transport) {
+		if (transport instanceof MultiSocketUdpTransportMapping) {
+			final MultiSocketUdpTransportMapping sockets = (MultiSocketUdpTransportMapping) transport;
+			for (int i = 0; i < sockets.getSocketCount(); i++) {
+				final int socket = i;
+				metrics.gauge("receive_datagrams{socket=\"" + i + "\"}", new NmsMetrics.Gauge() {
+					public long value() {
+						return sockets.getReceived(socket);
+					}
+				});
+			}
+		}
+		else if (transport instanceof NioUdpTransportMapping) {
+			final NioUdpTransportMapping nio = (NioUdpTransportMapping) transport;
+			metrics.gauge("receive_datagrams", new NmsMetrics.Gauge() {
+				public long value() {
+					return nio.getReceived();
+				}
+			});
+			metrics.gauge("receive_batches", new NmsMetrics.Gauge() {
+				public long value() {
+					return nio.getBatches();
+				}
+			});
+		}
+		final int port = transport.getAddress().getPort();
+		metrics.gauge("udp_kernel_drops", new NmsMetrics.Gauge() {
+			public long value() {
+				return UdpKernelStats.drops(port);
+			}
+		});
+		metrics.gauge("udp_receive_queue_bytes", new NmsMetrics.Gauge() {
+			public long value() {
+				return UdpKernelStats.queuedBytes(port);
+			}
+		});
+		metrics.gauge("udp_rcvbuf_errors", new NmsMetrics.Gauge() {
+			public long value() {
+				return UdpKernelStats.receiveBufferErrors();
+			}
+		});
+	}
+
+	/**
+	 * Starts polling the agents listed in the system property nms.poll.agents, see
+	 * {@link BulkPoller#fromSystemProperties}. The results are written to polls.txt.
+	 * In cluster mode only the listed agents this node owns are polled, see
+	 * {@link #sharePolling()}.
+	 * @return The poller, more agents can be added to it
+	 * @throws IOException if the session could not be opened
+	 */
+	public synchronized BulkPoller startPolling() throws IOException {
+		if (poller == null) {
+			poller = BulkPoller.fromSystemProperties(getSession(), metrics, new PollListener() {
+				public void pollCompleted(PollResult result) {
+					savePollResult(result);
+				}
+			});
+			sharePolling();
+			poller.start();
+		}
+		return poller;
+	}
+
+	/**
+	 * In cluster mode, polls the agents listed in nms.poll.agents whose address this node
+	 * owns on the ring and stops polling the others, so the nodes split the GETs of the
+	 * polls between them. Called again whenever the ring changes.
+	 */
+	synchronized void sharePolling() {
+		if (poller == null || cluster == null) {
+			return;
+		}
+		int listed = 0;
+		for (String agent : System.getProperty("nms.poll.agents", "").split(",")) {
+			agent = agent.trim();
+			if (agent.length() == 0) {
+				continue;
+			}
+			listed++;
+			if (cluster.isLocal(agent)) {
+				poller.addAgent(agent);
+			}
+			else {
+				poller.removeAgent(agent);
+			}
+		}
+		logger.info("Polling " + poller.getAgentCount() + " of " + listed + " agents on node " + cluster.getNodeId() + ".");
+	}
+
 	/**
 	 * Starts the NMSWindow UI
 	 */
 	private void showGUI() {
-		this.gui = new NMSWindow(this);
+		addListener(new NMSWindow(this));
+	}
+
+	/**
+	 * Decides from the system property nms.headless if it is set, then from java.awt.headless;
+	 * AWT is loaded to look for a display only if neither is set.
+	 * @return true if the GUI should not be shown
+	 */
+	private static boolean isHeadless() {
+		String headless = System.getProperty("nms.headless");
+		if (headless == null) {
+			headless = System.getProperty("java.awt.headless");
+		}
+		if (headless != null) {
+			return Boolean.parseBoolean(headless.trim());
+		}
+		return java.awt.GraphicsEnvironment.isHeadless();
 	}
 	
 	/**
-	 * Starts the App.
-	 * @param args no arguments currently handled
+	 * Starts the App. The settings are read and validated first, see {@link NmsConfig};
+	 * with an invalid setting nothing is started.
+	 * @param args --headless to run without the GUI, --config=file for a settings file,
+	 * --key=value for any other setting, i.e. --trap.address=0.0.0.0/162
 	 * @throws java.io.IOException
 	 */
 	public static void main(String args[]) throws java.io.IOException {		
 		
-		//Here we could read for instance trap listening port from arguments.
-		//Currently, it is hard-coded.
-		new SnmpNms("127.0.0.1/1620");
+		BasicConfigurator.configure();
+		NmsConfig config;
+		try {
+			config = NmsConfig.load(args);
+		}
+		catch (IllegalArgumentException e) {
+			logger.error(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		config.apply();
+		Logger.getRootLogger().setLevel(Level.toLevel(config.get("nms.log.level")));
+		String address = config.get("nms.trap.address");
+		SnmpNms nms = config.getBoolean("nms.headless") ? new SnmpNms(address, true) : new SnmpNms(address);
+		if (config.getFile() != null) {
+			nms.watchConfig(config);
+		}
 	}
-	
+
 	/**
-	 * Makes an SNMP GET to agent
-	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * Checks the settings file every nms.config.reloadMillis and changes the hot settings
+	 * of the running server when it has changed. An invalid file is logged and ignored,
+	 * changes to the other settings are logged as needing a restart.
+	 * @param config The settings the server was started with
 	 */
-	public void makeGetToAgent(String agentAddress, String agentId) {
-		
-		logger.info("Making GET!");
+	public synchronized void watchConfig(final NmsConfig config) {
+		if (configWatcher != null || config.getFile() == null) {
+			return;
+		}
+		configWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "config");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long period = config.getLong("nms.config.reloadMillis");
+		configWatcher.scheduleWithFixedDelay(new Runnable() {
+			private NmsConfig current = config;
+			private long modified = config.getFile().lastModified();
 
-		try {
-			UdpAddress targetAddress = new UdpAddress(agentAddress);
-			CommunityTarget target = new CommunityTarget();
-			target.setCommunity(new OctetString("public"));
-			target.setAddress(targetAddress);
-			target.setRetries(2);
-			target.setTimeout(10000);
-			target.setVersion(SnmpConstants.version2c);
-			
-			TransportMapping transport = new DefaultUdpTransportMapping();
-			transport.listen();
+			public void run() {
+				long now = current.getFile().lastModified();
+				if (now == modified) {
+					return;
+				}
+				modified = now;
+				try {
+					NmsConfig next = current.reload();
+					for (String name : current.changes(next)) {
+						applySetting(name, next);
+					}
+					current = next;
+				}
+				catch (IllegalArgumentException e) {
+					logger.error("Settings not reloaded. " + e.getMessage());
+				}
+				catch (IOException e) {
+					logger.error("Settings not reloaded: " + e.toString());
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Changes one setting in the running server, if it can be changed without a restart.
+	 * @param name Name of the setting
+	 * @param config The settings with the new value
+	 * @return true if the setting was changed
+	 */
+	boolean applySetting(String name, NmsConfig config) {
+		String value = config.get(name);
+		boolean applied = true;
+		if (name.equals("nms.log.level")) {
+			Logger.getRootLogger().setLevel(Level.toLevel(value));
+		}
+		else if (name.equals("nms.get.mode")) {
+			setExecutionMode(ExecutionMode.valueOf(value.toUpperCase()));
+		}
+		else if (name.equals("nms.cache.ttl")) {
+			// without a cache yet, the system property is read when it is created
+			if (cache != null) {
+				cache.setTtlMillis(config.getLong(name));
+			}
+		}
+		else if (name.startsWith("nms.session.") && !name.equals("nms.session.stripes")) {
+			SnmpSession current = session;
+			if (current != null) {
+				current.setTimeout(config.getLong("nms.session.timeout"));
+				current.setMinTimeout(config.getLong("nms.session.minTimeout"));
+				current.setRetries(config.getInt("nms.session.retries"));
+				current.setBreaker(config.getInt("nms.session.breakerFailures"), config.getLong("nms.session.breakerMillis"));
+				current.setCommunity(config.get("nms.session.community"));
+			}
+		}
+		else if (name.equals("nms.dedup.window") && deduplicator != null && config.getLong(name) > 0) {
+			deduplicator.setWindowMillis(config.getLong(name));
+		}
+		else {
+			applied = false;
+		}
+		if (applied) {
+			System.setProperty(name, value);
+			logger.info("Setting " + name + " changed to " + value + ".");
+		}
+		else {
+			logger.warn("Setting " + name + " changed to " + value + ", it takes effect after a restart.");
+		}
+		return applied;
+	}
+
+	/**
+	 * Registers a listener for the traps and GET responses.
+	 * @param listener The listener
+	 */
+	public void addListener(NmsListener listener) {
+		events.addListener(listener);
+	}
+
+	public void removeListener(NmsListener listener) {
+		events.removeListener(listener);
+	}
 	
-		    PDU pdu = new PDU();
-		    pdu.add(new VariableBinding(new OID(".1.3.6.1.2.1.1.1.0")));
-		    pdu.setType(PDU.GET); 
-		    Snmp snmp = new Snmp(transport);
+	/**
+	 * Stops the server: closes the trap socket, leaves the cluster, lets the pipeline
+	 * finish its queued work, exports the last traps and closes the session used for GETs.
+	 */
+	public void close() {
+		BulkPoller stopped;
+		synchronized (this) {
+			stopped = poller;
+			poller = null;
+			if (configWatcher != null) {
+				configWatcher.shutdownNow();
+				configWatcher = null;
+			}
+		}
+		if (stopped != null) {
+			// outside the lock, a poll failing on the wheel thread saves its result
+			stopped.stop();
+		}
+		if (trapSnmp != null) {
+			try {
+				trapSnmp.close();
+			}
+			catch (IOException e) {
+				logger.error("Error closing trap listener: " + e.toString());
+			}
+			trapSnmp = null;
+		}
+		if (cluster != null) {
+			cluster.stop();
+		}
+		if (pipeline != null) {
+			pipeline.shutdown(5000);
+		}
+		if (deduplicator != null) {
+			deduplicator.stop();
+		}
+		if (exporter != null) {
+			exporter.stop(5000);
+		}
+		ExecutorService executor;
+		synchronized (this) {
+			executor = getExecutor;
+			getExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (session != null) {
+				session.close();
+				session = null;
+			}
+			cache = null;
+			if (alarms != null) {
+				alarms.close();
+				alarms = null;
+			}
+			if (queries != null) {
+				queries.close();
+				queries = null;
+			}
+			if (polls != null) {
+				polls.close();
+				polls = null;
+			}
+			if (store != null) {
+				try {
+					store.close();
+				}
+				catch (IOException e) {
+					logger.error("Error closing alarm store: " + e.toString());
+				}
+				store = null;
+			}
+		}
+		if (metricsServer != null) {
+			metricsServer.close();
+			metricsServer = null;
+		}
+		metrics.unregisterMBean();
+		logger.info("Stopped.");
+	}
+
+	/**
+	 * Returns the session for GETs, opening it on first use.
+	 * @return The session
+	 * @throws IOException if the session could not be opened
+	 */
+	private SnmpSession getSession() throws IOException {
+		SnmpSession current = session;
+		if (current == null) {
+			synchronized (this) {
+				if (session == null) {
+					session = SnmpSession.fromSystemProperties(metrics, agents);
+				}
+				current = session;
+			}
+		}
+		return current;
+	}
 
-			ResponseEvent responseEvent = snmp.get(pdu, target);
-			if (responseEvent != null) {
-				//got a valid response!
-				readAndSaveGetResult(responseEvent.getResponse(), agentId);
+	/**
+	 * Returns the cache for GET responses, creating it on first use.
+	 * @return The cache
+	 * @throws IOException if the session could not be opened
+	 */
+	private ResponseCache getCache() throws IOException {
+		ResponseCache current = cache;
+		if (current == null) {
+			synchronized (this) {
+				if (cache == null) {
+					cache = ResponseCache.fromSystemProperties(getSession(), metrics);
+				}
+				current = cache;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Makes an SNMP GET to the agent that sent the trap, the way the {@link ExecutionMode}
+	 * says. This is the GET stage of the pipeline.
+	 * @param trap The trap this GET follows up
+	 */
+	public void makeGetToAgent(final TrapEvent trap) {
+		switch (executionMode) {
+		case BLOCKING:
+			getFromAgent(trap);
+			break;
+		case VIRTUAL:
+			// the permits keep a storm from starting threads without limit, when they run
+			// out the GET stage waits and its queue drops the oldest traps
+			getsInFlight.acquireUninterruptibly();
+			try {
+				getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							getFromAgent(trap);
+						}
+						finally {
+							getsInFlight.release();
+						}
+					}
+				});
+			}
+			catch (RuntimeException e) {
+				getsInFlight.release();
+				logger.error("Not able to start GET to agent " + trap.getAgentId() + ": " + e.toString());
+			}
+			break;
+		default:
+			requestFromAgent(trap);
+			break;
+		}
+	}
+
+	/**
+	 * Makes an SNMP GET to the agent that sent the trap and waits for the response.
+	 * @param trap The trap this GET follows up
+	 */
+	void getFromAgent(TrapEvent trap) {
+		logger.info("Making GET!");
+		try {
+			ResponseEvent responseEvent = getCache().getBlocking(trap.getAgentAddress(), getOid, trap);
+			if (responseEvent.getResponse() != null) {
+				readAndSaveGetResult(responseEvent.getResponse(), trap);
 			}
 			else {
-				logger.error("Get returned a null response.");
+				logger.error("Get to agent " + trap.getAgentId() + " timed out.");
 			}
 		}
 		catch (IOException e) {
@@ -151,49 +717,281 @@ public class SnmpNms {
 		}
 	}
 
+	/**
+	 * Makes an SNMP GET to the agent that sent the trap. The GET is sent on the shared
+	 * session, unless the response cache has a fresh answer or the same GET is already
+	 * on its way, and the response is read and saved when it arrives, this method does
+	 * not wait for it. The trap travels with the request, so the response is always
+	 * saved for the agent it came from.
+	 * @param trap The trap this GET follows up
+	 */
+	private void requestFromAgent(TrapEvent trap) {
+		
+		logger.info("Making GET!");
+
+		try {
+			getCache().get(trap.getAgentAddress(), getOid, trap, new ResponseListener() {
+				public void onResponse(ResponseEvent responseEvent) {
+					TrapEvent trap = (TrapEvent) responseEvent.getUserObject();
+					if (responseEvent.getResponse() != null) {
+						//got a valid response!
+						readAndSaveGetResult(responseEvent.getResponse(), trap);
+					}
+					else {
+						logger.error("Get to agent " + trap.getAgentId() + " timed out.");
+					}
+				}
+			});
+		}
+		catch (IOException e) {
+			logger.error("Error: " + e.toString());
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (getExecutor == null) {
+			getExecutor = VirtualThreads.newThreadPerTaskExecutor("get");
+			metrics.gauge("gets_in_flight", new NmsMetrics.Gauge() {
+				public long value() {
+					return maxGetsInFlight - getsInFlight.availablePermits();
+				}
+			});
+		}
+		return getExecutor;
+	}
+
 	/**
 	 * Here we are reading the SNMP trap contents and saving it to DB.
-	 * Then calling the SNMP GET with this info.
+	 * Then calling the SNMP GET with this info. Returns after the trap is written.
 	 * 
 	 * @param trap The SNMP trap received from agent
+	 * @return The trap to pass on to the GET
 	 */
-	public void readAndSaveTrap(PDU trap) {
-		String date = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS").format(new Date());
-		Variable alarmCode = trap.getVariable(new OID("1.2.3.4.5.1"));
-		Variable agentId = trap.getVariable(new OID("1.2.3.4.5.2"));
-		Variable alarmText = trap.getVariable(new OID("1.2.3.4.5.3"));
-		Variable agentAddress = trap.getVariable(new OID("1.2.3.4.5.4"));
-		String message = alarmCode.toString() + ":" + alarmText.toString();
-		if (gui != null) {
-			gui.addMessage(date + " TRAP from agent " + agentId.toString() +"("+ agentAddress.toString() +") "+ message);
-		}
-		saveTrapToFile(date + "," + agentId.toString() + "," + message);
-		
-		receivedAgentAddress = agentAddress.toString();
-		receivedAgentId = agentId.toString();
+	public TrapEvent readAndSaveTrap(PDU trap) {
+		TrapEvent decoded = decodeTrap(trap);
+		publish(decoded);
+		saveTrap(decoded);
+		flush(alarms);
+		return decoded;
+	}
+
+	/**
+	 * Reads the alarm fields from the trap. This is the decode stage of the pipeline.
+	 * @param trap The SNMP trap received from agent
+	 * @return The decoded trap
+	 */
+	TrapEvent decodeTrap(PDU trap) {
+		long timestamp = System.currentTimeMillis();
+		Variable alarmCode = null;
+		Variable agentId = null;
+		Variable alarmText = null;
+		Variable agentAddress = null;
+		// one pass over the varbinds, picking the alarm fields by the last number of their OID
+		Vector<? extends VariableBinding> bindings = trap.getVariableBindings();
+		for (int i = 0, n = bindings.size(); i < n; i++) {
+			VariableBinding binding = bindings.get(i);
+			OID oid = binding.getOid();
+			if (oid.size() != TRAP_OID.size() + 1 || oid.leftMostCompare(TRAP_OID.size(), TRAP_OID) != 0) {
+				continue;
+			}
+			switch (oid.last()) {
+			case 1:
+				alarmCode = binding.getVariable();
+				break;
+			case 2:
+				agentId = binding.getVariable();
+				break;
+			case 3:
+				alarmText = binding.getVariable();
+				break;
+			case 4:
+				agentAddress = binding.getVariable();
+				break;
+			default:
+				break;
+			}
+		}
+		TrapEvent decoded = new TrapEvent(timestamp, agentId.toString(), agentAddress.toString(),
+				alarmCode.toString(), alarmText.toString());
+		trapsDecoded.incrementAndGet();
+		return decoded;
+	}
+
+	/**
+	 * Makes the strings of the alarm fields of a trap found by the {@link LazyTrapDecoder}.
+	 * This is the decode stage of the pipeline for such traps.
+	 * @param trap The trap in its BER encoding
+	 * @return The decoded trap
+	 */
+	TrapEvent decodeTrap(RawTrap trap) {
+		TrapEvent decoded = new TrapEvent(System.currentTimeMillis(), trap.getString(RawTrap.AGENT_ID),
+				trap.getString(RawTrap.AGENT_ADDRESS), trap.getString(RawTrap.ALARM_CODE),
+				trap.getString(RawTrap.ALARM_TEXT));
+		trapsDecoded.incrementAndGet();
+		return decoded;
+	}
+
+	/**
+	 * @param trap A decoded trap
+	 * @return The line shown in the GUI for the trap
+	 */
+	static String formatTrap(TrapEvent trap) {
+		return trap.getDate() + " TRAP from agent " + trap.getAgentId() +"("+ trap.getAgentAddress() +") "+ trap.getMessage()
+				+ (trap.getRepeats() > 0 ? " repeated " + trap.getRepeats() + " times" : "");
+	}
+
+	/**
+	 * @param response A GET response
+	 * @return The line shown in the GUI for the response
+	 */
+	static String formatGetResponse(GetResponseEvent response) {
+		return response.getDate() + " GET response from agent " + response.getResponse();
+	}
+
+	/**
+	 * Saves a decoded trap. This is the persist stage of the pipeline.
+	 * @param trap The decoded trap
+	 */
+	void saveTrap(TrapEvent trap) {
+		agents.seen(trap.getAgentAddress(), trap.getAgentId(), trap.getTimestamp());
+		saveTrapToFile(trap.getDate() + "," + trap.getAgentId() + "," + trap.getMessage()
+				+ (trap.getRepeats() > 0 ? ",repeated " + trap.getRepeats() + " times" : ""));
+		try {
+			getStore().append(trap);
+			trapsPersisted.incrementAndGet();
+		}
+		catch (IOException e) {
+			logger.error("Not able to store alarm: " + e.toString());
+		}
+		if (exporter != null) {
+			exporter.offer(trap);
+		}
+		persistLatency.record(System.currentTimeMillis() - trap.getTimestamp(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tells whether a decoded trap is to be persisted and followed up, or is a repeat
+	 * of an alarm within the deduplication window.
+	 * @param trap The decoded trap
+	 * @return false if the trap is a repeat
+	 */
+	boolean acceptTrap(TrapEvent trap) {
+		return deduplicator == null || deduplicator.accept(trap);
+	}
+
+	/**
+	 * Saves and publishes the summary of the repeats of an alarm as one trap carrying the
+	 * repeat count, like the traps of the persist stage: to alarms.txt as
+	 * date,agentId,code:text,repeated N times, to the alarm store and to the exporter.
+	 * No GET is made for it, the first trap of the window had one.
+	 * @param alarm The summary
+	 */
+	void saveRepeatedAlarm(RepeatedAlarm alarm) {
+		TrapEvent summary = alarm.toTrapEvent();
+		publish(summary);
+		saveTrap(summary);
+		flush(alarms);
+	}
+
+	/**
+	 * Finds the alarms an agent has sent in a time range.
+	 * @param agentId ID of the agent
+	 * @param from Start of the range, inclusive, milliseconds since 1970
+	 * @param to End of the range, inclusive, milliseconds since 1970
+	 * @return The alarms, oldest first
+	 * @throws IOException if the alarm store could not be opened
+	 */
+	public List<TrapEvent> findAlarms(String agentId, long from, long to) throws IOException {
+		return getStore().findByAgent(agentId, from, to);
+	}
+
+	/**
+	 * Hands an event to the listeners, through the notify stage if the pipeline is running.
+	 * @param event A {@link TrapEvent} or a {@link GetResponseEvent}
+	 */
+	private void publish(Object event) {
+		if (!events.hasListeners()) {
+			return;
+		}
+		if (pipeline != null) {
+			pipeline.publish(event);
+		}
+		else {
+			notifyListeners(event);
+		}
+	}
+
+	/**
+	 * Calls the listeners. This is the notify stage of the pipeline.
+	 * @param event A {@link TrapEvent} or a {@link GetResponseEvent}
+	 */
+	void notifyListeners(Object event) {
+		events.publish(event);
+	}
+
+	/**
+	 * Reads and saves the response to the GET following up a trap.
+	 * 
+	 * @param respPDU Response from agent
+	 * @param trap The trap the GET was made for
+	 */
+	public void readAndSaveGetResult(PDU respPDU, TrapEvent trap) {
+		saveGetResult(respPDU, trap.getAgentId(), trap);
 	}
 
 	/**
 	 * Here we are reading the result and finding the correct OID from there.
-	 * Once found, saving it to DB.
+	 * Once found, saving it to DB. Returns after the result is written.
 	 * 
-	 * @param responseEvent Response from agent
+	 * @param respPDU Response from agent
 	 * @param agentId The agent who was queried
 	 */
 	public void readAndSaveGetResult(PDU respPDU, String agentId) {
+		saveGetResult(respPDU, agentId, null);
+		flush(queries);
+	}
+
+	private void saveGetResult(PDU respPDU, String agentId, TrapEvent trap) {
 		Vector<? extends VariableBinding> varVector = respPDU.getVariableBindings();
-		logger.info(varVector.toString());
+		if (logger.isInfoEnabled()) {
+			logger.info(varVector.toString());
+		}
 		String response = "";
-		for (VariableBinding binding : varVector) {
-			if (binding.getOid().equals(new OID(".1.3.6.1.2.1.1.1.0"))) {
+		for (int i = 0, n = varVector.size(); i < n; i++) {
+			VariableBinding binding = varVector.get(i);
+			if (binding.getOid().equals(getOid)) {
 				response = binding.getVariable().toString();
 			}
 		}
-		String date = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS").format(new Date());
-		if (gui != null) {
-			gui.addMessage(date + " GET response from agent " + response);
+		if (trap != null) {
+			agents.responded(agents.intern(trap.getAgentAddress()), response);
+		}
+		GetResponseEvent event = new GetResponseEvent(System.currentTimeMillis(), agentId, response, trap);
+		publish(event);
+		saveGetToFile(event.getDate() + ","+agentId+"," + response);
+	}
+
+	/**
+	 * Saves the values of one poll to polls.txt as date,agent,oid=value,oid=value...
+	 * @param result The result of the poll
+	 */
+	void savePollResult(PollResult result) {
+		StringBuilder line = new StringBuilder(64 + result.getBindings().size() * 32);
+		line.append(result.getDate()).append(',').append(result.getAgentAddress());
+		if (!result.isComplete()) {
+			line.append(",INCOMPLETE");
+		}
+		List<VariableBinding> bindings = result.getBindings();
+		for (int i = 0, n = bindings.size(); i < n; i++) {
+			VariableBinding binding = bindings.get(i);
+			line.append(',').append(binding.getOid()).append('=').append(binding.getVariable());
+		}
+		try {
+			getPolls().append(line.toString());
+		}
+		catch (IOException e) {
+			logger.error("Not able to write polls.txt: " + e.toString());
 		}
-		saveGetToFile(date + ","+agentId+"," + response);
 	}
 
 	/**
@@ -201,17 +999,12 @@ public class SnmpNms {
 	 * @param line message to save
 	 */
 	private void saveGetToFile(String line) {
-		PrintWriter out = null;
 		try {
-		    out = new PrintWriter(new BufferedWriter(new FileWriter("queries.txt", true)));
-		    out.print(line);
+			getQueries().append(line);
 		}
-		catch (Exception e) {
+		catch (IOException e) {
 			logger.error("Not able to write queries.txt: " + e.toString());
 		}
-		finally {
-		    if (out != null) out.close();
-		}		
 	}
 
 	/**
@@ -219,17 +1012,134 @@ public class SnmpNms {
 	 * @param line message to save
 	 */
 	private void saveTrapToFile(String line) {
-		PrintWriter out = null;
 		try {
-		    out = new PrintWriter(new BufferedWriter(new FileWriter("alarms.txt", true)));
-		    out.print(line);
+			getAlarms().append(line);
 		}
-		catch (Exception e) {
+		catch (IOException e) {
 			logger.error("Not able to write alarms.txt: " + e.toString());
 		}
-		finally {
-		    if (out != null) out.close();
-		}		
+	}
+
+	/**
+	 * Waits until the lines appended to a journal so far are written.
+	 * @param journal The journal, or null if nothing has been appended
+	 */
+	private void flush(Journal journal) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.flush();
+		}
+		catch (IOException e) {
+			logger.error("Not able to write " + journal.getFile() + ": " + e.toString());
+		}
+	}
+
+	private Journal getAlarms() throws IOException {
+		Journal current = alarms;
+		if (current == null) {
+			synchronized (this) {
+				if (alarms == null) {
+					alarms = openJournal("alarms");
+				}
+				current = alarms;
+			}
+		}
+		return current;
+	}
+
+	private Journal getPolls() throws IOException {
+		Journal current = polls;
+		if (current == null) {
+			synchronized (this) {
+				if (polls == null) {
+					polls = openJournal("polls");
+				}
+				current = polls;
+			}
+		}
+		return current;
+	}
+
+	private AlarmStore getStore() throws IOException {
+		AlarmStore current = store;
+		if (current == null) {
+			synchronized (this) {
+				if (store == null) {
+					store = AlarmStore.fromSystemProperties();
+				}
+				current = store;
+			}
+		}
+		return current;
+	}
+
+	private Journal getQueries() throws IOException {
+		Journal current = queries;
+		if (current == null) {
+			synchronized (this) {
+				if (queries == null) {
+					queries = openJournal("queries");
+				}
+				current = queries;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Opens a journal and adds its queue size and latencies to the metrics.
+	 * @param name Name of the journal, the file is nms.journal.name.file or name.txt
+	 * @return The journal
+	 * @throws IOException if the journal could not be opened
+	 */
+	private Journal openJournal(String name) throws IOException {
+		final Journal journal = Journal.fromSystemProperties(
+				System.getProperty("nms.journal." + name + ".file", name + ".txt"));
+		String labels = "{journal=\"" + name + "\"}";
+		metrics.register("journal_write_latency" + labels, journal.getWriteLatency());
+		metrics.register("journal_fsync_latency" + labels, journal.getFsyncLatency());
+		metrics.gauge("journal_queue_size" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return journal.getQueueSize();
+			}
+		});
+		metrics.gauge("journal_write_failures" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return journal.getFailures();
+			}
+		});
+		return journal;
+	}
+
+	/**
+	 * @return The counters, gauges and latency histograms of this server
+	 */
+	public NmsMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The agents heard from, with their last traps and GET responses
+	 */
+	public AgentRegistry getAgents() {
+		return agents;
+	}
+
+	/**
+	 * @return This node of the cluster, null if not in cluster mode
+	 */
+	public NmsCluster getCluster() {
+		return cluster;
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
 	}
 
 	public String getTrapAddress() {
@@ -0,0 +1,548 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.TimeoutModel;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * The long-lived SNMP session the NMS uses for its requests to agents.
+ *
+ * The session opens a fixed number of Snmp instances, each with its own UDP socket
+ * and listen thread, once at startup. Requests are spread over them round robin and
+ * sent asynchronously; SNMP4J matches each response to its request by the request ID
+ * and hands it to the caller's listener together with the caller's handle. The
+ * CommunityTarget of each agent is created once and then reused, kept with the rest of
+ * the agent's state in the {@link AgentRegistry}.
+ *
+ * The timeout of each request adapts to its agent's round-trip time, between
+ * minTimeout and timeout, and each retry waits twice as long as the send before it;
+ * an agent that keeps failing is not asked until it answers a probe, see
+ * {@link AgentHealth}. Such requests fail at once with an IOException.
+ *
+ * The latency of each GET is recorded per agent to the session's {@link NmsMetrics},
+ * as are the timeouts and the retries.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class SnmpSession {
+
+	private static final Logger logger = Logger.getLogger(SnmpSession.class);
+
+	public static final String COMMUNITY = "public";
+	public static final int RETRIES = 2;
+	public static final long TIMEOUT = 10000;
+
+	private final Snmp[] stripes;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong timeouts;
+	private final AtomicLong retries;
+	private final AtomicLong requests;
+	private final AtomicLong rejected;
+	private final AtomicLong probes;
+	private final AtomicLong breakerOpens;
+	private final NmsMetrics metrics;
+	private final AgentRegistry registry;
+	private final AgentHealth health;
+	private volatile long timeout = TIMEOUT;
+	private volatile long minTimeout = AgentHealth.DEFAULT_MIN_TIMEOUT;
+	private volatile int retryCount = RETRIES;
+	private volatile OctetString community = new OctetString(COMMUNITY);
+	private volatile boolean closed;
+
+	/**
+	 * Constructor, opens and starts listening the sockets.
+	 * @param stripeCount Number of Snmp instances (sockets) to spread the requests over
+	 * @throws IOException if a socket could not be opened
+	 */
+	public SnmpSession(int stripeCount) throws IOException {
+		this(stripeCount, new NmsMetrics());
+	}
+
+	/**
+	 * Constructor, opens and starts listening the sockets.
+	 * @param stripeCount Number of Snmp instances (sockets) to spread the requests over
+	 * @param metrics Where the GET latencies, timeouts and retries are recorded
+	 * @throws IOException if a socket could not be opened
+	 */
+	public SnmpSession(int stripeCount, NmsMetrics metrics) throws IOException {
+		this(stripeCount, metrics, new AgentRegistry());
+	}
+
+	/**
+	 * Constructor, opens and starts listening the sockets.
+	 * @param stripeCount Number of Snmp instances (sockets) to spread the requests over
+	 * @param metrics Where the GET latencies, timeouts and retries are recorded
+	 * @param registry Where the targets and round-trip times of the agents are kept
+	 * @throws IOException if a socket could not be opened
+	 */
+	public SnmpSession(int stripeCount, NmsMetrics metrics, AgentRegistry registry) throws IOException {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("stripeCount must be at least 1: " + stripeCount);
+		}
+		this.metrics = metrics;
+		this.registry = registry;
+		this.health = new AgentHealth(registry, AgentHealth.DEFAULT_MIN_TIMEOUT, TIMEOUT,
+				AgentHealth.DEFAULT_BREAKER_FAILURES, AgentHealth.DEFAULT_BREAKER_MILLIS);
+		this.timeouts = metrics.counter("get_timeouts");
+		this.retries = metrics.counter("get_retries");
+		this.requests = metrics.counter("get_requests");
+		this.rejected = metrics.counter("get_rejected");
+		this.probes = metrics.counter("get_probes");
+		this.breakerOpens = metrics.counter("get_breaker_opens");
+		metrics.gauge("get_open_breakers", new NmsMetrics.Gauge() {
+			public long value() {
+				return health.getOpenCount();
+			}
+		});
+		metrics.gauge("get_outstanding", new NmsMetrics.Gauge() {
+			public long value() {
+				return outstanding.get();
+			}
+		});
+		TimeoutModel timeoutModel = new TimeoutModel() {
+			public long getRetryTimeout(int retryCount, int totalNumberOfRetries, long targetTimeout) {
+				// called before each send, with 0 for the first one
+				if (retryCount > 0) {
+					retries.incrementAndGet();
+				}
+				return backoff(retryCount, targetTimeout);
+			}
+
+			public long getRequestTimeout(int totalNumberOfRetries, long targetTimeout) {
+				long total = 0;
+				for (int i = 0; i <= totalNumberOfRetries; i++) {
+					total += backoff(i, targetTimeout);
+				}
+				return total;
+			}
+		};
+		stripes = new Snmp[stripeCount];
+		try {
+			for (int i = 0; i < stripeCount; i++) {
+				stripes[i] = new Snmp(new DefaultUdpTransportMapping());
+				stripes[i].setTimeoutModel(timeoutModel);
+				stripes[i].listen();
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		logger.info("Session opened with " + stripeCount + " sockets.");
+	}
+
+	/**
+	 * Creates a session with the number of sockets given in the system property
+	 * nms.session.stripes, one by default.
+	 * @return The opened session
+	 * @throws IOException if a socket could not be opened
+	 */
+	public static SnmpSession fromSystemProperties() throws IOException {
+		return fromSystemProperties(new NmsMetrics());
+	}
+
+	/**
+	 * Creates a session with the number of sockets given in the system property
+	 * nms.session.stripes, one by default, and the timeouts, retries, community and
+	 * breaker of nms.session.timeout, nms.session.minTimeout, nms.session.retries,
+	 * nms.session.community, nms.session.breakerFailures and nms.session.breakerMillis.
+	 * @param metrics Where the GET latencies, timeouts and retries are recorded
+	 * @return The opened session
+	 * @throws IOException if a socket could not be opened
+	 */
+	public static SnmpSession fromSystemProperties(NmsMetrics metrics) throws IOException {
+		return fromSystemProperties(metrics, new AgentRegistry());
+	}
+
+	/**
+	 * Creates a session configured with the system properties, see
+	 * {@link #fromSystemProperties(NmsMetrics)}.
+	 * @param metrics Where the GET latencies, timeouts and retries are recorded
+	 * @param registry Where the targets and round-trip times of the agents are kept
+	 * @return The opened session
+	 * @throws IOException if a socket could not be opened
+	 */
+	public static SnmpSession fromSystemProperties(NmsMetrics metrics, AgentRegistry registry) throws IOException {
+		SnmpSession session = new SnmpSession(Integer.getInteger("nms.session.stripes", 1), metrics, registry);
+		session.setTimeout(Long.getLong("nms.session.timeout", TIMEOUT));
+		session.setMinTimeout(Long.getLong("nms.session.minTimeout", AgentHealth.DEFAULT_MIN_TIMEOUT));
+		session.setBreaker(Integer.getInteger("nms.session.breakerFailures", AgentHealth.DEFAULT_BREAKER_FAILURES),
+				Long.getLong("nms.session.breakerMillis", AgentHealth.DEFAULT_BREAKER_MILLIS));
+		session.setRetries(Integer.getInteger("nms.session.retries", RETRIES));
+		session.setCommunity(System.getProperty("nms.session.community", COMMUNITY));
+		return session;
+	}
+
+	/**
+	 * Changes the longest timeout of the GETs, also of the agents already known. It is
+	 * also the timeout of an agent not yet heard from.
+	 * @param timeout Most milliseconds to wait for a response before a retry
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+		health.setTimeouts(minTimeout, timeout);
+	}
+
+	/**
+	 * Changes the shortest timeout of the GETs, also of the agents already known. Equal
+	 * to the timeout, the timeout does not adapt.
+	 * @param minTimeout Fewest milliseconds to wait for a response before a retry
+	 */
+	public void setMinTimeout(long minTimeout) {
+		this.minTimeout = minTimeout;
+		health.setTimeouts(minTimeout, timeout);
+	}
+
+	/**
+	 * Changes the circuit breaker, also of the agents already known.
+	 * @param failures Requests in a row without a response that stop the requests to an
+	 * agent until it answers a probe, 0 to always send
+	 * @param millis How long the first wait before a probe is
+	 */
+	public void setBreaker(int failures, long millis) {
+		health.setBreaker(failures, millis);
+	}
+
+	/**
+	 * Changes the retries of the GETs, also of the agents already known.
+	 * @param retries How many times a GET is sent again without a response
+	 */
+	public void setRetries(int retries) {
+		this.retryCount = retries;
+		for (int id = 0, n = registry.size(); id < n; id++) {
+			CommunityTarget target = registry.getTarget(id);
+			if (target != null) {
+				target.setRetries(retries);
+			}
+		}
+	}
+
+	/**
+	 * Changes the community of the GETs, also of the agents already known.
+	 * @param community The community
+	 */
+	public void setCommunity(String community) {
+		this.community = new OctetString(community);
+		for (int id = 0, n = registry.size(); id < n; id++) {
+			CommunityTarget target = registry.getTarget(id);
+			if (target != null) {
+				target.setCommunity(this.community);
+			}
+		}
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public long getMinTimeout() {
+		return minTimeout;
+	}
+
+	/**
+	 * @return The round-trip times and breakers of the agents
+	 */
+	public AgentHealth getHealth() {
+		return health;
+	}
+
+	public AgentRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return How many times a GET is sent again without a response
+	 */
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @return The longest a request can take with the current timeout and retries,
+	 * plus a second
+	 */
+	public long getMaxWaitMillis() {
+		long total = 0;
+		for (int i = 0; i <= retryCount; i++) {
+			total += backoff(i, timeout);
+		}
+		return total + 1000;
+	}
+
+	/**
+	 * @return Milliseconds to wait after a send of a request, doubling with each retry up
+	 * to the longest timeout, but at least the first timeout
+	 */
+	private long backoff(int retry, long firstTimeout) {
+		return Math.max(firstTimeout, Math.min(timeout, firstTimeout << Math.min(retry, 30)));
+	}
+
+	/**
+	 * Returns the cached target of an agent, creating it on first use.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @return The target
+	 */
+	public CommunityTarget getTarget(String agentAddress) {
+		return getTarget(registry.intern(agentAddress), agentAddress);
+	}
+
+	private CommunityTarget getTarget(int id, String agentAddress) {
+		CommunityTarget target = registry.getTarget(id);
+		if (target == null) {
+			target = new CommunityTarget();
+			target.setCommunity(community);
+			target.setAddress(new UdpAddress(agentAddress));
+			target.setRetries(retryCount);
+			target.setTimeout(health.getTimeout(id));
+			target.setVersion(SnmpConstants.version2c);
+			target = registry.putTarget(id, target);
+		}
+		return target;
+	}
+
+	/**
+	 * Returns the GET latency histogram of an agent, looking up its labelled name in the
+	 * metrics only on first use.
+	 */
+	private LatencyHistogram getLatency(int id, String agentAddress) {
+		LatencyHistogram latency = registry.getLatency(id);
+		if (latency == null) {
+			latency = registry.putLatency(id, metrics.agentHistogram("get_latency", agentAddress));
+		}
+		return latency;
+	}
+
+	/**
+	 * Returns the GET timeout counter of an agent, looking up its labelled name in the
+	 * metrics only on first use.
+	 */
+	private AtomicLong getTimeoutCounter(int id, String agentAddress) {
+		AtomicLong counter = registry.getTimeoutCounter(id);
+		if (counter == null) {
+			counter = registry.putTimeoutCounter(id, metrics.agentCounter("get_timeouts", agentAddress));
+		}
+		return counter;
+	}
+
+	/**
+	 * Sends a GET without waiting for the response. The listener is called once, with
+	 * the response or with a null response on timeout, from a listen thread of the session.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param oids The OIDs to get
+	 * @param handle Anything the caller wants back in the response event
+	 * @param listener Receives the response
+	 * @throws IOException if the request could not be sent
+	 */
+	public void get(String agentAddress, OID[] oids, Object handle, ResponseListener listener) throws IOException {
+		PDU pdu = new PDU();
+		for (OID oid : oids) {
+			pdu.add(new VariableBinding(oid));
+		}
+		pdu.setType(PDU.GET);
+		send(agentAddress, pdu, handle, listener);
+	}
+
+	/**
+	 * Sends a GET and waits for the response. The calling thread waits on a latch and not
+	 * in a synchronized block, so on a virtual thread it does not hold its carrier thread.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param oids The OIDs to get
+	 * @param handle Anything the caller wants back in the response event
+	 * @return The response event, with a null response on timeout
+	 * @throws IOException if the request could not be sent, or the session was closed
+	 * or the wait interrupted before the response
+	 */
+	public ResponseEvent getBlocking(String agentAddress, OID[] oids, Object handle) throws IOException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final ResponseEvent[] result = new ResponseEvent[1];
+		get(agentAddress, oids, handle, new ResponseListener() {
+			public void onResponse(ResponseEvent event) {
+				result[0] = event;
+				done.countDown();
+			}
+		});
+		try {
+			// SNMP4J calls back after the last retry at the latest, unless the session is closed
+			if (!done.await(getMaxWaitMillis(), TimeUnit.MILLISECONDS)) {
+				throw new IOException("No response or timeout from " + agentAddress);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + agentAddress);
+		}
+		return result[0];
+	}
+
+	/**
+	 * Sends a request without waiting for the response. The listener is called once, with
+	 * the response or with a null response on timeout, from a listen thread of the session.
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param pdu The request, i.e. a GET or a GETBULK
+	 * @param handle Anything the caller wants back in the response event
+	 * @param listener Receives the response
+	 * @throws IOException if the request could not be sent
+	 */
+	public void send(final String agentAddress, PDU pdu, Object handle, final ResponseListener listener) throws IOException {
+		if (closed) {
+			throw new IOException("Session is closed.");
+		}
+		final int agent = registry.intern(agentAddress);
+		AgentHealth.Decision decision = health.admit(agent, System.currentTimeMillis());
+		if (decision != AgentHealth.Decision.SEND) {
+			if (decision == AgentHealth.Decision.PROBE) {
+				probe(agent, agentAddress);
+			}
+			rejected.incrementAndGet();
+			throw new IOException("Agent " + agentAddress + " is not answering, breaker open");
+		}
+		final Snmp snmp = stripes[(next.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+		CommunityTarget target = getTarget(agent, agentAddress);
+		// requests to the same agent set the same estimate, a race only mixes two of them
+		final long firstTimeout = health.getTimeout(agent);
+		target.setTimeout(firstTimeout);
+		outstanding.incrementAndGet();
+		requests.incrementAndGet();
+		final long started = System.nanoTime();
+		try {
+			snmp.send(pdu, target, handle, new ResponseListener() {
+				public void onResponse(ResponseEvent event) {
+					// the request stays pending in SNMP4J until it is cancelled
+					snmp.cancel(event.getRequest(), this);
+					outstanding.decrementAndGet();
+					if (event.getResponse() == null) {
+						timeouts.incrementAndGet();
+						getTimeoutCounter(agent, agentAddress).incrementAndGet();
+						registry.timedOut(agent);
+						if (health.failure(agent, System.currentTimeMillis())) {
+							breakerOpens.incrementAndGet();
+							logger.warn("Agent " + agentAddress + " is not answering, asking it again after a probe.");
+						}
+					}
+					else {
+						long elapsed = System.nanoTime() - started;
+						health.success(agent, elapsed, firstTimeout);
+						getLatency(agent, agentAddress).record(elapsed, TimeUnit.NANOSECONDS);
+					}
+					listener.onResponse(event);
+				}
+			});
+		}
+		catch (IOException e) {
+			outstanding.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends one GET of sysUpTime with no retries to an agent whose breaker is open, and
+	 * closes the breaker if it is answered.
+	 */
+	private void probe(final int agent, String agentAddress) {
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(community);
+		target.setAddress(new UdpAddress(agentAddress));
+		target.setRetries(0);
+		target.setTimeout(timeout);
+		target.setVersion(SnmpConstants.version2c);
+		PDU pdu = new PDU();
+		pdu.add(new VariableBinding(SnmpConstants.sysUpTime));
+		pdu.setType(PDU.GET);
+		final Snmp snmp = stripes[(next.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+		probes.incrementAndGet();
+		try {
+			snmp.send(pdu, target, null, new ResponseListener() {
+				public void onResponse(ResponseEvent event) {
+					snmp.cancel(event.getRequest(), this);
+					boolean answered = event.getResponse() != null;
+					health.probed(agent, answered, System.currentTimeMillis());
+					if (answered) {
+						logger.info("Agent " + agentAddress + " answered the probe, asking it again.");
+					}
+				}
+			});
+		}
+		catch (IOException e) {
+			health.probed(agent, false, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Closes the sockets. Requests still waiting for a response are cancelled.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Snmp snmp : stripes) {
+			if (snmp == null) {
+				continue;
+			}
+			try {
+				snmp.close();
+			}
+			catch (IOException e) {
+				logger.error("Error closing session: " + e.toString());
+			}
+		}
+		registry.clearTargets();
+		logger.info("Session closed.");
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public NmsMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getTargetCount() {
+		int count = 0;
+		for (int id = 0, n = registry.size(); id < n; id++) {
+			if (registry.getTarget(id) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
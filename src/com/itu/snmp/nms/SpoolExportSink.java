@@ -0,0 +1,42 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Exports the batches as files of a spool directory, for another process to pick up.
+ * Each batch is one file in {@link ExportFormat}, named by a sequence number of 20
+ * digits with the suffix .frame, so the names sort in the order of the batches. A file
+ * appears under its final name only when it is complete; the reader deletes the files
+ * it has taken.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class SpoolExportSink implements ExportSink {
+
+	// only the sequence number is kept, the reader deletes the files
+	private final FrameWriter spool;
+
+	/**
+	 * Constructor, creates the directory if needed.
+	 * @param dir The spool directory
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public SpoolExportSink(File dir) throws IOException {
+		this.spool = new FrameWriter(dir);
+	}
+
+	public void write(byte[] frame) throws IOException {
+		spool.write(frame);
+	}
+
+	public void close() {
+		//nothing is kept open
+	}
+
+	@Override
+	public String toString() {
+		return "spool " + spool.getDirectory();
+	}
+}
@@ -0,0 +1,69 @@
+package com.itu.snmp.nms;
+
+/**
+ * Worker count, queue capacity and overflow policy of one pipeline stage.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class StageConfig {
+
+	private final int workers;
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	/**
+	 * Constructor
+	 * @param workers Number of worker threads, at least 1
+	 * @param capacity Queue capacity, at least 1
+	 * @param policy What to do when the queue is full
+	 */
+	public StageConfig(int workers, int capacity, OverflowPolicy policy) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("workers must be at least 1: " + workers);
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must be given");
+		}
+		this.workers = workers;
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * Reads the stage configuration from system properties
+	 * nms.&lt;stage&gt;.workers, nms.&lt;stage&gt;.capacity and nms.&lt;stage&gt;.policy.
+	 * Missing values are taken from the defaults.
+	 * @param stage Name of the stage, i.e. "decode"
+	 * @param defaults Values used when a property is not set
+	 * @return The stage configuration
+	 */
+	public static StageConfig fromSystemProperties(String stage, StageConfig defaults) {
+		String prefix = "nms." + stage + ".";
+		int workers = Integer.getInteger(prefix + "workers", defaults.getWorkers());
+		int capacity = Integer.getInteger(prefix + "capacity", defaults.getCapacity());
+		String policy = System.getProperty(prefix + "policy");
+		return new StageConfig(workers, capacity,
+				policy == null ? defaults.getPolicy() : OverflowPolicy.valueOf(policy.trim().toUpperCase()));
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	@Override
+	public String toString() {
+		return "workers=" + workers + ", capacity=" + capacity + ", policy=" + policy;
+	}
+}
@@ -0,0 +1,18 @@
+package com.itu.snmp.nms;
+
+/**
+ * The work done by one stage of the trap pipeline.
+ * 
+ * @author Petri Tilli
+ *
+ * @param <T> type of the items handled by the stage
+ */
+public interface StageHandler<T> {
+
+	/**
+	 * Handles one item taken from the stage queue.
+	 * @param item The item to handle
+	 * @throws Exception if handling failed, the item is then counted as failed
+	 */
+	void handle(T item) throws Exception;
+}
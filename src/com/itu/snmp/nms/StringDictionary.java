@@ -0,0 +1,116 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps strings to small dense ints and back, so that records can store an
+ * int instead of a repeating string. New strings are appended to a file as
+ * a length and the UTF-8 bytes, and the file is read back on open.
+ *
+ * Not thread safe, the alarm store guards it with its own lock.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public class StringDictionary {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final FileChannel channel;
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> strings = new ArrayList<String>();
+
+	/**
+	 * Constructor, opens the file and reads the strings stored in it.
+	 * @param file The dictionary file
+	 * @throws IOException if the file could not be read
+	 */
+	public StringDictionary(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+		while (content.hasRemaining() && channel.read(content) >= 0) {
+			// reading the whole file
+		}
+		content.flip();
+		while (content.remaining() >= 4) {
+			int length = content.getInt();
+			if (length < 0 || length > content.remaining()) {
+				// a string only partly written before a crash, it is written again when needed
+				content.position(content.position() - 4);
+				break;
+			}
+			byte[] bytes = new byte[length];
+			content.get(bytes);
+			add(new String(bytes, UTF8));
+		}
+		channel.truncate(content.position());
+		channel.position(content.position());
+	}
+
+	/**
+	 * Returns the id of a string, adding the string if it is new.
+	 * @param string The string
+	 * @return The id
+	 * @throws IOException if a new string could not be written
+	 */
+	public int intern(String string) throws IOException {
+		Integer id = ids.get(string);
+		if (id != null) {
+			return id.intValue();
+		}
+		byte[] bytes = string.getBytes(UTF8);
+		ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+		record.putInt(bytes.length).put(bytes).flip();
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		return add(string);
+	}
+
+	/**
+	 * @param string The string
+	 * @return The id of the string, or -1 if it is not in the dictionary
+	 */
+	public int find(String string) {
+		Integer id = ids.get(string);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * @param id The id
+	 * @return The string with the id
+	 */
+	public String get(int id) {
+		return strings.get(id);
+	}
+
+	public int size() {
+		return strings.size();
+	}
+
+	/**
+	 * Forces the dictionary to disk and closes the file.
+	 * @throws IOException if the file could not be closed
+	 */
+	public void close() throws IOException {
+		channel.force(false);
+		channel.close();
+	}
+
+	private int add(String string) {
+		int id = strings.size();
+		strings.add(string);
+		ids.put(string, Integer.valueOf(id));
+		return id;
+	}
+}
@@ -0,0 +1,101 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.TcpAddress;
+
+/**
+ * Exports the batches over one TCP connection, e.g. to an {@link ExportReceiver}. The
+ * frames are written as they are, one after another, and the receiver answers each
+ * with one {@link #ACK} byte once it has taken it. A batch is only done when its ACK
+ * has arrived, so a batch lost with a broken connection is sent again. The connection
+ * is opened on the first write and again on the first write after it broke.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class TcpExportSink implements ExportSink {
+
+	private static final Logger logger = Logger.getLogger(TcpExportSink.class);
+
+	public static final int ACK = 6;
+	public static final int DEFAULT_TIMEOUT = 5000;
+
+	private final String address;
+	private final InetSocketAddress socketAddress;
+	private final int timeoutMillis;
+	private Socket socket;
+	private OutputStream out;
+	private InputStream in;
+
+	/**
+	 * Constructor, does not connect yet.
+	 * @param address Address of the receiver, i.e. 127.0.0.1/1750
+	 * @param timeoutMillis How long connecting and waiting for an ACK may take
+	 */
+	public TcpExportSink(String address, int timeoutMillis) {
+		TcpAddress tcp = new TcpAddress(address);
+		this.address = address;
+		this.socketAddress = new InetSocketAddress(tcp.getInetAddress(), tcp.getPort());
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public void write(byte[] frame) throws IOException {
+		try {
+			if (socket == null) {
+				connect();
+			}
+			out.write(frame);
+			out.flush();
+			int ack = in.read();
+			if (ack != ACK) {
+				throw new IOException(ack < 0 ? "Connection closed by the receiver" : "Not an ACK: " + ack);
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connect() throws IOException {
+		Socket connecting = new Socket();
+		try {
+			connecting.connect(socketAddress, timeoutMillis);
+			connecting.setSoTimeout(timeoutMillis);
+			connecting.setTcpNoDelay(true);
+			out = connecting.getOutputStream();
+			in = connecting.getInputStream();
+		}
+		catch (IOException e) {
+			connecting.close();
+			throw e;
+		}
+		socket = connecting;
+		logger.info("Connected to the export receiver at " + address + ".");
+	}
+
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				logger.debug("Error closing the export connection: " + e.toString());
+			}
+			socket = null;
+			out = null;
+			in = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "tcp " + address;
+	}
+}
@@ -0,0 +1,53 @@
+package com.itu.snmp.nms;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats times as dd.MM.yyyy HH:mm:ss.SSS, the format used in the GUI and in the
+ * text files, without creating a SimpleDateFormat for every call.
+ *
+ * Every thread has its own formatter, which remembers the date and time part of
+ * the last second it formatted. Within the same second only the milliseconds
+ * are written.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public final class TimestampFormat {
+
+	private static final ThreadLocal<TimestampFormat> formats = new ThreadLocal<TimestampFormat>() {
+		@Override
+		protected TimestampFormat initialValue() {
+			return new TimestampFormat();
+		}
+	};
+
+	private final SimpleDateFormat secondFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.");
+	private final char[] chars = new char[23];
+	private long cachedSecond = Long.MIN_VALUE;
+
+	private TimestampFormat() {
+	}
+
+	/**
+	 * @param millis Milliseconds since 1970
+	 * @return The time as dd.MM.yyyy HH:mm:ss.SSS
+	 */
+	public static String format(long millis) {
+		return formats.get().formatMillis(millis);
+	}
+
+	private String formatMillis(long millis) {
+		long second = Math.floorDiv(millis, 1000L);
+		if (second != cachedSecond) {
+			secondFormat.format(new Date(second * 1000L)).getChars(0, 20, chars, 0);
+			cachedSecond = second;
+		}
+		int ms = (int) (millis - second * 1000L);
+		chars[20] = (char) ('0' + ms / 100);
+		chars[21] = (char) ('0' + ms / 10 % 10);
+		chars[22] = (char) ('0' + ms % 10);
+		return new String(chars);
+	}
+}
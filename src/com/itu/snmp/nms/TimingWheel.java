@@ -0,0 +1,166 @@
+package com.itu.snmp.nms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Calls a handler for every item once per period, spreading the items evenly over
+ * the period. The period is divided into slots, each item is put to the slot with
+ * the fewest items, and a single thread visits one slot per tick.
+ *
+ * @author Petri Tilli
+ *
+ * @param <T> type of the items
+ */
+public class TimingWheel<T> {
+
+	private static final Logger logger = Logger.getLogger(TimingWheel.class);
+
+	private final String name;
+	private final List<List<T>> slots;
+	private final Map<T, Integer> slotOf = new HashMap<T, Integer>();
+	private final long tickNanos;
+	private final StageHandler<T> handler;
+	private int nextSlot;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Constructor, the wheel does not turn before {@link #start()}.
+	 * @param name Name of the wheel thread
+	 * @param periodMillis How often each item is handled
+	 * @param slotCount Into how many ticks the period is divided
+	 * @param handler Called for each item of a slot on its tick, on the wheel thread
+	 */
+	public TimingWheel(String name, long periodMillis, int slotCount, StageHandler<T> handler) {
+		if (periodMillis < 1 || slotCount < 1) {
+			throw new IllegalArgumentException("period and slot count must be positive: " + periodMillis + ", " + slotCount);
+		}
+		this.name = name;
+		this.handler = handler;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis) / slotCount;
+		this.slots = new ArrayList<List<T>>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayList<T>());
+		}
+	}
+
+	/**
+	 * Adds an item to the least loaded slot.
+	 * @param item The item
+	 * @return false if the item was already on the wheel
+	 */
+	public synchronized boolean add(T item) {
+		if (slotOf.containsKey(item)) {
+			return false;
+		}
+		int best = nextSlot;
+		for (int i = 1; i < slots.size(); i++) {
+			int slot = (nextSlot + i) % slots.size();
+			if (slots.get(slot).size() < slots.get(best).size()) {
+				best = slot;
+			}
+		}
+		slots.get(best).add(item);
+		slotOf.put(item, Integer.valueOf(best));
+		nextSlot = (best + 1) % slots.size();
+		return true;
+	}
+
+	/**
+	 * Removes an item.
+	 * @param item The item
+	 * @return false if the item was not on the wheel
+	 */
+	public synchronized boolean remove(T item) {
+		Integer slot = slotOf.remove(item);
+		if (slot == null) {
+			return false;
+		}
+		slots.get(slot.intValue()).remove(item);
+		return true;
+	}
+
+	public synchronized int size() {
+		return slotOf.size();
+	}
+
+	public int getSlotCount() {
+		return slots.size();
+	}
+
+	/**
+	 * Starts turning the wheel.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel, waiting for the tick in progress.
+	 */
+	public void stop() {
+		Thread current;
+		synchronized (this) {
+			running = false;
+			current = thread;
+			thread = null;
+		}
+		if (current == null) {
+			return;
+		}
+		LockSupport.unpark(current);
+		try {
+			current.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void turn() {
+		long next = System.nanoTime();
+		int slot = 0;
+		while (running) {
+			fire(slot);
+			slot = (slot + 1) % slots.size();
+			// deadlines are kept on a fixed grid so that slow ticks do not make the period drift
+			next += tickNanos;
+			long wait;
+			while (running && (wait = next - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	private void fire(int slot) {
+		List<T> items;
+		synchronized (this) {
+			items = new ArrayList<T>(slots.get(slot));
+		}
+		for (int i = 0, n = items.size(); i < n; i++) {
+			try {
+				handler.handle(items.get(i));
+			}
+			catch (Exception e) {
+				logger.error("Wheel " + name + " failed: " + e.toString());
+			}
+		}
+	}
+}
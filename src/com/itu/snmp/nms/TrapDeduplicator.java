@@ -0,0 +1,274 @@
+package com.itu.snmp.nms;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Suppresses repeats of the same alarm during a storm.
+ *
+ * Alarms are the same when they have the same agent ID, alarm code and alarm text.
+ * The first trap of an alarm opens a window and goes through as usual; the repeats
+ * inside the window are only counted. When the window closes, one {@link RepeatedAlarm}
+ * is handed to the handler if there were repeats, and the next trap of the alarm
+ * opens a new window. So however fast an agent repeats an alarm, it costs at most one
+ * saved trap, one GET and one summary per window.
+ *
+ * The open windows are kept in insertion order, so closing them is a walk from the
+ * oldest. At most maxKeys windows are kept; when there are more, the oldest is closed
+ * early.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class TrapDeduplicator {
+
+	private static final Logger logger = Logger.getLogger(TrapDeduplicator.class);
+
+	public static final long DEFAULT_WINDOW = 10000;
+	public static final int DEFAULT_MAX_KEYS = 100000;
+
+	private volatile long windowMillis;
+	private final int maxKeys;
+	private final StageHandler<RepeatedAlarm> handler;
+	private final LinkedHashMap<String, Window> windows = new LinkedHashMap<String, Window>();
+	private final AtomicLong passed;
+	private final AtomicLong suppressed;
+	private final AtomicLong summaries;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * The alarm of an open window and its repeats so far.
+	 */
+	private static class Window {
+		final TrapEvent first;
+		int repeats;
+		long last;
+
+		Window(TrapEvent first) {
+			this.first = first;
+			this.last = first.getTimestamp();
+		}
+	}
+
+	/**
+	 * Constructor, the windows close only when traps arrive before {@link #start()}.
+	 * @param windowMillis Length of a window, starting from the first trap of an alarm
+	 * @param maxKeys How many windows may be open at a time
+	 * @param metrics Where the passed and suppressed traps are counted
+	 * @param handler Gets the summary of each window that had repeats
+	 */
+	public TrapDeduplicator(long windowMillis, int maxKeys, NmsMetrics metrics, StageHandler<RepeatedAlarm> handler) {
+		if (windowMillis < 1 || maxKeys < 1) {
+			throw new IllegalArgumentException("window and maxKeys must be positive: " + windowMillis + ", " + maxKeys);
+		}
+		this.windowMillis = windowMillis;
+		this.maxKeys = maxKeys;
+		this.handler = handler;
+		this.passed = metrics.counter("dedup_passed");
+		this.suppressed = metrics.counter("dedup_suppressed");
+		this.summaries = metrics.counter("dedup_summaries");
+		metrics.gauge("dedup_windows", new NmsMetrics.Gauge() {
+			public long value() {
+				return size();
+			}
+		});
+	}
+
+	/**
+	 * Creates a deduplicator configured with the system properties nms.dedup.window
+	 * (milliseconds, 10000 by default) and nms.dedup.maxKeys (100000 by default).
+	 * @param metrics Where the passed and suppressed traps are counted
+	 * @param handler Gets the summary of each window that had repeats
+	 * @return The deduplicator, or null if nms.dedup.window is 0 or less
+	 */
+	public static TrapDeduplicator fromSystemProperties(NmsMetrics metrics, StageHandler<RepeatedAlarm> handler) {
+		long window = Long.getLong("nms.dedup.window", DEFAULT_WINDOW);
+		if (window <= 0) {
+			return null;
+		}
+		return new TrapDeduplicator(window, Integer.getInteger("nms.dedup.maxKeys", DEFAULT_MAX_KEYS), metrics, handler);
+	}
+
+	/**
+	 * Tells whether a trap should be handled or is a repeat.
+	 * @param trap A decoded trap
+	 * @return true if the trap opened a window, false if it was counted as a repeat
+	 */
+	public boolean accept(TrapEvent trap) {
+		String key = trap.getAgentId() + '\u0000' + trap.getAlarmCode() + '\u0000' + trap.getAlarmText();
+		List<Window> closed;
+		boolean first;
+		synchronized (windows) {
+			closed = closeExpired(trap.getTimestamp());
+			Window window = windows.get(key);
+			if (window == null) {
+				windows.put(key, new Window(trap));
+				if (windows.size() > maxKeys) {
+					closed = closeOldest(closed);
+				}
+				first = true;
+			}
+			else {
+				window.repeats++;
+				window.last = Math.max(window.last, trap.getTimestamp());
+				first = false;
+			}
+		}
+		(first ? passed : suppressed).incrementAndGet();
+		emit(closed);
+		return first;
+	}
+
+	/**
+	 * Closes the windows that are older than the window length.
+	 * @param now Current time, milliseconds since 1970
+	 */
+	public void expire(long now) {
+		List<Window> closed;
+		synchronized (windows) {
+			closed = closeExpired(now);
+		}
+		emit(closed);
+	}
+
+	/**
+	 * Closes every open window.
+	 */
+	public void flush() {
+		List<Window> closed;
+		synchronized (windows) {
+			closed = new ArrayList<Window>(windows.values());
+			windows.clear();
+		}
+		emit(closed);
+	}
+
+	/**
+	 * Starts a timer that closes the expired windows even when no traps arrive.
+	 */
+	public synchronized void start() {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "dedup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(10, windowMillis / 4);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expire(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the timer and closes every open window.
+	 */
+	public void stop() {
+		synchronized (this) {
+			if (timer != null) {
+				timer.shutdown();
+				try {
+					timer.awaitTermination(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				timer = null;
+			}
+		}
+		flush();
+	}
+
+	// guarded by windows
+	private List<Window> closeExpired(long now) {
+		List<Window> closed = null;
+		Iterator<Window> oldest = windows.values().iterator();
+		while (oldest.hasNext()) {
+			Window window = oldest.next();
+			if (window.first.getTimestamp() + windowMillis > now) {
+				break;
+			}
+			oldest.remove();
+			if (closed == null) {
+				closed = new ArrayList<Window>();
+			}
+			closed.add(window);
+		}
+		return closed;
+	}
+
+	// guarded by windows
+	private List<Window> closeOldest(List<Window> closed) {
+		Iterator<Map.Entry<String, Window>> oldest = windows.entrySet().iterator();
+		Window window = oldest.next().getValue();
+		oldest.remove();
+		if (closed == null) {
+			closed = new ArrayList<Window>();
+		}
+		closed.add(window);
+		return closed;
+	}
+
+	private void emit(List<Window> closed) {
+		if (closed == null) {
+			return;
+		}
+		for (Window window : closed) {
+			if (window.repeats == 0) {
+				continue;
+			}
+			summaries.incrementAndGet();
+			try {
+				handler.handle(new RepeatedAlarm(window.first, window.repeats, window.last));
+			}
+			catch (Exception e) {
+				logger.error("Not able to handle repeated alarm: " + e.toString());
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (windows) {
+			return windows.size();
+		}
+	}
+
+	public long getPassed() {
+		return passed.get();
+	}
+
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Changes the window length, also of the windows already open. The timer keeps
+	 * the period it was started with.
+	 * @param windowMillis Length of a window, starting from the first trap of an alarm
+	 */
+	public void setWindowMillis(long windowMillis) {
+		if (windowMillis < 1) {
+			throw new IllegalArgumentException("window must be positive: " + windowMillis);
+		}
+		this.windowMillis = windowMillis;
+	}
+}
@@ -0,0 +1,99 @@
+package com.itu.snmp.nms;
+
+/**
+ * One received trap. Created once when the trap is decoded and then handed,
+ * unchanged, to every later step: persisting, the follow-up GET and saving
+ * its response. Because every step gets the trap it is working for, traps
+ * can be handled in parallel without mixing up their agents.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public final class TrapEvent {
+
+	private final long timestamp;
+	private final String agentId;
+	private final String agentAddress;
+	private final String alarmCode;
+	private final String alarmText;
+	private final int repeats;
+
+	/**
+	 * Constructor
+	 * @param timestamp When the trap was received, milliseconds since 1970
+	 * @param agentId ID of the agent sending the trap
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param alarmCode The alarm code
+	 * @param alarmText The alarm text
+	 */
+	public TrapEvent(long timestamp, String agentId, String agentAddress, String alarmCode, String alarmText) {
+		this(timestamp, agentId, agentAddress, alarmCode, alarmText, 0);
+	}
+
+	/**
+	 * Constructor
+	 * @param timestamp When the trap was received, milliseconds since 1970
+	 * @param agentId ID of the agent sending the trap
+	 * @param agentAddress agent's address in form of url/port, i.e. 127.0.0.1/161
+	 * @param alarmCode The alarm code
+	 * @param alarmText The alarm text
+	 * @param repeats How many traps of the alarm this one stands for after the first,
+	 * 0 for one trap, see {@link RepeatedAlarm}
+	 */
+	public TrapEvent(long timestamp, String agentId, String agentAddress, String alarmCode, String alarmText,
+			int repeats) {
+		this.timestamp = timestamp;
+		this.agentId = agentId;
+		this.agentAddress = agentAddress;
+		this.alarmCode = alarmCode;
+		this.alarmText = alarmText;
+		this.repeats = repeats;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return When the trap was received, dd.MM.yyyy HH:mm:ss.SSS
+	 */
+	public String getDate() {
+		return TimestampFormat.format(timestamp);
+	}
+
+	public String getAgentId() {
+		return agentId;
+	}
+
+	public String getAgentAddress() {
+		return agentAddress;
+	}
+
+	public String getAlarmCode() {
+		return alarmCode;
+	}
+
+	public String getAlarmText() {
+		return alarmText;
+	}
+
+	/**
+	 * @return How many repeats of the alarm this summary stands for, 0 for one trap
+	 */
+	public int getRepeats() {
+		return repeats;
+	}
+
+	/**
+	 * @return The alarm as code:text
+	 */
+	public String getMessage() {
+		return alarmCode + ":" + alarmText;
+	}
+
+	@Override
+	public String toString() {
+		return getDate() + " " + agentId + "(" + agentAddress + ") " + getMessage()
+				+ (repeats > 0 ? " repeated " + repeats + " times" : "");
+	}
+}
@@ -0,0 +1,344 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Forwards the persisted traps downstream, in batches, through an {@link ExportSink}.
+ *
+ * The persist stage only offers a trap to a bounded queue; when the queue is full the
+ * trap is counted as dropped. Everything else runs on the exporter's own thread, so a
+ * slow or broken downstream never holds up receiving traps.
+ *
+ * The thread collects a batch until it has batchRecords traps or batchMillis has passed
+ * since its first trap, and encodes it in {@link ExportFormat}, compressed if asked.
+ * When the sink fails, the batch goes to a buffer directory on disk, and so does every
+ * later batch until the sink works again, so the batches arrive in order. The buffer is
+ * tried again after retryMillis, doubling up to a minute while the sink keeps failing.
+ * When the buffer grows over bufferBytes, its oldest batches are dropped. Batches left
+ * in the buffer when the NMS stops are sent after the next start.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class TrapExporter {
+
+	private static final Logger logger = Logger.getLogger(TrapExporter.class);
+
+	public static final int DEFAULT_BATCH_RECORDS = 1000;
+	public static final long DEFAULT_BATCH_MILLIS = 1000;
+	public static final int DEFAULT_CAPACITY = 100000;
+	public static final long DEFAULT_BUFFER_BYTES = 256L * 1024 * 1024;
+	public static final long DEFAULT_RETRY = 1000;
+	public static final long MAX_RETRY = 60000;
+
+	private final ExportSink sink;
+	private final int batchRecords;
+	private final long batchNanos;
+	private final boolean compress;
+	private final BlockingQueue<TrapEvent> queue;
+	private final FrameDirectory buffer;
+	private final long bufferBytes;
+	private final long retryMillis;
+	private final AtomicLong records;
+	private final AtomicLong batches;
+	private final AtomicLong bytes;
+	private final AtomicLong dropped;
+	private final AtomicLong failures;
+	private final AtomicLong buffered;
+	private long retryDelay;
+	private long nextRetry;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Constructor, nothing is sent before {@link #start()}.
+	 * @param sink Where the batches go
+	 * @param batchRecords Most traps in a batch
+	 * @param batchMillis Longest time a trap waits for its batch to fill
+	 * @param compress If true, the batches are deflated
+	 * @param capacity Traps queued for the exporter thread
+	 * @param bufferDir Directory of the batches waiting for the sink
+	 * @param bufferBytes Most bytes of waiting batches
+	 * @param retryMillis First wait before the sink is tried again
+	 * @param metrics Where the exported and dropped traps are counted
+	 * @throws IOException if the buffer directory could not be created or read
+	 */
+	public TrapExporter(ExportSink sink, int batchRecords, long batchMillis, boolean compress, int capacity,
+			File bufferDir, long bufferBytes, long retryMillis, NmsMetrics metrics) throws IOException {
+		if (batchRecords < 1 || batchMillis < 1 || capacity < 1 || retryMillis < 1) {
+			throw new IllegalArgumentException("batchRecords, batchMillis, capacity and retryMillis must be positive");
+		}
+		this.sink = sink;
+		this.batchRecords = batchRecords;
+		this.batchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+		this.compress = compress;
+		this.queue = new ArrayBlockingQueue<TrapEvent>(capacity);
+		this.buffer = new FrameDirectory(bufferDir);
+		this.bufferBytes = bufferBytes;
+		this.retryMillis = retryMillis;
+		this.retryDelay = retryMillis;
+		this.records = metrics.counter("export_records");
+		this.batches = metrics.counter("export_batches");
+		this.bytes = metrics.counter("export_bytes");
+		this.dropped = metrics.counter("export_dropped");
+		this.failures = metrics.counter("export_failures");
+		this.buffered = metrics.counter("export_buffered");
+		metrics.gauge("export_queue", new NmsMetrics.Gauge() {
+			public long value() {
+				return queue.size();
+			}
+		});
+		metrics.gauge("export_buffer_bytes", new NmsMetrics.Gauge() {
+			public long value() {
+				return buffer.bytes();
+			}
+		});
+	}
+
+	/**
+	 * Creates an exporter configured with the system properties nms.export.sink (none,
+	 * tcp or spool), nms.export.address, nms.export.dir, nms.export.batchRecords,
+	 * nms.export.batchMillis, nms.export.compress, nms.export.capacity,
+	 * nms.export.bufferDir, nms.export.bufferBytes, nms.export.retryMillis and
+	 * nms.export.timeout.
+	 * @param metrics Where the exported and dropped traps are counted
+	 * @return The exporter, not yet started, or null if nms.export.sink is none
+	 * @throws IOException if the spool or buffer directory could not be created or read
+	 */
+	public static TrapExporter fromSystemProperties(NmsMetrics metrics) throws IOException {
+		String type = System.getProperty("nms.export.sink", "none");
+		ExportSink sink;
+		if (type.equals("tcp")) {
+			sink = new TcpExportSink(System.getProperty("nms.export.address", "127.0.0.1/1750"),
+					Integer.getInteger("nms.export.timeout", TcpExportSink.DEFAULT_TIMEOUT));
+		}
+		else if (type.equals("spool")) {
+			sink = new SpoolExportSink(new File(System.getProperty("nms.export.dir", "export")));
+		}
+		else {
+			return null;
+		}
+		return new TrapExporter(sink, Integer.getInteger("nms.export.batchRecords", DEFAULT_BATCH_RECORDS),
+				Long.getLong("nms.export.batchMillis", DEFAULT_BATCH_MILLIS),
+				Boolean.parseBoolean(System.getProperty("nms.export.compress", "true")),
+				Integer.getInteger("nms.export.capacity", DEFAULT_CAPACITY),
+				new File(System.getProperty("nms.export.bufferDir", "exportbuffer")),
+				Long.getLong("nms.export.bufferBytes", DEFAULT_BUFFER_BYTES),
+				Long.getLong("nms.export.retryMillis", DEFAULT_RETRY), metrics);
+	}
+
+	/**
+	 * Queues a trap for export, never waits.
+	 * @param trap A persisted trap
+	 * @return false if the queue was full and the trap was dropped
+	 */
+	public boolean offer(TrapEvent trap) {
+		if (queue.offer(trap)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Starts the exporter thread.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				export();
+			}
+		}, "export");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Exporting traps to " + sink + (buffer.size() > 0
+				? ", " + buffer.size() + " batches waiting in " + buffer.getDirectory() : "") + ".");
+	}
+
+	/**
+	 * Exports the queued traps, or buffers them if the sink fails, and stops the thread.
+	 * @param timeoutMillis How long to wait for the thread
+	 */
+	public void stop(long timeoutMillis) {
+		Thread stopping;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			stopping = thread;
+		}
+		stopping.interrupt();
+		try {
+			stopping.join(timeoutMillis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return Batches waiting in the buffer directory for the sink
+	 */
+	public int getBuffered() {
+		return buffer.size();
+	}
+
+	private void export() {
+		List<TrapEvent> batch = new ArrayList<TrapEvent>(batchRecords);
+		try {
+			while (true) {
+				boolean stopping = !running;
+				collect(batch, stopping);
+				if (!batch.isEmpty()) {
+					send(ExportFormat.encode(batch, compress));
+					batch.clear();
+				}
+				else if (stopping) {
+					break;
+				}
+				if (buffer.size() > 0 && System.currentTimeMillis() >= nextRetry) {
+					replay();
+				}
+			}
+		}
+		finally {
+			sink.close();
+		}
+	}
+
+	/**
+	 * Takes traps from the queue until the batch is full or batchMillis has passed since
+	 * its first trap. Waits at most batchMillis for the first trap, or not at all when
+	 * stopping.
+	 */
+	private void collect(List<TrapEvent> batch, boolean stopping) {
+		long deadline = System.nanoTime() + batchNanos;
+		while (batch.size() < batchRecords) {
+			TrapEvent trap = queue.poll();
+			if (trap == null) {
+				long wait = deadline - System.nanoTime();
+				if (stopping || wait <= 0) {
+					return;
+				}
+				try {
+					trap = queue.poll(wait, TimeUnit.NANOSECONDS);
+				}
+				catch (InterruptedException e) {
+					// stop() wakes the thread to drain the queue at once
+					stopping = true;
+					continue;
+				}
+				if (trap == null) {
+					return;
+				}
+			}
+			if (batch.isEmpty()) {
+				deadline = System.nanoTime() + batchNanos;
+			}
+			batch.add(trap);
+		}
+	}
+
+	/**
+	 * Sends a new batch, or adds it to the buffer if older batches are waiting there or
+	 * the sink fails.
+	 */
+	private void send(byte[] frame) {
+		if (buffer.size() == 0 && System.currentTimeMillis() >= nextRetry) {
+			try {
+				sink.write(frame);
+				sent(frame);
+				return;
+			}
+			catch (IOException e) {
+				failed(e);
+			}
+		}
+		try {
+			buffer.append(frame);
+			buffered.incrementAndGet();
+		}
+		catch (IOException e) {
+			logger.error("Could not buffer an export batch: " + e.toString());
+			dropped.addAndGet(ExportFormat.recordCount(frame));
+			return;
+		}
+		while (buffer.bytes() > bufferBytes && buffer.size() > 1) {
+			File oldest = buffer.oldest();
+			dropped.addAndGet(count(oldest));
+			buffer.remove(oldest);
+		}
+	}
+
+	/**
+	 * Sends the buffered batches, oldest first, until the sink fails, the buffer is
+	 * empty, a new batch is ready in the queue or the exporter is stopping.
+	 */
+	private void replay() {
+		File file;
+		while ((file = buffer.oldest()) != null) {
+			byte[] frame;
+			try {
+				frame = buffer.read(file);
+			}
+			catch (IOException e) {
+				logger.error("Could not read the buffered export batch " + file + ": " + e.toString());
+				buffer.remove(file);
+				continue;
+			}
+			try {
+				sink.write(frame);
+			}
+			catch (IOException e) {
+				failed(e);
+				return;
+			}
+			buffer.remove(file);
+			sent(frame);
+			if (!running || queue.size() >= batchRecords) {
+				return;
+			}
+		}
+		logger.info("Export buffer sent to " + sink + ".");
+	}
+
+	private void sent(byte[] frame) {
+		batches.incrementAndGet();
+		records.addAndGet(ExportFormat.recordCount(frame));
+		bytes.addAndGet(frame.length);
+		retryDelay = retryMillis;
+		nextRetry = 0;
+	}
+
+	private void failed(IOException e) {
+		failures.incrementAndGet();
+		if (nextRetry == 0) {
+			logger.warn("Could not export to " + sink + ", buffering in " + buffer.getDirectory() + ": " + e.toString());
+		}
+		nextRetry = System.currentTimeMillis() + retryDelay;
+		retryDelay = Math.min(retryDelay * 2, MAX_RETRY);
+	}
+
+	private int count(File file) {
+		try {
+			return ExportFormat.recordCount(buffer.read(file));
+		}
+		catch (IOException e) {
+			return 0;
+		}
+	}
+}
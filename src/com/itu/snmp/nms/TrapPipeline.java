@@ -0,0 +1,246 @@
+package com.itu.snmp.nms;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * The staged trap handling of the NMS: receive -> decode -> persist -> GET -> notify.
+ *
+ * Receiving is done by the transport listen thread, which hands the datagrams to
+ * a pool of message dispatcher threads for BER decoding. Every other stage has
+ * a bounded queue, its own workers and an overflow policy. By default decode and
+ * persist block when full, so a slow disk pushes back all the way to the socket,
+ * while the GET and notify stages drop their oldest work, so a slow agent or a
+ * slow listener, like a busy GUI, never stalls trap intake.
+ *
+ * The SNMPv2c traps of the agents can skip the message dispatcher: the
+ * {@link LazyTrapDecoder} finds their alarm fields in the received bytes and the
+ * decode stage makes the strings of just those fields.
+ *
+ * The decode stage also drops the repeats of an alarm within the deduplication
+ * window, see {@link TrapDeduplicator}, so they are neither persisted nor followed
+ * up with a GET.
+ *
+ * The stages are configured with system properties, see {@link StageConfig#fromSystemProperties}.
+ *
+ * @author Petri Tilli
+ *
+ */
+public class TrapPipeline {
+
+	private static final Logger logger = Logger.getLogger(TrapPipeline.class);
+
+	public static final StageConfig DEFAULT_RECEIVE = new StageConfig(2, 1, OverflowPolicy.BLOCK);
+	public static final StageConfig DEFAULT_DECODE = new StageConfig(2, 10000, OverflowPolicy.BLOCK);
+	public static final StageConfig DEFAULT_PERSIST = new StageConfig(1, 10000, OverflowPolicy.BLOCK);
+	public static final StageConfig DEFAULT_GET = new StageConfig(16, 1000, OverflowPolicy.DROP_OLDEST);
+	public static final StageConfig DEFAULT_NOTIFY = new StageConfig(1, 1000, OverflowPolicy.DROP_OLDEST);
+
+	private final StageConfig receiveConfig;
+	private final PipelineStage<Object> decodeStage;
+	private final PipelineStage<TrapEvent> persistStage;
+	private final PipelineStage<TrapEvent> getStage;
+	private final PipelineStage<Object> notifyStage;
+	private ThreadPool receivePool;
+
+	/**
+	 * Constructor
+	 * @param nms The server doing the actual work of each stage
+	 * @param receive Configuration of the receive stage, only the worker count is used
+	 * @param decode Configuration of the decode stage
+	 * @param persist Configuration of the persist stage
+	 * @param get Configuration of the GET stage
+	 * @param notify Configuration of the notify stage, which calls the listeners
+	 */
+	public TrapPipeline(final SnmpNms nms, StageConfig receive, StageConfig decode,
+			StageConfig persist, StageConfig get, StageConfig notify) {
+		this.receiveConfig = receive;
+		this.notifyStage = new PipelineStage<Object>("notify", notify, new StageHandler<Object>() {
+			public void handle(Object event) {
+				nms.notifyListeners(event);
+			}
+		});
+		this.getStage = new PipelineStage<TrapEvent>("get", get, new StageHandler<TrapEvent>() {
+			public void handle(TrapEvent trap) {
+				nms.makeGetToAgent(trap);
+			}
+		});
+		this.persistStage = new PipelineStage<TrapEvent>("persist", persist, new StageHandler<TrapEvent>() {
+			public void handle(TrapEvent trap) {
+				nms.saveTrap(trap);
+				getStage.offer(trap);
+			}
+		});
+		this.decodeStage = new PipelineStage<Object>("decode", decode, new StageHandler<Object>() {
+			public void handle(Object received) {
+				TrapEvent trap = received instanceof RawTrap ? nms.decodeTrap((RawTrap) received)
+						: nms.decodeTrap((PDU) received);
+				if (nms.acceptTrap(trap)) {
+					publish(trap);
+					persistStage.offer(trap);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates a pipeline configured from system properties.
+	 * @param nms The server doing the actual work of each stage
+	 * @return The pipeline, not yet started
+	 */
+	public static TrapPipeline fromSystemProperties(SnmpNms nms) {
+		return new TrapPipeline(nms,
+				StageConfig.fromSystemProperties("receive", DEFAULT_RECEIVE),
+				StageConfig.fromSystemProperties("decode", DEFAULT_DECODE),
+				StageConfig.fromSystemProperties("persist", DEFAULT_PERSIST),
+				StageConfig.fromSystemProperties("get", DEFAULT_GET),
+				StageConfig.fromSystemProperties("notify", DEFAULT_NOTIFY));
+	}
+
+	/**
+	 * Creates the message dispatcher of the receive stage. Its worker threads do the BER
+	 * decoding of incoming messages and hand the trap PDUs over to the decode stage.
+	 * @return A dispatcher handling SNMPv1 and SNMPv2c messages
+	 */
+	public MessageDispatcher createMessageDispatcher() {
+		return createMessageDispatcher(false);
+	}
+
+	/**
+	 * Creates the message dispatcher of the receive stage.
+	 * @param onTransportThreads If true, the BER decoding is done on the threads of the
+	 * transport, i.e. one per socket of a {@link MultiSocketUdpTransportMapping}, and the
+	 * receive stage has no workers of its own
+	 * @return A dispatcher handling SNMPv1 and SNMPv2c messages
+	 */
+	public synchronized MessageDispatcher createMessageDispatcher(boolean onTransportThreads) {
+		MessageDispatcher dispatcher;
+		if (onTransportThreads) {
+			dispatcher = new MessageDispatcherImpl();
+		}
+		else {
+			receivePool = ThreadPool.create("receive", receiveConfig.getWorkers());
+			dispatcher = new MultiThreadedMessageDispatcher(receivePool, new MessageDispatcherImpl());
+		}
+		dispatcher.addMessageProcessingModel(new MPv1());
+		dispatcher.addMessageProcessingModel(new MPv2c());
+		return dispatcher;
+	}
+
+	/**
+	 * Starts the workers of every stage.
+	 */
+	public void start() {
+		notifyStage.start();
+		getStage.start();
+		persistStage.start();
+		decodeStage.start();
+	}
+
+	/**
+	 * Hands a received trap to the decode stage.
+	 * @param trap The trap PDU
+	 * @return false if the trap was dropped
+	 */
+	public boolean submit(PDU trap) {
+		return decodeStage.offer(trap);
+	}
+
+	/**
+	 * Hands a trap found by the {@link LazyTrapDecoder} to the decode stage.
+	 * @param trap The trap in its BER encoding
+	 * @return false if the trap was dropped
+	 */
+	public boolean submit(RawTrap trap) {
+		return decodeStage.offer(trap);
+	}
+
+	/**
+	 * Hands an event to the notify stage.
+	 * @param event A {@link TrapEvent} or a {@link GetResponseEvent}
+	 */
+	public void publish(Object event) {
+		notifyStage.offer(event);
+	}
+
+	/**
+	 * Adds the queue size and the accepted, dropped, processed and failed item
+	 * counts of every stage to the metrics.
+	 * @param metrics The metrics of the server
+	 */
+	public void registerMetrics(NmsMetrics metrics) {
+		registerMetrics(metrics, decodeStage);
+		registerMetrics(metrics, persistStage);
+		registerMetrics(metrics, getStage);
+		registerMetrics(metrics, notifyStage);
+	}
+
+	private static void registerMetrics(NmsMetrics metrics, final PipelineStage<?> stage) {
+		String labels = "{stage=\"" + stage.getName() + "\"}";
+		metrics.gauge("stage_queue_size" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return stage.getQueueSize();
+			}
+		});
+		metrics.gauge("stage_accepted" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return stage.getAccepted();
+			}
+		});
+		metrics.gauge("stage_dropped" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return stage.getDropped();
+			}
+		});
+		metrics.gauge("stage_processed" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return stage.getProcessed();
+			}
+		});
+		metrics.gauge("stage_failed" + labels, new NmsMetrics.Gauge() {
+			public long value() {
+				return stage.getFailed();
+			}
+		});
+	}
+
+	/**
+	 * Stops the stages in the order the traps flow through them, so that work
+	 * already accepted is finished if it fits in the timeout.
+	 * @param timeoutMillis How long to wait for each stage
+	 */
+	public void shutdown(long timeoutMillis) {
+		synchronized (this) {
+			if (receivePool != null) {
+				receivePool.stop();
+			}
+		}
+		decodeStage.shutdown(timeoutMillis);
+		persistStage.shutdown(timeoutMillis);
+		getStage.shutdown(timeoutMillis);
+		notifyStage.shutdown(timeoutMillis);
+		logger.info("Pipeline stopped.");
+	}
+
+	public PipelineStage<Object> getDecodeStage() {
+		return decodeStage;
+	}
+
+	public PipelineStage<TrapEvent> getPersistStage() {
+		return persistStage;
+	}
+
+	public PipelineStage<TrapEvent> getGetStage() {
+		return getStage;
+	}
+
+	public PipelineStage<Object> getNotifyStage() {
+		return notifyStage;
+	}
+}
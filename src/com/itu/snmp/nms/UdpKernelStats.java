@@ -0,0 +1,151 @@
+package com.itu.snmp.nms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the kernel's counters of the UDP sockets listening to a port from
+ * /proc/net/udp and /proc/net/udp6: the datagrams dropped because a receive buffer
+ * was full and the bytes waiting in the receive buffers. Also the host-wide
+ * RcvbufErrors from /proc/net/snmp. Where there is no /proc, the counters are -1.
+ *
+ * @author Petri Tilli
+ *
+ */
+public final class UdpKernelStats {
+
+	private static final String[] SOCKET_TABLES = { "/proc/net/udp", "/proc/net/udp6" };
+	private static final String SNMP_TABLE = "/proc/net/snmp";
+
+	private UdpKernelStats() {
+	}
+
+	/**
+	 * @param port A local UDP port
+	 * @return Datagrams dropped by the sockets of the port, or -1 if not known
+	 */
+	public static long drops(int port) {
+		return sum(port, false);
+	}
+
+	/**
+	 * @param port A local UDP port
+	 * @return Bytes waiting in the receive buffers of the sockets of the port, or -1 if not known
+	 */
+	public static long queuedBytes(int port) {
+		return sum(port, true);
+	}
+
+	/**
+	 * @return Datagrams the host dropped because of a full receive buffer, or -1 if not known
+	 */
+	public static long receiveBufferErrors() {
+		File file = new File(SNMP_TABLE);
+		if (!file.canRead()) {
+			return -1;
+		}
+		try {
+			Reader in = new FileReader(file);
+			try {
+				return parseReceiveBufferErrors(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static long sum(int port, boolean queued) {
+		long total = -1;
+		for (String table : SOCKET_TABLES) {
+			File file = new File(table);
+			if (!file.canRead()) {
+				continue;
+			}
+			try {
+				Reader in = new FileReader(file);
+				try {
+					total = Math.max(total, 0) + parseSockets(in, port, queued);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				// the socket table is gone, i.e. no IPv6
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Sums a counter over the sockets of a port in a /proc/net/udp table, whose lines
+	 * are like "0: 0100007F:0654 00000000:0000 07 00000000:00000000 00:00000000
+	 * 00000000 0 0 12345 2 0000000000000000 17", the last column being the drops.
+	 * @param in The table
+	 * @param port A local UDP port
+	 * @param queued true for the bytes in the receive buffers, false for the drops
+	 * @return The sum, 0 if no socket listens to the port
+	 * @throws IOException if reading fails
+	 */
+	static long parseSockets(Reader in, int port, boolean queued) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		String line = reader.readLine(); // header
+		long total = 0;
+		while ((line = reader.readLine()) != null) {
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length < 13) {
+				continue;
+			}
+			String local = columns[1];
+			int colon = local.lastIndexOf(':');
+			if (colon < 0 || Integer.parseInt(local.substring(colon + 1), 16) != port) {
+				continue;
+			}
+			if (queued) {
+				String queues = columns[4];
+				total += Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16);
+			}
+			else {
+				total += Long.parseLong(columns[columns.length - 1]);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Finds RcvbufErrors in the Udp lines of /proc/net/snmp, a line of names followed
+	 * by a line of values.
+	 * @param in The table
+	 * @return The count, or -1 if it is not in the table
+	 * @throws IOException if reading fails
+	 */
+	static long parseReceiveBufferErrors(Reader in) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		String[] names = null;
+		while ((line = reader.readLine()) != null) {
+			if (!line.startsWith("Udp:")) {
+				continue;
+			}
+			String[] columns = line.trim().split("\\s+");
+			if (names == null) {
+				names = columns;
+				continue;
+			}
+			for (int i = 1; i < names.length && i < columns.length; i++) {
+				if (names[i].equals("RcvbufErrors")) {
+					return Long.parseLong(columns[i]);
+				}
+			}
+			return -1;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,76 @@
+package com.itu.snmp.nms;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates executors running each task on a virtual thread. The project is built for
+ * Java versions without virtual threads, so they are looked up by reflection; on
+ * those versions the executors start a platform thread per task instead.
+ * 
+ * @author Petri Tilli
+ *
+ */
+public final class VirtualThreads {
+
+	private static final Logger logger = Logger.getLogger(VirtualThreads.class);
+
+	private static final Method OF_VIRTUAL = find(Thread.class, "ofVirtual");
+	private static final Method NAME = OF_VIRTUAL == null ? null
+			: find(OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+	private static final Method FACTORY = OF_VIRTUAL == null ? null : find(OF_VIRTUAL.getReturnType(), "factory");
+	private static final Method NEW_EXECUTOR = find(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private VirtualThreads() {
+	}
+
+	private static Method find(Class<?> type, String name, Class<?>... parameters) {
+		try {
+			return type.getMethod(name, parameters);
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this Java has virtual threads
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task, or a new daemon
+	 * platform thread if this Java has no virtual threads.
+	 * @param name Prefix of the thread names
+	 * @return The executor
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(final String name) {
+		if (isAvailable()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", Long.valueOf(0));
+				return (ExecutorService) NEW_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+			}
+			catch (Exception e) {
+				logger.warn("Not able to create virtual threads, using platform threads: " + e.toString());
+			}
+		}
+		else {
+			logger.warn("No virtual threads in Java " + System.getProperty("java.version") + ", using platform threads.");
+		}
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
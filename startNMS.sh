@@ -1 +1 @@
-java -cp petes-snmp-proj.jar:log4j-1.2.17.jar:snmp4j-2.1.0.jar com.itu.snmp.nms.SnmpNms
\ No newline at end of file
+java -cp petes-snmp-proj.jar:log4j-1.2.17.jar:snmp4j-2.1.0.jar com.itu.snmp.nms.SnmpNms "$@"
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.itu.snmp.agent;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class AgentSimulatorTest extends TestCase {
+
+	private static final String NMS = "127.0.0.1/1622";
+	private static final int BASE_PORT = 21000;
+
+	private AgentSimulator simulator;
+	private Snmp nms;
+
+	public void setUp() throws Exception {
+		simulator = new AgentSimulator("127.0.0.1", BASE_PORT, NMS, 2000);
+		simulator.start(20);
+		nms = new Snmp(new DefaultUdpTransportMapping(new UdpAddress(NMS)));
+		nms.listen();
+	}
+
+	public void tearDown() throws Exception {
+		nms.close();
+		simulator.stop();
+	}
+
+	public void testPatternsHaveTheSameMeanRate() {
+		for (AgentSimulator.Pattern pattern : AgentSimulator.Pattern.values()) {
+			assertEquals(0, pattern.due(0, 100, 9000, 10));
+		}
+		assertEquals(450, AgentSimulator.Pattern.STEADY.due(4500, 100, 9000, 10));
+		// a burst sends the whole second's traps in its first 100 ms
+		assertEquals(450, AgentSimulator.Pattern.BURSTY.due(4050, 100, 9000, 10));
+		assertEquals(500, AgentSimulator.Pattern.BURSTY.due(4500, 100, 9000, 10));
+		// the storm is the middle third, 3 to 6 s
+		assertEquals(300, AgentSimulator.Pattern.STORM.due(3000, 100, 9000, 10));
+		assertEquals(1300, AgentSimulator.Pattern.STORM.due(4000, 100, 9000, 10));
+		assertEquals(3400, AgentSimulator.Pattern.STORM.due(7000, 100, 9000, 10));
+	}
+
+	public void testAnswersGets() throws Exception {
+		PDU request = new PDU();
+		request.setType(PDU.GET);
+		request.add(new VariableBinding(SnmpConstants.sysDescr));
+		request.add(new VariableBinding(SnmpConstants.sysName));
+		request.add(new VariableBinding(SnmpConstants.snmpEngineID));
+		request.add(new VariableBinding(new OID("1.3.6.1.2.1.1.4.0")));
+		ResponseEvent event = nms.send(request, target(simulator.getAgentAddress(3)));
+		PDU response = event.getResponse();
+		assertNotNull(response);
+		assertEquals(new OctetString("sim3 says Hello."), response.getVariable(SnmpConstants.sysDescr));
+		assertEquals(new OctetString("sim3"), response.getVariable(SnmpConstants.sysName));
+		assertTrue(((OctetString) response.getVariable(SnmpConstants.snmpEngineID)).length() > 5);
+		assertEquals(Null.noSuchObject, response.get(3).getVariable());
+		// a GET without a trap before it is not a follow-up
+		assertEquals(0, simulator.getAnswered());
+		assertEquals(1, simulator.getRequests());
+	}
+
+	public void testMeasuresTheFollowUpGets() throws Exception {
+		nms.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent event) {
+				String agent = event.getPDU().getVariable(new OID("1.2.3.4.5.4")).toString();
+				PDU request = new PDU();
+				request.setType(PDU.GET);
+				request.add(new VariableBinding(SnmpConstants.sysDescr));
+				try {
+					nms.send(request, target(agent), null, new org.snmp4j.event.ResponseListener() {
+						public void onResponse(ResponseEvent response) {
+							((Snmp) response.getSource()).cancel(response.getRequest(), this);
+						}
+					});
+				}
+				catch (IOException e) {
+					fail(e.toString());
+				}
+			}
+		});
+		String report = simulator.run(AgentSimulator.Pattern.STEADY, 200, 500, 1);
+		assertEquals(100, simulator.getSent());
+		assertEquals(100, simulator.getAnswered());
+		assertEquals(0, simulator.getLost());
+		assertEquals(0, simulator.getPending());
+		assertEquals(100, simulator.getLatency().getCount());
+		assertTrue(report, report.contains("100 answered"));
+	}
+
+	public void testCountsTrapsWithoutGetLost() throws Exception {
+		// all of the first second's traps go in its first 100 ms
+		simulator.run(AgentSimulator.Pattern.BURSTY, 100, 300, 1);
+		assertEquals(100, simulator.getSent());
+		assertEquals(0, simulator.getAnswered());
+		assertEquals(100, simulator.getLost());
+	}
+
+	public void testCountsOverflowingTrapsLost() throws Exception {
+		// more traps than an agent keeps send times for, all from the one agent
+		AgentSimulator single = new AgentSimulator("127.0.0.1", BASE_PORT + 100, NMS, 200);
+		single.start(1);
+		try {
+			single.run(AgentSimulator.Pattern.BURSTY, 400, 300, 1);
+			assertEquals(400, single.getSent());
+			assertEquals(0, single.getAnswered());
+			assertEquals(single.getSent(), single.getLost());
+		}
+		finally {
+			single.stop();
+		}
+	}
+
+	private static CommunityTarget target(String address) {
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString("public"));
+		target.setVersion(SnmpConstants.version2c);
+		target.setAddress(new UdpAddress(address));
+		target.setTimeout(1000);
+		return target;
+	}
+}
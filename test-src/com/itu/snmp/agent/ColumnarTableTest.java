@@ -0,0 +1,90 @@
+package com.itu.snmp.agent;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.agent.DefaultMOScope;
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+public class ColumnarTableTest extends TestCase {
+
+	private InterfaceTable table = new InterfaceTable(3);
+
+	private OID after(String oid) {
+		return table.find(new DefaultMOScope(new OID(oid), false, null, false));
+	}
+
+	private OID from(String oid) {
+		return table.find(new DefaultMOScope(new OID(oid), true, null, false));
+	}
+
+	public void testFind() {
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.1"), after("1.3.6.1.2.1.1.1.0"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.1"), after("1.3.6.1.2.1.2.2"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.1"), after("1.3.6.1.2.1.2.2.1"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.1"), after("1.3.6.1.2.1.2.2.1.1"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.2"), after("1.3.6.1.2.1.2.2.1.1.1"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.2"), after("1.3.6.1.2.1.2.2.1.1.1.5"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.1"), after("1.3.6.1.2.1.2.2.1.1.0"));
+		// the last row goes on to the next column, a missing column to the one after it
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.2.1"), after("1.3.6.1.2.1.2.2.1.1.3"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.7.1"), after("1.3.6.1.2.1.2.2.1.6.9"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.2.1"), after("1.3.6.1.2.1.2.2.1.1.4294967295"));
+		assertNull(after("1.3.6.1.2.1.2.2.1.20.3"));
+		assertNull(after("1.3.6.1.2.1.2.2.1.21"));
+		assertNull(after("1.3.6.1.2.1.2.3"));
+
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.2"), from("1.3.6.1.2.1.2.2.1.1.2"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.1.3"), from("1.3.6.1.2.1.2.2.1.1.2.0"));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.2.1"), from("1.3.6.1.2.1.2.2.1.1.4"));
+	}
+
+	public void testFindWithinUpperBound() {
+		assertNull(table.find(new DefaultMOScope(new OID("1.3.6.1.2.1.2.2.1.1.3"), false,
+				new OID("1.3.6.1.2.1.2.2.1.2.1"), false)));
+		assertEquals(new OID("1.3.6.1.2.1.2.2.1.2.1"), table.find(new DefaultMOScope(
+				new OID("1.3.6.1.2.1.2.2.1.1.3"), false, new OID("1.3.6.1.2.1.2.2.1.2.1"), true)));
+	}
+
+	public void testValues() {
+		assertEquals(new Integer32(2), table.getVariable(InterfaceTable.IF_INDEX, 2));
+		assertEquals(new OctetString("eth1"), table.getVariable(InterfaceTable.IF_DESCR, 2));
+		assertEquals(new Gauge32(1000000000L), table.getVariable(InterfaceTable.IF_SPEED, 2));
+
+		table.addTraffic(2, 1000, 0);
+		assertEquals(1000, table.get(InterfaceTable.IF_IN_OCTETS, 2));
+		assertEquals(2, table.get(InterfaceTable.IF_IN_UCAST_PKTS, 2));
+		assertEquals(0, table.get(InterfaceTable.IF_IN_OCTETS, 1));
+		// Counter32 wraps
+		table.set(InterfaceTable.IF_OUT_OCTETS, 3, 0xffffffffL);
+		table.add(InterfaceTable.IF_OUT_OCTETS, 3, 2);
+		assertEquals(new Counter32(1), table.getVariable(InterfaceTable.IF_OUT_OCTETS, 3));
+	}
+
+	public void testInvalid() {
+		try {
+			table.set(InterfaceTable.IF_DESCR, 1, 5);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			table.set(6, 1, 5);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			table.get(InterfaceTable.IF_IN_OCTETS, 4);
+			fail();
+		}
+		catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+}
@@ -1,5 +1,10 @@
 package com.itu.snmp.agent;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 import org.snmp4j.PDU;
@@ -7,6 +12,7 @@ import org.snmp4j.agent.AgentConfigManager;
 import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
 
 public class SnmpAgentTest extends TestCase {
 
@@ -17,6 +23,7 @@ public class SnmpAgentTest extends TestCase {
 	}
 	
 	public void tearDown() {
+		agent.stop();
 		agent = null;
 	}
 	
@@ -29,5 +36,37 @@ public class SnmpAgentTest extends TestCase {
 		assertTrue(trap.getVariable(new OID("1.2.3.4.5.3")).equals(new OctetString("Elevator jammed!")));
 		assertTrue(trap.getVariable(new OID("1.2.3.4.5.4")).equals(new OctetString("127.0.0.1/1610")));
 	}
-	
+
+	public void testSendTraps() throws Exception {
+		DatagramChannel nms = DatagramChannel.open();
+		try {
+			nms.bind(new InetSocketAddress("127.0.0.1", 1623));
+			agent.setTrapSendingAddress("127.0.0.1/1623");
+			assertEquals(5, agent.sendTraps(5, "42", "Door stuck"));
+			ByteBuffer buffer = ByteBuffer.allocate(65535);
+			int lastRequestId = 0;
+			for (int i = 0; i < 5; i++) {
+				buffer.clear();
+				nms.receive(buffer);
+				PDU trap = TrapTemplateTest.decode(Arrays.copyOf(buffer.array(), buffer.position()));
+				assertEquals(PDU.TRAP, trap.getType());
+				assertEquals(new OctetString("42"), trap.getVariable(new OID("1.2.3.4.5.1")));
+				assertEquals(new OctetString("Door stuck"), trap.getVariable(new OID("1.2.3.4.5.3")));
+				assertEquals(new OctetString("127.0.0.1/1610"), trap.getVariable(new OID("1.2.3.4.5.4")));
+				assertTrue(trap.getRequestID().getValue() > lastRequestId);
+				lastRequestId = trap.getRequestID().getValue();
+			}
+		}
+		finally {
+			nms.close();
+		}
+	}
+
+	public void testSysUpTimeRuns() throws Exception {
+		long upTime = agent.getSysUpTime();
+		Thread.sleep(50);
+		assertTrue(agent.getSysUpTime() >= upTime + 4);
+		TimeTicks trapUpTime = (TimeTicks) agent.createTrap().getVariable(SnmpConstants.sysUpTime);
+		assertTrue(trapUpTime.getValue() >= upTime + 4);
+	}
 }
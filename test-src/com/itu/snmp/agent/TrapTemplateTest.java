@@ -0,0 +1,93 @@
+package com.itu.snmp.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+public class TrapTemplateTest extends TestCase {
+
+	private final TrapTemplate template = new TrapTemplate("public", "AGENT_ID", "127.0.0.1/1610");
+
+	public void testIsTheSameAsEncodingThePdu() throws Exception {
+		int[] requestIds = { 0, 1, 127, 128, 255, 256, 65535, Integer.MAX_VALUE, -1, -128, -129, Integer.MIN_VALUE };
+		long[] upTimes = { 0, 5000, 127, 128, 0x7fffffffL, 0x80000000L, 0xffffffffL };
+		ByteBuffer buffer = ByteBuffer.allocate(65535);
+		for (int requestId : requestIds) {
+			for (long upTime : upTimes) {
+				PDU trap = createTrap(requestId, upTime, "666", "Elevator jammed!");
+				buffer.clear();
+				int length = template.encode(buffer, requestId, upTime, "666".getBytes(), "Elevator jammed!".getBytes());
+				assertTrue(requestId + " " + upTime,
+						Arrays.equals(encode(trap), Arrays.copyOf(buffer.array(), length)));
+			}
+		}
+	}
+
+	public void testLongText() throws Exception {
+		char[] text = new char[1000];
+		Arrays.fill(text, 'x');
+		ByteBuffer buffer = ByteBuffer.allocate(65535);
+		int length = template.encode(buffer, 7, 100, "1".getBytes(), new String(text).getBytes());
+		PDU decoded = decode(Arrays.copyOf(buffer.array(), length));
+		assertEquals(new String(text), decoded.getVariable(TrapTemplate.ALARM_TEXT).toString());
+		assertEquals(new TimeTicks(100), decoded.getVariable(SnmpConstants.sysUpTime));
+		assertEquals(7, decoded.getRequestID().getValue());
+	}
+
+	public void testWritesAtThePosition() {
+		ByteBuffer buffer = ByteBuffer.allocate(1000);
+		buffer.position(10);
+		int length = template.encode(buffer, 1, 1, "1".getBytes(), "a".getBytes());
+		assertEquals(10 + length, buffer.position());
+		assertEquals(BER.SEQUENCE, buffer.get(10));
+	}
+
+	private static PDU createTrap(int requestId, long upTime, String code, String text) {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.setRequestID(new Integer32(requestId));
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, TrapTemplate.TRAP_OID));
+		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(upTime)));
+		trap.add(new VariableBinding(SnmpConstants.sysDescr, new OctetString("System Description")));
+		trap.add(new VariableBinding(TrapTemplate.ALARM_CODE, new OctetString(code)));
+		trap.add(new VariableBinding(TrapTemplate.AGENT_ID, new OctetString("AGENT_ID")));
+		trap.add(new VariableBinding(TrapTemplate.ALARM_TEXT, new OctetString(text)));
+		trap.add(new VariableBinding(TrapTemplate.AGENT_ADDRESS, new OctetString("127.0.0.1/1610")));
+		return trap;
+	}
+
+	static byte[] encode(PDU pdu) throws IOException {
+		Integer32 version = new Integer32(SnmpConstants.version2c);
+		OctetString community = new OctetString("public");
+		int length = version.getBERLength() + community.getBERLength() + pdu.getBERLength();
+		byte[] encoded = new byte[1 + BER.getBERLengthOfLength(length) + length];
+		BEROutputStream out = new BEROutputStream(ByteBuffer.wrap(encoded));
+		BER.encodeHeader(out, BER.SEQUENCE, length);
+		version.encodeBER(out);
+		community.encodeBER(out);
+		pdu.encodeBER(out);
+		return encoded;
+	}
+
+	static PDU decode(byte[] message) throws IOException {
+		BERInputStream in = new BERInputStream(ByteBuffer.wrap(message));
+		BER.decodeHeader(in, new BER.MutableByte());
+		new Integer32().decodeBER(in);
+		new OctetString().decodeBER(in);
+		PDU pdu = new PDU();
+		pdu.decodeBER(in);
+		return pdu;
+	}
+}
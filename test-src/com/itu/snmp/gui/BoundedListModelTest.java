@@ -0,0 +1,42 @@
+package com.itu.snmp.gui;
+
+import java.util.Arrays;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+public class BoundedListModelTest extends TestCase {
+
+	private int removed;
+	private int added;
+
+	public void testKeepsLastRows() {
+		BoundedListModel model = new BoundedListModel(3);
+		model.addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent e) {
+				added += e.getIndex1() - e.getIndex0() + 1;
+			}
+			public void intervalRemoved(ListDataEvent e) {
+				removed += e.getIndex1() - e.getIndex0() + 1;
+			}
+			public void contentsChanged(ListDataEvent e) {
+			}
+		});
+		model.addAll(Arrays.asList("a", "b"));
+		assertEquals(2, model.getSize());
+		model.addAll(Arrays.asList("c", "d"));
+		assertEquals(3, model.getSize());
+		assertEquals("b", model.getElementAt(0));
+		assertEquals("d", model.getElementAt(2));
+		assertEquals(1, removed);
+
+		model.addAll(Arrays.asList("e", "f", "g", "h", "i"));
+		assertEquals(3, model.getSize());
+		assertEquals("g", model.getElementAt(0));
+		assertEquals("i", model.getElementAt(2));
+		assertEquals(4, removed);
+		assertEquals(7, added);
+	}
+}
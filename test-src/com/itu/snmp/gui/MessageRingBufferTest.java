@@ -0,0 +1,54 @@
+package com.itu.snmp.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MessageRingBufferTest extends TestCase {
+
+	public void testDrainInOrder() {
+		MessageRingBuffer buffer = new MessageRingBuffer(8);
+		buffer.add("a");
+		buffer.add("b");
+		buffer.add("c");
+		List<String> drained = new ArrayList<String>();
+		assertEquals(2, buffer.drainTo(drained, 2));
+		assertEquals(1, buffer.drainTo(drained, 10));
+		assertEquals("[a, b, c]", drained.toString());
+		assertEquals(0, buffer.drainTo(drained, 10));
+	}
+
+	public void testOverflowKeepsNewest() {
+		MessageRingBuffer buffer = new MessageRingBuffer(4);
+		for (int i = 0; i < 10; i++) {
+			buffer.add("m" + i);
+		}
+		List<String> drained = new ArrayList<String>();
+		buffer.drainTo(drained, 100);
+		assertEquals("[m6, m7, m8, m9]", drained.toString());
+		assertEquals(6, buffer.getLost());
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		final MessageRingBuffer buffer = new MessageRingBuffer(1 << 16);
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						buffer.add("x");
+					}
+				}
+			});
+			writers[t].start();
+		}
+		List<String> drained = new ArrayList<String>();
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		buffer.drainTo(drained, Integer.MAX_VALUE);
+		assertEquals(40000, drained.size());
+		assertEquals(0, buffer.getLost());
+	}
+}
@@ -0,0 +1,100 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AgentHealthTest extends TestCase {
+
+	private final AgentRegistry registry = new AgentRegistry();
+	private final AgentHealth health = new AgentHealth(registry, 10, 10000, 3, 1000);
+	private final int agent = registry.intern("127.0.0.1/161");
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public void testTimeoutFollowsRtt() {
+		assertEquals(10000, health.getTimeout(agent));
+		health.success(agent, millis(20), 10000);
+		// srtt 20 ms and rttvar 10 ms
+		assertEquals(20000, health.getSmoothedRtt(agent));
+		assertEquals(60, health.getTimeout(agent));
+		for (int i = 0; i < 100; i++) {
+			health.success(agent, millis(1), 10000);
+		}
+		// the floor
+		assertEquals(10, health.getTimeout(agent));
+		// a jitter widens the timeout more than it moves the mean
+		health.success(agent, millis(41), 10000);
+		assertEquals(6000, health.getSmoothedRtt(agent));
+		assertEquals(46, health.getTimeout(agent));
+	}
+
+	public void testResponseAfterRetryIsNotSampled() {
+		health.success(agent, millis(20), 10000);
+		health.success(agent, millis(500), 60);
+		assertEquals(20000, health.getSmoothedRtt(agent));
+		assertEquals(120, health.getTimeout(agent));
+	}
+
+	public void testTimeoutsBackOff() {
+		health.success(agent, millis(20), 10000);
+		health.failure(agent, 0);
+		assertEquals(120, health.getTimeout(agent));
+		health.failure(agent, 0);
+		assertEquals(240, health.getTimeout(agent));
+		// a good sample brings it back
+		health.success(agent, millis(20), 240);
+		assertTrue(health.getTimeout(agent) < 120);
+	}
+
+	public void testBreaker() {
+		assertFalse(health.failure(agent, 0));
+		assertFalse(health.failure(agent, 0));
+		assertTrue(health.failure(agent, 0));
+		assertTrue(health.isOpen(agent));
+		assertEquals(1, health.getOpenCount());
+		assertEquals(AgentHealth.Decision.REJECT, health.admit(agent, 999));
+
+		// one probe at a time, a failed one doubles the wait
+		assertEquals(AgentHealth.Decision.PROBE, health.admit(agent, 1000));
+		assertEquals(AgentHealth.Decision.REJECT, health.admit(agent, 1000));
+		health.probed(agent, false, 1000);
+		assertEquals(1, health.getOpenCount());
+		assertEquals(AgentHealth.Decision.REJECT, health.admit(agent, 2999));
+		assertEquals(AgentHealth.Decision.PROBE, health.admit(agent, 3000));
+
+		health.probed(agent, true, 3000);
+		assertFalse(health.isOpen(agent));
+		assertEquals(0, health.getOpenCount());
+		assertEquals(AgentHealth.Decision.SEND, health.admit(agent, 3000));
+		assertEquals(AgentHealth.Decision.SEND, health.admit(registry.intern("127.0.0.1/162"), 0));
+	}
+
+	public void testOpenCount() {
+		int other = registry.intern("127.0.0.1/162");
+		for (int i = 0; i < 3; i++) {
+			health.failure(agent, 0);
+			health.failure(other, 0);
+		}
+		assertEquals(2, health.getOpenCount());
+		// more failures of an open agent do not count it again
+		health.failure(agent, 0);
+		assertEquals(2, health.getOpenCount());
+		// a late response to a request sent before the breaker opened closes it
+		health.success(other, millis(20), 10000);
+		assertFalse(health.isOpen(other));
+		assertEquals(1, health.getOpenCount());
+		health.success(other, millis(20), 10000);
+		assertEquals(1, health.getOpenCount());
+	}
+
+	public void testNoBreaker() {
+		health.setBreaker(0, 1000);
+		for (int i = 0; i < 10; i++) {
+			assertFalse(health.failure(agent, 0));
+		}
+		assertEquals(AgentHealth.Decision.SEND, health.admit(agent, 0));
+	}
+}
@@ -0,0 +1,99 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.CommunityTarget;
+
+public class AgentRegistryTest extends TestCase {
+
+	private final AgentRegistry registry = new AgentRegistry();
+
+	private static String address(int i) {
+		return "10." + (i >>> 16) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff) + "/161";
+	}
+
+	public void testIdsAreDense() {
+		assertEquals(-1, registry.find("127.0.0.1/161"));
+		assertEquals(0, registry.intern("127.0.0.1/161"));
+		assertEquals(1, registry.intern("127.0.0.1/162"));
+		assertEquals(0, registry.intern(new String("127.0.0.1/161")));
+		assertEquals(1, registry.find("127.0.0.1/162"));
+		assertEquals(2, registry.size());
+		assertEquals("127.0.0.1/162", registry.getAddress(1));
+	}
+
+	public void testManyAgents() {
+		// past many pages, chunks of chars and rehashes
+		int count = 200000;
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, registry.intern(address(i)));
+		}
+		assertEquals(count, registry.size());
+		for (int i = 0; i < count; i += 997) {
+			assertEquals(i, registry.find(address(i)));
+			assertEquals(address(i), registry.getAddress(i));
+		}
+		assertEquals(-1, registry.find(address(count)));
+	}
+
+	public void testState() {
+		int agent = registry.seen("127.0.0.1/161", "AGENT_1", 1000);
+		registry.seen("127.0.0.1/161", "AGENT_1", 2000);
+		assertEquals(2, registry.getTraps(agent));
+		assertEquals(2000, registry.getLastSeen(agent));
+		assertEquals("AGENT_1", registry.getAgentId(agent));
+		registry.seen("127.0.0.1/161", "AGENT_2", 3000);
+		assertEquals("AGENT_2", registry.getAgentId(agent));
+
+		int other = registry.intern("127.0.0.1/162");
+		assertNull(registry.getAgentId(other));
+		assertNull(registry.getLastResponse(other));
+		assertEquals(0, registry.getLastSeen(other));
+		registry.responded(agent, "System");
+		registry.responded(other, "System");
+		assertEquals("System", registry.getLastResponse(other));
+		assertEquals(1, registry.getResponses(agent));
+		registry.timedOut(other);
+		assertEquals(1, registry.getTimeouts(other));
+	}
+
+	public void testResponsesBeyondTheSharedTable() {
+		int agent = registry.intern("127.0.0.1/161");
+		registry.responded(agent, "System");
+		for (int i = 0; i < AgentRegistry.MAX_SHARED_RESPONSES + 10; i++) {
+			registry.responded(agent, "Uptime " + i);
+		}
+		// a full table keeps the last response of the agent only
+		assertEquals("Uptime " + (AgentRegistry.MAX_SHARED_RESPONSES + 9), registry.getLastResponse(agent));
+		registry.responded(agent, "System");
+		assertEquals("System", registry.getLastResponse(agent));
+		assertEquals(AgentRegistry.MAX_SHARED_RESPONSES + 12, registry.getResponses(agent));
+	}
+
+	public void testTargets() {
+		int agent = registry.intern("127.0.0.1/161");
+		assertNull(registry.getTarget(agent));
+		CommunityTarget target = new CommunityTarget();
+		assertSame(target, registry.putTarget(agent, target));
+		assertSame(target, registry.putTarget(agent, new CommunityTarget()));
+		LatencyHistogram latency = new LatencyHistogram();
+		assertSame(latency, registry.putLatency(agent, latency));
+		assertSame(latency, registry.putLatency(agent, new LatencyHistogram()));
+		AtomicLong counter = new AtomicLong();
+		assertSame(counter, registry.putTimeoutCounter(agent, counter));
+		assertSame(counter, registry.getTimeoutCounter(agent));
+		registry.clearTargets();
+		assertNull(registry.getTarget(agent));
+		assertNull(registry.getLatency(agent));
+		assertNull(registry.getTimeoutCounter(agent));
+		try {
+			registry.getTarget(5);
+			fail("Unknown ID should fail");
+		}
+		catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+}
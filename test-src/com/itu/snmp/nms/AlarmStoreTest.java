@@ -0,0 +1,167 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AlarmStoreTest extends TestCase {
+
+	private File dir;
+	private AlarmStore store;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("alarmstore", "");
+		dir.delete();
+		store = new AlarmStore(dir, 100);
+	}
+
+	public void tearDown() throws Exception {
+		store.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testQueries() throws Exception {
+		// 3000 alarms from 3 agents, one per second, spread over many segments and blocks
+		for (int i = 0; i < 3000; i++) {
+			store.append(new TrapEvent(1000L * i, "AGENT_" + (i % 3), "127.0.0.1/16" + (i % 3),
+					i % 2 == 0 ? "666" : "777", "ALARM " + (i % 5)));
+		}
+		assertEquals(3000, store.size());
+
+		List<TrapEvent> byTime = store.findByTime(10000, 19000);
+		assertEquals(10, byTime.size());
+		assertEquals(10000, byTime.get(0).getTimestamp());
+
+		List<TrapEvent> byAgent = store.findByAgent("AGENT_1", 0, 2999000);
+		assertEquals(1000, byAgent.size());
+		for (TrapEvent trap : byAgent) {
+			assertEquals("AGENT_1", trap.getAgentId());
+			assertEquals("127.0.0.1/161", trap.getAgentAddress());
+		}
+
+		List<TrapEvent> byAgentAndTime = store.findByAgent("AGENT_2", 2000000, 2005000);
+		assertEquals(2, byAgentAndTime.size());
+		assertEquals(2000000, byAgentAndTime.get(0).getTimestamp());
+		assertEquals(2003000, byAgentAndTime.get(1).getTimestamp());
+
+		assertEquals(1500, store.findByCode("777", 0, Long.MAX_VALUE).size());
+		assertEquals(0, store.findByAgent("NO_SUCH_AGENT", 0, Long.MAX_VALUE).size());
+		assertEquals(0, store.findByTime(5000000, 6000000).size());
+	}
+
+	public void testOutOfOrderTimes() throws Exception {
+		store.append(new TrapEvent(5000, "A", "a", "1", "x"));
+		store.append(new TrapEvent(3000, "A", "a", "1", "x"));
+		store.append(new TrapEvent(4000, "B", "b", "1", "x"));
+		assertEquals(2, store.findByTime(3000, 4000).size());
+		assertEquals(1, store.findByAgent("A", 2000, 3500).size());
+	}
+
+	public void testReopenWithTruncatedDictionary() throws Exception {
+		for (int i = 0; i < 150; i++) {
+			store.append(new TrapEvent(1000L + i, "AGENT_" + (i / 10), "127.0.0.1/161", "666", "ALARM"));
+		}
+		store.close();
+		// the last agent's string did not reach the disk, its records are the last 10
+		File dict = new File(dir, "strings.dict");
+		RandomAccessFile raf = new RandomAccessFile(dict, "rw");
+		raf.setLength(raf.length() - "AGENT_14".length());
+		raf.close();
+
+		store = new AlarmStore(dir, 100);
+		assertEquals(140, store.size());
+		List<TrapEvent> all = store.findByTime(0, Long.MAX_VALUE);
+		assertEquals(140, all.size());
+		assertEquals("AGENT_13", all.get(139).getAgentId());
+		assertEquals(0, store.findByAgent("AGENT_14", 0, Long.MAX_VALUE).size());
+
+		assertEquals(140, store.append(new TrapEvent(5000, "AGENT_14", "127.0.0.1/161", "666", "ALARM")));
+		store.close();
+		store = new AlarmStore(dir, 100);
+		assertEquals(141, store.size());
+		assertEquals("AGENT_14", store.get(140).getAgentId());
+	}
+
+	public void testReopenWithUnwrittenRecords() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			store.append(new TrapEvent(1000L + i, "AGENT", "127.0.0.1/161", "666", "ALARM"));
+		}
+		store.close();
+		// the count reached the disk, the page of the last 5 records did not
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "segment-00000.dat"), "rw");
+		raf.seek(16 + 15 * AlarmStore.RECORD_SIZE);
+		raf.write(new byte[5 * AlarmStore.RECORD_SIZE]);
+		raf.close();
+
+		store = new AlarmStore(dir, 100);
+		assertEquals(15, store.size());
+		assertEquals(15, store.findByAgent("AGENT", 0, Long.MAX_VALUE).size());
+	}
+
+	public void testRepeats() throws Exception {
+		store.append(new TrapEvent(1000, "AGENT", "127.0.0.1/161", "666", "ALARM"));
+		store.append(new TrapEvent(5000, "AGENT", "127.0.0.1/161", "666", "ALARM", 41));
+		store.close();
+		store = new AlarmStore(dir, 100);
+		List<TrapEvent> alarms = store.findByCode("666", 0, Long.MAX_VALUE);
+		assertEquals(2, alarms.size());
+		assertEquals(0, alarms.get(0).getRepeats());
+		assertEquals(41, alarms.get(1).getRepeats());
+	}
+
+	public void testVersion1Segment() throws Exception {
+		store.append(new TrapEvent(1000, "AGENT", "127.0.0.1/161", "666", "ALARM"));
+		store.append(new TrapEvent(2000, "AGENT", "127.0.0.1/161", "777", "ALARM"));
+		store.close();
+		// the same records as version 1 wrote them, without the repeats
+		File segment = new File(dir, "segment-00000.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		byte[] header = new byte[16];
+		raf.readFully(header);
+		byte[][] records = new byte[2][24];
+		for (int i = 0; i < 2; i++) {
+			raf.seek(16 + i * AlarmStore.RECORD_SIZE);
+			raf.readFully(records[i]);
+		}
+		raf.setLength(0);
+		raf.setLength(16 + 100 * 24);
+		raf.write(header);
+		raf.seek(4);
+		raf.writeInt(1);
+		raf.seek(16);
+		raf.write(records[0]);
+		raf.write(records[1]);
+		raf.close();
+
+		// opening rewrites it with the repeats
+		store = new AlarmStore(dir, 100);
+		assertEquals(16 + 100 * AlarmStore.RECORD_SIZE, segment.length());
+		assertEquals(2, store.size());
+		assertEquals("777", store.get(1).getAlarmCode());
+		assertEquals(0, store.get(1).getRepeats());
+		store.append(new TrapEvent(3000, "AGENT", "127.0.0.1/161", "888", "ALARM", 5));
+		store.close();
+		store = new AlarmStore(dir, 100);
+		assertEquals(3, store.size());
+		assertEquals(5, store.get(2).getRepeats());
+		assertEquals(2, store.findByAgent("AGENT", 0, 2000).size());
+	}
+
+	public void testReopen() throws Exception {
+		for (int i = 0; i < 250; i++) {
+			store.append(new TrapEvent(i, "AGENT_" + (i % 2), "addr", "666", "Elevator jammed!"));
+		}
+		store.close();
+		store = new AlarmStore(dir, 100);
+		assertEquals(250, store.size());
+		assertEquals(125, store.findByAgent("AGENT_0", 0, 1000).size());
+		assertEquals("Elevator jammed!", store.get(249).getAlarmText());
+		store.append(new TrapEvent(1000, "AGENT_0", "addr", "666", "new"));
+		assertEquals(126, store.findByAgent("AGENT_0", 0, 1000).size());
+	}
+}
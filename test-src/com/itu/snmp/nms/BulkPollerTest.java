@@ -0,0 +1,139 @@
+package com.itu.snmp.nms;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+import com.itu.snmp.agent.InterfaceTable;
+import com.itu.snmp.agent.SnmpAgent;
+
+public class BulkPollerTest extends TestCase {
+
+	private static final String ADDRESS = "127.0.0.1/1615";
+	private static final OID SYS_DESCR = new OID(".1.3.6.1.2.1.1.1.0");
+	/** The VACM tables of the agent, a few rows in several tables. */
+	private static final OID VACM = new OID(".1.3.6.1.6.3.16.1");
+	/** The community table. */
+	private static final OID COMMUNITY = new OID(".1.3.6.1.6.3.18.1.1");
+
+	private static SnmpAgent agent;
+	private SnmpSession session;
+	private BlockingQueue<PollResult> results;
+
+	public void setUp() throws Exception {
+		if (agent == null) {
+			agent = new SnmpAgent(ADDRESS, "POLLED_AGENT");
+		}
+		session = new SnmpSession(1);
+		results = new ArrayBlockingQueue<PollResult>(100);
+	}
+
+	public void tearDown() {
+		session.close();
+	}
+
+	private BulkPoller createPoller(int maxRepetitions, int maxVarbinds) {
+		return createPoller(new OID[] { VACM, COMMUNITY }, maxRepetitions, maxVarbinds);
+	}
+
+	private BulkPoller createPoller(OID[] tables, int maxRepetitions, int maxVarbinds) {
+		return new BulkPoller(session, 60000, 100, new OID[] { SYS_DESCR }, tables,
+				maxRepetitions, maxVarbinds, new NmsMetrics(), new PollListener() {
+					public void pollCompleted(PollResult result) {
+						results.add(result);
+					}
+				});
+	}
+
+	public void testPoll() throws Exception {
+		BulkPoller poller = createPoller(25, 32);
+		assertTrue(poller.poll(ADDRESS));
+		PollResult result = results.poll(10, TimeUnit.SECONDS);
+		assertNotNull(result);
+		assertTrue(result.isComplete());
+		assertEquals(ADDRESS, result.getAgentAddress());
+
+		List<VariableBinding> bindings = result.getBindings();
+		assertEquals(SYS_DESCR, bindings.get(0).getOid());
+		assertEquals(new OctetString("POLLED_AGENT says Hello."), bindings.get(0).getVariable());
+		int vacm = 0;
+		int community = 0;
+		for (VariableBinding binding : bindings.subList(1, bindings.size())) {
+			if (binding.getOid().startsWith(VACM)) {
+				vacm++;
+			}
+			else if (binding.getOid().startsWith(COMMUNITY)) {
+				community++;
+			}
+			else {
+				fail("Not in the walked tables: " + binding);
+			}
+		}
+		assertTrue(vacm > 10);
+		assertTrue(community > 0);
+	}
+
+	public void testSmallRequestsGiveTheSameValues() throws Exception {
+		createPoller(50, 100).poll(ADDRESS);
+		PollResult big = results.poll(10, TimeUnit.SECONDS);
+		createPoller(3, 4).poll(ADDRESS);
+		PollResult small = results.poll(10, TimeUnit.SECONDS);
+		assertTrue(big.isComplete());
+		assertTrue(small.isComplete());
+		assertEquals(sorted(big), sorted(small));
+	}
+
+	public void testSkipWhileRunning() throws Exception {
+		BulkPoller poller = createPoller(25, 32);
+		assertTrue(poller.poll(ADDRESS));
+		assertFalse(poller.poll(ADDRESS));
+		assertNotNull(results.poll(10, TimeUnit.SECONDS));
+		assertTrue(poller.poll(ADDRESS));
+		assertNotNull(results.poll(10, TimeUnit.SECONDS));
+	}
+
+	public void testWalkInterfaces() throws Exception {
+		int rows = 1000;
+		SnmpAgent big = new SnmpAgent("127.0.0.1/1624", "BIG_AGENT", true, rows);
+		try {
+			big.getInterfaces().addTraffic(rows, 1500, 3000);
+			createPoller(new OID[] { InterfaceTable.IF_ENTRY }, 50, 64).poll("127.0.0.1/1624");
+			PollResult result = results.poll(30, TimeUnit.SECONDS);
+			assertNotNull(result);
+			assertTrue(result.isComplete());
+
+			List<VariableBinding> bindings = result.getBindings();
+			assertEquals(1 + rows * 15, bindings.size());
+			OID last = InterfaceTable.IF_ENTRY;
+			for (VariableBinding binding : bindings.subList(1, bindings.size())) {
+				assertTrue(binding.getOid().startsWith(InterfaceTable.IF_ENTRY));
+				assertTrue(binding.getOid().compareTo(last) > 0);
+				last = binding.getOid();
+			}
+			assertEquals(new OctetString("eth0"), bindings.get(1 + rows).getVariable());
+			assertEquals(new OID(".1.3.6.1.2.1.2.2.1.20." + rows), last);
+			// ifInOctets of the last interface, the traffic may have grown it since
+			assertEquals(new OID(".1.3.6.1.2.1.2.2.1.10." + rows), bindings.get(rows * 8).getOid());
+			assertTrue(((Counter32) bindings.get(rows * 8).getVariable()).getValue() >= 1500);
+		}
+		finally {
+			big.stop();
+		}
+	}
+
+	private static java.util.Set<String> sorted(PollResult result) {
+		java.util.Set<String> set = new java.util.TreeSet<String>();
+		for (VariableBinding binding : result.getBindings()) {
+			set.add(binding.toString());
+		}
+		return set;
+	}
+}
@@ -0,0 +1,93 @@
+package com.itu.snmp.nms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ExportFormatTest extends TestCase {
+
+	private List<TrapEvent> records() {
+		List<TrapEvent> records = new ArrayList<TrapEvent>();
+		for (int i = 0; i < 500; i++) {
+			records.add(new TrapEvent(1400000000000L + i, "AGENT_" + (i % 7), "127.0.0.1/" + (16100 + i % 7),
+					"666", i % 2 == 0 ? "ALARM" : "Hälytys " + i));
+		}
+		// a text longer than one varint byte
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			text.append('x');
+		}
+		records.add(new TrapEvent(-1, "", "", "", text.toString()));
+		// a summary of repeats, also longer than one varint byte
+		records.add(new TrapEvent(1400000001000L, "AGENT_0", "127.0.0.1/16100", "666", "ALARM", 200));
+		return records;
+	}
+
+	private void assertSame(List<TrapEvent> expected, List<TrapEvent> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+			assertEquals(expected.get(i).toString(), actual.get(i).toString());
+			assertEquals(expected.get(i).getAgentAddress(), actual.get(i).getAgentAddress());
+		}
+	}
+
+	public void testRoundTrip() throws Exception {
+		List<TrapEvent> records = records();
+		byte[] raw = ExportFormat.encode(records, false);
+		byte[] deflated = ExportFormat.encode(records, true);
+		assertEquals(0, raw[9]);
+		assertEquals(ExportFormat.DEFLATED, deflated[9]);
+		assertTrue(deflated.length * 4 < raw.length);
+		assertEquals(records.size(), ExportFormat.recordCount(raw));
+		assertEquals(records.size(), ExportFormat.recordCount(deflated));
+		assertSame(records, ExportFormat.decode(raw));
+		assertSame(records, ExportFormat.decode(deflated));
+	}
+
+	public void testVersion1() throws Exception {
+		TrapEvent trap = new TrapEvent(1400000000000L, "AGENT_1", "127.0.0.1/161", "666", "ALARM");
+		byte[] frame = ExportFormat.encode(Collections.singletonList(trap), false);
+		// version 1 is the same without the repeats, a 0 in one byte here
+		byte[] old = new byte[frame.length - 1];
+		System.arraycopy(frame, 0, old, 0, old.length);
+		ByteBuffer header = ByteBuffer.wrap(old);
+		header.putInt(0, old.length - 4);
+		header.put(8, (byte) 1);
+		header.putInt(14, header.getInt(14) - 1);
+		List<TrapEvent> decoded = ExportFormat.decode(old);
+		assertEquals(1, decoded.size());
+		assertEquals(trap.toString(), decoded.get(0).toString());
+		assertEquals(0, decoded.get(0).getRepeats());
+	}
+
+	public void testEmptyBatch() throws Exception {
+		byte[] frame = ExportFormat.encode(Collections.<TrapEvent>emptyList(), true);
+		assertEquals(ExportFormat.HEADER, frame.length);
+		assertEquals(0, ExportFormat.decode(frame).size());
+	}
+
+	public void testBrokenFrames() {
+		byte[] frame = ExportFormat.encode(records(), true);
+		byte[] truncated = new byte[frame.length - 10];
+		System.arraycopy(frame, 0, truncated, 0, truncated.length);
+		assertBroken(truncated);
+		frame[5] = 0;
+		assertBroken(frame);
+		assertBroken(new byte[3]);
+	}
+
+	private void assertBroken(byte[] frame) {
+		try {
+			ExportFormat.decode(frame);
+			fail("Decoded a broken frame");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.itu.snmp.nms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class HashRingTest extends TestCase {
+
+	private static final int AGENTS = 10000;
+
+	public void testSpreadsTheAgentsEvenly() {
+		HashRing ring = new HashRing(Arrays.asList("nms1", "nms2", "nms3"), NmsCluster.DEFAULT_VIRTUAL_NODES);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < AGENTS; i++) {
+			String owner = ring.owner("agent" + i);
+			Integer count = counts.get(owner);
+			counts.put(owner, count == null ? 1 : count + 1);
+		}
+		assertEquals(3, counts.size());
+		for (int count : counts.values()) {
+			assertTrue(counts.toString(), count > AGENTS / 4 && count < AGENTS / 2);
+		}
+	}
+
+	public void testJoiningNodeTakesAgentsOnlyForItself() {
+		HashRing before = new HashRing(Arrays.asList("nms1", "nms2", "nms3"), NmsCluster.DEFAULT_VIRTUAL_NODES);
+		HashRing after = new HashRing(Arrays.asList("nms1", "nms2", "nms3", "nms4"), NmsCluster.DEFAULT_VIRTUAL_NODES);
+		int moved = 0;
+		for (int i = 0; i < AGENTS; i++) {
+			String agent = "agent" + i;
+			if (!before.owner(agent).equals(after.owner(agent))) {
+				assertEquals("nms4", after.owner(agent));
+				moved++;
+			}
+		}
+		// about a quarter
+		assertTrue(String.valueOf(moved), moved > AGENTS / 6 && moved < AGENTS / 3);
+	}
+
+	public void testSameOwnerFromBytesAndOrder() {
+		HashRing ring = new HashRing(Arrays.asList("b", "a", "c"), 16);
+		HashRing same = new HashRing(Arrays.asList("c", "b", "a"), 16);
+		byte[] message = "xxagent42yy".getBytes();
+		assertEquals(ring.owner("agent42"), ring.owner(message, 2, 7));
+		assertEquals(ring.owner("agent42"), same.owner("agent42"));
+		assertEquals("[a, b, c]", ring.getNodes().toString());
+	}
+
+	public void testEmptyAndSingleNode() {
+		assertNull(new HashRing(Collections.<String>emptySet(), 16).owner("agent1"));
+		assertEquals("only", new HashRing(Collections.singleton("only"), 1).owner("agent1"));
+	}
+}
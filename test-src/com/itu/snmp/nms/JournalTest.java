@@ -0,0 +1,201 @@
+package com.itu.snmp.nms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class JournalTest extends TestCase {
+
+	private File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testConcurrentAppends() throws Exception {
+		final Journal journal = new Journal(new File(dir, "alarms.txt"), 100, FsyncPolicy.EVERY_N, 500, 1000, 0, 0);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 1000; i++) {
+							journal.append("thread" + thread + ",record" + i);
+						}
+					}
+					catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.flush();
+		assertEquals(4000, journal.getWritten());
+		assertTrue(journal.getCommits() <= 4000);
+		assertTrue(journal.getFsyncs() >= 1);
+		journal.close();
+
+		List<String> lines = readLines(new File(dir, "alarms.txt"));
+		assertEquals(4000, lines.size());
+		assertTrue(lines.contains("thread3,record999"));
+	}
+
+	public void testRollBySize() throws Exception {
+		Journal journal = new Journal(new File(dir, "queries.txt"), 100, FsyncPolicy.NONE, 1, 1000, 100, 0);
+		for (int i = 0; i < 10; i++) {
+			journal.append("a record that is about forty bytes long " + i);
+			journal.flush();
+		}
+		journal.close();
+		assertTrue(journal.getSegments() > 1);
+		int total = 0;
+		for (File file : dir.listFiles()) {
+			assertTrue(file.getName().startsWith("queries."));
+			assertTrue(file.getName().endsWith(".txt"));
+			total += readLines(file).size();
+		}
+		assertEquals(10, total);
+	}
+
+	public void testAppendAfterClose() throws Exception {
+		Journal journal = new Journal(new File(dir, "alarms.txt"), 10, FsyncPolicy.INTERVAL, 1, 10, 0, 0);
+		journal.close();
+		try {
+			journal.append("too late");
+			fail("append to a closed journal should fail");
+		}
+		catch (java.io.IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A journal whose writes fail while failing is set, after writing half of what
+	 * they were given, like a disk that fills up in the middle of a write.
+	 */
+	private Journal failingJournal(final AtomicBoolean failing, int capacity) throws IOException {
+		return new Journal(new File(dir, "alarms.txt"), capacity, FsyncPolicy.NONE, 1, 1000, 0, 0) {
+			@Override
+			int write(FileChannel channel, ByteBuffer buffer) throws IOException {
+				if (failing.get()) {
+					ByteBuffer half = buffer.duplicate();
+					half.limit(half.position() + half.remaining() / 2);
+					channel.write(half);
+					throw new IOException("No space left on device");
+				}
+				return super.write(channel, buffer);
+			}
+		};
+	}
+
+	public void testWriteFailureWithFullQueue() throws Exception {
+		AtomicBoolean failing = new AtomicBoolean(true);
+		Journal journal = failingJournal(failing, 10);
+		int accepted = 0;
+		long started = System.currentTimeMillis();
+		try {
+			for (; accepted < 100; accepted++) {
+				journal.append("record " + accepted);
+			}
+			fail("append to a failing journal with a full queue should fail");
+		}
+		catch (IOException e) {
+			// expected, at once instead of waiting for the writer
+		}
+		assertTrue(System.currentTimeMillis() - started < 5000);
+		assertTrue(accepted >= 10);
+		assertTrue(journal.isFailing());
+		assertTrue(journal.getFailures() > 0);
+		try {
+			journal.flush();
+			fail("flush of a failing journal should fail");
+		}
+		catch (IOException e) {
+			// expected
+		}
+
+		// the writer is still there and writes everything once the disk has room
+		failing.set(false);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (journal.getWritten() < accepted && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(journal.isFailing());
+		journal.append("record " + accepted);
+		accepted++;
+		journal.flush();
+		journal.close();
+
+		List<String> lines = readLines(new File(dir, "alarms.txt"));
+		assertEquals(accepted, lines.size());
+		for (int i = 0; i < accepted; i++) {
+			assertEquals("record " + i, lines.get(i));
+		}
+	}
+
+	public void testCloseWhileFailing() throws Exception {
+		AtomicBoolean failing = new AtomicBoolean(true);
+		final Journal journal = failingJournal(failing, 5);
+		for (int i = 0; i < 5; i++) {
+			journal.append("record " + i);
+		}
+		Thread appender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < 100; i++) {
+						journal.append("more " + i);
+					}
+				}
+				catch (IOException e) {
+					// expected once the queue is full or the journal is closed
+				}
+			}
+		});
+		appender.start();
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				journal.close();
+			}
+		});
+		closer.start();
+		closer.join(10000);
+		appender.join(10000);
+		assertFalse(closer.isAlive());
+		assertFalse(appender.isAlive());
+	}
+
+	private static List<String> readLines(File file) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+	}
+}
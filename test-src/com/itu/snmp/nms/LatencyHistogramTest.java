@@ -0,0 +1,50 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMicros(0.99));
+		assertEquals(0.0, histogram.getMeanMicros(), 0.0);
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.recordMicros(i);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000, histogram.getMaxMicros());
+		assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+		assertWithin(5000, histogram.getPercentileMicros(0.5));
+		assertWithin(9900, histogram.getPercentileMicros(0.99));
+		assertEquals(10000, histogram.getPercentileMicros(1.0));
+	}
+
+	public void testUnits() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(3, TimeUnit.SECONDS);
+		histogram.record(-5, TimeUnit.MILLISECONDS);
+		assertEquals(3000000, histogram.getMaxMicros());
+		assertEquals(0, histogram.getPercentileMicros(0.5));
+	}
+
+	public void testBuckets() {
+		// every value falls in a bucket whose upper end is within 1/16 above it
+		for (long value = 0; value < (1L << 44); value = value * 3 / 2 + 1) {
+			long high = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+			assertTrue(value + " -> " + high, high >= value || value >= (1L << 42));
+			assertTrue(value + " -> " + high, high - value <= value / 16);
+		}
+		assertTrue(LatencyHistogram.index(Long.MAX_VALUE) < 2000);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= expected / 16);
+	}
+}
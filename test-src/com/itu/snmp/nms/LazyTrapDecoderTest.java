@@ -0,0 +1,106 @@
+package com.itu.snmp.nms;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BEROutputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+public class LazyTrapDecoderTest extends TestCase {
+
+	public void testFieldsAsTheFullDecoderReadsThem() throws Exception {
+		PDU trap = createTrap("Elevator jammed!");
+		RawTrap raw = LazyTrapDecoder.scan(ByteBuffer.wrap(encode(SnmpConstants.version2c, trap)));
+		assertNotNull(raw);
+		SnmpNms nms = new SnmpNms();
+		TrapEvent full = nms.decodeTrap(trap);
+		TrapEvent lazy = nms.decodeTrap(raw);
+		assertEquals(full.getAgentId(), lazy.getAgentId());
+		assertEquals(full.getAgentAddress(), lazy.getAgentAddress());
+		assertEquals(full.getAlarmCode(), lazy.getAlarmCode());
+		assertEquals(full.getAlarmText(), lazy.getAlarmText());
+		assertTrue(raw.fieldEquals(RawTrap.ALARM_CODE, "666".getBytes("US-ASCII")));
+		assertFalse(raw.fieldEquals(RawTrap.ALARM_CODE, "667".getBytes("US-ASCII")));
+	}
+
+	public void testSliceOfALargerBuffer() throws Exception {
+		byte[] message = encode(SnmpConstants.version2c, createTrap("text"));
+		byte[] larger = new byte[message.length + 20];
+		System.arraycopy(message, 0, larger, 10, message.length);
+		ByteBuffer buffer = ByteBuffer.wrap(larger, 10, message.length);
+		RawTrap raw = LazyTrapDecoder.scan(buffer);
+		assertEquals(10, buffer.position());
+		assertEquals(10 + message.length, buffer.limit());
+		assertTrue(Arrays.equals(message, raw.getMessage()));
+		assertEquals("text", raw.getString(RawTrap.ALARM_TEXT));
+	}
+
+	public void testDirectBuffer() throws Exception {
+		byte[] message = encode(SnmpConstants.version2c, createTrap("direct"));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
+		buffer.put(message).flip();
+		RawTrap raw = LazyTrapDecoder.scan(buffer);
+		assertEquals(0, buffer.position());
+		assertEquals("direct", raw.getString(RawTrap.ALARM_TEXT));
+		assertEquals("agent1", raw.getString(RawTrap.AGENT_ID));
+	}
+
+	public void testNonPrintableFieldIsHex() throws Exception {
+		PDU trap = createTrap("x");
+		trap.set(5, new VariableBinding(SnmpNms.ALARM_TEXT, new OctetString(new byte[] { 1, (byte) 0xff })));
+		RawTrap raw = LazyTrapDecoder.scan(ByteBuffer.wrap(encode(SnmpConstants.version2c, trap)));
+		assertEquals(new OctetString(new byte[] { 1, (byte) 0xff }).toString(), raw.getString(RawTrap.ALARM_TEXT));
+	}
+
+	public void testOtherMessagesAreLeftForTheDispatcher() throws Exception {
+		assertNull(LazyTrapDecoder.scan(ByteBuffer.wrap(encode(SnmpConstants.version1, createTrap("v1")))));
+
+		PDU get = createTrap("get");
+		get.setType(PDU.GET);
+		assertNull(LazyTrapDecoder.scan(ByteBuffer.wrap(encode(SnmpConstants.version2c, get))));
+
+		PDU missing = createTrap("missing");
+		missing.remove(6);
+		assertNull(LazyTrapDecoder.scan(ByteBuffer.wrap(encode(SnmpConstants.version2c, missing))));
+
+		byte[] message = encode(SnmpConstants.version2c, createTrap("truncated"));
+		for (int length = 0; length < message.length; length++) {
+			assertNull(LazyTrapDecoder.scan(ByteBuffer.wrap(message, 0, length)));
+		}
+	}
+
+	private static PDU createTrap(String text) {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(5000)));
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID(SnmpNms.TRAP_OID)));
+		trap.add(new VariableBinding(SnmpConstants.sysDescr, new OctetString("System Description")));
+		trap.add(new VariableBinding(SnmpNms.ALARM_CODE, new OctetString("666")));
+		trap.add(new VariableBinding(SnmpNms.AGENT_ID, new OctetString("agent1")));
+		trap.add(new VariableBinding(SnmpNms.ALARM_TEXT, new OctetString(text)));
+		trap.add(new VariableBinding(SnmpNms.AGENT_ADDRESS, new OctetString("127.0.0.1/1610")));
+		return trap;
+	}
+
+	private static byte[] encode(int version, PDU pdu) throws Exception {
+		Integer32 encodedVersion = new Integer32(version);
+		OctetString community = new OctetString("public");
+		int length = encodedVersion.getBERLength() + community.getBERLength() + pdu.getBERLength();
+		byte[] encoded = new byte[1 + BER.getBERLengthOfLength(length) + length];
+		BEROutputStream out = new BEROutputStream(ByteBuffer.wrap(encoded));
+		BER.encodeHeader(out, BER.SEQUENCE, length);
+		encodedVersion.encodeBER(out);
+		community.encodeBER(out);
+		pdu.encodeBER(out);
+		return encoded;
+	}
+}
@@ -0,0 +1,167 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class MultiSocketUdpTransportMappingTest extends TestCase {
+
+	private static final String ADDRESS = "127.0.0.1/1618";
+
+	private MultiSocketUdpTransportMapping transport;
+	private Snmp receiver;
+
+	public void setUp() throws Exception {
+		transport = new MultiSocketUdpTransportMapping(new UdpAddress(ADDRESS), 2, 256 * 1024);
+		receiver = new Snmp(transport);
+	}
+
+	public void tearDown() throws Exception {
+		receiver.close();
+	}
+
+	public void testTrapsFromManySenders() throws Exception {
+		final CountDownLatch done = new CountDownLatch(40);
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				if (e.getPDU() != null && e.getPDU().getType() == PDU.TRAP) {
+					done.countDown();
+				}
+			}
+		});
+		transport.listen();
+		assertTrue(transport.isListening());
+		assertTrue(transport.getSocketCount() >= 1);
+
+		// each sender has its own port, so the kernel may pick another socket for it
+		for (int s = 0; s < 8; s++) {
+			Snmp sender = new Snmp(new DefaultUdpTransportMapping());
+			try {
+				for (int i = 0; i < 5; i++) {
+					sender.send(trap(i), target());
+				}
+			}
+			finally {
+				sender.close();
+			}
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		long received = 0;
+		for (int i = 0; i < transport.getSocketCount(); i++) {
+			received += transport.getReceived(i);
+		}
+		assertEquals(40, received);
+	}
+
+	public void testResponseFromTheSameSocket() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				requests.incrementAndGet();
+				PDU response = new PDU();
+				response.setType(PDU.RESPONSE);
+				response.setRequestID(e.getPDU().getRequestID());
+				response.add(new VariableBinding(SnmpNms.SYS_DESCR, new OctetString("multi")));
+				try {
+					e.getMessageDispatcher().returnResponsePdu(e.getMessageProcessingModel(), e.getSecurityModel(),
+							e.getSecurityName(), e.getSecurityLevel(), response, e.getMaxSizeResponsePDU(),
+							e.getStateReference(), new StatusInformation());
+				}
+				catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+				e.setProcessed(true);
+			}
+		});
+		transport.listen();
+
+		Snmp client = new Snmp(new DefaultUdpTransportMapping());
+		client.listen();
+		try {
+			PDU get = new PDU();
+			get.setType(PDU.GET);
+			get.add(new VariableBinding(SnmpNms.SYS_DESCR));
+			ResponseEvent event = client.send(get, target());
+			assertNotNull(event.getResponse());
+			assertEquals(new OctetString("multi"), event.getResponse().getVariable(SnmpNms.SYS_DESCR));
+			assertEquals(1, requests.get());
+		}
+		finally {
+			client.close();
+		}
+	}
+
+	public void testClose() throws Exception {
+		transport.listen();
+		transport.close();
+		assertFalse(transport.isListening());
+		// the port is free again
+		transport = new MultiSocketUdpTransportMapping(new UdpAddress(ADDRESS), 1, 0);
+		transport.listen();
+		transport.close();
+	}
+
+	public void testWithoutReusePort() throws Exception {
+		receiver.close();
+		transport = new MultiSocketUdpTransportMapping(new UdpAddress(ADDRESS), 4, 0) {
+			@Override
+			boolean isReusePortSupported() {
+				return false;
+			}
+		};
+		receiver = new Snmp(transport);
+		final CountDownLatch done = new CountDownLatch(1);
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				done.countDown();
+			}
+		});
+		transport.listen();
+		assertTrue(transport.isListening());
+		assertEquals(1, transport.getSocketCount());
+
+		Snmp sender = new Snmp(new DefaultUdpTransportMapping());
+		try {
+			sender.send(trap(0), target());
+		}
+		finally {
+			sender.close();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, transport.getReceived(0));
+	}
+
+	private static PDU trap(int i) {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, SnmpNms.TRAP_OID));
+		trap.add(new VariableBinding(SnmpNms.ALARM_CODE, new OctetString(String.valueOf(i))));
+		return trap;
+	}
+
+	private static CommunityTarget target() {
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString("public"));
+		target.setAddress(new UdpAddress(ADDRESS));
+		target.setVersion(SnmpConstants.version2c);
+		target.setRetries(1);
+		target.setTimeout(2000);
+		return target;
+	}
+}
@@ -0,0 +1,127 @@
+package com.itu.snmp.nms;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class NioUdpTransportMappingTest extends TestCase {
+
+	private static final String ADDRESS = "127.0.0.1/1619";
+
+	private NioUdpTransportMapping transport;
+	private Snmp receiver;
+
+	public void setUp() throws Exception {
+		transport = new NioUdpTransportMapping(new UdpAddress(ADDRESS), 8, 1024 * 1024);
+		// the default dispatcher decodes on the selector thread, as the pooled buffers need
+		receiver = new Snmp(transport);
+	}
+
+	public void tearDown() throws Exception {
+		receiver.close();
+	}
+
+	public void testEveryTrapIsDecodedFromItsOwnBuffer() throws Exception {
+		final Set<String> codes = Collections.synchronizedSet(new HashSet<String>());
+		final CountDownLatch done = new CountDownLatch(200);
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				codes.add(e.getPDU().getVariable(SnmpNms.ALARM_CODE).toString());
+				done.countDown();
+			}
+		});
+		transport.listen();
+
+		Snmp sender = new Snmp(new DefaultUdpTransportMapping());
+		try {
+			for (int i = 0; i < 200; i++) {
+				PDU trap = new PDU();
+				trap.setType(PDU.TRAP);
+				trap.add(new VariableBinding(SnmpConstants.snmpTrapOID, SnmpNms.TRAP_OID));
+				// the traps differ in length, so a stale byte in a reused buffer would show
+				trap.add(new VariableBinding(SnmpNms.ALARM_CODE, new OctetString("code" + i)));
+				sender.send(trap, target());
+			}
+		}
+		finally {
+			sender.close();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(200, codes.size());
+		assertTrue(codes.contains("code0"));
+		assertTrue(codes.contains("code199"));
+		assertEquals(200, transport.getReceived());
+		assertTrue(transport.getBatches() >= 200 / transport.getBatchSize());
+	}
+
+	public void testResponse() throws Exception {
+		receiver.addCommandResponder(new CommandResponder() {
+			public void processPdu(CommandResponderEvent e) {
+				PDU response = new PDU();
+				response.setType(PDU.RESPONSE);
+				response.setRequestID(e.getPDU().getRequestID());
+				response.add(new VariableBinding(SnmpNms.SYS_DESCR, new OctetString("nio")));
+				try {
+					e.getMessageDispatcher().returnResponsePdu(e.getMessageProcessingModel(), e.getSecurityModel(),
+							e.getSecurityName(), e.getSecurityLevel(), response, e.getMaxSizeResponsePDU(),
+							e.getStateReference(), new StatusInformation());
+				}
+				catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+				e.setProcessed(true);
+			}
+		});
+		transport.listen();
+
+		Snmp client = new Snmp(new DefaultUdpTransportMapping());
+		client.listen();
+		try {
+			PDU get = new PDU();
+			get.setType(PDU.GET);
+			get.add(new VariableBinding(SnmpNms.SYS_DESCR));
+			ResponseEvent event = client.send(get, target());
+			assertNotNull(event.getResponse());
+			assertEquals(new OctetString("nio"), event.getResponse().getVariable(SnmpNms.SYS_DESCR));
+		}
+		finally {
+			client.close();
+		}
+	}
+
+	public void testClose() throws Exception {
+		transport.listen();
+		transport.close();
+		assertFalse(transport.isListening());
+		transport = new NioUdpTransportMapping(new UdpAddress(ADDRESS), 1, 0);
+		transport.listen();
+		transport.close();
+	}
+
+	private static CommunityTarget target() {
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString("public"));
+		target.setAddress(new UdpAddress(ADDRESS));
+		target.setVersion(SnmpConstants.version2c);
+		target.setRetries(1);
+		target.setTimeout(2000);
+		return target;
+	}
+}
@@ -0,0 +1,116 @@
+package com.itu.snmp.nms;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class NmsClusterTest extends TestCase {
+
+	private static final String[] ADDRESSES = { "127.0.0.1/1730", "127.0.0.1/1731", "127.0.0.1/1732" };
+
+	private NmsCluster[] nodes;
+	private List<LinkedBlockingQueue<byte[]>> received;
+
+	@SuppressWarnings("unchecked")
+	public void setUp() throws Exception {
+		nodes = new NmsCluster[ADDRESSES.length];
+		received = Arrays.asList(new LinkedBlockingQueue<byte[]>(), new LinkedBlockingQueue<byte[]>(),
+				new LinkedBlockingQueue<byte[]>());
+		for (int i = 0; i < nodes.length; i++) {
+			final LinkedBlockingQueue<byte[]> queue = received.get(i);
+			// every node joins through the first one
+			List<String> seeds = i == 0 ? Collections.<String>emptyList() : Collections.singletonList(ADDRESSES[0]);
+			nodes[i] = new NmsCluster("nms" + (i + 1), ADDRESSES[i], seeds, 20, 200, 64, new NmsMetrics(),
+					new StageHandler<ByteBuffer>() {
+						public void handle(ByteBuffer message) {
+							byte[] bytes = new byte[message.remaining()];
+							message.get(bytes);
+							queue.add(bytes);
+						}
+					});
+			nodes[i].start();
+		}
+	}
+
+	public void tearDown() {
+		for (NmsCluster node : nodes) {
+			node.stop();
+		}
+	}
+
+	public void testNodesFindEachOtherThroughTheSeed() throws Exception {
+		for (NmsCluster node : nodes) {
+			assertMembers(node, "[nms1, nms2, nms3]");
+		}
+		// the same owner everywhere
+		for (int i = 0; i < 100; i++) {
+			String owner = nodes[0].getRing().owner("agent" + i);
+			assertEquals(owner, nodes[1].getRing().owner("agent" + i));
+			assertEquals(owner, nodes[2].getRing().owner("agent" + i));
+		}
+	}
+
+	public void testForwardsTrapsToTheOwner() throws Exception {
+		assertMembers(nodes[0], "[nms1, nms2, nms3]");
+		byte[] message = { 0x30, 3, 1, 2, 3 };
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		assertTrue(nodes[0].forward("nms3", buffer));
+		assertEquals(0, buffer.position());
+		assertTrue(Arrays.equals(message, received.get(2).poll(2, TimeUnit.SECONDS)));
+		assertEquals(1, nodes[0].getForwarded());
+		assertEquals(1, nodes[2].getForwardedIn());
+		assertFalse(nodes[0].forward("unknown", buffer));
+	}
+
+	public void testRebalancesWhenNodesLeaveAndFail() throws Exception {
+		assertMembers(nodes[0], "[nms1, nms2, nms3]");
+		nodes[2].stop();
+		// a node leaving tells the others at once
+		assertMembers(nodes[0], "[nms1, nms2]");
+		assertMembers(nodes[1], "[nms1, nms2]");
+		// a silent node is out after the failure time
+		nodes[1].stop(false);
+		assertMembers(nodes[0], "[nms1]");
+		assertTrue(nodes[0].isLocal("any agent"));
+	}
+
+	public void testTellsOfNewRings() throws Exception {
+		assertMembers(nodes[0], "[nms1, nms2, nms3]");
+		final LinkedBlockingQueue<HashRing> rings = new LinkedBlockingQueue<HashRing>();
+		nodes[0].setRebalanceHandler(new StageHandler<HashRing>() {
+			public void handle(HashRing ring) {
+				rings.add(ring);
+			}
+		});
+		nodes[2].stop();
+		HashRing ring = rings.poll(2, TimeUnit.SECONDS);
+		assertNotNull(ring);
+		assertEquals("[nms1, nms2]", ring.getNodes().toString());
+		assertSame(ring, nodes[0].getRing());
+	}
+
+	public void testNodeRejoins() throws Exception {
+		assertMembers(nodes[0], "[nms1, nms2, nms3]");
+		nodes[1].stop();
+		assertMembers(nodes[2], "[nms1, nms3]");
+		nodes[1] = new NmsCluster("nms2", ADDRESSES[1], Collections.singletonList(ADDRESSES[2]), 20, 200, 64,
+				new NmsMetrics(), null);
+		nodes[1].start();
+		for (NmsCluster node : nodes) {
+			assertMembers(node, "[nms1, nms2, nms3]");
+		}
+	}
+
+	private static void assertMembers(NmsCluster node, String expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 3000;
+		while (!expected.equals(node.getRing().toString()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, node.getRing().toString());
+	}
+}
@@ -0,0 +1,134 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class NmsConfigTest extends TestCase {
+
+	private File file;
+
+	public void setUp() throws IOException {
+		file = File.createTempFile("nmsconfig", ".properties");
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+
+	public void testDefaults() throws Exception {
+		NmsConfig config = NmsConfig.load(new String[0], new HashMap<String, String>(), new Properties());
+		assertEquals("127.0.0.1/1620", config.get("nms.trap.address"));
+		assertEquals(ResponseCache.DEFAULT_TTL, config.getLong("nms.cache.ttl"));
+		assertEquals(16, config.getInt("nms.get.workers"));
+		assertFalse(config.getBoolean("nms.headless"));
+		assertNull(config.getFile());
+		assertEquals("NMS_CACHE_MAXENTRIES", NmsConfig.getSetting("nms.cache.maxEntries").getEnvName());
+		// one GET OID, not a list
+		assertNull(NmsConfig.getSetting("nms.get.oid").check(".1.3.6.1.2.1.1.5.0"));
+		assertNotNull(NmsConfig.getSetting("nms.get.oid").check(""));
+		assertNotNull(NmsConfig.getSetting("nms.get.oid").check(".1.3.6.1.2.1.1.5.0,"));
+	}
+
+	public void testFileEnvSystemAndArgumentsInOrder() throws Exception {
+		write("cache.ttl=1000\nnms.session.retries=1\nnms.dedup.window=5\nnms.get.mode=BLOCKING\n");
+		Map<String, String> env = new HashMap<String, String>();
+		env.put("NMS_SESSION_RETRIES", "3");
+		env.put("NMS_DEDUP_WINDOW", "6");
+		env.put("PATH", "/bin");
+		Properties system = new Properties();
+		system.setProperty("nms.dedup.window", "7");
+		system.setProperty("java.version", "17");
+		NmsConfig config = NmsConfig.load(new String[] { "--config=" + file.getPath(), "--get.mode=VIRTUAL",
+				"--headless" }, env, system);
+		assertEquals(1000, config.getLong("nms.cache.ttl"));
+		assertEquals(3, config.getInt("nms.session.retries"));
+		assertEquals(7, config.getLong("nms.dedup.window"));
+		assertEquals("VIRTUAL", config.get("nms.get.mode"));
+		assertTrue(config.getBoolean("nms.headless"));
+		assertEquals(file, config.getFile());
+	}
+
+	public void testEveryErrorIsReported() throws Exception {
+		write("nms.cache.ttl=-1\nnms.trap.adress=127.0.0.1/162\nnms.get.mode=FAST\nnms.poll.agents=10.0.0.1/161,10.0.0.2\nnms.get.oid=.1.3.6.1.2.1.1.1.0,.1.3.6.1.2.1.1.5.0\n");
+		try {
+			NmsConfig.load(new String[] { "--config", file.getPath(), "--receive.sockets=none" },
+					new HashMap<String, String>(), new Properties());
+			fail("the settings are not valid");
+		}
+		catch (IllegalArgumentException e) {
+			String message = e.getMessage();
+			assertTrue(message, message.contains("nms.cache.ttl: -1 is not within"));
+			assertTrue(message, message.contains("nms.trap.adress: unknown setting"));
+			assertTrue(message, message.contains("nms.get.mode: FAST is not one of ASYNC, BLOCKING, VIRTUAL"));
+			assertTrue(message, message.contains("nms.poll.agents: not an address"));
+			assertTrue(message, message.contains("nms.get.oid: not an OID"));
+			assertTrue(message, message.contains("nms.receive.sockets: not a number"));
+		}
+		try {
+			NmsConfig.load(new String[] { "-x" }, new HashMap<String, String>(), new Properties());
+			fail("-x is not an argument");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("unknown argument: -x"));
+		}
+	}
+
+	public void testReloadAndChanges() throws Exception {
+		write("nms.cache.ttl=1000\n");
+		Properties system = new Properties();
+		system.setProperty("nms.session.timeout", "500");
+		NmsConfig config = NmsConfig.load(new String[] { "--config=" + file.getPath() },
+				new HashMap<String, String>(), system);
+		write("nms.cache.ttl=2000\nnms.session.timeout=100\nnms.receive.sockets=2\n");
+		NmsConfig reloaded = config.reload();
+		assertEquals(2000, reloaded.getLong("nms.cache.ttl"));
+		// the system property still wins over the file
+		assertEquals(500, reloaded.getLong("nms.session.timeout"));
+		assertEquals("[nms.cache.ttl, nms.receive.sockets]", config.changes(reloaded).toString());
+		assertTrue(NmsConfig.getSetting("nms.cache.ttl").isHot());
+		assertFalse(NmsConfig.getSetting("nms.receive.sockets").isHot());
+	}
+
+	public void testApplySetting() throws Exception {
+		write("nms.get.mode=BLOCKING\nnms.receive.sockets=3\n");
+		NmsConfig config = NmsConfig.load(new String[] { "--config=" + file.getPath() },
+				new HashMap<String, String>(), new Properties());
+		SnmpNms nms = new SnmpNms();
+		String mode = System.getProperty("nms.get.mode");
+		String sockets = System.getProperty("nms.receive.sockets");
+		try {
+			assertTrue(nms.applySetting("nms.get.mode", config));
+			assertEquals(ExecutionMode.BLOCKING, nms.getExecutionMode());
+			assertFalse(nms.applySetting("nms.receive.sockets", config));
+			assertEquals(sockets, System.getProperty("nms.receive.sockets"));
+		}
+		finally {
+			restore("nms.get.mode", mode);
+		}
+	}
+
+	private static void restore(String name, String value) {
+		if (value == null) {
+			System.clearProperty(name);
+		}
+		else {
+			System.setProperty(name, value);
+		}
+	}
+
+	private void write(String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(text);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.itu.snmp.nms;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+public class NmsMetricsTest extends TestCase {
+
+	private NmsMetrics metrics;
+
+	public void setUp() {
+		metrics = new NmsMetrics();
+		metrics.counter("traps_received").addAndGet(3);
+		final AtomicInteger queue = new AtomicInteger(7);
+		metrics.gauge("stage_queue_size{stage=\"decode\"}", new NmsMetrics.Gauge() {
+			public long value() {
+				return queue.get();
+			}
+		});
+		metrics.agentHistogram("get_latency", "127.0.0.1/1610").recordMicros(2000);
+	}
+
+	public void testText() {
+		String text = metrics.toText();
+		assertTrue(text, text.indexOf("nms_traps_received 3\n") > -1);
+		assertTrue(text, text.indexOf("nms_stage_queue_size{stage=\"decode\"} 7\n") > -1);
+		assertTrue(text, text.indexOf("nms_get_latency_seconds{agent=\"127.0.0.1/1610\",quantile=\"0.99\"} 0.002\n") > -1);
+		assertTrue(text, text.indexOf("nms_get_latency_seconds_count{agent=\"127.0.0.1/1610\"} 1\n") > -1);
+	}
+
+	public void testAgentLimit() {
+		for (int i = 0; i < NmsMetrics.MAX_AGENTS + 10; i++) {
+			metrics.agentCounter("get_timeouts", "agent" + i).incrementAndGet();
+		}
+		assertEquals(11, metrics.getValue("get_timeouts{agent=\"other\"}"));
+	}
+
+	public void testJmx() throws Exception {
+		metrics.registerMBean("test");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("com.itu.snmp.nms:type=NmsMetrics,name=\"test\"");
+			assertEquals(Long.valueOf(3), server.getAttribute(name, "traps_received"));
+			assertEquals(Long.valueOf(7), server.getAttribute(name, "stage_queue_size{stage=\"decode\"}"));
+			assertEquals(Long.valueOf(1), server.getAttribute(name, "get_latency{agent=\"127.0.0.1/1610\"}.count"));
+			assertEquals(Long.valueOf(2000), server.getAttribute(name, "get_latency{agent=\"127.0.0.1/1610\"}.max"));
+			assertEquals(9, server.getMBeanInfo(name).getAttributes().length);
+		}
+		finally {
+			metrics.unregisterMBean();
+		}
+	}
+
+	public void testServer() throws Exception {
+		MetricsServer server = new MetricsServer(metrics, 0);
+		try {
+			InputStream in = new URL("http://127.0.0.1:" + server.getPort() + "/metrics").openStream();
+			String text = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+			in.close();
+			assertTrue(text, text.indexOf("nms_traps_received 3") > -1);
+		}
+		finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.itu.snmp.nms;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class PipelineStageTest extends TestCase {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<Integer> handled = new Vector<Integer>();
+
+	private StageHandler<Integer> blockingHandler = new StageHandler<Integer>() {
+		public void handle(Integer item) throws Exception {
+			release.await(5, TimeUnit.SECONDS);
+			handled.add(item);
+		}
+	};
+
+	public void testDropNewest() throws Exception {
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("test",
+				new StageConfig(1, 2, OverflowPolicy.DROP_NEWEST), blockingHandler);
+		stage.start();
+		assertTrue(stage.offer(1));
+		waitUntilEmpty(stage);
+		assertTrue(stage.offer(2));
+		assertTrue(stage.offer(3));
+		assertFalse(stage.offer(4));
+		release.countDown();
+		stage.shutdown(5000);
+		assertEquals(1, stage.getDropped());
+		assertEquals(3, handled.size());
+		assertFalse(handled.contains(4));
+	}
+
+	public void testDropOldest() throws Exception {
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("test",
+				new StageConfig(1, 2, OverflowPolicy.DROP_OLDEST), blockingHandler);
+		stage.start();
+		assertTrue(stage.offer(1));
+		waitUntilEmpty(stage);
+		assertTrue(stage.offer(2));
+		assertTrue(stage.offer(3));
+		assertTrue(stage.offer(4));
+		release.countDown();
+		stage.shutdown(5000);
+		assertEquals(1, stage.getDropped());
+		assertFalse(handled.contains(2));
+		assertTrue(handled.contains(4));
+	}
+
+	public void testCallerRuns() throws Exception {
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("test",
+				new StageConfig(1, 1, OverflowPolicy.CALLER_RUNS), new StageHandler<Integer>() {
+					public void handle(Integer item) {
+						handled.add(item);
+					}
+				});
+		// not started, so the queue fills up and the caller has to do the work
+		assertTrue(stage.offer(1));
+		assertTrue(stage.offer(2));
+		assertEquals(1, handled.size());
+		assertEquals(2, handled.get(0).intValue());
+		stage.start();
+		stage.shutdown(5000);
+		assertEquals(2, handled.size());
+		assertEquals(0, stage.getDropped());
+	}
+
+	public void testFailedItemsAreCounted() throws Exception {
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("test",
+				new StageConfig(2, 10, OverflowPolicy.BLOCK), new StageHandler<Integer>() {
+					public void handle(Integer item) {
+						throw new IllegalStateException("failing");
+					}
+				});
+		stage.start();
+		stage.offer(1);
+		stage.offer(2);
+		stage.shutdown(5000);
+		assertEquals(2, stage.getFailed());
+		assertEquals(0, stage.getProcessed());
+	}
+
+	private static void waitUntilEmpty(PipelineStage<?> stage) throws InterruptedException {
+		for (int i = 0; i < 100 && stage.getQueueSize() > 0; i++) {
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+import com.itu.snmp.agent.SnmpAgent;
+
+public class ResponseCacheTest extends TestCase {
+
+	private static final String ADDRESS = "127.0.0.1/1617";
+	private static final OID SYS_DESCR = new OID(".1.3.6.1.2.1.1.1.0");
+	private static final OID ENGINE_BOOTS = new OID(".1.3.6.1.6.3.10.2.1.2.0");
+	private static final OID MAX_MESSAGE_SIZE = new OID(".1.3.6.1.6.3.10.2.1.4.0");
+	private static final OID MISSING = new OID(".1.3.6.1.2.1.1.99.0");
+
+	private static SnmpAgent agent;
+	private NmsMetrics metrics;
+	private SnmpSession session;
+
+	public void setUp() throws Exception {
+		if (agent == null) {
+			agent = new SnmpAgent(ADDRESS, "CACHED_AGENT");
+		}
+		metrics = new NmsMetrics();
+		session = new SnmpSession(1, metrics);
+	}
+
+	public void tearDown() {
+		session.close();
+	}
+
+	private long requests() {
+		return metrics.getValue("get_requests");
+	}
+
+	public void testHit() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 60000, 10, metrics);
+		ResponseEvent first = cache.getBlocking(ADDRESS, SYS_DESCR, "first");
+		ResponseEvent second = cache.getBlocking(ADDRESS, SYS_DESCR, "second");
+		assertEquals(new OctetString("CACHED_AGENT says Hello."), first.getResponse().getVariable(SYS_DESCR));
+		assertEquals(new OctetString("CACHED_AGENT says Hello."), second.getResponse().getVariable(SYS_DESCR));
+		assertEquals("second", second.getUserObject());
+		assertNotSame(first.getResponse(), second.getResponse());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, requests());
+	}
+
+	public void testSingleFlight() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 60000, 10, metrics);
+		final CountDownLatch done = new CountDownLatch(50);
+		final Object[] handles = new Object[50];
+		for (int i = 0; i < 50; i++) {
+			cache.get(ADDRESS, SYS_DESCR, Integer.valueOf(i), new ResponseListener() {
+				public void onResponse(ResponseEvent event) {
+					int i = ((Integer) event.getUserObject()).intValue();
+					handles[i] = event.getResponse().getVariable(SYS_DESCR);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (Object handle : handles) {
+			assertEquals(new OctetString("CACHED_AGENT says Hello."), handle);
+		}
+		assertEquals(1, requests());
+		assertEquals(50, cache.getHits() + cache.getMisses() + cache.getCoalesced());
+	}
+
+	public void testExpiry() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 50, 10, metrics);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		Thread.sleep(100);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, requests());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 60000, 2, metrics);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		cache.getBlocking(ADDRESS, ENGINE_BOOTS, null);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		cache.getBlocking(ADDRESS, MAX_MESSAGE_SIZE, null);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		// sysDescr was used last, so engine boots went
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		assertEquals(2, cache.getHits());
+		cache.getBlocking(ADDRESS, ENGINE_BOOTS, null);
+		assertEquals(4, cache.getMisses());
+	}
+
+	public void testErrorsAreNotCached() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 60000, 10, metrics);
+		assertTrue(cache.getBlocking(ADDRESS, MISSING, null).getResponse().get(0).isException());
+		cache.getBlocking(ADDRESS, MISSING, null);
+		assertEquals(0, cache.size());
+		assertEquals(2, requests());
+	}
+
+	public void testOff() throws Exception {
+		ResponseCache cache = new ResponseCache(session, 0, 10, metrics);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		cache.getBlocking(ADDRESS, SYS_DESCR, null);
+		assertEquals(0, cache.size());
+		assertEquals(2, requests());
+	}
+}
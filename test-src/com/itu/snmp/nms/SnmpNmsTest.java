@@ -3,7 +3,17 @@ package com.itu.snmp.nms;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
@@ -15,6 +25,8 @@ import org.snmp4j.smi.TimeTicks;
 import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
 
+import com.itu.snmp.agent.SnmpAgent;
+
 public class SnmpNmsTest extends TestCase {
 
 	private SnmpNms server = null;
@@ -84,6 +96,123 @@ public class SnmpNmsTest extends TestCase {
 		assertTrue(fileContent.indexOf("ALARM") > -1);
 	}
 	
+	public void testTrapEvent() throws Exception {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.1"), new OctetString("777")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.2"), new OctetString("AGENT_1")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.3"), new OctetString("ALARM")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.4"), new OctetString("127.0.0.1/161")));
+
+		TrapEvent event = server.readAndSaveTrap(trap);
+
+		assertEquals("AGENT_1", event.getAgentId());
+		assertEquals("127.0.0.1/161", event.getAgentAddress());
+		assertEquals("777:ALARM", event.getMessage());
+	}
+	
+	public void testListener() throws Exception {
+		final List<Object> received = new ArrayList<Object>();
+		server.addListener(new NmsListener() {
+			public void trapReceived(TrapEvent trap) {
+				received.add(trap);
+			}
+			public void getResponseReceived(GetResponseEvent response) {
+				received.add(response);
+			}
+		});
+
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.1"), new OctetString("777")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.2"), new OctetString("AGENT_1")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.3"), new OctetString("ALARM")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.4"), new OctetString("127.0.0.1/161")));
+		TrapEvent event = server.readAndSaveTrap(trap);
+
+		PDU response = new PDU();
+		response.add(new VariableBinding(new OID(".1.3.6.1.2.1.1.1.0"), new OctetString("System")));
+		server.readAndSaveGetResult(response, event);
+
+		assertEquals(2, received.size());
+		assertSame(event, received.get(0));
+		GetResponseEvent responseEvent = (GetResponseEvent) received.get(1);
+		assertEquals("AGENT_1", responseEvent.getAgentId());
+		assertEquals("System", responseEvent.getResponse());
+		assertSame(event, responseEvent.getTrap());
+
+		AgentRegistry agents = server.getAgents();
+		int agent = agents.find("127.0.0.1/161");
+		assertEquals("AGENT_1", agents.getAgentId(agent));
+		assertEquals(event.getTimestamp(), agents.getLastSeen(agent));
+		assertEquals("System", agents.getLastResponse(agent));
+	}
+	
+	public void testRepeatedAlarm() throws Exception {
+		final List<TrapEvent> received = new ArrayList<TrapEvent>();
+		server.addListener(new NmsListener() {
+			public void trapReceived(TrapEvent trap) {
+				received.add(trap);
+			}
+			public void getResponseReceived(GetResponseEvent response) {
+			}
+		});
+		TrapEvent first = new TrapEvent(System.currentTimeMillis(), "REPEAT_AGENT", "127.0.0.1/161", "777", "ALARM");
+		server.saveRepeatedAlarm(new RepeatedAlarm(first, 9, first.getTimestamp() + 100));
+
+		// one trap standing for the nine repeats, like the other traps
+		assertEquals(1, received.size());
+		assertEquals(9, received.get(0).getRepeats());
+		assertEquals(first.getTimestamp() + 100, received.get(0).getTimestamp());
+		List<TrapEvent> stored = server.findAlarms("REPEAT_AGENT", first.getTimestamp(), first.getTimestamp() + 100);
+		assertEquals(9, stored.get(stored.size() - 1).getRepeats());
+		assertTrue(readFileAsString("alarms.txt").indexOf("REPEAT_AGENT,777:ALARM,repeated 9 times") > -1);
+		server.close();
+	}
+
+	public void testMetrics() throws Exception {
+		PDU trap = new PDU();
+		trap.setType(PDU.TRAP);
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.1"), new OctetString("777")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.2"), new OctetString("AGENT_1")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.3"), new OctetString("ALARM")));
+		trap.add(new VariableBinding(new OID("1.2.3.4.5.4"), new OctetString("127.0.0.1/161")));
+		server.readAndSaveTrap(trap);
+
+		NmsMetrics metrics = server.getMetrics();
+		assertEquals(1, metrics.getValue("traps_decoded"));
+		assertEquals(1, metrics.getValue("traps_persisted"));
+		assertEquals(1, metrics.getHistogram("trap_persist_latency").getCount());
+		assertTrue(metrics.getHistogram("journal_write_latency{journal=\"alarms\"}").getCount() > 0);
+		assertTrue(metrics.toText().indexOf("nms_traps_persisted 1") > -1);
+		server.close();
+	}
+	
+	public void testExecutionModes() throws Exception {
+		SnmpAgent agent = new SnmpAgent("127.0.0.1/1616", "MODE_AGENT", true);
+		try {
+			for (ExecutionMode mode : ExecutionMode.values()) {
+				final CountDownLatch saved = new CountDownLatch(10);
+				server = new SnmpNms() {
+					@Override
+					public void readAndSaveGetResult(PDU respPDU, TrapEvent trap) {
+						super.readAndSaveGetResult(respPDU, trap);
+						saved.countDown();
+					}
+				};
+				server.setExecutionMode(mode);
+				for (int i = 0; i < 10; i++) {
+					server.makeGetToAgent(new TrapEvent(System.currentTimeMillis(), "MODE_AGENT", "127.0.0.1/1616", "1", "TEST"));
+				}
+				assertTrue(mode.toString(), saved.await(10, TimeUnit.SECONDS));
+				server.close();
+			}
+		}
+		finally {
+			agent.stop();
+		}
+	}
+	
 	public void testStart() {
 		try {
 			server = new SnmpNms("127.0.0.1/1620");
@@ -93,6 +222,42 @@ public class SnmpNmsTest extends TestCase {
 		}
 	}
 	
+	public void testFailedStartStopsEverything() throws Exception {
+		// other servers of this JVM may be running
+		int decoders = countThreads("decode-");
+		int timers = countThreads("dedup");
+		DatagramSocket taken = new DatagramSocket(1625, InetAddress.getByName("127.0.0.1"));
+		try {
+			server = new SnmpNms("127.0.0.1/1625", true);
+			fail("the trap port is taken");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		finally {
+			taken.close();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+				new ObjectName("com.itu.snmp.nms:type=NmsMetrics,name=" + ObjectName.quote("127.0.0.1/1625"))));
+		// the workers stop soon after their stage is shut down
+		long deadline = System.currentTimeMillis() + 5000;
+		while (countThreads("decode-") > decoders && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(decoders, countThreads("decode-"));
+		assertEquals(timers, countThreads("dedup"));
+	}
+
+	private static int countThreads(String prefix) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
 	private static String readFileAsString(String filePath) throws java.io.IOException {
 		StringBuffer fileData = new StringBuffer(1000);
 		BufferedReader reader = new BufferedReader(
@@ -0,0 +1,105 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+import com.itu.snmp.agent.SnmpAgent;
+
+public class SnmpSessionTest extends TestCase {
+
+	private static SnmpAgent agent;
+	private SnmpSession session;
+
+	public void setUp() throws Exception {
+		if (agent == null) {
+			agent = new SnmpAgent("127.0.0.1/1613", "SESSION_AGENT");
+		}
+		session = new SnmpSession(2);
+	}
+
+	public void tearDown() {
+		session.close();
+	}
+
+	public void testTargetIsCached() {
+		assertSame(session.getTarget("127.0.0.1/1613"), session.getTarget("127.0.0.1/1613"));
+		assertNotSame(session.getTarget("127.0.0.1/1613"), session.getTarget("127.0.0.1/1614"));
+		assertEquals(2, session.getTargetCount());
+	}
+
+	public void testAsyncGet() throws Exception {
+		final CountDownLatch done = new CountDownLatch(4);
+		final ResponseEvent[] events = new ResponseEvent[4];
+		for (int i = 0; i < 4; i++) {
+			session.get("127.0.0.1/1613", new OID[] { new OID(".1.3.6.1.2.1.1.1.0") }, Integer.valueOf(i), new ResponseListener() {
+				public void onResponse(ResponseEvent event) {
+					events[((Integer) event.getUserObject()).intValue()] = event;
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (ResponseEvent event : events) {
+			assertNotNull(event.getResponse());
+			assertEquals(new OctetString("SESSION_AGENT says Hello."),
+					event.getResponse().getVariable(new OID(".1.3.6.1.2.1.1.1.0")));
+		}
+		assertEquals(0, session.getOutstanding());
+	}
+
+	public void testGetBlocking() throws Exception {
+		ResponseEvent event = session.getBlocking("127.0.0.1/1613", new OID[] { new OID(".1.3.6.1.2.1.1.1.0") }, "handle");
+		assertEquals("handle", event.getUserObject());
+		assertEquals(new OctetString("SESSION_AGENT says Hello."),
+				event.getResponse().getVariable(new OID(".1.3.6.1.2.1.1.1.0")));
+		assertEquals(0, session.getOutstanding());
+	}
+
+	public void testGetAfterClose() throws Exception {
+		session.close();
+		assertTrue(session.isClosed());
+		try {
+			session.get("127.0.0.1/1613", new OID[] { new OID(".1.3.6.1.2.1.1.1.0") }, null, null);
+			fail("GET on a closed session should fail");
+		}
+		catch (java.io.IOException e) {
+			// expected
+		}
+	}
+
+	public void testAdaptiveTimeoutAndBreaker() throws Exception {
+		OID[] oids = new OID[] { new OID(".1.3.6.1.2.1.1.1.0") };
+		session.getBlocking("127.0.0.1/1613", oids, null);
+		// a loopback agent answers well within the shortest timeout
+		assertEquals(session.getMinTimeout(), session.getHealth().getTimeout(session.getRegistry().find("127.0.0.1/1613")));
+
+		// nobody on 1612: after three timeouts the GETs fail at once
+		session.setTimeout(50);
+		session.setRetries(1);
+		session.setBreaker(3, 60000);
+		for (int i = 0; i < 3; i++) {
+			assertNull(session.getBlocking("127.0.0.1/1612", oids, null).getResponse());
+		}
+		assertTrue(session.getHealth().isOpen(session.getRegistry().find("127.0.0.1/1612")));
+		long started = System.currentTimeMillis();
+		try {
+			session.getBlocking("127.0.0.1/1612", oids, null);
+			fail("GET to an agent with an open breaker should fail");
+		}
+		catch (java.io.IOException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - started < 50);
+		assertEquals(1, session.getRejected());
+		assertEquals(3, session.getRegistry().getTimeouts(session.getRegistry().find("127.0.0.1/1612")));
+		assertEquals(0, session.getOutstanding());
+		assertNotNull(session.getBlocking("127.0.0.1/1613", oids, null).getResponse());
+	}
+}
@@ -0,0 +1,26 @@
+package com.itu.snmp.nms;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TimestampFormatTest extends TestCase {
+
+	public void testSameAsSimpleDateFormat() {
+		SimpleDateFormat expected = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS");
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10000; i++) {
+			// mostly times within the same second, now and then a jump
+			now += i % 100 == 0 ? random.nextInt(100000000) : random.nextInt(20);
+			assertEquals(expected.format(new Date(now)), TimestampFormat.format(now));
+		}
+	}
+
+	public void testEpoch() {
+		assertEquals(new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS").format(new Date(0)), TimestampFormat.format(0));
+		assertEquals(new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS").format(new Date(-1)), TimestampFormat.format(-1));
+	}
+}
@@ -0,0 +1,56 @@
+package com.itu.snmp.nms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+	public void testItemsAreSpread() throws Exception {
+		final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>("test", 400, 8, new StageHandler<Integer>() {
+			public void handle(Integer item) {
+				times.add(Long.valueOf(System.nanoTime()));
+			}
+		});
+		for (int i = 0; i < 8; i++) {
+			assertTrue(wheel.add(Integer.valueOf(i)));
+		}
+		assertFalse(wheel.add(Integer.valueOf(0)));
+		wheel.start();
+		Thread.sleep(300);
+		wheel.stop();
+		// one item per 50 ms slot, not all of them at once
+		assertTrue(times.toString(), times.size() >= 5 && times.size() <= 8);
+		long spanMillis = (times.get(times.size() - 1).longValue() - times.get(0).longValue()) / 1000000;
+		assertTrue("span " + spanMillis, spanMillis >= 180);
+	}
+
+	public void testEveryItemOncePerPeriod() throws Exception {
+		final int[] counts = new int[20];
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>("test", 100, 10, new StageHandler<Integer>() {
+			public void handle(Integer item) {
+				synchronized (counts) {
+					counts[item.intValue()]++;
+				}
+			}
+		});
+		for (int i = 0; i < counts.length; i++) {
+			wheel.add(Integer.valueOf(i));
+		}
+		assertTrue(wheel.remove(Integer.valueOf(19)));
+		assertFalse(wheel.remove(Integer.valueOf(19)));
+		assertEquals(19, wheel.size());
+		wheel.start();
+		Thread.sleep(1050);
+		wheel.stop();
+		synchronized (counts) {
+			for (int i = 0; i < 19; i++) {
+				assertTrue("item " + i + ": " + counts[i], counts[i] >= 9 && counts[i] <= 11);
+			}
+			assertEquals(0, counts[19]);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.itu.snmp.nms;
+
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+public class TrapDeduplicatorTest extends TestCase {
+
+	private final List<RepeatedAlarm> summaries = new Vector<RepeatedAlarm>();
+	private TrapDeduplicator deduplicator;
+
+	public void setUp() {
+		deduplicator = new TrapDeduplicator(1000, 3, new NmsMetrics(), new StageHandler<RepeatedAlarm>() {
+			public void handle(RepeatedAlarm alarm) {
+				summaries.add(alarm);
+			}
+		});
+	}
+
+	private static TrapEvent trap(long timestamp, String agentId, String code) {
+		return new TrapEvent(timestamp, agentId, "127.0.0.1/161", code, "Elevator jammed!");
+	}
+
+	public void testRepeatsAreSuppressed() {
+		assertTrue(deduplicator.accept(trap(0, "A", "666")));
+		for (int i = 1; i <= 100; i++) {
+			assertFalse(deduplicator.accept(trap(i, "A", "666")));
+		}
+		// another agent or another code is another alarm
+		assertTrue(deduplicator.accept(trap(200, "B", "666")));
+		assertTrue(deduplicator.accept(trap(200, "A", "667")));
+		assertEquals(3, deduplicator.getPassed());
+		assertEquals(100, deduplicator.getSuppressed());
+		assertTrue(summaries.isEmpty());
+	}
+
+	public void testSummaryWhenWindowCloses() {
+		TrapEvent first = trap(0, "A", "666");
+		deduplicator.accept(first);
+		deduplicator.accept(trap(10, "A", "666"));
+		deduplicator.accept(trap(20, "A", "666"));
+		deduplicator.accept(trap(500, "B", "1"));
+		deduplicator.expire(999);
+		assertTrue(summaries.isEmpty());
+		deduplicator.expire(1000);
+		assertEquals(1, summaries.size());
+		assertSame(first, summaries.get(0).getFirst());
+		assertEquals(2, summaries.get(0).getRepeats());
+		assertEquals(20, summaries.get(0).getLastTimestamp());
+		// B had no repeats, so closing its window gives no summary
+		deduplicator.expire(2000);
+		assertEquals(1, summaries.size());
+		assertEquals(0, deduplicator.size());
+		// a new window opens
+		assertTrue(deduplicator.accept(trap(2001, "A", "666")));
+	}
+
+	public void testOldestClosedWhenFull() {
+		deduplicator.accept(trap(0, "A", "1"));
+		deduplicator.accept(trap(1, "A", "1"));
+		deduplicator.accept(trap(2, "A", "2"));
+		deduplicator.accept(trap(3, "A", "3"));
+		deduplicator.accept(trap(4, "A", "4"));
+		assertEquals(3, deduplicator.size());
+		assertEquals(1, summaries.size());
+		assertEquals("1", summaries.get(0).getFirst().getAlarmCode());
+	}
+
+	public void testTimerAndFlush() throws Exception {
+		deduplicator = new TrapDeduplicator(100, 10, new NmsMetrics(), new StageHandler<RepeatedAlarm>() {
+			public void handle(RepeatedAlarm alarm) {
+				summaries.add(alarm);
+			}
+		});
+		long now = System.currentTimeMillis();
+		deduplicator.accept(trap(now, "A", "1"));
+		deduplicator.accept(trap(now, "A", "1"));
+		deduplicator.start();
+		for (int i = 0; i < 100 && summaries.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, summaries.size());
+		deduplicator.accept(trap(System.currentTimeMillis(), "A", "2"));
+		deduplicator.accept(trap(System.currentTimeMillis(), "A", "2"));
+		deduplicator.stop();
+		assertEquals(2, summaries.size());
+	}
+}
@@ -0,0 +1,180 @@
+package com.itu.snmp.nms;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TrapExporterTest extends TestCase {
+
+	private static final String ADDRESS = "127.0.0.1/1751";
+
+	private File dir;
+	private NmsMetrics metrics;
+	private List<List<TrapEvent>> received;
+	private ExportReceiver receiver;
+	private TrapExporter exporter;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("export", "");
+		dir.delete();
+		dir.mkdirs();
+		metrics = new NmsMetrics();
+		received = Collections.synchronizedList(new ArrayList<List<TrapEvent>>());
+		receiver = new ExportReceiver(ADDRESS, new StageHandler<List<TrapEvent>>() {
+			public void handle(List<TrapEvent> batch) {
+				received.add(batch);
+			}
+		});
+	}
+
+	public void tearDown() throws Exception {
+		if (exporter != null) {
+			exporter.stop(5000);
+		}
+		receiver.stop();
+		delete(dir);
+	}
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private TrapExporter tcpExporter(int batchRecords, long batchMillis) throws Exception {
+		return new TrapExporter(new TcpExportSink(ADDRESS, 1000), batchRecords, batchMillis, true, 1000,
+				new File(dir, "buffer"), 1024 * 1024, 50, metrics);
+	}
+
+	private static TrapEvent trap(int i) {
+		return new TrapEvent(1000L * i, "AGENT_" + (i % 3), "127.0.0.1/1610", "666", "ALARM " + i);
+	}
+
+	private List<TrapEvent> waitForRecords(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		List<TrapEvent> all = new ArrayList<TrapEvent>();
+		while (System.currentTimeMillis() < deadline) {
+			all.clear();
+			synchronized (received) {
+				for (List<TrapEvent> batch : received) {
+					all.addAll(batch);
+				}
+			}
+			if (all.size() >= count) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		return all;
+	}
+
+	private void assertInOrder(List<TrapEvent> records, int count) {
+		assertEquals(count, records.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(trap(i).toString(), records.get(i).toString());
+		}
+	}
+
+	public void testBatchesByCountAndTime() throws Exception {
+		receiver.start();
+		exporter = tcpExporter(10, 200);
+		exporter.start();
+		for (int i = 0; i < 25; i++) {
+			assertTrue(exporter.offer(trap(i)));
+		}
+		assertInOrder(waitForRecords(25), 25);
+		// two full batches at once and the rest when its time was up
+		assertEquals(3, received.size());
+		assertEquals(10, received.get(0).size());
+		assertEquals(5, received.get(2).size());
+		assertEquals(25, metrics.counter("export_records").get());
+		assertEquals(3, metrics.counter("export_batches").get());
+		assertEquals(0, metrics.counter("export_failures").get());
+	}
+
+	public void testOutageIsBufferedOnDisk() throws Exception {
+		// nobody listening: the batches go to the buffer and offering never waits
+		exporter = tcpExporter(5, 20);
+		exporter.start();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(exporter.offer(trap(i)));
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (exporter.getBuffered() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, exporter.getBuffered());
+		assertTrue(metrics.counter("export_failures").get() > 0);
+
+		// the buffer outlives the exporter
+		exporter.stop(5000);
+		exporter = tcpExporter(5, 20);
+		assertEquals(2, exporter.getBuffered());
+		receiver.start();
+		exporter.start();
+		for (int i = 10; i < 15; i++) {
+			exporter.offer(trap(i));
+		}
+		assertInOrder(waitForRecords(15), 15);
+		deadline = System.currentTimeMillis() + 5000;
+		while (exporter.getBuffered() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, exporter.getBuffered());
+	}
+
+	public void testSpool() throws Exception {
+		File spool = new File(dir, "spool");
+		exporter = new TrapExporter(new SpoolExportSink(spool), 100, 10000, false, 1000, new File(dir, "buffer"),
+				1024 * 1024, 50, metrics);
+		exporter.start();
+		for (int i = 0; i < 3; i++) {
+			exporter.offer(trap(i));
+		}
+		// stopping exports the partial batch at once
+		exporter.stop(5000);
+		File[] files = spool.listFiles(new FilenameFilter() {
+			public boolean accept(File parent, String name) {
+				return name.endsWith(FrameWriter.SUFFIX);
+			}
+		});
+		assertEquals(1, files.length);
+		assertInOrder(ExportFormat.decode(new FrameDirectory(spool).read(files[0])), 3);
+	}
+
+	public void testSpoolGoesOnAfterTheReader() throws Exception {
+		File spool = new File(dir, "spool");
+		SpoolExportSink sink = new SpoolExportSink(spool);
+		sink.write(new byte[] { 1 });
+		sink.write(new byte[] { 2 });
+		// the reader takes the batches
+		for (File file : spool.listFiles()) {
+			assertTrue(file.delete());
+		}
+		sink.write(new byte[] { 3 });
+		assertTrue(new File(spool, String.format("%020d", 2) + FrameWriter.SUFFIX).isFile());
+		assertEquals(1, spool.listFiles().length);
+		// a restart goes on from the newest file
+		new SpoolExportSink(spool).write(new byte[] { 4 });
+		assertTrue(new File(spool, String.format("%020d", 3) + FrameWriter.SUFFIX).isFile());
+	}
+
+	public void testFullQueueDrops() throws Exception {
+		exporter = new TrapExporter(new SpoolExportSink(new File(dir, "spool")), 100, 1000, true, 2,
+				new File(dir, "buffer"), 1024 * 1024, 50, metrics);
+		assertTrue(exporter.offer(trap(0)));
+		assertTrue(exporter.offer(trap(1)));
+		assertFalse(exporter.offer(trap(2)));
+		assertEquals(1, metrics.counter("export_dropped").get());
+	}
+}
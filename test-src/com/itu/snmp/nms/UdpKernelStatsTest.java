@@ -0,0 +1,37 @@
+package com.itu.snmp.nms;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class UdpKernelStatsTest extends TestCase {
+
+	private static final String UDP =
+			"   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops\n"
+			+ "  12: 0100007F:0654 00000000:0000 07 00000000:00000300 00:00000000 00000000     0        0 4711 2 0000000000000000 17\n"
+			+ "  13: 0100007F:0654 00000000:0000 07 00000000:00000100 00:00000000 00000000     0        0 4712 2 0000000000000000 3\n"
+			+ "  40: 00000000:00A1 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 4713 2 0000000000000000 99\n";
+
+	private static final String SNMP =
+			"Ip: Forwarding DefaultTTL\n"
+			+ "Ip: 1 64\n"
+			+ "Udp: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors\n"
+			+ "Udp: 1000 2 25 900 25 0\n"
+			+ "UdpLite: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors\n"
+			+ "UdpLite: 0 0 0 0 0 0\n";
+
+	public void testDropsOfPort() throws Exception {
+		assertEquals(20, UdpKernelStats.parseSockets(new StringReader(UDP), 1620, false));
+		assertEquals(99, UdpKernelStats.parseSockets(new StringReader(UDP), 161, false));
+		assertEquals(0, UdpKernelStats.parseSockets(new StringReader(UDP), 162, false));
+	}
+
+	public void testQueuedBytesOfPort() throws Exception {
+		assertEquals(0x400, UdpKernelStats.parseSockets(new StringReader(UDP), 1620, true));
+	}
+
+	public void testReceiveBufferErrors() throws Exception {
+		assertEquals(25, UdpKernelStats.parseReceiveBufferErrors(new StringReader(SNMP)));
+		assertEquals(-1, UdpKernelStats.parseReceiveBufferErrors(new StringReader("Ip: Forwarding\nIp: 1\n")));
+	}
+}
@@ -0,0 +1,40 @@
+package com.itu.snmp.nms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class VirtualThreadsTest extends TestCase {
+
+	public void testAvailableFromJava21() {
+		assertEquals(Runtime.version().feature() >= 21, VirtualThreads.isAvailable());
+	}
+
+	public void testManyBlockedTasks() throws Exception {
+		ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test");
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1000);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							release.await();
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+						done.countDown();
+					}
+				});
+			}
+			release.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}